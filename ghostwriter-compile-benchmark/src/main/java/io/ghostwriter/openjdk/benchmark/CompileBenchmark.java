@@ -0,0 +1,342 @@
+package io.ghostwriter.openjdk.benchmark;
+
+import io.ghostwriter.openjdk.v7.common.Instrumenter;
+import io.ghostwriter.openjdk.v7.common.Profiler;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the compile-time cost of the GhostWriter annotation processor. A synthetic code base is generated in
+ * memory and compiled in-process through javax.tools, once without annotation processing and once with the processor,
+ * several times each. The report contains the compile time and the memory use of both, and the time of each phase of
+ * the instrumentation, as accumulated by the {@link Profiler}.
+ * <p>
+ * The arguments are {@code name=value} pairs, all of them optional:
+ * <ul>
+ * <li>{@code classes}: number of top level classes, default 500</li>
+ * <li>{@code methods}: methods per class, default 10</li>
+ * <li>{@code statements}: assignments per method, default 100</li>
+ * <li>{@code nesting}: depth of the nested loops and conditionals, default 4</li>
+ * <li>{@code loops}: top level loops per method, default 3</li>
+ * <li>{@code warmup}: compilations of each kind before the measurement, default 2</li>
+ * <li>{@code iterations}: measured compilations of each kind, default 3</li>
+ * <li>{@code processor}: class name of the processor, by default the Java 8 one if it is on the classpath, the Java 7
+ * one otherwise</li>
+ * </ul>
+ * Run it with a large enough heap for the code base, the memory figures are only comparable with the same heap size.
+ */
+public final class CompileBenchmark {
+
+    private static final String JAVA8_PROCESSOR = "io.ghostwriter.openjdk.v8.GhostWriterAnnotationProcessor";
+
+    private static final String JAVA7_PROCESSOR = "io.ghostwriter.openjdk.v7.GhostWriterAnnotationProcessor";
+
+    private static final Map<String, String> DEFAULT_ARGUMENTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_ARGUMENTS.put("classes", "500");
+        DEFAULT_ARGUMENTS.put("methods", "10");
+        DEFAULT_ARGUMENTS.put("statements", "100");
+        DEFAULT_ARGUMENTS.put("nesting", "4");
+        DEFAULT_ARGUMENTS.put("loops", "3");
+        DEFAULT_ARGUMENTS.put("warmup", "2");
+        DEFAULT_ARGUMENTS.put("iterations", "3");
+        DEFAULT_ARGUMENTS.put("processor", "");
+    }
+
+    private final JavaCompiler compiler;
+
+    private final List<JavaFileObject> sources;
+
+    private final String processorClassName;
+
+    private CompileBenchmark(JavaCompiler compiler, List<JavaFileObject> sources, String processorClassName) {
+        this.compiler = compiler;
+        this.sources = sources;
+        this.processorClassName = processorClassName;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> arguments = parseArguments(args);
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.err.println("No system Java compiler, run the benchmark with a JDK");
+            System.exit(1);
+        }
+
+        final SyntheticSourceGenerator generator = new SyntheticSourceGenerator(intArgument(arguments, "classes"),
+                intArgument(arguments, "methods"), intArgument(arguments, "statements"),
+                intArgument(arguments, "nesting"), intArgument(arguments, "loops"));
+        final List<JavaFileObject> sources = generator.generate();
+        final String processorClassName = arguments.get("processor").isEmpty()
+                ? defaultProcessorClassName()
+                : arguments.get("processor");
+
+        System.out.println("Code base: " + arguments + ", " + sources.size() + " source files, "
+                + sourceSize(sources) / 1024L + " KiB");
+        System.out.println("Processor: " + processorClassName + ", JVM: " + System.getProperty("java.version")
+                + ", max heap: " + Runtime.getRuntime().maxMemory() / (1024L * 1024L) + " MiB");
+
+        final CompileBenchmark benchmark = new CompileBenchmark(compiler, sources, processorClassName);
+        final int warmup = intArgument(arguments, "warmup");
+        final int iterations = intArgument(arguments, "iterations");
+        final Result baseline = benchmark.measure(false, warmup, iterations);
+        final Result instrumented = benchmark.measure(true, warmup, iterations);
+        report(baseline, instrumented, iterations);
+    }
+
+    private Result measure(boolean isInstrumented, int warmup, int iterations) throws IOException {
+        for (int i = 0; i < warmup; i++) {
+            compile(isInstrumented);
+        }
+
+        final Result total = new Result();
+        for (int i = 0; i < iterations; i++) {
+            total.add(compile(isInstrumented));
+        }
+        return total;
+    }
+
+    private Result compile(boolean isInstrumented) throws IOException {
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final Path outputDirectory = Files.createTempDirectory("ghostwriter-compile-benchmark");
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null,
+                Charset.forName("UTF-8"))) {
+            final List<String> options = new ArrayList<>(Arrays.asList(
+                    "-d", outputDirectory.toString(),
+                    "-classpath", System.getProperty("java.class.path"),
+                    "-nowarn"));
+            if (isInstrumented) {
+                options.add("-A" + Instrumenter.Option.GHOSTWRITER_PROFILE + "=true");
+            } else {
+                options.add("-proc:none");
+            }
+
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    sources);
+            if (isInstrumented) {
+                task.setProcessors(Collections.singletonList(newProcessor()));
+            }
+
+            Profiler.reset();
+            System.gc();
+            resetPeakHeapUsage();
+            final long allocatedBefore = allocatedBytes();
+            final long startNanos = System.nanoTime();
+            final boolean isSuccessful = task.call();
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            final long allocated = allocatedBytes() - allocatedBefore;
+
+            if (!isSuccessful) {
+                throw new IllegalStateException("Compilation failed: " + errors(diagnostics));
+            }
+            return new Result(elapsedNanos, allocated, peakHeapUsage(), Profiler.phaseTimes());
+        } finally {
+            delete(outputDirectory);
+        }
+    }
+
+    private Processor newProcessor() {
+        try {
+            return (Processor) Class.forName(processorClassName).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create the processor " + processorClassName, e);
+        }
+    }
+
+    private static void report(Result baseline, Result instrumented, int iterations) {
+        System.out.println();
+        System.out.printf("%-48s %12s %12s %12s%n", "average of " + iterations + " compilation(s)", "time (ms)",
+                "alloc (MiB)", "peak (MiB)");
+        printRow("without processor", baseline, iterations);
+        printRow("with processor", instrumented, iterations);
+        final double baselineMs = baseline.elapsedNanos / 1000000d / iterations;
+        final double instrumentedMs = instrumented.elapsedNanos / 1000000d / iterations;
+        System.out.printf("%-48s %12.1f (%+.1f%%)%n", "processor overhead", instrumentedMs - baselineMs,
+                (instrumentedMs - baselineMs) * 100d / baselineMs);
+
+        System.out.println();
+        System.out.printf("%-48s %12s %12s%n", "instrumentation phase", "time (ms)", "calls");
+        long profiledNanos = 0L;
+        for (Map.Entry<String, Profiler.PhaseTime> entry : instrumented.phaseTimes.entrySet()) {
+            final Profiler.PhaseTime phaseTime = entry.getValue();
+            profiledNanos += phaseTime.getNanos();
+            System.out.printf("%-48s %12.1f %12d%n", entry.getKey(), phaseTime.getNanos() / 1000000d / iterations,
+                    phaseTime.getCount() / iterations);
+        }
+        System.out.printf("%-48s %12.1f%n", "total of the phases", profiledNanos / 1000000d / iterations);
+    }
+
+    private static void printRow(String name, Result result, int iterations) {
+        final double mebibyte = 1024d * 1024d;
+        System.out.printf("%-48s %12.1f %12s %12.1f%n", name, result.elapsedNanos / 1000000d / iterations,
+                result.allocatedBytes < 0L ? "n/a" : String.format("%.1f", result.allocatedBytes / mebibyte / iterations),
+                result.peakHeapBytes / mebibyte / iterations);
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, javac runs on the calling thread, -1 if the JVM does not
+     * report it
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (allocationMXBean.isThreadAllocatedMemorySupported() && allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1L;
+    }
+
+    private static void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return sum of the peak usage of the heap pools, an upper bound of the peak heap use, the pools peak at different
+     * times
+     */
+    private static long peakHeapUsage() {
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String errors(DiagnosticCollector<JavaFileObject> diagnostics) {
+        final StringBuilder sb = new StringBuilder();
+        int errors = 0;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && errors++ < 10) {
+                sb.append('\n').append(diagnostic);
+            }
+        }
+        return errors + " error(s)" + sb;
+    }
+
+    private static String defaultProcessorClassName() {
+        try {
+            Class.forName(JAVA8_PROCESSOR);
+            return JAVA8_PROCESSOR;
+        } catch (ClassNotFoundException e) {
+            return JAVA7_PROCESSOR;
+        }
+    }
+
+    private static long sourceSize(List<JavaFileObject> sources) throws IOException {
+        long size = 0L;
+        for (JavaFileObject source : sources) {
+            size += source.getCharContent(true).length();
+        }
+        return size;
+    }
+
+    private static Map<String, String> parseArguments(String[] args) {
+        final Map<String, String> arguments = new LinkedHashMap<>(DEFAULT_ARGUMENTS);
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            final String name = separator < 0 ? arg : arg.substring(0, separator);
+            if (separator < 0 || !arguments.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown argument '" + arg + "', expected name=value with one of "
+                        + DEFAULT_ARGUMENTS.keySet());
+            }
+            arguments.put(name, arg.substring(separator + 1));
+        }
+        return arguments;
+    }
+
+    private static int intArgument(Map<String, String> arguments, String name) {
+        try {
+            return Integer.parseInt(arguments.get(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for " + name + ": " + arguments.get(name), e);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Totals of the measured compilations of one kind.
+     */
+    private static final class Result {
+
+        private long elapsedNanos;
+
+        private long allocatedBytes;
+
+        private long peakHeapBytes;
+
+        private final Map<String, Profiler.PhaseTime> phaseTimes;
+
+        Result() {
+            this.phaseTimes = new LinkedHashMap<>();
+        }
+
+        Result(long elapsedNanos, long allocatedBytes, long peakHeapBytes, Map<String, Profiler.PhaseTime> phaseTimes) {
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+            this.phaseTimes = new LinkedHashMap<>(phaseTimes);
+        }
+
+        void add(Result result) {
+            elapsedNanos += result.elapsedNanos;
+            // a single unknown allocation makes the total unknown
+            allocatedBytes = allocatedBytes < 0L || result.allocatedBytes < 0L ? -1L : allocatedBytes + result.allocatedBytes;
+            peakHeapBytes += result.peakHeapBytes;
+            for (Map.Entry<String, Profiler.PhaseTime> entry : result.phaseTimes.entrySet()) {
+                final Profiler.PhaseTime phaseTime = phaseTimes.get(entry.getKey());
+                phaseTimes.put(entry.getKey(), phaseTime == null ? entry.getValue() : phaseTime.plus(entry.getValue()));
+            }
+        }
+
+    }
+
+}
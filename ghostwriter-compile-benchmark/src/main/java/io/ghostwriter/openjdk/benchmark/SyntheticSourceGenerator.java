@@ -0,0 +1,220 @@
+package io.ghostwriter.openjdk.benchmark;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a synthetic code base in memory, shaped to stress the instrumentation: every method has parameters, local
+ * variables, loops, nested conditionals and many assignments, each of which is instrumented. Every class also has a
+ * constructor and a nested class, which are instrumented as part of the class.
+ * <p>
+ * The generated code only uses Java 7 constructs, so it compiles with both the Java 7 and the Java 8 processor. The
+ * output is deterministic, the same parameters always give the same sources.
+ */
+final class SyntheticSourceGenerator {
+
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    private static final String[] ASSIGNMENTS = {
+            "total += %s;",
+            "product *= 3L;",
+            "label = text;",
+            "total = (int) (product %% 1000L) + %s;",
+            "product += total;",
+            "total++;",
+            "flag = total %% 2 == 0;",
+            "label = flag ? label : text;"
+    };
+
+    private final int classes;
+
+    private final int methodsPerClass;
+
+    private final int statementsPerMethod;
+
+    private final int nestingDepth;
+
+    private final int loopsPerMethod;
+
+    /**
+     * @param classes             number of top level classes
+     * @param methodsPerClass     number of methods of each class, the nested class has half as many
+     * @param statementsPerMethod number of assignments in each method, the loops and conditionals are extra
+     * @param nestingDepth        depth of the nested loops and conditionals of each loop
+     * @param loopsPerMethod      number of top level loops in each method
+     */
+    SyntheticSourceGenerator(int classes, int methodsPerClass, int statementsPerMethod, int nestingDepth,
+                             int loopsPerMethod) {
+        if (classes < 1 || methodsPerClass < 1 || statementsPerMethod < 0 || nestingDepth < 0 || loopsPerMethod < 0) {
+            throw new IllegalArgumentException("Invalid code base shape, classes: " + classes + ", methods: "
+                    + methodsPerClass + ", statements: " + statementsPerMethod + ", nesting: " + nestingDepth
+                    + ", loops: " + loopsPerMethod);
+        }
+        this.classes = classes;
+        this.methodsPerClass = methodsPerClass;
+        this.statementsPerMethod = statementsPerMethod;
+        this.nestingDepth = nestingDepth;
+        this.loopsPerMethod = loopsPerMethod;
+    }
+
+    List<JavaFileObject> generate() {
+        final List<JavaFileObject> sources = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            final String packageName = "synthetic.p" + (i / CLASSES_PER_PACKAGE);
+            final String className = "Synthetic" + i;
+            sources.add(new SourceFile(packageName + "." + className, generateClass(packageName, className)));
+        }
+        return sources;
+    }
+
+    private String generateClass(String packageName, String className) {
+        final SourceBuilder sb = new SourceBuilder();
+        sb.line("package " + packageName + ";");
+        sb.line("");
+        sb.line("public class " + className + " {");
+        sb.indent();
+        sb.line("private int state;");
+        sb.line("");
+        sb.line("public " + className + "(int seed) {");
+        sb.indent();
+        sb.line("super();");
+        sb.line("this.state = seed;");
+        sb.outdent();
+        sb.line("}");
+        for (int i = 0; i < methodsPerClass; i++) {
+            appendMethod(sb, "method" + i, i);
+        }
+        sb.line("");
+        sb.line("static final class Nested {");
+        sb.indent();
+        for (int i = 0; i < (methodsPerClass + 1) / 2; i++) {
+            appendMethod(sb, "nested" + i, i);
+        }
+        sb.outdent();
+        sb.line("}");
+        sb.outdent();
+        sb.line("}");
+        return sb.toString();
+    }
+
+    private void appendMethod(SourceBuilder sb, String methodName, int methodIndex) {
+        sb.line("");
+        sb.line("public int " + methodName + "(int seed, String text) {");
+        sb.indent();
+        sb.line("int total = seed;");
+        sb.line("long product = 1L;");
+        sb.line("boolean flag = false;");
+        sb.line("String label = text;");
+
+        final Counter assignments = new Counter(methodIndex);
+        final Counter loopVariables = new Counter(0);
+        for (int i = 0; i < loopsPerMethod; i++) {
+            appendNested(sb, nestingDepth, "seed", assignments, loopVariables);
+        }
+        for (int i = 0; i < statementsPerMethod; i++) {
+            appendAssignment(sb, "seed", assignments);
+        }
+
+        sb.line("return total + label.length() + (flag ? 1 : 0);");
+        sb.outdent();
+        sb.line("}");
+    }
+
+    /**
+     * Loops and conditionals alternate with the depth, the innermost block has a few assignments.
+     */
+    private void appendNested(SourceBuilder sb, int depth, String variable, Counter assignments, Counter loopVariables) {
+        if (depth == 0) {
+            for (int i = 0; i < 3; i++) {
+                appendAssignment(sb, variable, assignments);
+            }
+            return;
+        }
+
+        if (depth % 2 == 1) {
+            final String loopVariable = "i" + loopVariables.next();
+            sb.line("for (int " + loopVariable + " = 0; " + loopVariable + " < seed; " + loopVariable + "++) {");
+            sb.indent();
+            appendNested(sb, depth - 1, loopVariable, assignments, loopVariables);
+            sb.outdent();
+            sb.line("}");
+        } else {
+            sb.line("if (total % " + (depth + 1) + " == 0) {");
+            sb.indent();
+            appendNested(sb, depth - 1, variable, assignments, loopVariables);
+            sb.outdent();
+            sb.line("} else {");
+            sb.indent();
+            sb.line("total--;");
+            sb.outdent();
+            sb.line("}");
+        }
+    }
+
+    private static void appendAssignment(SourceBuilder sb, String variable, Counter assignments) {
+        final String assignment = ASSIGNMENTS[assignments.next() % ASSIGNMENTS.length];
+        sb.line(String.format(assignment, variable));
+    }
+
+    private static final class Counter {
+
+        private int value;
+
+        Counter(int initialValue) {
+            this.value = initialValue;
+        }
+
+        int next() {
+            return value++;
+        }
+
+    }
+
+    private static final class SourceBuilder {
+
+        private final StringBuilder sb = new StringBuilder(4096);
+
+        private int indentation = 0;
+
+        void line(String line) {
+            for (int i = 0; i < indentation; i++) {
+                sb.append("    ");
+            }
+            sb.append(line).append('\n');
+        }
+
+        void indent() {
+            indentation++;
+        }
+
+        void outdent() {
+            indentation--;
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+
+        private final String source;
+
+        SourceFile(String qualifiedClassName, String source) {
+            super(URI.create("string:///" + qualifiedClassName.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+
+    }
+
+}
@@ -3,12 +3,14 @@ package io.ghostwriter.openjdk.v7;
 
 import io.ghostwriter.openjdk.v7.common.Instrumenter;
 import io.ghostwriter.openjdk.v7.common.Logger;
+import io.ghostwriter.openjdk.v7.common.Profiler;
 
 import javax.annotation.processing.*;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
 import java.util.Set;
 
 @SupportedAnnotationTypes("*")
@@ -21,7 +23,8 @@ import java.util.Set;
         Instrumenter.Option.GHOSTWRITER_EXCLUDE_METHODS,
         Instrumenter.Option.GHOSTWRITER_INSTRUMENT,
         Instrumenter.Option.GHOSTWRITER_VERBOSE,
-        Instrumenter.Option.GHOSTWRITER_SHORT_METHOD_LIMIT})
+        Instrumenter.Option.GHOSTWRITER_SHORT_METHOD_LIMIT,
+        Instrumenter.Option.GHOSTWRITER_PROFILE})
 public class GhostWriterAnnotationProcessor extends AbstractProcessor {
 
     // part of the Annotation processor API. Since GhostWriter just hijacks the processor pipeline
@@ -48,6 +51,9 @@ public class GhostWriterAnnotationProcessor extends AbstractProcessor {
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
         if (roundEnv.processingOver()) {
+            if (Profiler.isEnabled()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, Profiler.summary());
+            }
             return NO_ANNOTATIONS_CLAIMED;
         }
 
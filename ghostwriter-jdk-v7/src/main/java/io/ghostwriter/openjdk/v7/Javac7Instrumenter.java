@@ -12,6 +12,8 @@ import io.ghostwriter.openjdk.v7.ast.translator.MethodTranslator;
 import io.ghostwriter.openjdk.v7.ast.translator.Translator;
 import io.ghostwriter.openjdk.v7.common.Instrumenter;
 import io.ghostwriter.openjdk.v7.common.Logger;
+import io.ghostwriter.openjdk.v7.common.Profiler;
+import io.ghostwriter.openjdk.v7.model.Clazz;
 import io.ghostwriter.openjdk.v7.model.Method;
 
 import javax.annotation.processing.ProcessingEnvironment;
@@ -54,6 +56,7 @@ public class Javac7Instrumenter implements Instrumenter {
         initializeExcludedClasses(processingEnv);
         initializeExcludedMethodNames(processingEnv);
         initializeAnnotationOnlyMode(processingEnv);
+        initializeProfiler(processingEnv);
     }
 
     protected final void initializeExcludedClasses(ProcessingEnvironment processingEnv) {
@@ -90,6 +93,15 @@ public class Javac7Instrumenter implements Instrumenter {
         Logger.note(getClass(), "initializeAnnotationOnlyMode", "annotated only mode enabled: " + isAnnotatedOnlyMode);
     }
 
+    protected final void initializeProfiler(ProcessingEnvironment processingEnv) {
+        final String rawEnvProfile = javac.getOption(Option.GHOSTWRITER_PROFILE);
+        if (rawEnvProfile != null) {
+            // without the option the profiler is left as it is, it can be enabled by a tool running the compiler in-process
+            Profiler.setEnabled(Boolean.parseBoolean(rawEnvProfile));
+        }
+        Logger.note(getClass(), "initializeProfiler", "profiling enabled: " + Profiler.isEnabled());
+    }
+
     private String getExclusionRule(String qualifiedName) {
         if (excludedClasses.isEmpty()) {
             return null;
@@ -152,8 +164,11 @@ public class Javac7Instrumenter implements Instrumenter {
 
     protected void processClass(JCClassDecl klass) {
         Logger.note(getClass(), "processClass", klass.getSimpleName().toString());
+        final long collectorStart = Profiler.start();
         Collector<Method> methodCollector = new MethodDeclarationCollector(javac, klass);
-        instrumentMethods(methodCollector.toList());
+        final List<Method> methods = methodCollector.toList();
+        Profiler.stop(MethodDeclarationCollector.class.getSimpleName(), collectorStart);
+        instrumentMethods(methods);
     }
 
     protected void instrumentMethods(List<Method> methodModels) {
@@ -183,7 +198,13 @@ public class Javac7Instrumenter implements Instrumenter {
     }
 
     protected final boolean isMethodExcludedByEnv(Method model) {
-        return excludedMethodNames.contains(model.getName());
+        final String methodName = model.getName();
+        if (excludedMethodNames.contains(methodName)) {
+            return true;
+        }
+        // a single method can be excluded by its qualified name, as exported by the Snaperr hot method detection
+        final String fullyQualifiedClassName = model.getClazz().getFullyQualifiedClassName();
+        return !fullyQualifiedClassName.isEmpty() && excludedMethodNames.contains(fullyQualifiedClassName + "." + methodName);
     }
 
     protected final boolean isMethodExcludedByAnnotation(Method model) {
@@ -7,6 +7,7 @@ import io.ghostwriter.openjdk.v7.ast.compiler.JavaCompiler;
 import io.ghostwriter.openjdk.v7.ast.compiler.JavaCompilerHelper;
 import io.ghostwriter.openjdk.v7.common.Instrumenter;
 import io.ghostwriter.openjdk.v7.common.Logger;
+import io.ghostwriter.openjdk.v7.common.Profiler;
 import io.ghostwriter.openjdk.v7.model.Method;
 
 import java.util.Objects;
@@ -164,22 +165,22 @@ public class MethodTranslator implements Translator<Method> {
 
     protected void traceEnteringExiting(Method model) {
         Translator<Method> enteringExitingTranslator = new EnteringExitingTranslator(javac, helper);
-        enteringExitingTranslator.translate(model);
+        translate(enteringExitingTranslator, model);
     }
 
     protected void traceReturn(Method model) {
         final ReturningTranslator returningTranslator = new ReturningTranslator(javac, helper);
-        returningTranslator.translate(model);
+        translate(returningTranslator, model);
     }
 
     protected void traceTimeout(Method model) {
         final TimeoutTranslator timeoutTranslator = new TimeoutTranslator(javac, helper);
-        timeoutTranslator.translate(model);
+        translate(timeoutTranslator, model);
     }
 
     protected void traceErrors(Method model) {
         Translator<Method> onErrorTranslator = new OnErrorTranslator(javac, helper);
-        onErrorTranslator.translate(model);
+        translate(onErrorTranslator, model);
     }
 
     /**
@@ -191,22 +192,31 @@ public class MethodTranslator implements Translator<Method> {
      */
     protected void traceValueChanges(Method model) {
         ReturnExpressionMutationExtractionTranslator returnExpressionTranslator = new ReturnExpressionMutationExtractionTranslator(javac, helper);
-        returnExpressionTranslator.translate(model);
+        translate(returnExpressionTranslator, model);
         ValueChangeTranslator valueChangeTranslator = new ValueChangeTranslator(javac, helper);
-        valueChangeTranslator.translate(model);
+        translate(valueChangeTranslator, model);
     }
 
     protected void transformConstructor(Method model) {
         // extract constructor calls as first statements
         ConstructorTranslator constructorTranslator = new ConstructorTranslator(helper);
-        constructorTranslator.translate(model);
+        translate(constructorTranslator, model);
     }
 
     protected void transformToBlockConstructs(Method model) {
         // ensure that all if,for,while,foreach,... constructs are using a block instead of a single expression
         // otherwise adding the necessary API calls can lead to syntax errors
         WrapInBlockTranslator wrapInBlockTranslator = new WrapInBlockTranslator(javac);
-        wrapInBlockTranslator.translate(model);
+        translate(wrapInBlockTranslator, model);
+    }
+
+    /**
+     * Applies one of the translation steps, its time is accounted to the translator by the {@link Profiler}.
+     */
+    protected final void translate(Translator<Method> translator, Method model) {
+        final long start = Profiler.start();
+        translator.translate(model);
+        Profiler.stop(translator.getClass().getSimpleName(), start);
     }
 
     protected JavaCompiler getJavac() {
@@ -15,6 +15,7 @@ public interface Instrumenter {
         public static final String GHOSTWRITER_INSTRUMENT = "GHOSTWRITER_INSTRUMENT";
         public static final String GHOSTWRITER_VERBOSE = "GHOSTWRITER_VERBOSE";
         public static final String GHOSTWRITER_SHORT_METHOD_LIMIT = "GHOSTWRITER_SHORT_METHOD_LIMIT";
+        public static final String GHOSTWRITER_PROFILE = "GHOSTWRITER_PROFILE";
     }
 
     void initialize(ProcessingEnvironment processingEnv);
@@ -0,0 +1,106 @@
+package io.ghostwriter.openjdk.v7.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the time spent in the phases of the instrumentation, such as collecting the methods of a class or
+ * running one of the translators. Disabled by default, a disabled profiler does not read the clock.
+ * <p>
+ * Enabled by the {@link Instrumenter.Option#GHOSTWRITER_PROFILE} option, in which case the processor reports the
+ * summary at the end of the compilation, or programmatically when the compiler runs in-process.
+ */
+public enum Profiler {
+    ;
+
+    private static volatile boolean isEnabled = false;
+
+    /**
+     * Guarded by the map itself, in the order of the first use of each phase.
+     */
+    private static final Map<String, PhaseTime> phaseTimes = new LinkedHashMap<>();
+
+    public static void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * @return start of the measurement, to be passed to {@link #stop(String, long)}, 0 if the profiler is disabled
+     */
+    public static long start() {
+        return isEnabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * @param phase      name of the measured phase, the times of the same phase are added up
+     * @param startNanos the result of {@link #start()}
+     */
+    public static void stop(String phase, long startNanos) {
+        if (startNanos == 0L) {
+            return;
+        }
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        synchronized (phaseTimes) {
+            final PhaseTime measurement = new PhaseTime(1L, elapsedNanos);
+            final PhaseTime phaseTime = phaseTimes.get(phase);
+            phaseTimes.put(phase, phaseTime == null ? measurement : phaseTime.plus(measurement));
+        }
+    }
+
+    /**
+     * @return the accumulated times by phase, in the order of their first measurement
+     */
+    public static Map<String, PhaseTime> phaseTimes() {
+        synchronized (phaseTimes) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(phaseTimes));
+        }
+    }
+
+    public static void reset() {
+        synchronized (phaseTimes) {
+            phaseTimes.clear();
+        }
+    }
+
+    public static String summary() {
+        final StringBuilder sb = new StringBuilder("GhostWriter instrumentation time by phase:");
+        for (Map.Entry<String, PhaseTime> entry : phaseTimes().entrySet()) {
+            final PhaseTime phaseTime = entry.getValue();
+            sb.append(String.format("%n  %-48s %10.1f ms %10d calls", entry.getKey(),
+                    phaseTime.getNanos() / 1000000d, phaseTime.getCount()));
+        }
+        return sb.toString();
+    }
+
+    public static final class PhaseTime {
+
+        private final long count;
+
+        private final long nanos;
+
+        PhaseTime(long count, long nanos) {
+            this.count = count;
+            this.nanos = nanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public PhaseTime plus(PhaseTime other) {
+            return new PhaseTime(count + other.count, nanos + other.nanos);
+        }
+
+    }
+
+}
@@ -18,7 +18,8 @@ import javax.lang.model.SourceVersion;
         Instrumenter.Option.GHOSTWRITER_EXCLUDE_METHODS,
         Instrumenter.Option.GHOSTWRITER_INSTRUMENT,
         Instrumenter.Option.GHOSTWRITER_VERBOSE,
-        Instrumenter.Option.GHOSTWRITER_SHORT_METHOD_LIMIT})
+        Instrumenter.Option.GHOSTWRITER_SHORT_METHOD_LIMIT,
+        Instrumenter.Option.GHOSTWRITER_PROFILE})
 public class GhostWriterAnnotationProcessor extends io.ghostwriter.openjdk.v7.GhostWriterAnnotationProcessor {
 
     @Exclude
@@ -17,32 +17,32 @@ public class LambdaAwareMethodTranslator extends MethodTranslator {
     protected void transformToBlockConstructs(Method model) {
         final LambdaAwareWrapInBlockTranslator wrapInBlockTranslator =
                 new LambdaAwareWrapInBlockTranslator(getJavac());
-        wrapInBlockTranslator.translate(model);
+        translate(wrapInBlockTranslator, model);
     }
 
     @Override
     protected void traceEnteringExiting(Method model) {
         LambdaAwareEnteringExitingTranslator enteringExitingTranslator =
                 new LambdaAwareEnteringExitingTranslator(getJavac(), getHelper());
-        enteringExitingTranslator.translate(model);
+        translate(enteringExitingTranslator, model);
     }
 
     @Override
     protected void traceReturn(Method model) {
         LambdaAwareReturningTranslator returningTranslator =
                 new LambdaAwareReturningTranslator(getJavac(), getHelper());
-        returningTranslator.translate(model);
+        translate(returningTranslator, model);
     }
 
     @Override
     protected void traceValueChanges(Method model) {
         ReturnExpressionMutationExtractionTranslator returnExpressionTranslator =
                 new ReturnExpressionMutationExtractionTranslator(getJavac(), getHelper());
-        returnExpressionTranslator.translate(model);
+        translate(returnExpressionTranslator, model);
 
         LambdaAwareValueChangeTranslator valueChangeTranslator =
                 new LambdaAwareValueChangeTranslator(getJavac(), getHelper());
-        valueChangeTranslator.translate(model);
+        translate(valueChangeTranslator, model);
     }
 
 }
@@ -0,0 +1,74 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of onError when many threads raise errors through the same tracer. Every thread is in a tracked scope with a
+ * few variables. With the default limit almost every error is throttled, the error storm case, with the unlimited
+ * setup every error is serialized as text and passed to a handler that drops it.
+ * <p>
+ * Compare the scores at different thread counts, for example
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=ContendedError -PjmhThreads=4}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ContendedErrorBenchmark {
+
+    @Param({"5", "2147483647"})
+    int maxErrorsInWindow;
+
+    private SnaperrTracer tracer;
+
+    @Setup
+    public void setup() {
+        tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(),
+                new ThrottleController(1000L, maxErrorsInWindow));
+    }
+
+    @Benchmark
+    public void onError(ThreadState threadState) {
+        tracer.onError(this, "method", threadState.nextError());
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        /*
+         * The tracer skips an error it has just processed, as it propagates through the callers, so the threads
+         * alternate between two prepared errors instead of allocating a new one for every operation.
+         */
+
+        private final Throwable[] errors = {new IllegalStateException("first"), new IllegalStateException("second")};
+
+        private int next = 0;
+
+        private ContendedErrorBenchmark benchmark;
+
+        @Setup
+        public void setup(ContendedErrorBenchmark benchmark) {
+            this.benchmark = benchmark;
+            benchmark.tracer.entering(this, "method", "id", 42, "name", "ghostwriter");
+            benchmark.tracer.valueChange(this, "method", "attempt", 3);
+        }
+
+        @TearDown
+        public void tearDown() {
+            benchmark.tracer.exiting(this, "method");
+        }
+
+        Throwable nextError() {
+            next ^= 1;
+            return errors[next];
+        }
+
+    }
+
+}
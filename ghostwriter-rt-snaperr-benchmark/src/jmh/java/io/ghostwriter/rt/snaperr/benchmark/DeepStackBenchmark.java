@@ -0,0 +1,46 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a deep recursion: every operation enters the given number of nested scopes, assigns a variable in each of
+ * them and exits all of them. Above {@link StackBasedReferenceTracker#DEFAULT_MAX_DEPTH} the scopes are only
+ * counted, above {@link StackBasedReferenceTracker#DEFAULT_RETAINED_DEPTH} the slots are kept only while the thread
+ * regularly needs them. Divide the score by the depth for the cost of a single scope.
+ * <p>
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=DeepStack}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DeepStackBenchmark {
+
+    @Param({"16", "256", "2048"})
+    int depth;
+
+    private SnaperrTracer tracer;
+
+    @Setup
+    public void setup() {
+        tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(), new ThrottleController());
+    }
+
+    @Benchmark
+    public void pushPop() {
+        for (int i = 0; i < depth; i++) {
+            tracer.entering(this, "recurse");
+            tracer.valueChange(this, "recurse", "depth", i);
+        }
+        for (int i = 0; i < depth; i++) {
+            tracer.exiting(this, "recurse");
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.api.BatchTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+import io.ghostwriter.rt.snaperr.core.RollingFileHandler;
+import io.ghostwriter.rt.snaperr.core.SystemOutWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the sinks of the asynchronous trigger handler, in triggers per second. Both sinks receive the same
+ * batches and write them into a file: the standard output of {@link SystemOutWriter} is redirected to a file for the
+ * duration of the benchmark, so the console does not skew the numbers.
+ * <p>
+ * The rolling file handler never forces the data to the storage device, like the redirected standard output.
+ * The written files are truncated or deleted after every iteration, to keep the disk usage bounded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class FileSinkThroughputBenchmark {
+
+    private static final long MAX_FILE_SIZE = 16L * 1024 * 1024;
+
+    @Param({"1", "64"})
+    int batchSize;
+
+    @Param({"1024"})
+    int triggerSize;
+
+    private List<SerializedTrigger> batch;
+
+    private File directory;
+
+    private PrintStream originalOut;
+
+    private FileOutputStream redirectedOut;
+
+    private SystemOutWriter systemOutWriter;
+
+    private RollingFileHandler rollingFileHandler;
+
+    @Setup
+    public void setup() throws IOException {
+        final StringBuilder sb = new StringBuilder(triggerSize);
+        for (int i = 0; i < triggerSize; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new SerializedTrigger(SerializedTrigger.Type.ERROR, sb.toString()));
+        }
+
+        directory = Files.createTempDirectory("snaperr-benchmark").toFile();
+        originalOut = System.out;
+        // appending, so truncating the file resets the write position as well
+        redirectedOut = new FileOutputStream(new File(directory, "stdout.log"), true);
+        System.setOut(new PrintStream(new BufferedOutputStream(redirectedOut), false));
+        systemOutWriter = new SystemOutWriter();
+        rollingFileHandler = new RollingFileHandler(directory, "snaperr", MAX_FILE_SIZE,
+                RollingFileHandler.DEFAULT_MAX_FILE_AGE_MS, RollingFileHandler.FsyncPolicy.never());
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteWrittenData() throws IOException {
+        System.out.flush();
+        redirectedOut.getChannel().truncate(0L);
+
+        final File currentFile = rollingFileHandler.getCurrentFile();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(RollingFileHandler.FILE_EXTENSION) && !file.equals(currentFile)) {
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        rollingFileHandler.close();
+        System.out.close();
+        System.setOut(originalOut);
+
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void systemOutWriter() {
+        handleBatches(systemOutWriter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void rollingFileHandler() {
+        handleBatches(rollingFileHandler);
+    }
+
+    /**
+     * Writes 64 triggers, so the throughput of the different batch sizes is comparable.
+     */
+    private void handleBatches(BatchTriggerHandler handler) {
+        for (int written = 0; written < 64; written += batchSize) {
+            handler.onBatch(batch);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.HotMethodDetector;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a call of a tiny instrumented method, the kind of getter that is called hundreds of millions of times, through
+ * the events an instrumented method sends to the tracer. The call is made from a tracked caller. The variants: no hot
+ * method detection, detection that counts the calls, and the method demoted by the detection.
+ * <p>
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=HotMethodDemotion}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class HotMethodDemotionBenchmark {
+
+    @Param({"untracked", "counted", "demoted"})
+    String detection;
+
+    private SnaperrTracer tracer;
+
+    @Setup
+    public void setup() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        if (!"untracked".equals(detection)) {
+            // the threshold is never reached, the method is only demoted explicitly
+            final HotMethodDetector detector = new HotMethodDetector(Long.MAX_VALUE);
+            if ("demoted".equals(detection)) {
+                detector.demote(HotMethodDemotionBenchmark.class, "getX");
+            }
+            referenceTracker.setHotMethodDetector(detector);
+        }
+        tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(), new ThrottleController());
+        tracer.entering(this, "caller");
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.exiting(this, "caller");
+    }
+
+    @Benchmark
+    public void hotMethodCall() {
+        tracer.entering(this, "getX");
+        tracer.valueChange(this, "getX", "x", 42);
+        tracer.exiting(this, "getX");
+    }
+
+}
@@ -0,0 +1,104 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.core.KeyedThrottleController;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throttle decision of the {@link KeyedThrottleController} with multiple threads raising errors at the
+ * same time, compared to the single window of the {@link ThrottleController}.
+ * <p>
+ * In the shared setup every thread raises the same error, so they all hit the same bucket. In the distinct setup each
+ * thread raises its own error, so the threads look up different buckets. With the default limits almost every call is
+ * rejected, this is the error storm case.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyedThrottlerContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Throttlers {
+
+        final ThrottleController global = new ThrottleController();
+
+        final KeyedThrottleController keyed = new KeyedThrottleController(
+                KeyedThrottleController.KeyStrategy.EXCEPTION_TYPE_AND_METHOD);
+
+        final ErrorTrigger sharedError = errorTrigger("failing");
+
+        private final AtomicInteger threadIndex = new AtomicInteger();
+
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadError {
+
+        ErrorTrigger distinctError;
+
+        @Setup
+        public void setup(Throttlers throttlers) {
+            distinctError = errorTrigger("failing" + throttlers.threadIndex.getAndIncrement());
+        }
+
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean global01(Throttlers throttlers) {
+        return throttlers.global.doHandleError(throttlers.sharedError);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean global04(Throttlers throttlers) {
+        return throttlers.global.doHandleError(throttlers.sharedError);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean global16(Throttlers throttlers) {
+        return throttlers.global.doHandleError(throttlers.sharedError);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean keyedShared01(Throttlers throttlers) {
+        return throttlers.keyed.doHandleError(throttlers.sharedError);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean keyedShared04(Throttlers throttlers) {
+        return throttlers.keyed.doHandleError(throttlers.sharedError);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean keyedShared16(Throttlers throttlers) {
+        return throttlers.keyed.doHandleError(throttlers.sharedError);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean keyedDistinct04(Throttlers throttlers, ThreadError threadError) {
+        return throttlers.keyed.doHandleError(threadError.distinctError);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean keyedDistinct16(Throttlers throttlers, ThreadError threadError) {
+        return throttlers.keyed.doHandleError(threadError.distinctError);
+    }
+
+    private static ErrorTrigger errorTrigger(String methodName) {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(KeyedThrottlerContentionBenchmark.class, methodName);
+        return new ErrorTrigger(referenceTracker, new IllegalStateException());
+    }
+
+}
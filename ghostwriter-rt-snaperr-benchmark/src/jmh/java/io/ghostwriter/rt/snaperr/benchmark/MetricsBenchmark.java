@@ -0,0 +1,50 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.api.ErrorDeduplicator;
+import io.ghostwriter.rt.snaperr.core.SnaperrMetrics;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of collecting the metrics on the hot path. The same invocation tree as {@link SamplingBenchmark}, with and
+ * without metrics, the difference is the counting of its 9 events.
+ * <p>
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=Metrics}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+    @Param({"false", "true"})
+    boolean measured;
+
+    private SnaperrTracer tracer;
+
+    @Setup
+    public void setup() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final SnaperrMetrics metrics = measured ? new SnaperrMetrics(referenceTracker) : null;
+        tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(), new ThrottleController(),
+                ErrorDeduplicator.NONE, null, metrics);
+    }
+
+    @Benchmark
+    public void invocationTree() {
+        tracer.entering(this, "root", "a", "value");
+        for (int i = 0; i < 4; i++) {
+            tracer.valueChange(this, "root", "i", i);
+        }
+        tracer.entering(this, "nested", "b", this);
+        tracer.valueChange(this, "nested", "c", "text");
+        tracer.exiting(this, "nested");
+        tracer.exiting(this, "root");
+    }
+
+}
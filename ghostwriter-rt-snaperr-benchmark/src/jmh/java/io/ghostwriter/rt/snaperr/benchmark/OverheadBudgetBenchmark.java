@@ -0,0 +1,55 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.api.ErrorDeduplicator;
+import io.ghostwriter.rt.snaperr.core.OverheadBudgetController;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of measuring the overhead of the tracer. The same invocation tree as {@link SamplingBenchmark}, without a budget
+ * and with a budget whose window never ends, so the tracking is never degraded and the difference is the cost of the
+ * event sampling and the timing of the sampled events. The benchmark thread spends nearly all of its time in the
+ * tracer, any budget would degrade it otherwise.
+ * <p>
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=OverheadBudget}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class OverheadBudgetBenchmark {
+
+    @Param({"false", "true"})
+    boolean budgeted;
+
+    private SnaperrTracer tracer;
+
+    @Setup
+    public void setup() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final OverheadBudgetController overheadBudget = budgeted
+                ? new OverheadBudgetController(100d, TimeUnit.DAYS.toMillis(1L),
+                OverheadBudgetController.DEFAULT_SAMPLE_INTERVAL, referenceTracker)
+                : null;
+        tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(), new ThrottleController(),
+                ErrorDeduplicator.NONE, overheadBudget);
+    }
+
+    @Benchmark
+    public void invocationTree() {
+        tracer.entering(this, "root", "a", "value");
+        for (int i = 0; i < 4; i++) {
+            tracer.valueChange(this, "root", "i", i);
+        }
+        tracer.entering(this, "nested", "b", this);
+        tracer.valueChange(this, "nested", "c", "text");
+        tracer.exiting(this, "nested");
+        tracer.exiting(this, "root");
+    }
+
+}
@@ -0,0 +1,165 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.api.TrackedValue;
+import io.ghostwriter.rt.snaperr.api.TriggerHandler;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.ScopeChain;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation rate of the steady state entering/valueChange/exiting cycle of an instrumented method.
+ * Run it with the GC profiler to see the allocated bytes per operation:
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=ReferenceTrackerAllocation -PjmhProfilers=gc}
+ * <p>
+ * The reusable scope storage of {@link StackBasedReferenceTracker} is compared to a tracker that creates a new
+ * map and new tracked values for every frame, which is how the tracker used to work.
+ * The parameters of the simulated calls are prepared up front, so the boxing and varargs arrays of the
+ * instrumented code do not show up in the numbers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ReferenceTrackerAllocationBenchmark {
+
+    private static final Object[] PARAMETERS = {"id", 42, "name", "ghostwriter"};
+
+    private static final Object RESULT = 1L;
+
+    private static final Object INDEX = 7;
+
+    private SnaperrTracer reusingTracer;
+
+    private SnaperrTracer allocatingTracer;
+
+    @Setup
+    public void setup() {
+        reusingTracer = tracer(new StackBasedReferenceTracker());
+        allocatingTracer = tracer(new AllocatingReferenceTracker());
+    }
+
+    @Benchmark
+    public void reusingScopes() {
+        simulateCalls(reusingTracer);
+    }
+
+    @Benchmark
+    public void allocatingScopes() {
+        simulateCalls(allocatingTracer);
+    }
+
+    /**
+     * Two nested instrumented calls with parameters and local variables.
+     */
+    private void simulateCalls(SnaperrTracer tracer) {
+        tracer.entering(this, "outer", PARAMETERS);
+        tracer.valueChange(this, "outer", "result", RESULT);
+        tracer.entering(this, "inner", PARAMETERS);
+        tracer.valueChange(this, "inner", "index", INDEX);
+        tracer.valueChange(this, "inner", "index", RESULT);
+        tracer.exiting(this, "inner");
+        tracer.valueChange(this, "outer", "result", INDEX);
+        tracer.exiting(this, "outer");
+    }
+
+    private static SnaperrTracer tracer(ReferenceTracker referenceTracker) {
+        return new SnaperrTracer(referenceTracker, new StringSerializer(), new IgnoringTriggerHandler(), new ThrottleController());
+    }
+
+    static final class IgnoringTriggerHandler implements TriggerHandler {
+
+        @Override
+        public void onError(String serializedError) {
+        }
+
+        @Override
+        public void onTimeout(String serializedTimeout) {
+        }
+
+    }
+
+    /**
+     * Baseline that allocates a new map per pushed scope and a new {@link TrackedValue} per new variable.
+     */
+    static final class AllocatingReferenceTracker implements ReferenceTracker {
+
+        private final List<TrackedScope> stack = new ArrayList<>();
+
+        @Override
+        public <T> void track(String variableName, T variableReference) {
+            final Map<String, TrackedValue> references = stack.get(stack.size() - 1).getReferences();
+            final TrackedValue trackedValue = references.get(variableName);
+            if (trackedValue == null) {
+                references.put(variableName, new TrackedValue(variableName, variableReference));
+            } else {
+                trackedValue.setValue(variableReference);
+            }
+        }
+
+        @Override
+        public void pushScope(Object source, String methodName) {
+            stack.add(new TrackedScope(source, methodName, new HashMap<String, TrackedValue>()));
+        }
+
+        @Override
+        public void popScope() {
+            stack.remove(stack.size() - 1);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return stack.isEmpty();
+        }
+
+        @Override
+        public TrackedScope currentScope() {
+            return stack.get(stack.size() - 1);
+        }
+
+        @Override
+        public Iterator<TrackedScope> scopes() {
+            final List<TrackedScope> scopes = new ArrayList<>(stack);
+            Collections.reverse(scopes);
+            return scopes.iterator();
+        }
+
+        @Override
+        public int untrackedDepth() {
+            return 0;
+        }
+
+        @Override
+        public int samplingInterval() {
+            return 1;
+        }
+
+        @Override
+        public boolean isSampled() {
+            return true;
+        }
+
+        @Override
+        public ScopeChain captureScopes() {
+            return null;
+        }
+
+        @Override
+        public ScopeChain attachScopes(ScopeChain scopes) {
+            return null;
+        }
+
+    }
+
+}
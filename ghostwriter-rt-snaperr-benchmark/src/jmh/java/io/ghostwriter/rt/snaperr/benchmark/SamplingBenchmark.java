@@ -0,0 +1,48 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of an instrumented invocation tree with sampling. Every operation is a root invocation that changes a few
+ * variables and calls a nested method, through the events an instrumented method sends to the tracer. With an interval
+ * of N, only 1 in N trees is tracked, the others only maintain a depth counter.
+ * <p>
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=Sampling}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SamplingBenchmark {
+
+    @Param({"1", "10", "100"})
+    int samplingInterval;
+
+    private SnaperrTracer tracer;
+
+    @Setup
+    public void setup() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setSamplingInterval(samplingInterval);
+        tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(), new ThrottleController());
+    }
+
+    @Benchmark
+    public void invocationTree() {
+        tracer.entering(this, "root", "a", "value");
+        for (int i = 0; i < 4; i++) {
+            tracer.valueChange(this, "root", "i", i);
+        }
+        tracer.entering(this, "nested", "b", this);
+        tracer.valueChange(this, "nested", "c", "text");
+        tracer.exiting(this, "nested");
+        tracer.exiting(this, "root");
+    }
+
+}
@@ -0,0 +1,71 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of walking the tracked call stack from the innermost scope, which every snapshot does at least once.
+ * Run it with the GC profiler to see the allocated bytes per operation:
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=ScopeIteration -PjmhProfilers=gc}
+ * <p>
+ * The iterator of {@link StackBasedReferenceTracker} walks the slots of the stack directly. The copying variant
+ * repeats what the iterator used to do: copy the live part of the stack into a new LinkedList and reverse it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ScopeIterationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int depth;
+
+    private StackBasedReferenceTracker referenceTracker;
+
+    /**
+     * The live part of the stack in push order, the input of the copying iterator.
+     */
+    private List<TrackedScope> stack;
+
+    @Setup
+    public void setup() {
+        referenceTracker = new StackBasedReferenceTracker();
+        for (int i = 0; i < depth; i++) {
+            referenceTracker.pushScope(this, "method" + i);
+        }
+
+        stack = new ArrayList<>(depth);
+        final Iterator<TrackedScope> scopes = referenceTracker.scopes();
+        while (scopes.hasNext()) {
+            stack.add(scopes.next());
+        }
+        Collections.reverse(stack);
+    }
+
+    @Benchmark
+    public void slotIterator(Blackhole blackhole) {
+        final Iterator<TrackedScope> scopes = referenceTracker.scopes();
+        while (scopes.hasNext()) {
+            blackhole.consume(scopes.next());
+        }
+    }
+
+    @Benchmark
+    public void copyingIterator(Blackhole blackhole) {
+        final List<TrackedScope> stackCopy = new LinkedList<>(stack);
+        Collections.reverse(stackCopy);
+        final Iterator<TrackedScope> scopes = stackCopy.iterator();
+        while (scopes.hasNext()) {
+            blackhole.consume(scopes.next());
+        }
+    }
+
+}
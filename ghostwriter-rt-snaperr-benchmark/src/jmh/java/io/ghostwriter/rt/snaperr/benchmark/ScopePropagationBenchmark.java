@@ -0,0 +1,64 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.core.ScopePropagator;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-submit overhead of propagating the tracked scopes to the executing thread. Every operation enters a method at
+ * the given depth, submits a task from it and leaves the method, the way an instrumented caller does. The task runs
+ * inline, so only the cost of the submission is measured: capturing the scopes and wrapping the task.
+ * <p>
+ * The capture only copies the scopes that changed since the previous one, here the submitting method and its caller,
+ * so the overhead should not depend on the depth. Run it with the GC profiler
+ * to see the allocated bytes per submission:
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=ScopePropagation -PjmhProfilers=gc}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ScopePropagationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int depth;
+
+    private StackBasedReferenceTracker referenceTracker;
+
+    private ScopePropagator scopePropagator;
+
+    private Runnable task;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        referenceTracker = new StackBasedReferenceTracker(2 * depth);
+        scopePropagator = new ScopePropagator(referenceTracker);
+        for (int i = 0; i < depth; i++) {
+            referenceTracker.pushScope(this, "method" + i);
+            referenceTracker.track("i", i);
+        }
+        task = new Runnable() {
+            @Override
+            public void run() {
+                blackhole.consume(this);
+            }
+        };
+    }
+
+    @Benchmark
+    public void plainSubmit() {
+        referenceTracker.pushScope(this, "submit");
+        task.run();
+        referenceTracker.popScope();
+    }
+
+    @Benchmark
+    public void propagatingSubmit() {
+        referenceTracker.pushScope(this, "submit");
+        scopePropagator.wrap(task).run();
+        referenceTracker.popScope();
+    }
+
+}
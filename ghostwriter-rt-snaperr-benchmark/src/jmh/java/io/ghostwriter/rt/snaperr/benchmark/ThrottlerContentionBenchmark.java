@@ -0,0 +1,100 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.Throttler;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the throttle decision scales with the number of threads raising errors at the same time.
+ * The lock-free {@link ThrottleController} is compared to the same controller guarded by a monitor,
+ * which is how SnaperrTracer used to call the throttler.
+ * <p>
+ * With the default limit almost every call is rejected, this is the error storm case. With the unlimited
+ * setup every call is admitted, so each one has to update the counter of the window.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ThrottlerContentionBenchmark {
+
+    @Param({"5", "2147483647"})
+    int maxErrorsInWindow;
+
+    private Throttler lockFree;
+
+    private Throttler synchronizedBaseline;
+
+    private ErrorTrigger errorTrigger;
+
+    @Setup
+    public void setup() {
+        lockFree = new ThrottleController(1000L, maxErrorsInWindow);
+        synchronizedBaseline = new SynchronizedThrottler(new ThrottleController(1000L, maxErrorsInWindow));
+        errorTrigger = new ErrorTrigger(new StackBasedReferenceTracker(), new IllegalStateException());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean lockFree01() {
+        return lockFree.doHandleError(errorTrigger);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean lockFree04() {
+        return lockFree.doHandleError(errorTrigger);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean lockFree16() {
+        return lockFree.doHandleError(errorTrigger);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean synchronized01() {
+        return synchronizedBaseline.doHandleError(errorTrigger);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean synchronized04() {
+        return synchronizedBaseline.doHandleError(errorTrigger);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean synchronized16() {
+        return synchronizedBaseline.doHandleError(errorTrigger);
+    }
+
+    /**
+     * The way SnaperrTracer used to access the throttler, every caller goes through the same monitor.
+     */
+    static final class SynchronizedThrottler implements Throttler {
+
+        private final Throttler throttler;
+
+        SynchronizedThrottler(Throttler throttler) {
+            this.throttler = throttler;
+        }
+
+        @Override
+        public synchronized boolean doHandleTimeout(TimeoutTrigger timeoutTrigger) {
+            return throttler.doHandleTimeout(timeoutTrigger);
+        }
+
+        @Override
+        public synchronized boolean doHandleError(ErrorTrigger errorTrigger) {
+            return throttler.doHandleError(errorTrigger);
+        }
+
+    }
+
+}
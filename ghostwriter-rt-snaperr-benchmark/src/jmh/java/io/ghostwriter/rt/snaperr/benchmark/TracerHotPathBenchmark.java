@@ -0,0 +1,78 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ThrottleController;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the events every instrumented method sends to the tracer, in the steady state of a thread.
+ * <p>
+ * {@link #enteringExiting()} is a call of a method with the given number of parameters. The valueChange benchmarks
+ * assign {@link #ASSIGNMENTS} variables in a call: {@link #valueChangeNewVariables()} assigns distinct ones, so each
+ * assignment adds a variable to the scope, {@link #valueChangeExistingVariable()} assigns the same one again. The
+ * parameters and the variable names are prepared up front, so the varargs arrays of the instrumented code do not show
+ * up in the allocation rate.
+ * <p>
+ * {@code ./gradlew :ghostwriter-rt-snaperr-benchmark:jmh -PjmhInclude=TracerHotPath}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TracerHotPathBenchmark {
+
+    private static final int ASSIGNMENTS = 8;
+
+    @Param({"0", "1", "4", "8"})
+    int parameterCount;
+
+    private SnaperrTracer tracer;
+
+    private Object[] parameters;
+
+    private final String[] variableNames = new String[ASSIGNMENTS];
+
+    private final Object value = "value";
+
+    @Setup
+    public void setup() {
+        tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new StringSerializer(),
+                new ReferenceTrackerAllocationBenchmark.IgnoringTriggerHandler(), new ThrottleController());
+        parameters = new Object[parameterCount * 2];
+        for (int i = 0; i < parameterCount; i++) {
+            parameters[i * 2] = "parameter" + i;
+            parameters[i * 2 + 1] = i;
+        }
+        for (int i = 0; i < ASSIGNMENTS; i++) {
+            variableNames[i] = "variable" + i;
+        }
+    }
+
+    @Benchmark
+    public void enteringExiting() {
+        tracer.entering(this, "method", parameters);
+        tracer.exiting(this, "method");
+    }
+
+    @Benchmark
+    public void valueChangeNewVariables() {
+        tracer.entering(this, "method", parameters);
+        for (String variableName : variableNames) {
+            tracer.valueChange(this, "method", variableName, value);
+        }
+        tracer.exiting(this, "method");
+    }
+
+    @Benchmark
+    public void valueChangeExistingVariable() {
+        tracer.entering(this, "method", parameters);
+        for (int i = 0; i < ASSIGNMENTS; i++) {
+            tracer.valueChange(this, "method", "variable", value);
+        }
+        tracer.exiting(this, "method");
+    }
+
+}
@@ -0,0 +1,101 @@
+package io.ghostwriter.rt.snaperr.benchmark;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.core.BinarySerializer;
+import io.ghostwriter.rt.snaperr.core.JsonSerializer;
+import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization cost of an error snapshot in the text, binary and JSON formats.
+ * The call stack is a recursive call chain, the typical shape of a snapshot with many repeated names. Every scope has
+ * four typed variables, and counters up to the size of the scope.
+ * <p>
+ * The streaming variants write into a discarding sink, run with the GC profiler to compare their allocation rate
+ * with the String based ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TriggerSerializerBenchmark {
+
+    @Param({"1", "16"})
+    int callStackDepth;
+
+    @Param({"4", "32"})
+    int variablesPerScope;
+
+    private final StringSerializer stringSerializer = new StringSerializer();
+
+    private final BinarySerializer binarySerializer = new BinarySerializer();
+
+    private final JsonSerializer jsonSerializer = new JsonSerializer();
+
+    private final OutputStream sink = new DiscardingOutputStream();
+
+    private ErrorTrigger errorTrigger;
+
+    @Setup
+    public void setup() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        for (int i = 0; i < callStackDepth; i++) {
+            referenceTracker.pushScope(this, "visit");
+            referenceTracker.track("depth", i);
+            referenceTracker.track("node", "node-" + i);
+            referenceTracker.track("weight", i * 0.25d);
+            referenceTracker.track("isLeaf", i == callStackDepth - 1);
+            for (int j = 4; j < variablesPerScope; j++) {
+                referenceTracker.track("counter" + j, (long) i * j);
+            }
+        }
+        errorTrigger = new ErrorTrigger(referenceTracker, new IllegalStateException("Unexpected node"));
+    }
+
+    @Benchmark
+    public String text() {
+        return stringSerializer.serializeTrigger(errorTrigger);
+    }
+
+    @Benchmark
+    public byte[] binary() {
+        return binarySerializer.serialize(errorTrigger);
+    }
+
+    @Benchmark
+    public String json() {
+        return jsonSerializer.serializeTrigger(errorTrigger);
+    }
+
+    @Benchmark
+    public void jsonStreaming() throws IOException {
+        jsonSerializer.serializeTrigger(errorTrigger, sink);
+    }
+
+    @Benchmark
+    public void binaryStreaming() throws IOException {
+        binarySerializer.serializeTrigger(errorTrigger, sink);
+    }
+
+    @Override
+    public String toString() {
+        return "TreeWalker";
+    }
+
+    private static final class DiscardingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package io.ghostwriter.rt.snaperr.jdk21.benchmark;
+
+import io.ghostwriter.rt.snaperr.jdk21.VirtualThreadReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracking on many short-lived threads, virtual threads compared to platform threads, with the default and the
+ * virtual thread aware reference tracker. Every thread makes a few nested calls, each of them pushes a scope, tracks
+ * two values and pops the scope, so a call is four tracked events.
+ * <p>
+ * {@link #events()} reports the tracked events per second. {@link #threadLifecycle()} starts threads that make a
+ * single call, run it with the GC profiler to see the bytes allocated per thread, including the tracking state:
+ * {@code ./gradlew :ghostwriter-rt-snaperr-jdk21:jmh -PjmhInclude=VirtualThreadTracking -PjmhProfilers=gc}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class VirtualThreadTrackingBenchmark {
+
+    private static final int THREADS = 1000;
+
+    private static final int CALL_DEPTH = 5;
+
+    private static final int CALLS_PER_THREAD = 20;
+
+    private static final int EVENTS_PER_CALL = 4;
+
+    @Param({"virtual", "platform"})
+    String threadKind;
+
+    @Param({"virtualThreadAware", "default"})
+    String tracker;
+
+    private ThreadFactory threadFactory;
+
+    private ReferenceTracker referenceTracker;
+
+    @Setup
+    public void setup() {
+        threadFactory = "virtual".equals(threadKind) ? Thread.ofVirtual().factory() : Thread.ofPlatform().factory();
+        referenceTracker = "default".equals(tracker) ? new StackBasedReferenceTracker() : new VirtualThreadReferenceTracker();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(THREADS * CALLS_PER_THREAD * CALL_DEPTH * EVENTS_PER_CALL)
+    public void events() throws InterruptedException {
+        runThreads(CALLS_PER_THREAD);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(THREADS)
+    public void threadLifecycle() throws InterruptedException {
+        runThreads(1);
+    }
+
+    private void runThreads(final int calls) throws InterruptedException {
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int id = i;
+            threads[i] = threadFactory.newThread(() -> {
+                for (int call = 0; call < calls; call++) {
+                    nestedCall(id, CALL_DEPTH);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void nestedCall(int id, int depth) {
+        referenceTracker.pushScope(this, "nestedCall");
+        referenceTracker.track("id", id);
+        referenceTracker.track("depth", depth);
+        if (depth > 1) {
+            nestedCall(id, depth - 1);
+        }
+        referenceTracker.popScope();
+    }
+
+}
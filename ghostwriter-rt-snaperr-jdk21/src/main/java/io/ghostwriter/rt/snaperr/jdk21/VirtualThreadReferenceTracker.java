@@ -0,0 +1,52 @@
+package io.ghostwriter.rt.snaperr.jdk21;
+
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+
+/**
+ * Reference tracker sized for virtual threads. An application can run millions of them, most are short-lived and
+ * only go a few calls deep, so a virtual thread gets a call stack of {@link #VIRTUAL_THREAD_INITIAL_CAPACITY} slots
+ * that keeps at most {@link #VIRTUAL_THREAD_RETAINED_DEPTH} slots when it is idle. Platform threads are sized the
+ * same way as by {@link StackBasedReferenceTracker}.
+ * <p>
+ * The state is still kept in a ThreadLocal: instrumented methods have no common entry point where a ScopedValue
+ * could be bound. The state of a thread is created on its first tracked event, threads that never enter an
+ * instrumented method do not have any.
+ * <p>
+ * The SnaperrProvider uses this tracker instead of the default one if this module is on the classpath.
+ */
+public class VirtualThreadReferenceTracker extends StackBasedReferenceTracker {
+
+    public static final int VIRTUAL_THREAD_INITIAL_CAPACITY = 4;
+
+    public static final int VIRTUAL_THREAD_RETAINED_DEPTH = 8;
+
+    /**
+     * @param maxDepth      maximum number of scopes tracked per thread, deeper scopes are only counted
+     * @param retainedDepth number of scope slots a platform thread keeps for reuse when it is idle, virtual threads
+     *                      keep at most {@link #VIRTUAL_THREAD_RETAINED_DEPTH}
+     */
+    public VirtualThreadReferenceTracker(int maxDepth, int retainedDepth) {
+        super(maxDepth, retainedDepth);
+    }
+
+    public VirtualThreadReferenceTracker() {
+        this(DEFAULT_MAX_DEPTH, DEFAULT_RETAINED_DEPTH);
+    }
+
+    @Override
+    protected int retainedDepth(int configuredRetainedDepth) {
+        if (Thread.currentThread().isVirtual()) {
+            return Math.min(configuredRetainedDepth, VIRTUAL_THREAD_RETAINED_DEPTH);
+        }
+        return configuredRetainedDepth;
+    }
+
+    @Override
+    protected int initialCapacity(int defaultInitialCapacity) {
+        if (Thread.currentThread().isVirtual()) {
+            return VIRTUAL_THREAD_INITIAL_CAPACITY;
+        }
+        return defaultInitialCapacity;
+    }
+
+}
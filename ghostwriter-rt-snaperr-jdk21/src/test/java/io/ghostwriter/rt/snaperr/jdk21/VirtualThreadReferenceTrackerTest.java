@@ -0,0 +1,79 @@
+package io.ghostwriter.rt.snaperr.jdk21;
+
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadReferenceTrackerTest {
+
+    private final VirtualThreadReferenceTracker referenceTracker = new VirtualThreadReferenceTracker();
+
+    @Test
+    public void testVirtualThreadsGetCompactStacks() throws InterruptedException {
+        final int[] sizing = new int[2];
+        Thread.ofVirtual().start(() -> {
+            sizing[0] = referenceTracker.initialCapacity(StackBasedReferenceTracker.DEFAULT_INITIAL_CAPACITY);
+            sizing[1] = referenceTracker.retainedDepth(StackBasedReferenceTracker.DEFAULT_RETAINED_DEPTH);
+        }).join();
+
+        assertEquals(VirtualThreadReferenceTracker.VIRTUAL_THREAD_INITIAL_CAPACITY, sizing[0]);
+        assertEquals(VirtualThreadReferenceTracker.VIRTUAL_THREAD_RETAINED_DEPTH, sizing[1]);
+    }
+
+    @Test
+    public void testPlatformThreadsKeepTheDefaults() {
+        assertEquals(StackBasedReferenceTracker.DEFAULT_INITIAL_CAPACITY,
+                referenceTracker.initialCapacity(StackBasedReferenceTracker.DEFAULT_INITIAL_CAPACITY));
+        assertEquals(2, referenceTracker.retainedDepth(2));
+        assertEquals(StackBasedReferenceTracker.DEFAULT_RETAINED_DEPTH,
+                referenceTracker.retainedDepth(StackBasedReferenceTracker.DEFAULT_RETAINED_DEPTH));
+    }
+
+    @Test
+    public void testTrackingOnVirtualThreads() throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[100];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = Thread.ofVirtual().start(() -> {
+                try {
+                    // deeper than the initial capacity, the stack grows as needed
+                    for (int depth = 0; depth < 20; depth++) {
+                        referenceTracker.pushScope(this, "method" + depth);
+                        referenceTracker.track("id", id);
+                        Thread.yield();
+                    }
+
+                    final Iterator<TrackedScope> scopes = referenceTracker.scopes();
+                    for (int depth = 19; depth >= 0; depth--) {
+                        final TrackedScope scope = scopes.next();
+                        assertEquals("method" + depth, scope.getMethodName());
+                        assertEquals(id, scope.getReferences().get("id").getValue());
+                    }
+                    assertFalse(scopes.hasNext());
+
+                    for (int depth = 0; depth < 20; depth++) {
+                        referenceTracker.popScope();
+                    }
+                    assertTrue(referenceTracker.isEmpty());
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+
+}
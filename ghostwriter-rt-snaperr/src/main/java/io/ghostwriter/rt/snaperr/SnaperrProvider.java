@@ -1,30 +1,433 @@
 package io.ghostwriter.rt.snaperr;
 
 import io.ghostwriter.TracerProvider;
+import io.ghostwriter.rt.snaperr.api.BinaryTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.ErrorDeduplicator;
 import io.ghostwriter.rt.snaperr.api.Throttler;
 import io.ghostwriter.rt.snaperr.api.TriggerHandler;
 import io.ghostwriter.rt.snaperr.api.TriggerSerializer;
+import io.ghostwriter.rt.snaperr.core.AdaptiveThrottler;
+import io.ghostwriter.rt.snaperr.core.AsyncTriggerHandler;
+import io.ghostwriter.rt.snaperr.core.BinarySerializer;
+import io.ghostwriter.rt.snaperr.core.FingerprintDeduplicator;
+import io.ghostwriter.rt.snaperr.core.JsonSerializer;
+import io.ghostwriter.rt.snaperr.core.KeyedThrottleController;
+import io.ghostwriter.rt.snaperr.core.MappedRingFileHandler;
+import io.ghostwriter.rt.snaperr.core.OutputStreamTriggerHandler;
+import io.ghostwriter.rt.snaperr.core.OverheadBudgetController;
+import io.ghostwriter.rt.snaperr.core.SnaperrMetrics;
+import io.ghostwriter.rt.snaperr.core.RecursionCompressor;
+import io.ghostwriter.rt.snaperr.core.RollingFileHandler;
 import io.ghostwriter.rt.snaperr.core.ThrottleController;
 import io.ghostwriter.rt.snaperr.core.SystemOutWriter;
 import io.ghostwriter.rt.snaperr.core.StringSerializer;
+import io.ghostwriter.rt.snaperr.core.ValueRenderer;
+import io.ghostwriter.rt.snaperr.tracker.HotMethodDetector;
 import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
 import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public class SnaperrProvider implements TracerProvider<SnaperrTracer> {
 
     private static final Logger LOG = LoggerFactory.getLogger(SnaperrProvider.class);
 
+    /**
+     * Runtime configuration options. Each of them can be set either as a system property or as an environment variable,
+     * the system property takes precedence.
+     */
+    public static abstract class Option {
+        public static final String GHOSTWRITER_SNAPERR_FORMAT = "GHOSTWRITER_SNAPERR_FORMAT";
+        public static final String GHOSTWRITER_SNAPERR_MAX_VALUE_CHARS = "GHOSTWRITER_SNAPERR_MAX_VALUE_CHARS";
+        public static final String GHOSTWRITER_SNAPERR_MAX_ELEMENTS = "GHOSTWRITER_SNAPERR_MAX_ELEMENTS";
+        public static final String GHOSTWRITER_SNAPERR_MAX_DEPTH = "GHOSTWRITER_SNAPERR_MAX_DEPTH";
+        public static final String GHOSTWRITER_SNAPERR_MAX_SNAPSHOT_CHARS = "GHOSTWRITER_SNAPERR_MAX_SNAPSHOT_CHARS";
+        public static final String GHOSTWRITER_SNAPERR_RENDER_DEADLINE_MS = "GHOSTWRITER_SNAPERR_RENDER_DEADLINE_MS";
+        public static final String GHOSTWRITER_SNAPERR_MAX_TRACKED_DEPTH = "GHOSTWRITER_SNAPERR_MAX_TRACKED_DEPTH";
+        public static final String GHOSTWRITER_SNAPERR_RETAINED_TRACKED_DEPTH = "GHOSTWRITER_SNAPERR_RETAINED_TRACKED_DEPTH";
+        public static final String GHOSTWRITER_SNAPERR_VIRTUAL_THREADS = "GHOSTWRITER_SNAPERR_VIRTUAL_THREADS";
+        public static final String GHOSTWRITER_SNAPERR_SAMPLING_INTERVAL = "GHOSTWRITER_SNAPERR_SAMPLING_INTERVAL";
+        public static final String GHOSTWRITER_SNAPERR_HOT_METHOD_CALLS_PER_SECOND = "GHOSTWRITER_SNAPERR_HOT_METHOD_CALLS_PER_SECOND";
+        public static final String GHOSTWRITER_SNAPERR_HOT_METHOD_EXPORT = "GHOSTWRITER_SNAPERR_HOT_METHOD_EXPORT";
+        public static final String GHOSTWRITER_SNAPERR_OVERHEAD_BUDGET_PERCENT = "GHOSTWRITER_SNAPERR_OVERHEAD_BUDGET_PERCENT";
+        public static final String GHOSTWRITER_SNAPERR_METRICS = "GHOSTWRITER_SNAPERR_METRICS";
+        public static final String GHOSTWRITER_SNAPERR_RECURSION_KEPT_FRAMES = "GHOSTWRITER_SNAPERR_RECURSION_KEPT_FRAMES";
+        public static final String GHOSTWRITER_SNAPERR_RING_FILE = "GHOSTWRITER_SNAPERR_RING_FILE";
+        public static final String GHOSTWRITER_SNAPERR_RING_FILE_SIZE = "GHOSTWRITER_SNAPERR_RING_FILE_SIZE";
+        public static final String GHOSTWRITER_SNAPERR_FILE_DIRECTORY = "GHOSTWRITER_SNAPERR_FILE_DIRECTORY";
+        public static final String GHOSTWRITER_SNAPERR_FILE_MAX_SIZE = "GHOSTWRITER_SNAPERR_FILE_MAX_SIZE";
+        public static final String GHOSTWRITER_SNAPERR_FILE_MAX_AGE_MS = "GHOSTWRITER_SNAPERR_FILE_MAX_AGE_MS";
+        public static final String GHOSTWRITER_SNAPERR_FILE_FSYNC = "GHOSTWRITER_SNAPERR_FILE_FSYNC";
+        public static final String GHOSTWRITER_SNAPERR_DEDUP = "GHOSTWRITER_SNAPERR_DEDUP";
+        public static final String GHOSTWRITER_SNAPERR_DEDUP_CAPACITY = "GHOSTWRITER_SNAPERR_DEDUP_CAPACITY";
+        public static final String GHOSTWRITER_SNAPERR_DEDUP_TTL_MS = "GHOSTWRITER_SNAPERR_DEDUP_TTL_MS";
+        public static final String GHOSTWRITER_SNAPERR_DEDUP_SUMMARY_INTERVAL_MS = "GHOSTWRITER_SNAPERR_DEDUP_SUMMARY_INTERVAL_MS";
+        public static final String GHOSTWRITER_SNAPERR_THROTTLE_KEY = "GHOSTWRITER_SNAPERR_THROTTLE_KEY";
+        public static final String GHOSTWRITER_SNAPERR_THROTTLE_MAX_KEYS = "GHOSTWRITER_SNAPERR_THROTTLE_MAX_KEYS";
+        public static final String GHOSTWRITER_SNAPERR_THROTTLE_GLOBAL_LIMIT = "GHOSTWRITER_SNAPERR_THROTTLE_GLOBAL_LIMIT";
+        public static final String GHOSTWRITER_SNAPERR_THROTTLE_BUDGET_MS = "GHOSTWRITER_SNAPERR_THROTTLE_BUDGET_MS";
+        public static final String GHOSTWRITER_SNAPERR_THROTTLE_BUDGET_CLOCK = "GHOSTWRITER_SNAPERR_THROTTLE_BUDGET_CLOCK";
+        public static final String GHOSTWRITER_SNAPERR_ASYNC = "GHOSTWRITER_SNAPERR_ASYNC";
+        public static final String GHOSTWRITER_SNAPERR_ASYNC_CAPACITY = "GHOSTWRITER_SNAPERR_ASYNC_CAPACITY";
+        public static final String GHOSTWRITER_SNAPERR_ASYNC_BATCH_SIZE = "GHOSTWRITER_SNAPERR_ASYNC_BATCH_SIZE";
+        public static final String GHOSTWRITER_SNAPERR_ASYNC_OVERFLOW_POLICY = "GHOSTWRITER_SNAPERR_ASYNC_OVERFLOW_POLICY";
+        public static final String GHOSTWRITER_SNAPERR_ASYNC_BLOCK_DEADLINE_MS = "GHOSTWRITER_SNAPERR_ASYNC_BLOCK_DEADLINE_MS";
+    }
+
+    /**
+     * Reference tracker of the ghostwriter-rt-snaperr-jdk21 module
+     */
+    static final String VIRTUAL_THREAD_TRACKER = "io.ghostwriter.rt.snaperr.jdk21.VirtualThreadReferenceTracker";
+
     @Override
     public SnaperrTracer getTracer() {
         LOG.info("Loading GhostWriter Snaperr...");
-        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
-        final TriggerSerializer serializer = new StringSerializer();
-        final TriggerHandler handler = new SystemOutWriter();
-        final Throttler throttler = new ThrottleController();
+        final ReferenceTracker referenceTracker = referenceTracker();
+        String format = getOption(Option.GHOSTWRITER_SNAPERR_FORMAT, "text").toLowerCase();
+        final TriggerHandler sink = sink("json".equals(format));
+        if ("binary".equals(format) && !(sink instanceof BinaryTriggerHandler)) {
+            LOG.warn("Binary snapshots need a ring file or a file directory as target, falling back to text format");
+            format = "text";
+        }
+        final TriggerSerializer serializer = serializer(format);
+        final TriggerHandler handler = triggerHandler(sink);
+        final Throttler throttler = throttler();
+
+        return new SnaperrTracer(referenceTracker, serializer, handler, throttler, errorDeduplicator(),
+                overheadBudget(referenceTracker), metrics(referenceTracker));
+    }
+
+    /**
+     * @param format one of text, json or binary, anything else is treated as text
+     */
+    private TriggerSerializer serializer(String format) {
+        final ValueRenderer valueRenderer = valueRenderer();
+        final int keptFrames = getIntOption(Option.GHOSTWRITER_SNAPERR_RECURSION_KEPT_FRAMES,
+                RecursionCompressor.DEFAULT_KEPT_FRAMES);
+        final RecursionCompressor recursionCompressor = new RecursionCompressor(keptFrames);
+        switch (format) {
+            case "json":
+                return new JsonSerializer(valueRenderer, recursionCompressor);
+            case "binary":
+                LOG.info("Snaperr snapshots are written in binary format, read them with the BinaryTriggerDecoder");
+                return new BinarySerializer(valueRenderer, recursionCompressor);
+            default:
+                return new StringSerializer(valueRenderer, recursionCompressor);
+        }
+    }
+
+    private SnaperrMetrics metrics(ReferenceTracker referenceTracker) {
+        if (!Boolean.parseBoolean(getOption(Option.GHOSTWRITER_SNAPERR_METRICS, "false"))) {
+            return null;
+        }
+        final SnaperrMetrics metrics = new SnaperrMetrics(referenceTracker);
+        if (metrics.register()) {
+            LOG.info("Snaperr metrics are published as " + SnaperrMetrics.DEFAULT_OBJECT_NAME);
+        }
+        return metrics;
+    }
+
+    private OverheadBudgetController overheadBudget(ReferenceTracker referenceTracker) {
+        final double budgetPercent = getDoubleOption(Option.GHOSTWRITER_SNAPERR_OVERHEAD_BUDGET_PERCENT, 0d);
+        if (budgetPercent <= 0d) {
+            return null;
+        }
+        LOG.info("Snaperr keeps its overhead within " + budgetPercent + "% of the CPU time of the process");
+        return new OverheadBudgetController(budgetPercent, referenceTracker);
+    }
+
+    private ReferenceTracker referenceTracker() {
+        final StackBasedReferenceTracker referenceTracker = stackBasedReferenceTracker();
+        final int samplingInterval = getIntOption(Option.GHOSTWRITER_SNAPERR_SAMPLING_INTERVAL, 1);
+        // the interval can be changed at runtime through the tracker of the SnaperrTracer
+        referenceTracker.setSamplingInterval(samplingInterval);
+        if (samplingInterval > 1) {
+            LOG.info("Snaperr tracks the state of 1 in " + samplingInterval + " invocation trees per thread");
+        }
+
+        // demoting hot methods drops them from the snapshots, so it is off unless a limit is configured
+        final long maxCallsPerSecond = getLongOption(Option.GHOSTWRITER_SNAPERR_HOT_METHOD_CALLS_PER_SECOND, 0L);
+        if (maxCallsPerSecond > 0L) {
+            LOG.info("Snaperr stops tracking the methods called more than " + maxCallsPerSecond + " times per second");
+            final String exportFile = getOption(Option.GHOSTWRITER_SNAPERR_HOT_METHOD_EXPORT, null);
+            referenceTracker.setHotMethodDetector(new HotMethodDetector(maxCallsPerSecond,
+                    HotMethodDetector.DEFAULT_SAMPLE_INTERVAL, HotMethodDetector.DEFAULT_WINDOW_LENGTH_MS,
+                    exportFile == null ? null : new File(exportFile)));
+        }
+        return referenceTracker;
+    }
+
+    private StackBasedReferenceTracker stackBasedReferenceTracker() {
+        final int maxTrackedDepth = getIntOption(Option.GHOSTWRITER_SNAPERR_MAX_TRACKED_DEPTH,
+                StackBasedReferenceTracker.DEFAULT_MAX_DEPTH);
+        final int retainedTrackedDepth = getIntOption(Option.GHOSTWRITER_SNAPERR_RETAINED_TRACKED_DEPTH,
+                StackBasedReferenceTracker.DEFAULT_RETAINED_DEPTH);
+        if (maxTrackedDepth != StackBasedReferenceTracker.DEFAULT_MAX_DEPTH) {
+            LOG.info("Snaperr tracks at most " + maxTrackedDepth + " scopes per thread, deeper scopes are only counted");
+        }
+
+        final boolean isVirtualThreadAware = Boolean.parseBoolean(getOption(Option.GHOSTWRITER_SNAPERR_VIRTUAL_THREADS, "true"));
+        if (isVirtualThreadAware) {
+            // the tracker needs a JDK with virtual threads, it is only used if its module is on the classpath
+            try {
+                final Class<?> trackerClass = Class.forName(VIRTUAL_THREAD_TRACKER, true, SnaperrProvider.class.getClassLoader());
+                final StackBasedReferenceTracker referenceTracker = (StackBasedReferenceTracker) trackerClass
+                        .getConstructor(int.class, int.class).newInstance(maxTrackedDepth, retainedTrackedDepth);
+                LOG.info("Snaperr uses compact call stacks for virtual threads");
+                return referenceTracker;
+            } catch (ClassNotFoundException e) {
+                LOG.debug("Virtual thread aware reference tracker is not available");
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOG.warn("Failed to load the virtual thread aware reference tracker, using the default one", e);
+            }
+        }
+
+        return new StackBasedReferenceTracker(maxTrackedDepth, retainedTrackedDepth);
+    }
+
+    /**
+     * Every limit is off unless it is configured, the values are rendered as they were before the limits existed.
+     */
+    private ValueRenderer valueRenderer() {
+        final int noLimit = ValueRenderer.NO_LIMIT;
+        final int maxValueChars = getIntOption(Option.GHOSTWRITER_SNAPERR_MAX_VALUE_CHARS, noLimit);
+        final int maxElements = getIntOption(Option.GHOSTWRITER_SNAPERR_MAX_ELEMENTS, noLimit);
+        final int maxDepth = getIntOption(Option.GHOSTWRITER_SNAPERR_MAX_DEPTH, noLimit);
+        final int maxSnapshotChars = getIntOption(Option.GHOSTWRITER_SNAPERR_MAX_SNAPSHOT_CHARS, noLimit);
+        final long deadlineMs = getLongOption(Option.GHOSTWRITER_SNAPERR_RENDER_DEADLINE_MS, ValueRenderer.NO_DEADLINE);
+
+        final ValueRenderer valueRenderer = new ValueRenderer(maxValueChars, maxElements, maxDepth, maxSnapshotChars,
+                deadlineMs);
+        if (valueRenderer.isLimited()) {
+            LOG.info("Snaperr renders the tracked values with size, depth and time limits");
+        }
+        return valueRenderer;
+    }
+
+    private Throttler throttler() {
+        final long budgetMs = getLongOption(Option.GHOSTWRITER_SNAPERR_THROTTLE_BUDGET_MS, 0L);
+        if (budgetMs > 0L) {
+            final AdaptiveThrottler.CostClock costClock = getEnumOption(
+                    Option.GHOSTWRITER_SNAPERR_THROTTLE_BUDGET_CLOCK, AdaptiveThrottler.CostClock.WALL_TIME);
+            final AdaptiveThrottler adaptiveThrottler = new AdaptiveThrottler(costClock,
+                    TimeUnit.MILLISECONDS.toNanos(budgetMs));
+            LOG.info("Snaperr throttling adapts to a budget of " + budgetMs + "ms per second, measured in "
+                    + adaptiveThrottler.getCostClock());
+            return adaptiveThrottler;
+        }
+
+        final String throttleKey = getOption(Option.GHOSTWRITER_SNAPERR_THROTTLE_KEY, "none");
+        if ("none".equalsIgnoreCase(throttleKey)) {
+            return new ThrottleController();
+        }
+
+        final KeyedThrottleController.KeyStrategy keyStrategy = parseEnum(Option.GHOSTWRITER_SNAPERR_THROTTLE_KEY,
+                throttleKey, KeyedThrottleController.KeyStrategy.class, null);
+        if (keyStrategy == null) {
+            return new ThrottleController();
+        }
+        final int maxKeys = getIntOption(Option.GHOSTWRITER_SNAPERR_THROTTLE_MAX_KEYS,
+                KeyedThrottleController.DEFAULT_MAX_KEYS);
+        final int globalLimit = getIntOption(Option.GHOSTWRITER_SNAPERR_THROTTLE_GLOBAL_LIMIT,
+                KeyedThrottleController.DEFAULT_MAX_TRIGGERS_IN_WINDOW);
+        LOG.info("Snaperr throttling is keyed by: " + keyStrategy + ", global limit: " + globalLimit);
+
+        return new KeyedThrottleController(keyStrategy, KeyedThrottleController.DEFAULT_WINDOW_LENGTH_MS,
+                KeyedThrottleController.DEFAULT_MAX_TRIGGERS_PER_KEY, globalLimit, maxKeys);
+    }
+
+    private ErrorDeduplicator errorDeduplicator() {
+        final boolean isDeduplicating = Boolean.parseBoolean(getOption(Option.GHOSTWRITER_SNAPERR_DEDUP, "false"));
+        if (!isDeduplicating) {
+            return ErrorDeduplicator.NONE;
+        }
+
+        final int capacity = getIntOption(Option.GHOSTWRITER_SNAPERR_DEDUP_CAPACITY,
+                FingerprintDeduplicator.DEFAULT_CAPACITY);
+        final long timeToLiveMs = getLongOption(Option.GHOSTWRITER_SNAPERR_DEDUP_TTL_MS,
+                FingerprintDeduplicator.DEFAULT_TIME_TO_LIVE_MS);
+        final long summaryIntervalMs = getLongOption(Option.GHOSTWRITER_SNAPERR_DEDUP_SUMMARY_INTERVAL_MS,
+                FingerprintDeduplicator.DEFAULT_SUMMARY_INTERVAL_MS);
+        LOG.info("Snaperr error deduplication is enabled, fingerprint time to live: " + timeToLiveMs + "ms");
+
+        return new FingerprintDeduplicator(capacity, timeToLiveMs, summaryIntervalMs);
+    }
+
+    private TriggerHandler sink(boolean isJson) {
+        final String ringFile = getOption(Option.GHOSTWRITER_SNAPERR_RING_FILE, null);
+        if (ringFile != null) {
+            final int ringFileSize = getIntOption(Option.GHOSTWRITER_SNAPERR_RING_FILE_SIZE,
+                    MappedRingFileHandler.DEFAULT_FILE_SIZE);
+            try {
+                final MappedRingFileHandler ringFileHandler = new MappedRingFileHandler(new File(ringFile), ringFileSize);
+                LOG.info("Snaperr snapshots are written to ring file: " + ringFile);
+                return ringFileHandler;
+            } catch (IOException e) {
+                LOG.error("Failed to open ring file '" + ringFile + "', falling back to the standard output", e);
+            }
+        }
+
+        final String fileDirectory = getOption(Option.GHOSTWRITER_SNAPERR_FILE_DIRECTORY, null);
+        if (fileDirectory != null) {
+            final long maxFileSize = getLongOption(Option.GHOSTWRITER_SNAPERR_FILE_MAX_SIZE,
+                    RollingFileHandler.DEFAULT_MAX_FILE_SIZE);
+            final long maxFileAgeMs = getLongOption(Option.GHOSTWRITER_SNAPERR_FILE_MAX_AGE_MS,
+                    RollingFileHandler.DEFAULT_MAX_FILE_AGE_MS);
+            final RollingFileHandler.FsyncPolicy fsyncPolicy = fsyncPolicy();
+            LOG.info("Snaperr snapshots are written to directory: " + fileDirectory + ", fsync policy: " + fsyncPolicy);
+            return new RollingFileHandler(new File(fileDirectory), "snaperr", maxFileSize, maxFileAgeMs, fsyncPolicy);
+        }
+
+        // without the asynchronous stage, JSON snapshots are streamed to the standard output as they are serialized
+        return isJson ? new OutputStreamTriggerHandler(System.out) : new SystemOutWriter();
+    }
+
+    private TriggerHandler triggerHandler(TriggerHandler sink) {
+        final boolean isAsync = Boolean.parseBoolean(getOption(Option.GHOSTWRITER_SNAPERR_ASYNC, "false"));
+        if (isAsync && sink instanceof MappedRingFileHandler) {
+            // the raising thread writes into the page cache directly, a snapshot queued in memory would be lost on a crash
+            LOG.warn("Snaperr ring file is written synchronously, " + Option.GHOSTWRITER_SNAPERR_ASYNC + " is ignored");
+        }
+        if (!isAsync || sink instanceof MappedRingFileHandler) {
+            closeOnShutdown(sink);
+            return sink;
+        }
+
+        final int capacity = getIntOption(Option.GHOSTWRITER_SNAPERR_ASYNC_CAPACITY,
+                AsyncTriggerHandler.DEFAULT_CAPACITY);
+        final int batchSize = getIntOption(Option.GHOSTWRITER_SNAPERR_ASYNC_BATCH_SIZE,
+                AsyncTriggerHandler.DEFAULT_MAX_BATCH_SIZE);
+        final AsyncTriggerHandler.OverflowPolicy overflowPolicy = getEnumOption(
+                Option.GHOSTWRITER_SNAPERR_ASYNC_OVERFLOW_POLICY, AsyncTriggerHandler.OverflowPolicy.DROP_NEWEST);
+        final long blockDeadlineMs = getLongOption(Option.GHOSTWRITER_SNAPERR_ASYNC_BLOCK_DEADLINE_MS,
+                AsyncTriggerHandler.DEFAULT_BLOCK_DEADLINE_MS);
+
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(sink, capacity, batchSize, overflowPolicy, blockDeadlineMs);
+        closeOnShutdown(asyncHandler, sink);
+        LOG.info("Snaperr trigger handling is asynchronous, buffer capacity: " + capacity + ", overflow policy: " + overflowPolicy);
+
+        return asyncHandler;
+    }
+
+    /**
+     * Closes the given handlers in order when the JVM exits, handlers that are not {@link Closeable} are skipped.
+     */
+    private static void closeOnShutdown(TriggerHandler... handlers) {
+        final List<Closeable> closeables = new ArrayList<>();
+        for (TriggerHandler handler : handlers) {
+            if (handler instanceof Closeable) {
+                closeables.add((Closeable) handler);
+            }
+        }
+        if (closeables.isEmpty()) {
+            return;
+        }
+
+        // make sure that the already captured snapshots reach the sink before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (Closeable closeable : closeables) {
+                    try {
+                        closeable.close();
+                    } catch (IOException e) {
+                        LOG.error("Failed to close trigger handler", e);
+                    }
+                }
+            }
+        }, "ghostwriter-snaperr-shutdown"));
+    }
+
+    static String getOption(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            value = System.getenv(name);
+        }
+
+        return value == null ? defaultValue : value;
+    }
+
+    /*
+     * A malformed option must not prevent the tracer from loading, the typed getters log it and use the default value.
+     */
+
+    static int getIntOption(String name, int defaultValue) {
+        final long value = getLongOption(name, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            logInvalidOption(name, String.valueOf(value), defaultValue);
+            return defaultValue;
+        }
+
+        return (int) value;
+    }
+
+    static long getLongOption(String name, long defaultValue) {
+        final String value = getOption(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logInvalidOption(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static double getDoubleOption(String name, double defaultValue) {
+        final String value = getOption(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logInvalidOption(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static <E extends Enum<E>> E getEnumOption(String name, E defaultValue) {
+        final String value = getOption(name, null);
+        return value == null ? defaultValue : parseEnum(name, value, defaultValue.getDeclaringClass(), defaultValue);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(String name, String value, Class<E> enumType, E defaultValue) {
+        try {
+            return Enum.valueOf(enumType, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logInvalidOption(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static RollingFileHandler.FsyncPolicy fsyncPolicy() {
+        final RollingFileHandler.FsyncPolicy defaultPolicy = RollingFileHandler.FsyncPolicy.never();
+        final String value = getOption(Option.GHOSTWRITER_SNAPERR_FILE_FSYNC, null);
+        if (value == null) {
+            return defaultPolicy;
+        }
+
+        try {
+            return RollingFileHandler.FsyncPolicy.parse(value);
+        } catch (IllegalArgumentException e) {
+            logInvalidOption(Option.GHOSTWRITER_SNAPERR_FILE_FSYNC, value, defaultPolicy);
+            return defaultPolicy;
+        }
+    }
 
-        return new SnaperrTracer(referenceTracker, serializer, handler, throttler);
+    private static void logInvalidOption(String name, String value, Object defaultValue) {
+        final Object usedValue = defaultValue == null ? "none" : defaultValue;
+        LOG.warn("Invalid value of " + name + ": '" + value + "', using " + usedValue + " instead");
     }
 
 }
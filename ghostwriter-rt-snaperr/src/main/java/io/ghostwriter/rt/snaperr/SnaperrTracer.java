@@ -3,6 +3,8 @@ package io.ghostwriter.rt.snaperr;
 import io.ghostwriter.Tracer;
 import io.ghostwriter.rt.snaperr.api.*;
 import io.ghostwriter.rt.snaperr.api.Throttler;
+import io.ghostwriter.rt.snaperr.core.OverheadBudgetController;
+import io.ghostwriter.rt.snaperr.core.SnaperrMetrics;
 import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
 
 import java.util.Objects;
@@ -18,56 +20,145 @@ public class SnaperrTracer implements Tracer {
     final private TriggerSerializer triggerSerializer;
 
 
-    private final ThreadLocal<ErrorState> errorTrackerThreadLocal = new ThreadLocal<ErrorState>() {
-
-        @Override
-        protected ErrorState initialValue() {
-            return new ErrorState();
-        }
-    };
+    /**
+     * The state is only created when the thread first processes a trigger, most threads never do, so their entry
+     * stays null.
+     */
+    private final ThreadLocal<ErrorState> errorTrackerThreadLocal = new ThreadLocal<>();
 
     private final Throttler throttleControl;
 
+    private final ErrorDeduplicator errorDeduplicator;
+
+    /**
+     * The throttler if it measures the cost of the triggers, null otherwise.
+     */
+    private final CostAwareThrottler costAwareThrottler;
+
+    /**
+     * True if the serializer can write directly into the sink of the handler.
+     */
+    private final boolean isStreaming;
+
+    /**
+     * True if the serializer produces binary records that are passed to the handler as bytes.
+     */
+    private final boolean isBinary;
+
+    /**
+     * Measures the time of the tracer and degrades the tracking when it is over budget, null if the time is not limited.
+     */
+    private final OverheadBudgetController overheadBudget;
+
+    /**
+     * Counters and latencies of the tracer, null if they are not collected.
+     */
+    private final SnaperrMetrics metrics;
+
     public SnaperrTracer(ReferenceTracker referenceTracker, TriggerSerializer triggerSerializer,
                          TriggerHandler triggerHandler, Throttler throttleControl) {
+        this(referenceTracker, triggerSerializer, triggerHandler, throttleControl, ErrorDeduplicator.NONE);
+    }
+
+    public SnaperrTracer(ReferenceTracker referenceTracker, TriggerSerializer triggerSerializer,
+                         TriggerHandler triggerHandler, Throttler throttleControl, ErrorDeduplicator errorDeduplicator) {
+        this(referenceTracker, triggerSerializer, triggerHandler, throttleControl, errorDeduplicator, null);
+    }
+
+    /**
+     * @param overheadBudget measures the time spent in the tracer and degrades the tracking when it is over budget, null
+     *                       to not limit it
+     */
+    public SnaperrTracer(ReferenceTracker referenceTracker, TriggerSerializer triggerSerializer,
+                         TriggerHandler triggerHandler, Throttler throttleControl, ErrorDeduplicator errorDeduplicator,
+                         OverheadBudgetController overheadBudget) {
+        this(referenceTracker, triggerSerializer, triggerHandler, throttleControl, errorDeduplicator, overheadBudget,
+                null);
+    }
+
+    /**
+     * @param metrics collects the counters and latencies of the tracer, null to not collect them
+     */
+    public SnaperrTracer(ReferenceTracker referenceTracker, TriggerSerializer triggerSerializer,
+                         TriggerHandler triggerHandler, Throttler throttleControl, ErrorDeduplicator errorDeduplicator,
+                         OverheadBudgetController overheadBudget, SnaperrMetrics metrics) {
+        this.overheadBudget = overheadBudget;
+        this.metrics = metrics;
         this.referenceTracker = Objects.requireNonNull(referenceTracker);
         this.triggerHandler = Objects.requireNonNull(triggerHandler);
         this.throttleControl = Objects.requireNonNull(throttleControl);
-        this.triggerSerializer = Objects.requireNonNull(triggerSerializer);
+        this.errorDeduplicator = Objects.requireNonNull(errorDeduplicator);
+        this.costAwareThrottler = throttleControl instanceof CostAwareThrottler ? (CostAwareThrottler) throttleControl : null;
+        this.isStreaming = triggerHandler instanceof StreamingTriggerHandler
+                && triggerSerializer instanceof StreamingTriggerSerializer;
+        this.isBinary = !isStreaming && triggerSerializer instanceof BinaryTriggerSerializer;
+        if (isBinary && !(triggerHandler instanceof BinaryTriggerHandler)) {
+            throw new IllegalArgumentException("Binary serializer " + triggerSerializer.getClass().getName()
+                    + " needs a streaming or binary trigger handler, got: " + triggerHandler.getClass().getName());
+        }
+        // a streaming serializer writes inside the handler, it is measured through the stream it writes to
+        this.triggerSerializer = isStreaming && metrics != null
+                ? metrics.measure((StreamingTriggerSerializer) triggerSerializer)
+                : Objects.requireNonNull(triggerSerializer);
+    }
+
+    /**
+     * @return the tracker of the scopes, for example to propagate them to other threads with a
+     * {@link io.ghostwriter.rt.snaperr.core.ScopePropagator}
+     */
+    public ReferenceTracker getReferenceTracker() {
+        return referenceTracker;
     }
 
     @Override
     public void entering(Object source, String method, Object... params) {
+        if (metrics != null) {
+            metrics.entering();
+        }
         if (hasPendingProcessing()) {
             return;
         }
 
+        final long startNanos = startEventMeasurement();
         referenceTracker.pushScope(source, method);
 
-        for (int i = 0; i < params.length - 1; i++) {
-            final Object paramName = params[i++];
-            final Object paramValue = params[i];
-            final String name = (String) paramName;
-            referenceTracker.track(name, paramValue);
+        if (isValueTrackingEnabled()) {
+            for (int i = 0; i < params.length - 1; i++) {
+                final Object paramName = params[i++];
+                final Object paramValue = params[i];
+                final String name = (String) paramName;
+                referenceTracker.track(name, paramValue);
+            }
         }
+        stopEventMeasurement(startNanos);
     }
 
     @Override
     public void exiting(Object source, String method) {
+        if (metrics != null) {
+            metrics.exiting();
+        }
         if (hasPendingProcessing()) {
             return;
         }
 
+        final long startNanos = startEventMeasurement();
         referenceTracker.popScope();
+        stopEventMeasurement(startNanos);
     }
 
     @Override
     public void valueChange(Object source, String method, String variable, Object value) {
-        if (hasPendingProcessing()) {
+        if (metrics != null) {
+            metrics.valueChange();
+        }
+        if (hasPendingProcessing() || !isValueTrackingEnabled()) {
             return;
         }
 
+        final long startNanos = startEventMeasurement();
         referenceTracker.track(variable, value);
+        stopEventMeasurement(startNanos);
     }
 
     @Override
@@ -80,6 +171,9 @@ public class SnaperrTracer implements Tracer {
     @SuppressWarnings("unchecked")
     @Override
     public void onError(Object source, String method, Throwable error) {
+        if (metrics != null) {
+            metrics.error();
+        }
         if (hasPendingProcessing() || isPropagatingException(error)) {
             return;
         }
@@ -102,19 +196,51 @@ public class SnaperrTracer implements Tracer {
          * but we will read them.
          */
 
+        final long triggerStartNanos = overheadBudget == null ? 0L : System.nanoTime();
         ErrorTrigger trigger = new ErrorTrigger(referenceTracker, error);
 
-        // FIXME(snorbi07): change implementation to work without the "manual" synchronized keyword. The throttler should be thread safe.
-        synchronized (throttleControl) {
+        // The error is marked as processed before the checks, a suppressed error is not reconsidered while it
+        // propagates through the instrumented callers.
+        startTriggerProcessing(trigger);
+        // only the admitted triggers are measured, the mark is only valid if the measurement was started
+        boolean isCostMeasured = false;
+        long costMark = 0L;
+        try {
+            if (errorDeduplicator.isDuplicate(trigger)) {
+                if (metrics != null) {
+                    metrics.triggerDeduplicated();
+                }
+                return;
+            }
             if (!throttleControl.doHandleError(trigger)) {
+                if (metrics != null) {
+                    metrics.triggerThrottled();
+                }
                 return;
             }
-        }
 
-        startTriggerProcessing(trigger);
-        String serializedError = triggerSerializer.serializeTrigger(trigger);
-        triggerHandler.onError(serializedError);
-        stopTriggerProcessing();
+            if (costAwareThrottler != null) {
+                costMark = costAwareThrottler.startCostMeasurement();
+                isCostMeasured = true;
+            }
+            if (metrics != null) {
+                handleMeasuredError(trigger);
+            } else if (isStreaming) {
+                // the serializer writes into the sink of the handler, the snapshot is not materialized as a String
+                ((StreamingTriggerHandler) triggerHandler).onError(trigger, (StreamingTriggerSerializer) triggerSerializer);
+            } else if (isBinary) {
+                ((BinaryTriggerHandler) triggerHandler).onError(((BinaryTriggerSerializer) triggerSerializer).serialize(trigger));
+            } else {
+                String serializedError = triggerSerializer.serializeTrigger(trigger);
+                triggerHandler.onError(serializedError);
+            }
+        } finally {
+            if (isCostMeasured) {
+                costAwareThrottler.stopCostMeasurement(costMark);
+            }
+            stopTriggerProcessing();
+            stopTriggerMeasurement(triggerStartNanos);
+        }
     }
 
     private boolean isPropagatingException(Throwable error) {
@@ -130,6 +256,9 @@ public class SnaperrTracer implements Tracer {
     @SuppressWarnings("unchecked")
     @Override
     public void timeout(Object source, String method, long timeoutThreshold, long timeout) {
+        if (metrics != null) {
+            metrics.timeout();
+        }
         if (hasPendingProcessing()) {
             return;
         }
@@ -138,27 +267,129 @@ public class SnaperrTracer implements Tracer {
         // This is an opt-in feature, so if the user annotates the call-chain,
         // then we might end up raising timeouts at all steps...
 
+        final long triggerStartNanos = overheadBudget == null ? 0L : System.nanoTime();
         TimeoutTrigger trigger = new TimeoutTrigger(referenceTracker, timeoutThreshold, timeout);
 
-        // FIXME(snorbi07): change implementation to work without the "manual" synchronized keyword. The throttler should be thread safe.
-        synchronized (throttleControl) {
-            if (!throttleControl.doHandleTimeout(trigger)) {
-                return;
+        if (!throttleControl.doHandleTimeout(trigger)) {
+            if (metrics != null) {
+                metrics.triggerThrottled();
             }
+            stopTriggerMeasurement(triggerStartNanos);
+            return;
         }
 
         startTriggerProcessing(null);
-        String serializedTimeout = triggerSerializer.serializeTrigger(trigger);
-        triggerHandler.onTimeout(serializedTimeout);
-        stopTriggerProcessing();
+        final long costMark = costAwareThrottler == null ? 0L : costAwareThrottler.startCostMeasurement();
+        try {
+            if (metrics != null) {
+                handleMeasuredTimeout(trigger);
+            } else if (isStreaming) {
+                ((StreamingTriggerHandler) triggerHandler).onTimeout(trigger, (StreamingTriggerSerializer) triggerSerializer);
+            } else if (isBinary) {
+                ((BinaryTriggerHandler) triggerHandler).onTimeout(((BinaryTriggerSerializer) triggerSerializer).serialize(trigger));
+            } else {
+                String serializedTimeout = triggerSerializer.serializeTrigger(trigger);
+                triggerHandler.onTimeout(serializedTimeout);
+            }
+        } finally {
+            if (costAwareThrottler != null) {
+                costAwareThrottler.stopCostMeasurement(costMark);
+            }
+            stopTriggerProcessing();
+            stopTriggerMeasurement(triggerStartNanos);
+        }
+    }
+
+
+
+    /**
+     * Same as the unmeasured handling in {@link #onError(Object, String, Throwable)}, with the serialization and the
+     * handler timed separately.
+     */
+    private void handleMeasuredError(ErrorTrigger trigger) {
+        metrics.triggerHandled();
+        if (isStreaming) {
+            final long handlerStartNanos = System.nanoTime();
+            ((StreamingTriggerHandler) triggerHandler).onError(trigger, (StreamingTriggerSerializer) triggerSerializer);
+            metrics.recordHandler(System.nanoTime() - handlerStartNanos);
+        } else if (isBinary) {
+            final long serializationStartNanos = System.nanoTime();
+            final byte[] serializedError = ((BinaryTriggerSerializer) triggerSerializer).serialize(trigger);
+            final long handlerStartNanos = System.nanoTime();
+            metrics.recordSerialization(handlerStartNanos - serializationStartNanos);
+            metrics.emitted(serializedError.length);
+            ((BinaryTriggerHandler) triggerHandler).onError(serializedError);
+            metrics.recordHandler(System.nanoTime() - handlerStartNanos);
+        } else {
+            final long serializationStartNanos = System.nanoTime();
+            final String serializedError = triggerSerializer.serializeTrigger(trigger);
+            final long handlerStartNanos = System.nanoTime();
+            metrics.recordSerialization(handlerStartNanos - serializationStartNanos);
+            metrics.emitted(serializedError);
+            triggerHandler.onError(serializedError);
+            metrics.recordHandler(System.nanoTime() - handlerStartNanos);
+        }
+    }
+
+    private void handleMeasuredTimeout(TimeoutTrigger trigger) {
+        metrics.triggerHandled();
+        if (isStreaming) {
+            final long handlerStartNanos = System.nanoTime();
+            ((StreamingTriggerHandler) triggerHandler).onTimeout(trigger, (StreamingTriggerSerializer) triggerSerializer);
+            metrics.recordHandler(System.nanoTime() - handlerStartNanos);
+        } else if (isBinary) {
+            final long serializationStartNanos = System.nanoTime();
+            final byte[] serializedTimeout = ((BinaryTriggerSerializer) triggerSerializer).serialize(trigger);
+            final long handlerStartNanos = System.nanoTime();
+            metrics.recordSerialization(handlerStartNanos - serializationStartNanos);
+            metrics.emitted(serializedTimeout.length);
+            ((BinaryTriggerHandler) triggerHandler).onTimeout(serializedTimeout);
+            metrics.recordHandler(System.nanoTime() - handlerStartNanos);
+        } else {
+            final long serializationStartNanos = System.nanoTime();
+            final String serializedTimeout = triggerSerializer.serializeTrigger(trigger);
+            final long handlerStartNanos = System.nanoTime();
+            metrics.recordSerialization(handlerStartNanos - serializationStartNanos);
+            metrics.emitted(serializedTimeout);
+            triggerHandler.onTimeout(serializedTimeout);
+            metrics.recordHandler(System.nanoTime() - handlerStartNanos);
+        }
+    }
+
+    private boolean isValueTrackingEnabled() {
+        return overheadBudget == null || overheadBudget.isValueTrackingEnabled();
+    }
+
+    /**
+     * @return start of the measurement of the event, 0 if the event is not measured
+     */
+    private long startEventMeasurement() {
+        return overheadBudget != null && overheadBudget.isSampledEvent() ? System.nanoTime() : 0L;
+    }
+
+    private void stopEventMeasurement(long startNanos) {
+        if (startNanos != 0L) {
+            overheadBudget.recordSampledEvent(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void stopTriggerMeasurement(long startNanos) {
+        if (overheadBudget != null) {
+            overheadBudget.recordTrigger(System.nanoTime() - startNanos);
+        }
     }
 
     private ErrorTrigger getProcessedErrorTrigger() {
-        return errorTrackerThreadLocal.get().getProcessedErrorTrigger();
+        final ErrorState errorState = errorTrackerThreadLocal.get();
+        return errorState == null ? null : errorState.getProcessedErrorTrigger();
     }
 
     private void startTriggerProcessing(ErrorTrigger errorTrigger) {
         ErrorState errorState = errorTrackerThreadLocal.get();
+        if (errorState == null) {
+            errorState = new ErrorState();
+            errorTrackerThreadLocal.set(errorState);
+        }
         errorState.setProcessingInProgress(true);
         errorState.setProcessedErrorTrigger(errorTrigger);
     }
@@ -168,7 +399,9 @@ public class SnaperrTracer implements Tracer {
     }
 
     private boolean hasPendingProcessing() {
-        return errorTrackerThreadLocal.get().isProcessingInProgress();
+        // threads that never processed a trigger have no state, the lookup is all they pay
+        final ErrorState errorState = errorTrackerThreadLocal.get();
+        return errorState != null && errorState.isProcessingInProgress();
     }
 
     /**
@@ -0,0 +1,20 @@
+package io.ghostwriter.rt.snaperr.api;
+
+import java.util.List;
+
+/**
+ * {@link TriggerHandler} that is able to process multiple serialized triggers at once.
+ * <p>
+ * Asynchronous handler stages, such as {@link io.ghostwriter.rt.snaperr.core.AsyncTriggerHandler}, collect
+ * the triggers raised by the application threads and pass them in batches to implementations of this interface.
+ * This way a sink can write all of them with one call to the target system instead of one call per trigger.
+ */
+public interface BatchTriggerHandler extends TriggerHandler {
+
+    /**
+     * @param batch serialized triggers in the order they were collected. The list is reused by the caller
+     *              once this method returns, so implementations must not keep a reference to it.
+     */
+    void onBatch(List<SerializedTrigger> batch);
+
+}
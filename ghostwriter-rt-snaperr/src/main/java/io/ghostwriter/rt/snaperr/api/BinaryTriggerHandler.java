@@ -0,0 +1,16 @@
+package io.ghostwriter.rt.snaperr.api;
+
+/**
+ * {@link TriggerHandler} that stores the records of a {@link BinaryTriggerSerializer} as they are. The bytes are not
+ * converted to a String on the way, which would corrupt them.
+ * <p>
+ * A {@link BatchTriggerHandler} that implements this interface also receives binary {@link SerializedTrigger}s in its
+ * batches.
+ */
+public interface BinaryTriggerHandler extends TriggerHandler {
+
+    void onError(byte[] serializedError);
+
+    void onTimeout(byte[] serializedTimeout);
+
+}
@@ -0,0 +1,24 @@
+package io.ghostwriter.rt.snaperr.api;
+
+/**
+ * {@link TriggerSerializer} of a binary format. The records are passed to the handler as bytes, either through the sink
+ * of a {@link StreamingTriggerHandler} or to a {@link BinaryTriggerHandler}. A binary record does not survive the
+ * conversion to a String, so the String based methods of {@link TriggerSerializer} are not supported.
+ */
+public interface BinaryTriggerSerializer extends TriggerSerializer {
+
+    /***
+     * Convert the {@link ErrorTrigger} instance to a binary record
+     * @param errorTrigger Instance to be converted
+     * @return the record, owned by the caller
+     */
+    byte[] serialize(ErrorTrigger errorTrigger);
+
+    /***
+     * Convert the {@link TimeoutTrigger} instance to a binary record
+     * @param timeoutTrigger Instance to be converted
+     * @return the record, owned by the caller
+     */
+    byte[] serialize(TimeoutTrigger timeoutTrigger);
+
+}
@@ -0,0 +1,22 @@
+package io.ghostwriter.rt.snaperr.api;
+
+/**
+ * {@link Throttler} that takes the cost of the admitted triggers into account.
+ * <p>
+ * SnaperrTracer measures every admitted trigger, from before its serialization until the trigger handler returns.
+ * The throttler owns the clock, so it decides whether the cost is measured in wall time or in CPU time of the
+ * raising thread. Both methods are called on the thread that raised the trigger.
+ */
+public interface CostAwareThrottler extends Throttler {
+
+    /**
+     * @return reading of the cost clock before the trigger is serialized, passed to {@link #stopCostMeasurement(long)}
+     */
+    long startCostMeasurement();
+
+    /**
+     * @param startMark value returned by {@link #startCostMeasurement()} for the same trigger
+     */
+    void stopCostMeasurement(long startMark);
+
+}
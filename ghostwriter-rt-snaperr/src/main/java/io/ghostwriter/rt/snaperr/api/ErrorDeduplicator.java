@@ -0,0 +1,26 @@
+package io.ghostwriter.rt.snaperr.api;
+
+/**
+ * Recognizes repeated errors before their snapshot is serialized, so the serialization cost is only paid for errors
+ * that were not seen recently. Called on the thread that raised the error, before the {@link Throttler}.
+ * Implementations must be thread-safe.
+ */
+public interface ErrorDeduplicator {
+
+    /**
+     * Deduplicator that treats every error as a new one.
+     */
+    ErrorDeduplicator NONE = new ErrorDeduplicator() {
+        @Override
+        public boolean isDuplicate(ErrorTrigger errorTrigger) {
+            return false;
+        }
+    };
+
+    /**
+     * @param errorTrigger the error, with the tracked state of the raising thread
+     * @return true if the snapshot of the error should be skipped
+     */
+    boolean isDuplicate(ErrorTrigger errorTrigger);
+
+}
@@ -27,4 +27,25 @@ final public class ErrorTrigger {
     public Iterator<TrackedScope> scopes() {
         return referenceTracker.scopes();
     }
+
+    /**
+     * @return number of scopes above the innermost one of {@link #scopes()} that were not tracked
+     */
+    public int untrackedDepth() {
+        return referenceTracker.untrackedDepth();
+    }
+
+    /**
+     * @return 1 in this many invocation trees is tracked, 1 if sampling is off
+     */
+    public int samplingInterval() {
+        return referenceTracker.samplingInterval();
+    }
+
+    /**
+     * @return false if the error happened in an invocation tree that was not sampled, its state was not tracked
+     */
+    public boolean isSampled() {
+        return referenceTracker.isSampled();
+    }
 }
@@ -0,0 +1,58 @@
+package io.ghostwriter.rt.snaperr.api;
+
+import java.util.Objects;
+
+/**
+ * Output of a {@link TriggerSerializer} together with the kind of trigger it was produced for.
+ * Used to pass serialized triggers to a {@link BatchTriggerHandler}.
+ * <p>
+ * The payload is either a String or, for a {@link BinaryTriggerSerializer}, a binary record, see {@link #isBinary()}.
+ */
+public final class SerializedTrigger {
+
+    public enum Type {
+        ERROR,
+        TIMEOUT
+    }
+
+    private final Type type;
+
+    private final String payload;
+
+    private final byte[] binaryPayload;
+
+    public SerializedTrigger(Type type, String payload) {
+        this.type = Objects.requireNonNull(type);
+        this.payload = payload;
+        this.binaryPayload = null;
+    }
+
+    public SerializedTrigger(Type type, byte[] binaryPayload) {
+        this.type = Objects.requireNonNull(type);
+        this.payload = null;
+        this.binaryPayload = Objects.requireNonNull(binaryPayload);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the String payload, null if the payload is binary
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the binary payload, null if the payload is a String
+     */
+    public byte[] getBinaryPayload() {
+        return binaryPayload;
+    }
+
+    public boolean isBinary() {
+        return binaryPayload != null;
+    }
+
+}
@@ -0,0 +1,17 @@
+package io.ghostwriter.rt.snaperr.api;
+
+/**
+ * {@link TriggerHandler} that provides its own sink for the serializer.
+ * <p>
+ * When both the handler and the serializer support streaming, the tracer passes the trigger itself to the handler,
+ * which lets the serializer write into its sink. This happens on the thread that raised the trigger, since the
+ * tracked state is only valid while that thread is stopped at the error. The String based methods of
+ * {@link TriggerHandler} are used for serializers without streaming support.
+ */
+public interface StreamingTriggerHandler extends TriggerHandler {
+
+    void onError(ErrorTrigger errorTrigger, StreamingTriggerSerializer serializer);
+
+    void onTimeout(TimeoutTrigger timeoutTrigger, StreamingTriggerSerializer serializer);
+
+}
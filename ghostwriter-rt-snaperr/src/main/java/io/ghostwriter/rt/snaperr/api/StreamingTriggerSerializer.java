@@ -0,0 +1,28 @@
+package io.ghostwriter.rt.snaperr.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link TriggerSerializer} that is able to write the serialized trigger directly into the sink of a
+ * {@link StreamingTriggerHandler}, without materializing the whole snapshot on the heap first.
+ */
+public interface StreamingTriggerSerializer extends TriggerSerializer {
+
+    /***
+     * Write the {@link ErrorTrigger} instance to the given stream. The stream is neither flushed nor closed.
+     * @param errorTrigger Instance to be converted
+     * @param output Target of the serialized format
+     * @throws IOException if writing to the stream fails
+     */
+    void serializeTrigger(ErrorTrigger errorTrigger, OutputStream output) throws IOException;
+
+    /***
+     * Write the {@link TimeoutTrigger} instance to the given stream. The stream is neither flushed nor closed.
+     * @param timeoutTrigger Instance to be converted
+     * @param output Target of the serialized format
+     * @throws IOException if writing to the stream fails
+     */
+    void serializeTrigger(TimeoutTrigger timeoutTrigger, OutputStream output) throws IOException;
+
+}
@@ -5,8 +5,9 @@ package io.ghostwriter.rt.snaperr.api;
  * This should be used for throttle controlling, if there are too many
  * error happening in a short time.
  *
- * <p>Concurrency: SnaperrTracer will synchronize access to this object
- * to make sure the throttle control strategy works on all threads
+ * <p>Concurrency: SnaperrTracer calls the throttler from every thread that raises a trigger,
+ * without any external synchronization. The implementations must be thread-safe and should avoid
+ * blocking, since the calling thread is the one that just failed.
  *
  */
 public interface Throttler {
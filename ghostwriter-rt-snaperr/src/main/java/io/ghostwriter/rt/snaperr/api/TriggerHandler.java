@@ -8,6 +8,8 @@ package io.ghostwriter.rt.snaperr.api;
  * <p>The implementation of this interface will execute in the {@link Thread} that triggered
  * the error, thus blocking the execution (exception propagation) of application until the
  * {@link TriggerHandler} implementation finishes the handling.
+ * Wrap slow sinks with {@link io.ghostwriter.rt.snaperr.core.AsyncTriggerHandler} so the failing thread only
+ * pays for enqueueing the serialized trigger.
  * <p>
  * The interface implementations must be thread-safe.
  */
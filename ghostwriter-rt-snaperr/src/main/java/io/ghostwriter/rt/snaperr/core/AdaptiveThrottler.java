@@ -0,0 +1,247 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.CostAwareThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttling that keeps the time spent on snapshots within a budget, instead of admitting a fixed number of triggers.
+ * <p>
+ * The cost of every admitted trigger, its serialization and handling, is measured by the tracer. At the end of each
+ * window the average cost per trigger is updated and the number of triggers admitted in the next window is set to what
+ * fits into {@link #budgetNanosPerWindow}, between {@link #minTriggersInWindow} and {@link #maxTriggersInWindow}.
+ * Cheap snapshots are admitted more often, expensive ones, like large object graphs or a slow sink, are admitted less.
+ * <p>
+ * Admission is lock-free, see {@link FixedWindowCounter}. The limit is recomputed by the first thread that notices the
+ * end of the window. Costs reported while the previous window is being closed may be attributed to the next one.
+ */
+public class AdaptiveThrottler implements CostAwareThrottler {
+
+    public static final long DEFAULT_WINDOW_LENGTH_MS = 1000L;
+
+    /**
+     * 10ms per second, at most 1% of the time of a single thread is spent on snapshots.
+     */
+    public static final long DEFAULT_BUDGET_NANOS_PER_WINDOW = 10L * 1000 * 1000;
+
+    public static final int DEFAULT_MIN_TRIGGERS_IN_WINDOW = 1;
+
+    public static final int DEFAULT_MAX_TRIGGERS_IN_WINDOW = 100;
+
+    /**
+     * Number of triggers admitted before the first cost is known, same as the default of {@link ThrottleController}.
+     */
+    private static final int INITIAL_TRIGGERS_IN_WINDOW = 5;
+
+    /**
+     * The clock that measures the cost of the triggers.
+     */
+    public enum CostClock {
+        /**
+         * Elapsed time, includes the time spent blocked on the sink.
+         */
+        WALL_TIME {
+            @Override
+            long currentTimeNanos() {
+                return System.nanoTime();
+            }
+        },
+        /**
+         * CPU time of the raising thread, falls back to wall time if the JVM does not support measuring it.
+         */
+        CPU_TIME {
+            @Override
+            long currentTimeNanos() {
+                return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+            }
+        };
+
+        private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+        abstract long currentTimeNanos();
+
+        CostClock supported() {
+            if (this == CPU_TIME && !THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+                return WALL_TIME;
+            }
+            return this;
+        }
+    }
+
+    private final CostClock costClock;
+
+    private final long windowLengthMs;
+
+    private final long budgetNanosPerWindow;
+
+    private final int minTriggersInWindow;
+
+    private final int maxTriggersInWindow;
+
+    private final FixedWindowCounter windowCounter;
+
+    private final AtomicLong nextAdjustmentMs;
+
+    private final StripedCounter costNanosInWindow = new StripedCounter();
+
+    private final StripedCounter measuredTriggersInWindow = new StripedCounter();
+
+    private final StripedCounter throttledTriggers = new StripedCounter();
+
+    /**
+     * Smoothed average cost of a trigger, 0 until the first cost is measured.
+     */
+    private volatile long averageCostNanos = 0L;
+
+    private volatile int admittedTriggersInWindow = INITIAL_TRIGGERS_IN_WINDOW;
+
+    /**
+     * @param costClock            the clock that measures the cost of the triggers
+     * @param windowLengthMs       window size in millisec
+     * @param budgetNanosPerWindow time that can be spent on snapshots in each window
+     * @param minTriggersInWindow  triggers admitted in each window regardless of their cost
+     * @param maxTriggersInWindow  triggers admitted in each window at most, even if they are cheap
+     */
+    public AdaptiveThrottler(CostClock costClock, long windowLengthMs, long budgetNanosPerWindow,
+                             int minTriggersInWindow, int maxTriggersInWindow) {
+        if (windowLengthMs < 1L) {
+            throw new IllegalArgumentException("Window length must be positive, got: " + windowLengthMs);
+        }
+        if (budgetNanosPerWindow < 1L) {
+            throw new IllegalArgumentException("Budget must be positive, got: " + budgetNanosPerWindow);
+        }
+        if (minTriggersInWindow < 0 || maxTriggersInWindow < Math.max(1, minTriggersInWindow)) {
+            throw new IllegalArgumentException("Invalid limits of triggers in window, min: " + minTriggersInWindow
+                    + ", max: " + maxTriggersInWindow);
+        }
+        this.costClock = Objects.requireNonNull(costClock).supported();
+        this.windowLengthMs = windowLengthMs;
+        this.budgetNanosPerWindow = budgetNanosPerWindow;
+        this.minTriggersInWindow = minTriggersInWindow;
+        this.maxTriggersInWindow = maxTriggersInWindow;
+        this.admittedTriggersInWindow = clamp(INITIAL_TRIGGERS_IN_WINDOW);
+
+        final long nowMs = currentTimeMillis();
+        this.windowCounter = new FixedWindowCounter(windowLengthMs, nowMs);
+        this.nextAdjustmentMs = new AtomicLong(nowMs + windowLengthMs);
+    }
+
+    public AdaptiveThrottler(CostClock costClock, long budgetNanosPerWindow) {
+        this(costClock, DEFAULT_WINDOW_LENGTH_MS, budgetNanosPerWindow, DEFAULT_MIN_TRIGGERS_IN_WINDOW,
+                DEFAULT_MAX_TRIGGERS_IN_WINDOW);
+    }
+
+    public AdaptiveThrottler() {
+        this(CostClock.WALL_TIME, DEFAULT_BUDGET_NANOS_PER_WINDOW);
+    }
+
+    @Override
+    public boolean doHandleTimeout(TimeoutTrigger timeoutTrigger) {
+        return !throttleControl();
+    }
+
+    @Override
+    public boolean doHandleError(ErrorTrigger errorTrigger) {
+        return !throttleControl();
+    }
+
+    @Override
+    public long startCostMeasurement() {
+        return costClock.currentTimeNanos();
+    }
+
+    @Override
+    public void stopCostMeasurement(long startMark) {
+        recordCost(costClock.currentTimeNanos() - startMark);
+    }
+
+    /**
+     * @return number of triggers admitted in the current window, based on the measured cost of the triggers
+     */
+    public int getAdmissionRate() {
+        return admittedTriggersInWindow;
+    }
+
+    /**
+     * @return smoothed average cost of a trigger in nanoseconds, 0 if no trigger was measured yet
+     */
+    public long getAverageCostNanos() {
+        return averageCostNanos;
+    }
+
+    /**
+     * @return number of triggers that were not allowed to be handled since the creation of the instance
+     */
+    public long getThrottledTriggerCount() {
+        return throttledTriggers.sum();
+    }
+
+    public CostClock getCostClock() {
+        return costClock;
+    }
+
+    void recordCost(long costNanos) {
+        costNanosInWindow.add(Math.max(0L, costNanos));
+        measuredTriggersInWindow.increment();
+    }
+
+    /**
+     * @return <li>true - throttling, must not handle the trigger
+     * <li>false - no throttling, handle the trigger now
+     */
+    private boolean throttleControl() {
+        final long nowMs = currentTimeMillis();
+        adjustAdmissionRate(nowMs);
+
+        final boolean isAdmitted = windowCounter.tryAdmit(nowMs, admittedTriggersInWindow);
+        if (!isAdmitted) {
+            throttledTriggers.increment();
+        }
+
+        return !isAdmitted;
+    }
+
+    /**
+     * Recomputes the limit from the costs measured since the last adjustment, once per window.
+     */
+    private void adjustAdmissionRate(long nowMs) {
+        final long nextAdjustment = nextAdjustmentMs.get();
+        if (nowMs < nextAdjustment || !nextAdjustmentMs.compareAndSet(nextAdjustment, nowMs + windowLengthMs)) {
+            return;
+        }
+
+        final long measuredTriggers = measuredTriggersInWindow.sum();
+        final long costNanos = costNanosInWindow.sum();
+        measuredTriggersInWindow.reset();
+        costNanosInWindow.reset();
+        if (measuredTriggers == 0L) {
+            return;
+        }
+
+        final long lastAverageCostNanos = averageCostNanos;
+        final long windowAverageCostNanos = Math.max(1L, costNanos / measuredTriggers);
+        // exponential smoothing, a single slow window does not shut down the snapshots
+        final long smoothedCostNanos = lastAverageCostNanos == 0L
+                ? windowAverageCostNanos
+                : (lastAverageCostNanos + windowAverageCostNanos) / 2;
+        averageCostNanos = smoothedCostNanos;
+        admittedTriggersInWindow = clamp(budgetNanosPerWindow / smoothedCostNanos);
+    }
+
+    private int clamp(long triggersInWindow) {
+        return (int) Math.max(minTriggersInWindow, Math.min(maxTriggersInWindow, triggersInWindow));
+    }
+
+    /**
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+}
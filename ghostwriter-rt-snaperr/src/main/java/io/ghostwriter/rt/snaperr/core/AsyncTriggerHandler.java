@@ -0,0 +1,351 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.BatchTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.BinaryTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+import io.ghostwriter.rt.snaperr.api.TriggerHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples the threads that raise triggers from the {@link TriggerHandler} that sends them to the target system.
+ * <p>
+ * Serialized triggers are put into a bounded ring buffer, so the failing thread only pays the cost of an enqueue.
+ * A dedicated daemon thread drains the buffer and passes the triggers to the delegate in batches of at most
+ * {@code maxBatchSize} elements. If the delegate is a {@link BatchTriggerHandler}, every batch is handed over
+ * with one call, otherwise the triggers are passed one by one.
+ * <p>
+ * Binary triggers are only accepted if the delegate is a {@link BinaryTriggerHandler}, otherwise they are dropped.
+ * <p>
+ * Triggers the delegate fails on are counted as failed, not as handled. A failing {@link BatchTriggerHandler} fails
+ * its whole batch, other delegates fail trigger by trigger and the rest of the batch is still passed to them.
+ * <p>
+ * When the buffer is full, the configured {@link OverflowPolicy} decides what happens with the new trigger.
+ */
+public final class AsyncTriggerHandler implements BinaryTriggerHandler, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncTriggerHandler.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    public static final long DEFAULT_BLOCK_DEADLINE_MS = 10L;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private static final long BLOCKED_PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50L);
+
+    public enum OverflowPolicy {
+        /**
+         * The trigger that does not fit into the buffer is discarded.
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest queued trigger is discarded to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * The raising thread waits for free space until the configured deadline passes, then the trigger is discarded.
+         */
+        BLOCK_WITH_DEADLINE
+    }
+
+    private final TriggerHandler delegate;
+
+    private final boolean isBinaryDelegate;
+
+    private final BoundedRingBuffer<SerializedTrigger> buffer;
+
+    private final int maxBatchSize;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final long blockDeadlineNanos;
+
+    private final StripedCounter droppedTriggers = new StripedCounter();
+
+    private final StripedCounter handledTriggers = new StripedCounter();
+
+    private final StripedCounter failedTriggers = new StripedCounter();
+
+    private final Thread consumer;
+
+    private volatile boolean isConsumerParked = false;
+
+    private volatile boolean isRunning = true;
+
+    /**
+     * Set by the consumer after its final drain, a trigger enqueued after that point is not handled anymore.
+     */
+    private volatile boolean isTerminated = false;
+
+    public AsyncTriggerHandler(TriggerHandler delegate, int capacity, int maxBatchSize,
+                               OverflowPolicy overflowPolicy, long blockDeadlineMs) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.isBinaryDelegate = delegate instanceof BinaryTriggerHandler;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, got: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.blockDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(blockDeadlineMs);
+        this.buffer = new BoundedRingBuffer<>(capacity);
+
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "ghostwriter-snaperr-trigger-handler");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public AsyncTriggerHandler(TriggerHandler delegate) {
+        this(delegate, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE, OverflowPolicy.DROP_NEWEST, DEFAULT_BLOCK_DEADLINE_MS);
+    }
+
+    @Override
+    public void onError(String serializedError) {
+        enqueue(new SerializedTrigger(SerializedTrigger.Type.ERROR, serializedError));
+    }
+
+    @Override
+    public void onTimeout(String serializedTimeout) {
+        enqueue(new SerializedTrigger(SerializedTrigger.Type.TIMEOUT, serializedTimeout));
+    }
+
+    @Override
+    public void onError(byte[] serializedError) {
+        enqueueBinary(new SerializedTrigger(SerializedTrigger.Type.ERROR, serializedError));
+    }
+
+    @Override
+    public void onTimeout(byte[] serializedTimeout) {
+        enqueueBinary(new SerializedTrigger(SerializedTrigger.Type.TIMEOUT, serializedTimeout));
+    }
+
+    /**
+     * @return number of triggers that were discarded because the buffer was full
+     */
+    public long getDroppedTriggerCount() {
+        return droppedTriggers.sum();
+    }
+
+    /**
+     * @return number of triggers waiting in the buffer to be handled
+     */
+    public int getQueuedTriggerCount() {
+        return buffer.size();
+    }
+
+    /**
+     * @return number of triggers the delegate handler processed without failing
+     */
+    public long getHandledTriggerCount() {
+        return handledTriggers.sum();
+    }
+
+    /**
+     * @return number of triggers the delegate handler failed on, they are lost
+     */
+    public long getFailedTriggerCount() {
+        return failedTriggers.sum();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Stops the consumer thread after it handled the triggers that are already in the buffer.
+     * Triggers raised after closing are dropped and counted in {@link #getDroppedTriggerCount()}.
+     */
+    @Override
+    public void close() {
+        isRunning = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueueBinary(SerializedTrigger trigger) {
+        if (!isBinaryDelegate) {
+            // the delegate could only write the bytes re-encoded as a String, which corrupts them
+            droppedTriggers.increment();
+            return;
+        }
+        enqueue(trigger);
+    }
+
+    private void enqueue(SerializedTrigger trigger) {
+        if (!isRunning) {
+            droppedTriggers.increment();
+            return;
+        }
+
+        if (buffer.offer(trigger) || handleOverflow(trigger)) {
+            wakeUpConsumer();
+        } else {
+            droppedTriggers.increment();
+        }
+
+        // the handler was closed between the check above and the enqueue, and the consumer may already be gone
+        if (isTerminated) {
+            discardQueued();
+        }
+    }
+
+    /**
+     * Removes the triggers that the terminated consumer will not handle and counts them as dropped.
+     */
+    private void discardQueued() {
+        while (buffer.poll() != null) {
+            droppedTriggers.increment();
+        }
+    }
+
+    private boolean handleOverflow(SerializedTrigger trigger) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                return replaceOldest(trigger);
+            case BLOCK_WITH_DEADLINE:
+                return offerUntilDeadline(trigger);
+            case DROP_NEWEST:
+            default:
+                return false;
+        }
+    }
+
+    private boolean replaceOldest(SerializedTrigger trigger) {
+        do {
+            if (buffer.poll() != null) {
+                droppedTriggers.increment();
+            }
+        } while (!buffer.offer(trigger));
+
+        return true;
+    }
+
+    private boolean offerUntilDeadline(SerializedTrigger trigger) {
+        final long deadline = System.nanoTime() + blockDeadlineNanos;
+        do {
+            wakeUpConsumer();
+            LockSupport.parkNanos(this, BLOCKED_PRODUCER_PARK_NANOS);
+            if (buffer.offer(trigger)) {
+                return true;
+            }
+        } while (System.nanoTime() - deadline < 0L && isRunning);
+
+        return false;
+    }
+
+    private void wakeUpConsumer() {
+        // only pay for the unpark call if the consumer is actually waiting for work
+        if (isConsumerParked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void consume() {
+        final List<SerializedTrigger> batch = new ArrayList<>(maxBatchSize);
+        while (isRunning) {
+            if (!drainBatch(batch)) {
+                isConsumerParked = true;
+                // re-check after publishing the flag, otherwise a trigger enqueued in the meantime could wait a full idle period
+                if (buffer.size() == 0 && isRunning) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                isConsumerParked = false;
+            }
+        }
+
+        // flush the remaining triggers before exiting
+        while (drainBatch(batch)) {
+            // keep draining
+        }
+
+        // a producer that enqueued before seeing the flag is handled by this last drain, the ones that see it discard
+        // their own triggers
+        isTerminated = true;
+        while (drainBatch(batch)) {
+            // keep draining
+        }
+    }
+
+    /**
+     * @return true if there was at least one trigger to handle
+     */
+    private boolean drainBatch(List<SerializedTrigger> batch) {
+        SerializedTrigger trigger;
+        while (batch.size() < maxBatchSize && (trigger = buffer.poll()) != null) {
+            batch.add(trigger);
+        }
+
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        try {
+            handle(batch);
+        } finally {
+            batch.clear();
+        }
+
+        return true;
+    }
+
+    private void handle(List<SerializedTrigger> batch) {
+        if (delegate instanceof BatchTriggerHandler) {
+            try {
+                ((BatchTriggerHandler) delegate).onBatch(batch);
+                handledTriggers.add(batch.size());
+            } catch (RuntimeException e) {
+                failedTriggers.add(batch.size());
+                LOG.error("Trigger handler failed to process a batch of " + batch.size() + " triggers", e);
+            }
+            return;
+        }
+
+        for (SerializedTrigger trigger : batch) {
+            try {
+                handle(trigger);
+                handledTriggers.increment();
+            } catch (RuntimeException e) {
+                failedTriggers.increment();
+                LOG.error("Trigger handler failed to process a trigger", e);
+            }
+        }
+    }
+
+    private void handle(SerializedTrigger trigger) {
+        if (trigger.isBinary()) {
+            handleBinary(trigger);
+        } else if (trigger.getType() == SerializedTrigger.Type.TIMEOUT) {
+            delegate.onTimeout(trigger.getPayload());
+        } else {
+            delegate.onError(trigger.getPayload());
+        }
+    }
+
+    private void handleBinary(SerializedTrigger trigger) {
+        final BinaryTriggerHandler binaryDelegate = (BinaryTriggerHandler) delegate;
+        if (trigger.getType() == SerializedTrigger.Type.TIMEOUT) {
+            binaryDelegate.onTimeout(trigger.getBinaryPayload());
+        } else {
+            binaryDelegate.onError(trigger.getBinaryPayload());
+        }
+    }
+
+}
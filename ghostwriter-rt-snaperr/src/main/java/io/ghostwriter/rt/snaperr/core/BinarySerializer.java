@@ -0,0 +1,249 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.BinaryTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.api.TrackedValue;
+import io.ghostwriter.rt.snaperr.api.TriggerSerializer;
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compact binary encoding of the triggers. Use {@link BinaryTriggerDecoder} to turn the recorded snapshots back into
+ * the text format of {@link StringSerializer}.
+ * <p>
+ * Every snapshot is a self delimiting record:
+ * <pre>
+ * record       := magic("GWS") version(u8) type(u8) stringTable bodyLength(varint) body
+ * stringTable  := count(varint) string*
+ * string       := length(varint) utf8Bytes
+ * errorBody    := throwable(string) sampling? untracked? entry* 0x00
+ * timeoutBody  := threshold(zigzag varint) timeout(zigzag varint) sampling? untracked? entry* 0x00
+ * sampling     := 0x04 interval(varint) sampled(u8)
+ * untracked    := 0x03 count(varint)
+ * entry        := scope | repeated
+ * scope        := 0x01 source(stringRef) method(stringRef) variableCount(varint) variable*
+ * repeated     := 0x02 sourceType(stringRef) method(stringRef) count(varint)
+ * variable     := name(stringRef) value(string)
+ * stringRef    := index of the string in the string table (varint)
+ * </pre>
+ * Sources, method names and variable names are stored only once per snapshot in the string table, the rendered values
+ * are written inline. Values are rendered with the limits of a {@link ValueRenderer} and recursive calls are compressed
+ * by the {@link RecursionCompressor}, the same way as the text format does. Version 1 records have no untracked and
+ * repeated entries, version 2 records have no sampling entry.
+ * <p>
+ * The records are passed to the handler as bytes, the String based {@link TriggerSerializer} methods are not supported:
+ * every String sink re-encodes its input, which would corrupt the varints and the bytes of the UTF-8 strings. Pair it
+ * with a {@link io.ghostwriter.rt.snaperr.api.StreamingTriggerHandler} or a
+ * {@link io.ghostwriter.rt.snaperr.api.BinaryTriggerHandler}. The encoding buffers are reused per thread.
+ * <p>
+ * The string table precedes the body, so the snapshot is encoded in memory first. When used as a
+ * {@link StreamingTriggerSerializer}, the encoded parts are written to the stream without assembling the record.
+ */
+final public class BinarySerializer implements StreamingTriggerSerializer, BinaryTriggerSerializer {
+
+    static final byte[] MAGIC = {'G', 'W', 'S'};
+
+    static final int VERSION = 3;
+
+    static final int TYPE_ERROR = 0;
+
+    static final int TYPE_TIMEOUT = 1;
+
+    static final int SCOPE_MARKER = 1;
+
+    static final int REPEATED_MARKER = 2;
+
+    static final int UNTRACKED_MARKER = 3;
+
+    static final int SAMPLING_MARKER = 4;
+
+    static final int END_OF_SCOPES = 0;
+
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private final ValueRenderer valueRenderer;
+
+    private final RecursionCompressor recursionCompressor;
+
+    public BinarySerializer(ValueRenderer valueRenderer, RecursionCompressor recursionCompressor) {
+        this.valueRenderer = Objects.requireNonNull(valueRenderer);
+        this.recursionCompressor = Objects.requireNonNull(recursionCompressor);
+    }
+
+    public BinarySerializer(ValueRenderer valueRenderer) {
+        this(valueRenderer, RecursionCompressor.DEFAULT);
+    }
+
+    public BinarySerializer() {
+        this(ValueRenderer.DEFAULT);
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, a binary record cannot be passed as a String
+     */
+    @Override
+    public String serializeTrigger(ErrorTrigger errorTrigger) {
+        throw new UnsupportedOperationException("Binary snapshots are passed as bytes, use serialize(ErrorTrigger)");
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, a binary record cannot be passed as a String
+     */
+    @Override
+    public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
+        throw new UnsupportedOperationException("Binary snapshots are passed as bytes, use serialize(TimeoutTrigger)");
+    }
+
+    @Override
+    public void serializeTrigger(ErrorTrigger errorTrigger, OutputStream output) throws IOException {
+        encode(errorTrigger).writeRecord(TYPE_ERROR, output);
+    }
+
+    @Override
+    public void serializeTrigger(TimeoutTrigger timeoutTrigger, OutputStream output) throws IOException {
+        encode(timeoutTrigger).writeRecord(TYPE_TIMEOUT, output);
+    }
+
+    @Override
+    public byte[] serialize(ErrorTrigger errorTrigger) {
+        return encode(errorTrigger).toRecord(TYPE_ERROR);
+    }
+
+    @Override
+    public byte[] serialize(TimeoutTrigger timeoutTrigger) {
+        return encode(timeoutTrigger).toRecord(TYPE_TIMEOUT);
+    }
+
+    private Encoder encode(ErrorTrigger errorTrigger) {
+        final Encoder encoder = encoders.get();
+        encoder.reset();
+        encoder.body.writeString(errorTrigger.getThrowable().toString());
+        encoder.encodeSampling(errorTrigger.samplingInterval(), errorTrigger.isSampled());
+        encoder.encodeScopes(errorTrigger.untrackedDepth(), errorTrigger.scopes(), recursionCompressor,
+                valueRenderer.newSnapshot());
+        return encoder;
+    }
+
+    private Encoder encode(TimeoutTrigger timeoutTrigger) {
+        final Encoder encoder = encoders.get();
+        encoder.reset();
+        encoder.body.writeSignedVarLong(timeoutTrigger.getTimeoutThreshold());
+        encoder.body.writeSignedVarLong(timeoutTrigger.getTimeout());
+        final ReferenceTracker referenceTracker = timeoutTrigger.getReferenceTracker();
+        encoder.encodeSampling(referenceTracker.samplingInterval(), referenceTracker.isSampled());
+        encoder.encodeScopes(referenceTracker.untrackedDepth(), referenceTracker.scopes(), recursionCompressor,
+                valueRenderer.newSnapshot());
+        return encoder;
+    }
+
+    private static final class Encoder {
+
+        private final ByteArrayWriter stringTable = new ByteArrayWriter();
+
+        private final ByteArrayWriter body = new ByteArrayWriter();
+
+        private final ByteArrayWriter record = new ByteArrayWriter();
+
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+
+        void reset() {
+            stringTable.reset();
+            body.reset();
+            record.reset();
+            stringIndexes.clear();
+        }
+
+        void encodeSampling(int samplingInterval, boolean isSampled) {
+            if (samplingInterval > 1 || !isSampled) {
+                body.writeByte(SAMPLING_MARKER);
+                body.writeUnsignedVarLong(samplingInterval);
+                body.writeByte(isSampled ? 1 : 0);
+            }
+        }
+
+        void encodeScopes(int untrackedDepth, Iterator<TrackedScope> scopes, RecursionCompressor recursionCompressor,
+                          final ValueRenderer.Snapshot values) {
+            if (untrackedDepth > 0) {
+                body.writeByte(UNTRACKED_MARKER);
+                body.writeUnsignedVarLong(untrackedDepth);
+            }
+
+            recursionCompressor.walk(scopes, new RecursionCompressor.ScopeVisitor<RuntimeException>() {
+                @Override
+                public void scope(TrackedScope scope) {
+                    body.writeByte(SCOPE_MARKER);
+                    writeStringReference(String.valueOf(scope.getSource()));
+                    writeStringReference(String.valueOf(scope.getMethodName()));
+
+                    final Map<String, TrackedValue> references = scope.getReferences();
+                    body.writeUnsignedVarLong(references.size());
+                    for (Map.Entry<String, TrackedValue> entry : references.entrySet()) {
+                        writeStringReference(entry.getKey());
+                        body.writeString(values.render(entry.getValue().getValue()));
+                    }
+                }
+
+                @Override
+                public void repeatedScope(String sourceType, String methodName, int repetitions) {
+                    body.writeByte(REPEATED_MARKER);
+                    writeStringReference(sourceType);
+                    writeStringReference(String.valueOf(methodName));
+                    body.writeUnsignedVarLong(repetitions);
+                }
+            });
+            body.writeByte(END_OF_SCOPES);
+        }
+
+        byte[] toRecord(int type) {
+            writeHeader(type);
+            stringTable.writeTo(record);
+            record.writeUnsignedVarLong(body.size());
+            body.writeTo(record);
+            return record.toByteArray();
+        }
+
+        void writeRecord(int type, OutputStream output) throws IOException {
+            writeHeader(type);
+            record.writeTo(output);
+            stringTable.writeTo(output);
+            record.reset();
+            record.writeUnsignedVarLong(body.size());
+            record.writeTo(output);
+            body.writeTo(output);
+        }
+
+        private void writeHeader(int type) {
+            record.reset();
+            record.writeBytes(MAGIC, 0, MAGIC.length);
+            record.writeByte(VERSION);
+            record.writeByte(type);
+            record.writeUnsignedVarLong(stringIndexes.size());
+        }
+
+        private void writeStringReference(String value) {
+            Integer index = stringIndexes.get(value);
+            if (index == null) {
+                index = stringIndexes.size();
+                stringIndexes.put(value, index);
+                stringTable.writeString(value);
+            }
+            body.writeUnsignedVarLong(index);
+        }
+
+    }
+
+}
@@ -0,0 +1,183 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Reads snapshots written by {@link BinarySerializer} and renders them in the text format of {@link StringSerializer}.
+ * <p>
+ * It can also be used as a command line tool, it prints the snapshots of the given files, or of the standard input
+ * if no file is given:
+ * <pre>
+ * java -cp ghostwriter-rt-snaperr.jar io.ghostwriter.rt.snaperr.core.BinaryTriggerDecoder snapshots.bin
+ * </pre>
+ */
+final public class BinaryTriggerDecoder {
+
+    private final DataInputStream input;
+
+    public BinaryTriggerDecoder(InputStream input) {
+        this.input = new DataInputStream(Objects.requireNonNull(input));
+    }
+
+    /**
+     * @param record one snapshot, as returned by the {@link BinarySerializer}
+     * @return text form of the snapshot
+     * @throws IOException if the record is malformed
+     */
+    public static String decode(byte[] record) throws IOException {
+        final String snapshot = new BinaryTriggerDecoder(new ByteArrayInputStream(record)).readSnapshot();
+        if (snapshot == null) {
+            throw new EOFException("Empty record");
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return text form of the next snapshot or null if the end of the stream is reached
+     * @throws IOException if the stream cannot be read or the snapshot is malformed
+     */
+    public String readSnapshot() throws IOException {
+        final int firstByte = input.read();
+        if (firstByte < 0) {
+            return null;
+        }
+
+        final byte[] magic = new byte[BinarySerializer.MAGIC.length];
+        magic[0] = (byte) firstByte;
+        input.readFully(magic, 1, magic.length - 1);
+        if (!Arrays.equals(BinarySerializer.MAGIC, magic)) {
+            throw new IOException("Not a Snaperr snapshot, invalid magic bytes: " + Arrays.toString(magic));
+        }
+
+        final int version = input.readUnsignedByte();
+        if (version < 1 || version > BinarySerializer.VERSION) {
+            throw new IOException("Unsupported snapshot format version: " + version);
+        }
+
+        final int type = input.readUnsignedByte();
+        final String[] stringTable = new String[readLength(input)];
+        for (int i = 0; i < stringTable.length; i++) {
+            stringTable[i] = readString(input);
+        }
+
+        final byte[] body = new byte[readLength(input)];
+        input.readFully(body);
+
+        return decodeBody(type, stringTable, new DataInputStream(new ByteArrayInputStream(body)));
+    }
+
+    private static String decodeBody(int type, String[] stringTable, DataInputStream body) throws IOException {
+        final int INITIAL_CAPACITY = 256;
+        final StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+        if (type == BinarySerializer.TYPE_ERROR) {
+            StringSerializer.appendErrorHeader(readString(body), sb);
+        } else if (type == BinarySerializer.TYPE_TIMEOUT) {
+            final long timeoutThreshold = readSignedVarLong(body);
+            final long timeout = readSignedVarLong(body);
+            StringSerializer.appendTimeoutHeader(timeoutThreshold, timeout, sb);
+        } else {
+            throw new IOException("Unknown snapshot type: " + type);
+        }
+
+        int marker;
+        while ((marker = body.readUnsignedByte()) != BinarySerializer.END_OF_SCOPES) {
+            if (marker == BinarySerializer.SCOPE_MARKER) {
+                final String source = readStringReference(body, stringTable);
+                final String methodName = readStringReference(body, stringTable);
+                StringSerializer.appendScopeHeader(source, methodName, sb);
+
+                final int numberOfVariables = readLength(body);
+                for (int i = 0; i < numberOfVariables; i++) {
+                    final String variableName = readStringReference(body, stringTable);
+                    final String variableValue = readString(body);
+                    StringSerializer.appendVariable(variableName, variableValue, sb);
+                }
+                StringSerializer.appendScopeFooter(sb);
+            } else if (marker == BinarySerializer.REPEATED_MARKER) {
+                final String sourceType = readStringReference(body, stringTable);
+                final String methodName = readStringReference(body, stringTable);
+                StringSerializer.appendRepeatedScope(sourceType, methodName, readUnsignedVarLong(body), sb);
+            } else if (marker == BinarySerializer.SAMPLING_MARKER) {
+                final long samplingInterval = readUnsignedVarLong(body);
+                StringSerializer.appendSampling(samplingInterval, body.readUnsignedByte() != 0, sb);
+            } else if (marker == BinarySerializer.UNTRACKED_MARKER) {
+                StringSerializer.appendUntrackedScopes(readUnsignedVarLong(body), sb);
+            } else {
+                throw new IOException("Unknown scope marker: " + marker);
+            }
+        }
+        StringSerializer.appendFooter(sb);
+
+        return sb.toString();
+    }
+
+    private static String readStringReference(DataInputStream input, String[] stringTable) throws IOException {
+        final int index = readLength(input);
+        if (index >= stringTable.length) {
+            throw new IOException("Invalid string table reference: " + index + ", size of the table: " + stringTable.length);
+        }
+        return stringTable[index];
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[readLength(input)];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(DataInputStream input) throws IOException {
+        final long length = readUnsignedVarLong(input);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return (int) length;
+    }
+
+    private static long readSignedVarLong(DataInputStream input) throws IOException {
+        final long value = readUnsignedVarLong(input);
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    private static long readUnsignedVarLong(DataInputStream input) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            printSnapshots(System.in);
+            return;
+        }
+
+        for (String fileName : args) {
+            try (InputStream input = new FileInputStream(fileName)) {
+                printSnapshots(input);
+            }
+        }
+    }
+
+    private static void printSnapshots(InputStream input) throws IOException {
+        final BinaryTriggerDecoder decoder = new BinaryTriggerDecoder(new BufferedInputStream(input));
+        String snapshot;
+        while ((snapshot = decoder.readSnapshot()) != null) {
+            System.out.println(snapshot);
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi-producer multi-consumer queue backed by an array (D. Vyukov's algorithm).
+ * <p>
+ * Every slot carries a sequence number that tells whether it is ready to be written or read for the
+ * current lap of the producer or consumer cursor. A producer claims a slot by moving the tail cursor with CAS,
+ * then stores the element and publishes it by updating the sequence of the slot. Consumers do the same with
+ * the head cursor. The queue does not allocate after construction.
+ *
+ * @param <E> type of the queued elements
+ */
+final class BoundedRingBuffer<E> {
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicReferenceArray<E> elements;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param requestedCapacity minimum number of elements the queue can hold, rounded up to the next power of two
+     */
+    BoundedRingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got: " + requestedCapacity);
+        }
+
+        int size = 1;
+        while (size < requestedCapacity) {
+            size <<= 1;
+        }
+
+        capacity = size;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        elements = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @param element element to enqueue
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long sequence = sequences.get(index);
+            final long difference = sequence - position;
+
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0L) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element or null if the queue is empty
+     */
+    E poll() {
+        long position = head.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long sequence = sequences.get(index);
+            final long difference = sequence - (position + 1);
+
+            if (difference == 0L) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + capacity);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0L) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * @return approximate number of queued elements
+     */
+    int size() {
+        final long size = tail.get() - head.get();
+        if (size < 0L) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,78 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer with the primitives of the binary snapshot format: unsigned LEB128 varints, ZigZag encoded
+ * signed varints and length prefixed UTF-8 strings. Instances are meant to be reused, {@link #reset()} keeps the
+ * allocated buffer.
+ */
+final class ByteArrayWriter {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    void reset() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    void writeUnsignedVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0L) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    void writeSignedVarLong(long value) {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void writeString(String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeUnsignedVarLong(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    void writeTo(ByteArrayWriter target) {
+        target.writeBytes(buffer, 0, size);
+    }
+
+    void writeTo(OutputStream output) throws IOException {
+        output.write(buffer, 0, size);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        final int requiredCapacity = size + additionalBytes;
+        if (requiredCapacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(requiredCapacity, buffer.length * 2));
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorDeduplicator;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Deduplicates errors by their fingerprint: the type of the exception, and the class and method name of every
+ * tracked scope of the call stack, starting with the method that raised the error. Exception messages are not part of
+ * the fingerprint, they often contain request specific data.
+ * <p>
+ * The first occurrence of a fingerprint is captured. Repetitions within the time to live of the fingerprint are only
+ * counted: every {@code summaryIntervalMs}, and when the fingerprint expires or is evicted, a one line summary with the
+ * number of suppressed repetitions is logged. The summaries are not snapshots, they do not go through the serializer
+ * and the trigger handler, so they do not mix into the format of the captured snapshots. After the time to live
+ * elapses, the next occurrence is captured again, so long running failures still produce fresh snapshots.
+ * <p>
+ * The fingerprints are kept in a bounded cache, split into segments with their own lock and least recently used
+ * eviction, so threads failing with different errors rarely contend. Summaries are logged outside of the locks.
+ */
+public final class FingerprintDeduplicator implements ErrorDeduplicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FingerprintDeduplicator.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public static final long DEFAULT_TIME_TO_LIVE_MS = 5L * 60 * 1000;
+
+    public static final long DEFAULT_SUMMARY_INTERVAL_MS = 60L * 1000;
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final Segment[] segments;
+
+    private final long timeToLiveMs;
+
+    private final long summaryIntervalMs;
+
+    private final StripedCounter suppressedErrors = new StripedCounter();
+
+    private final StripedCounter emittedSummaries = new StripedCounter();
+
+    /**
+     * @param capacity          maximum number of fingerprints kept, the least recently seen ones are evicted first
+     * @param timeToLiveMs      an error is captured again if its fingerprint was first seen longer ago than this
+     * @param summaryIntervalMs minimum time between two summaries of the same fingerprint
+     */
+    public FingerprintDeduplicator(int capacity, long timeToLiveMs, long summaryIntervalMs) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got: " + capacity);
+        }
+        if (timeToLiveMs < 1) {
+            throw new IllegalArgumentException("Time to live must be positive, got: " + timeToLiveMs);
+        }
+        if (summaryIntervalMs < 0) {
+            throw new IllegalArgumentException("Summary interval must not be negative, got: " + summaryIntervalMs);
+        }
+        this.timeToLiveMs = timeToLiveMs;
+        this.summaryIntervalMs = summaryIntervalMs;
+
+        final int segmentCount = Math.min(SEGMENT_COUNT, Integer.highestOneBit(capacity));
+        final int segmentCapacity = (capacity + segmentCount - 1) / segmentCount;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    public FingerprintDeduplicator() {
+        this(DEFAULT_CAPACITY, DEFAULT_TIME_TO_LIVE_MS, DEFAULT_SUMMARY_INTERVAL_MS);
+    }
+
+    @Override
+    public boolean isDuplicate(ErrorTrigger errorTrigger) {
+        final long fingerprint = fingerprint(errorTrigger);
+        final Segment segment = segments[(int) (fingerprint >>> 32) & (segments.length - 1)];
+        final long now = System.currentTimeMillis();
+
+        final boolean isDuplicate;
+        final String summary;
+        final Fingerprint expired;
+        final Fingerprint evicted;
+        synchronized (segment) {
+            Fingerprint entry = segment.get(fingerprint);
+            if (entry != null && now - entry.firstSeenMs >= timeToLiveMs) {
+                segment.remove(fingerprint);
+                expired = entry;
+                entry = null;
+            } else {
+                expired = null;
+            }
+
+            if (entry == null) {
+                segment.put(fingerprint, new Fingerprint(describe(errorTrigger), now));
+                evicted = segment.takeEvicted();
+                isDuplicate = false;
+                summary = null;
+            } else {
+                entry.suppressedCount++;
+                evicted = null;
+                isDuplicate = true;
+                summary = now - entry.lastSummaryMs >= summaryIntervalMs ? entry.takeSummary(now) : null;
+            }
+        }
+
+        if (isDuplicate) {
+            suppressedErrors.increment();
+        }
+        emitSummary(summary);
+        emitSummary(expired == null ? null : expired.takeSummary(now));
+        emitSummary(evicted == null ? null : evicted.takeSummary(now));
+
+        return isDuplicate;
+    }
+
+    /**
+     * @return number of errors that were not captured because their fingerprint was seen recently
+     */
+    public long getSuppressedErrorCount() {
+        return suppressedErrors.sum();
+    }
+
+    /**
+     * @return number of summaries logged about suppressed repetitions
+     */
+    public long getEmittedSummaryCount() {
+        return emittedSummaries.sum();
+    }
+
+    /**
+     * @return number of fingerprints in the cache, including expired ones that were not looked up since they expired
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private void emitSummary(String summary) {
+        if (summary != null) {
+            emittedSummaries.increment();
+            LOG.info(summary);
+        }
+    }
+
+    static String summarize(String description, long suppressedCount, long intervalMs) {
+        return "Snaperr - error '" + description + "' repeated " + suppressedCount + " time(s) in the last "
+                + intervalMs + "ms, snapshots suppressed";
+    }
+
+    static long fingerprint(ErrorTrigger errorTrigger) {
+        long hash = errorTrigger.getThrowable().getClass().getName().hashCode();
+        final Iterator<TrackedScope> scopes = errorTrigger.scopes();
+        while (scopes.hasNext()) {
+            final TrackedScope scope = scopes.next();
+            hash = hash * HASH_MULTIPLIER + className(scope.getSource()).hashCode();
+            hash = hash * HASH_MULTIPLIER + String.valueOf(scope.getMethodName()).hashCode();
+        }
+        // spread the bits, the segment is selected by the upper half
+        hash ^= hash >>> 33;
+        hash *= HASH_MULTIPLIER;
+        return hash ^ (hash >>> 29);
+    }
+
+    static String describe(ErrorTrigger errorTrigger) {
+        final String errorType = errorTrigger.getThrowable().getClass().getName();
+        final Iterator<TrackedScope> scopes = errorTrigger.scopes();
+        if (!scopes.hasNext()) {
+            return errorType;
+        }
+        final TrackedScope raisingScope = scopes.next();
+        return errorType + " in " + className(raisingScope.getSource()) + "." + raisingScope.getMethodName();
+    }
+
+    /**
+     * @return name of the class of the instance, static methods pass their class as the source
+     */
+    private static String className(Object source) {
+        if (source == null) {
+            return "null";
+        }
+        return source instanceof Class ? ((Class<?>) source).getName() : source.getClass().getName();
+    }
+
+    /**
+     * State of a fingerprint, guarded by the lock of its segment until it leaves the cache.
+     */
+    private static final class Fingerprint {
+
+        private final String description;
+
+        private final long firstSeenMs;
+
+        private long lastSummaryMs;
+
+        private long suppressedCount = 0L;
+
+        Fingerprint(String description, long firstSeenMs) {
+            this.description = description;
+            this.firstSeenMs = firstSeenMs;
+            this.lastSummaryMs = firstSeenMs;
+        }
+
+        /**
+         * @return summary of the repetitions suppressed since the last summary, null if there were none
+         */
+        String takeSummary(long now) {
+            if (suppressedCount == 0L) {
+                return null;
+            }
+            final String summary = summarize(description, suppressedCount, now - lastSummaryMs);
+            suppressedCount = 0L;
+            lastSummaryMs = now;
+            return summary;
+        }
+
+    }
+
+    /**
+     * Access ordered map of fingerprints, the least recently used one is evicted when the capacity is exceeded.
+     */
+    private static final class Segment extends LinkedHashMap<Long, Fingerprint> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Fingerprint evicted;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Fingerprint> eldest) {
+            if (size() > capacity) {
+                evicted = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+
+        Fingerprint takeEvicted() {
+            final Fingerprint fingerprint = evicted;
+            evicted = null;
+            return fingerprint;
+        }
+
+    }
+
+}
@@ -0,0 +1,78 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free fixed window admission counter, shared by the throttlers.
+ * <p>
+ * The current window is swapped using CAS once it expires and the admitted triggers are counted with an atomic counter
+ * of the window. Once a window is saturated, rejecting further triggers only reads the shared state, so an error storm
+ * does not make the failing threads contend on it.
+ */
+final class FixedWindowCounter {
+
+    private final long windowLengthMs;
+
+    private final AtomicReference<Window> currentWindow;
+
+    FixedWindowCounter(long windowLengthMs, long nowMs) {
+        this.windowLengthMs = windowLengthMs;
+        this.currentWindow = new AtomicReference<>(new Window(nowMs));
+    }
+
+    /**
+     * @return true if the trigger fits into the limit of the window that covers the given point in time
+     */
+    boolean tryAdmit(long nowMs, int maxTriggersInWindow) {
+        return activeWindow(nowMs).tryAdmit(maxTriggersInWindow);
+    }
+
+    /**
+     * @return true if the window that was last used expired at the given point in time
+     */
+    boolean isExpired(long nowMs) {
+        return nowMs - currentWindow.get().startMs >= windowLengthMs;
+    }
+
+    /**
+     * Returns the window that covers the given point in time. If the current one expired, it is replaced.
+     * In case multiple threads race for the replacement, only one of them wins and the rest uses its window.
+     */
+    private Window activeWindow(long nowMs) {
+        final Window window = currentWindow.get();
+        final long elapsedSinceWindowStartMs = nowMs - window.startMs;
+        if (elapsedSinceWindowStartMs < windowLengthMs) {
+            return window;
+        }
+
+        final Window nextWindow = new Window(nowMs);
+        if (currentWindow.compareAndSet(window, nextWindow)) {
+            return nextWindow;
+        }
+
+        return currentWindow.get();
+    }
+
+    private static final class Window {
+
+        private final long startMs;
+
+        private final AtomicInteger admittedTriggers = new AtomicInteger();
+
+        Window(long startMs) {
+            this.startMs = startMs;
+        }
+
+        boolean tryAdmit(int maxTriggers) {
+            // read before write: a saturated window does not invalidate the cache line of the other threads
+            if (admittedTriggers.get() >= maxTriggers) {
+                return false;
+            }
+
+            return admittedTriggers.incrementAndGet() <= maxTriggers;
+        }
+
+    }
+
+}
@@ -0,0 +1,170 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.api.TrackedValue;
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Serializes the triggers as single line JSON documents:
+ * <pre>
+ * {"type":"error","error":"java.lang.IllegalStateException: ...","scopes":[{"source":"...","method":"...","variables":{"name":"value"}}]}
+ * {"type":"timeout","threshold":1000,"timeout":2500,"scopes":[...]}
+ * </pre>
+ * Scopes are listed from the innermost one, values are rendered with the limits of a {@link ValueRenderer}. Long runs
+ * of recursive calls are shortened by the {@link RecursionCompressor}, the left out scopes are listed as
+ * {@code {"source":"class","method":"...","repeated":N}}. If the call stack was deeper than the tracked depth, the
+ * number of untracked scopes precedes the scopes as {@code "untrackedScopes":N}. If the invocation trees are sampled,
+ * the snapshot tells whether it comes from a sampled tree: {@code "sampling":{"interval":N,"sampled":true}}.
+ * <p>
+ * When used as a {@link StreamingTriggerSerializer}, the document is written through a fixed size, per thread buffer,
+ * so the memory cost of the serializer does not grow with the size of the snapshot. What the target stream keeps is
+ * up to the handler, see {@link OutputStreamTriggerHandler}.
+ */
+final public class JsonSerializer implements StreamingTriggerSerializer {
+
+    private final ThreadLocal<JsonWriter> writers;
+
+    private final ValueRenderer valueRenderer;
+
+    private final RecursionCompressor recursionCompressor;
+
+    public JsonSerializer(final int bufferSize, ValueRenderer valueRenderer, RecursionCompressor recursionCompressor) {
+        // validate eagerly, the writers are only created on first use
+        JsonWriter.checkBufferSize(bufferSize);
+        writers = new ThreadLocal<JsonWriter>() {
+            @Override
+            protected JsonWriter initialValue() {
+                return new JsonWriter(bufferSize);
+            }
+        };
+        this.valueRenderer = Objects.requireNonNull(valueRenderer);
+        this.recursionCompressor = Objects.requireNonNull(recursionCompressor);
+    }
+
+    public JsonSerializer(int bufferSize, ValueRenderer valueRenderer) {
+        this(bufferSize, valueRenderer, RecursionCompressor.DEFAULT);
+    }
+
+    public JsonSerializer(int bufferSize) {
+        this(bufferSize, ValueRenderer.DEFAULT);
+    }
+
+    public JsonSerializer(ValueRenderer valueRenderer, RecursionCompressor recursionCompressor) {
+        this(JsonWriter.DEFAULT_BUFFER_SIZE, valueRenderer, recursionCompressor);
+    }
+
+    public JsonSerializer(ValueRenderer valueRenderer) {
+        this(JsonWriter.DEFAULT_BUFFER_SIZE, valueRenderer);
+    }
+
+    public JsonSerializer() {
+        this(ValueRenderer.DEFAULT);
+    }
+
+    @Override
+    public String serializeTrigger(ErrorTrigger errorTrigger) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            serializeTrigger(errorTrigger, output);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory serialization failed", e);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            serializeTrigger(timeoutTrigger, output);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory serialization failed", e);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void serializeTrigger(ErrorTrigger errorTrigger, OutputStream output) throws IOException {
+        final JsonWriter writer = writers.get().begin(output);
+        try {
+            writer.token("{\"type\":\"error\",\"error\":").string(errorTrigger.getThrowable().toString());
+            writeScopes(errorTrigger.samplingInterval(), errorTrigger.isSampled(), errorTrigger.untrackedDepth(),
+                    errorTrigger.scopes(), writer);
+            writer.token('}');
+        } finally {
+            writer.end();
+        }
+    }
+
+    @Override
+    public void serializeTrigger(TimeoutTrigger timeoutTrigger, OutputStream output) throws IOException {
+        final JsonWriter writer = writers.get().begin(output);
+        try {
+            writer.token("{\"type\":\"timeout\",\"threshold\":").number(timeoutTrigger.getTimeoutThreshold());
+            writer.token(",\"timeout\":").number(timeoutTrigger.getTimeout());
+            final ReferenceTracker referenceTracker = timeoutTrigger.getReferenceTracker();
+            writeScopes(referenceTracker.samplingInterval(), referenceTracker.isSampled(),
+                    referenceTracker.untrackedDepth(), referenceTracker.scopes(), writer);
+            writer.token('}');
+        } finally {
+            writer.end();
+        }
+    }
+
+    private void writeScopes(int samplingInterval, boolean isSampled, int untrackedDepth, Iterator<TrackedScope> scopes,
+                             final JsonWriter writer) throws IOException {
+        if (samplingInterval > 1 || !isSampled) {
+            writer.token(",\"sampling\":{\"interval\":").number(samplingInterval);
+            writer.token(isSampled ? ",\"sampled\":true}" : ",\"sampled\":false}");
+        }
+        if (untrackedDepth > 0) {
+            writer.token(",\"untrackedScopes\":").number(untrackedDepth);
+        }
+        writer.token(",\"scopes\":[");
+        final ValueRenderer.Snapshot values = valueRenderer.newSnapshot();
+        recursionCompressor.walk(scopes, new RecursionCompressor.ScopeVisitor<IOException>() {
+
+            private boolean isFirstScope = true;
+
+            @Override
+            public void scope(TrackedScope scope) throws IOException {
+                writer.token(isFirstScope ? "{\"source\":" : ",{\"source\":").string(String.valueOf(scope.getSource()));
+                writer.token(",\"method\":").string(scope.getMethodName());
+                writer.token(",\"variables\":{");
+
+                boolean isFirstVariable = true;
+                for (Map.Entry<String, TrackedValue> entry : scope.getReferences().entrySet()) {
+                    if (!isFirstVariable) {
+                        writer.token(',');
+                    }
+                    writer.string(entry.getKey()).token(':').string(values.render(entry.getValue().getValue()));
+                    isFirstVariable = false;
+                }
+
+                writer.token("}}");
+                isFirstScope = false;
+            }
+
+            @Override
+            public void repeatedScope(String sourceType, String methodName, int repetitions) throws IOException {
+                writer.token(isFirstScope ? "{\"source\":" : ",{\"source\":").string(sourceType);
+                writer.token(",\"method\":").string(methodName);
+                writer.token(",\"repeated\":").number(repetitions).token('}');
+                isFirstScope = false;
+            }
+        });
+        writer.token(']');
+    }
+
+}
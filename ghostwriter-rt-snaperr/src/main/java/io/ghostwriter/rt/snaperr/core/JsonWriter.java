@@ -0,0 +1,150 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes UTF-8 encoded JSON tokens through a fixed size buffer. The buffer is flushed to the target stream whenever
+ * it fills up, so the memory used does not depend on the size of the written document. Instances are meant to be
+ * reused, see {@link #begin(OutputStream)} and {@link #end()}.
+ */
+final class JsonWriter {
+
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    static final int MIN_BUFFER_SIZE = 8;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] buffer;
+
+    private int position = 0;
+
+    private OutputStream output;
+
+    JsonWriter(int bufferSize) {
+        checkBufferSize(bufferSize);
+        buffer = new byte[bufferSize];
+    }
+
+    static void checkBufferSize(int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE + " bytes, got: " + bufferSize);
+        }
+    }
+
+    JsonWriter begin(OutputStream output) {
+        this.output = output;
+        position = 0;
+        return this;
+    }
+
+    /**
+     * Flushes the buffered content to the target stream and releases it.
+     */
+    void end() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            output = null;
+            position = 0;
+        }
+    }
+
+    /**
+     * @param token JSON punctuation or literal, must only contain ASCII characters
+     */
+    JsonWriter token(String token) throws IOException {
+        for (int i = 0; i < token.length(); i++) {
+            put(token.charAt(i));
+        }
+        return this;
+    }
+
+    JsonWriter token(char token) throws IOException {
+        put(token);
+        return this;
+    }
+
+    JsonWriter number(long value) throws IOException {
+        return token(Long.toString(value));
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string, null is written as the JSON null literal.
+     */
+    JsonWriter string(String value) throws IOException {
+        if (value == null) {
+            return token("null");
+        }
+
+        put('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                put('\\');
+                put(c);
+            } else if (c < 0x20) {
+                escapeControlCharacter(c);
+            } else if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                put(0xC0 | (c >> 6));
+                put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put(0xF0 | (codePoint >> 18));
+                put(0x80 | ((codePoint >> 12) & 0x3F));
+                put(0x80 | ((codePoint >> 6) & 0x3F));
+                put(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, it cannot be encoded as UTF-8
+                put('?');
+            } else {
+                put(0xE0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3F));
+                put(0x80 | (c & 0x3F));
+            }
+        }
+        put('"');
+
+        return this;
+    }
+
+    private void escapeControlCharacter(char c) throws IOException {
+        put('\\');
+        switch (c) {
+            case '\n':
+                put('n');
+                break;
+            case '\r':
+                put('r');
+                break;
+            case '\t':
+                put('t');
+                break;
+            default:
+                put('u');
+                put('0');
+                put('0');
+                put(HEX_DIGITS[c >> 4]);
+                put(HEX_DIGITS[c & 0xF]);
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+}
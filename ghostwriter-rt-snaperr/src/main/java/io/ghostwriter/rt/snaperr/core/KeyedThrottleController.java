@@ -0,0 +1,305 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.Throttler;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed window throttling with an independent budget for each key, so a single noisy failure does not use up the
+ * snapshots of every other error in the process. The key is the exception type, the method that raised the trigger,
+ * or both, see {@link KeyStrategy}. On top of the budget of the keys, at most {@link #maxTriggersInWindow} triggers
+ * are handled in each window in total.
+ * <p>
+ * The buckets of the keys are kept in a lock striped {@link ConcurrentHashMap}, looking up an existing bucket does not
+ * lock and the admission itself is lock-free, see {@link FixedWindowCounter}. The number of buckets is bounded by
+ * {@link #maxKeys}. Once it is reached, buckets with an expired window are evicted, at most once per window. Keys that
+ * still do not fit share a single overflow bucket until room is made for them.
+ * <p>
+ * A trigger that is rejected by the global limit still counts against the budget of its key.
+ * <p>
+ * The method of the key is read from the innermost scope without copying it. Triggers raised in an invocation tree
+ * that was not sampled have no tracked scope, their method is unknown: they share the budget of the untracked method,
+ * together with the other triggers of the same exception type if the type is part of the key.
+ */
+public class KeyedThrottleController implements Throttler {
+
+    public static final long DEFAULT_WINDOW_LENGTH_MS = 1000L;
+
+    public static final int DEFAULT_MAX_TRIGGERS_PER_KEY = 5;
+
+    public static final int DEFAULT_MAX_TRIGGERS_IN_WINDOW = 50;
+
+    public static final int DEFAULT_MAX_KEYS = 1024;
+
+    /**
+     * Determines which triggers share the same budget.
+     */
+    public enum KeyStrategy {
+        /**
+         * Errors of the same exception class share a budget, timeouts share a single one.
+         */
+        EXCEPTION_TYPE,
+        /**
+         * Triggers raised by the same method share a budget, regardless of the exception type.
+         */
+        METHOD,
+        /**
+         * Errors of the same exception class raised by the same method share a budget, timeouts are keyed by method.
+         */
+        EXCEPTION_TYPE_AND_METHOD
+    }
+
+    private final KeyStrategy keyStrategy;
+
+    private final long windowLengthMs;
+
+    private final int maxTriggersPerKey;
+
+    /**
+     * Limit of all the keys together, < 1 means no global limit.
+     */
+    private final int maxTriggersInWindow;
+
+    private final int maxKeys;
+
+    private final ConcurrentMap<Object, FixedWindowCounter> buckets;
+
+    /**
+     * Tracked separately, the size of the map is not cheap to compute while it is being modified.
+     */
+    private final AtomicInteger bucketCount = new AtomicInteger();
+
+    private final AtomicLong nextEvictionMs = new AtomicLong();
+
+    private final FixedWindowCounter overflowBucket;
+
+    private final FixedWindowCounter globalWindow;
+
+    private final StripedCounter throttledTriggers = new StripedCounter();
+
+    /**
+     * @param keyStrategy         determines which triggers share the same budget
+     * @param windowLengthMs      window size in millisec, < 1 means no throttling
+     * @param maxTriggersPerKey   maximum number of triggers of a key in the window to be handled, < 1 means no throttling
+     * @param maxTriggersInWindow maximum number of triggers in the window to be handled in total, < 1 means no limit
+     * @param maxKeys             maximum number of keys that have their own budget
+     */
+    public KeyedThrottleController(KeyStrategy keyStrategy, long windowLengthMs, int maxTriggersPerKey,
+                                   int maxTriggersInWindow, int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Maximum number of keys must be positive, got: " + maxKeys);
+        }
+        this.keyStrategy = Objects.requireNonNull(keyStrategy);
+        this.windowLengthMs = windowLengthMs;
+        this.maxTriggersPerKey = maxTriggersPerKey;
+        this.maxTriggersInWindow = maxTriggersInWindow;
+        this.maxKeys = maxKeys;
+        this.buckets = new ConcurrentHashMap<>(Math.min(maxKeys, 64), 0.75f, 16);
+
+        final long nowMs = currentTimeMillis();
+        this.overflowBucket = new FixedWindowCounter(windowLengthMs, nowMs);
+        this.globalWindow = new FixedWindowCounter(windowLengthMs, nowMs);
+    }
+
+    public KeyedThrottleController(KeyStrategy keyStrategy) {
+        this(keyStrategy, DEFAULT_WINDOW_LENGTH_MS, DEFAULT_MAX_TRIGGERS_PER_KEY, DEFAULT_MAX_TRIGGERS_IN_WINDOW,
+                DEFAULT_MAX_KEYS);
+    }
+
+    @Override
+    public boolean doHandleTimeout(TimeoutTrigger timeoutTrigger) {
+        final Object key;
+        if (keyStrategy == KeyStrategy.EXCEPTION_TYPE) {
+            key = TimeoutTrigger.class;
+        } else {
+            key = MethodKey.of(keyStrategy == KeyStrategy.METHOD ? null : TimeoutTrigger.class,
+                    timeoutTrigger.getReferenceTracker().scopes());
+        }
+
+        return !throttleControl(key);
+    }
+
+    @Override
+    public boolean doHandleError(ErrorTrigger errorTrigger) {
+        final Class<?> errorType = errorTrigger.getThrowable().getClass();
+        final Object key;
+        switch (keyStrategy) {
+            case EXCEPTION_TYPE:
+                key = errorType;
+                break;
+            case METHOD:
+                key = MethodKey.of(null, errorTrigger.scopes());
+                break;
+            default:
+                key = MethodKey.of(errorType, errorTrigger.scopes());
+                break;
+        }
+
+        return !throttleControl(key);
+    }
+
+    /**
+     * @return number of triggers that were not allowed to be handled since the creation of the instance
+     */
+    public long getThrottledTriggerCount() {
+        return throttledTriggers.sum();
+    }
+
+    /**
+     * @return number of keys that currently have their own budget
+     */
+    public int getBucketCount() {
+        return bucketCount.get();
+    }
+
+    /**
+     * @return <li>true - throttling, must not handle the trigger
+     * <li>false - no throttling, handle the trigger now
+     */
+    private boolean throttleControl(Object key) {
+        if (isThrottlingDisabled()) {
+            return false;
+        }
+
+        final long nowMs = currentTimeMillis();
+        final boolean isAdmitted = bucket(key, nowMs).tryAdmit(nowMs, maxTriggersPerKey)
+                && (maxTriggersInWindow < 1 || globalWindow.tryAdmit(nowMs, maxTriggersInWindow));
+        if (!isAdmitted) {
+            throttledTriggers.increment();
+        }
+
+        return !isAdmitted;
+    }
+
+    private FixedWindowCounter bucket(Object key, long nowMs) {
+        final FixedWindowCounter bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (bucketCount.get() >= maxKeys) {
+            evictExpiredBuckets(nowMs);
+            if (bucketCount.get() >= maxKeys) {
+                return overflowBucket;
+            }
+        }
+
+        final FixedWindowCounter newBucket = new FixedWindowCounter(windowLengthMs, nowMs);
+        final FixedWindowCounter existingBucket = buckets.putIfAbsent(key, newBucket);
+        if (existingBucket != null) {
+            return existingBucket;
+        }
+
+        bucketCount.incrementAndGet();
+        return newBucket;
+    }
+
+    /**
+     * Removes the buckets whose window expired. Only one thread scans the map, at most once per window, so an error
+     * storm of new keys does not turn into repeated scans.
+     */
+    private void evictExpiredBuckets(long nowMs) {
+        final long nextEviction = nextEvictionMs.get();
+        if (nowMs < nextEviction || !nextEvictionMs.compareAndSet(nextEviction, nowMs + windowLengthMs)) {
+            return;
+        }
+
+        final Iterator<Map.Entry<Object, FixedWindowCounter>> entries = buckets.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Object, FixedWindowCounter> entry = entries.next();
+            if (entry.getValue().isExpired(nowMs) && buckets.remove(entry.getKey(), entry.getValue())) {
+                bucketCount.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean isThrottlingDisabled() {
+        return windowLengthMs < 1L || maxTriggersPerKey < 1;
+    }
+
+    /**
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Identifies the method that raised a trigger, optionally together with the exception type.
+     */
+    private static final class MethodKey {
+
+        private final Class<?> errorType;
+
+        private final Class<?> sourceType;
+
+        private final String methodName;
+
+        private final int hashCode;
+
+        private MethodKey(Class<?> errorType, Class<?> sourceType, String methodName) {
+            this.errorType = errorType;
+            this.sourceType = sourceType;
+            this.methodName = methodName;
+            int hash = errorType == null ? 0 : errorType.hashCode();
+            hash = 31 * hash + (sourceType == null ? 0 : sourceType.hashCode());
+            this.hashCode = 31 * hash + (methodName == null ? 0 : methodName.hashCode());
+        }
+
+        /**
+         * @param scopes the tracked scopes of the trigger, innermost first
+         */
+        static MethodKey of(Class<?> errorType, Iterator<TrackedScope> scopes) {
+            if (!scopes.hasNext()) {
+                return new MethodKey(errorType, UntrackedMethod.class, null);
+            }
+            // the live scope is only read, not kept, so it does not need to be copied
+            final TrackedScope scope = scopes.next();
+            final Object source = scope.getSource();
+            // static methods pass their class as the source
+            final Class<?> sourceType = source == null || source instanceof Class ? (Class<?>) source : source.getClass();
+            return new MethodKey(errorType, sourceType, scope.getMethodName());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+            final MethodKey other = (MethodKey) o;
+            return hashCode == other.hashCode
+                    && errorType == other.errorType
+                    && sourceType == other.sourceType
+                    && (methodName == null ? other.methodName == null : methodName.equals(other.methodName));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+    /**
+     * Source type of the key of the triggers whose method is not known, because their invocation tree was not sampled.
+     */
+    private static final class UntrackedMethod {
+
+        private UntrackedMethod() {
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, with power of two buckets: bucket i counts the latencies below 2^i and at least
+ * 2^(i-1). Recording is a few atomic updates without allocation, percentiles are reported as the upper bound of their
+ * bucket, so they are at most twice the actual value.
+ * <p>
+ * Meant for the rare events of the tracer, such as serializing and handling a trigger, the updates are not striped.
+ */
+public final class LatencyHistogram {
+
+    private static final int NUMBER_OF_BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        final long latency = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketIndex(latency));
+        count.incrementAndGet();
+        totalNanos.addAndGet(latency);
+
+        long max = maxNanos.get();
+        while (latency > max && !maxNanos.compareAndSet(max, latency)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * The snapshot is not atomic, latencies recorded concurrently might be only partially reflected in it.
+     */
+    public Snapshot snapshot() {
+        final long[] bucketCounts = new long[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            bucketCounts[i] = buckets.get(i);
+        }
+        return new Snapshot(bucketCounts, count.get(), totalNanos.get(), maxNanos.get());
+    }
+
+    private static int bucketIndex(long nanos) {
+        // 0 goes to bucket 0, the longest latencies share the last bucket
+        return Math.min(NUMBER_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    public static final class Snapshot {
+
+        private final long[] bucketCounts;
+
+        private final long count;
+
+        private final long totalNanos;
+
+        private final long maxNanos;
+
+        Snapshot(long[] bucketCounts, long count, long totalNanos, long maxNanos) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0L ? 0L : totalNanos / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket of the percentile, capped by the maximum, 0 if nothing was recorded
+         */
+        public long percentileNanos(double percentile) {
+            if (percentile < 0d || percentile > 100d) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100, got: " + percentile);
+            }
+            long bucketTotal = 0L;
+            for (long bucketCount : bucketCounts) {
+                bucketTotal += bucketCount;
+            }
+            if (bucketTotal == 0L) {
+                return 0L;
+            }
+
+            final long rank = Math.max(1L, (long) Math.ceil(bucketTotal * percentile / 100d));
+            long seen = 0L;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank) {
+                    final long upperBound = i == 0 ? 0L : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1L;
+                    return Math.min(upperBound, maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count: " + count + ", mean: " + getMeanNanos() + "ns, p50: " + percentileNanos(50d) + "ns, p99: "
+                    + percentileNanos(99d) + "ns, max: " + maxNanos + "ns";
+        }
+
+    }
+
+}
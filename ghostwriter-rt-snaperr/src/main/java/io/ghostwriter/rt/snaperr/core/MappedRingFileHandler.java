@@ -0,0 +1,362 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.BinaryTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends the serialized triggers to a fixed size, memory mapped ring file. When the ring is full, the oldest records
+ * are overwritten.
+ * <p>
+ * The records are written into the page cache of the operating system, so they survive the crash of the JVM right
+ * after the error, without the cost of an explicit sync. Surviving the crash of the machine needs {@link #close()},
+ * which forces the content to the storage device.
+ * <p>
+ * Writers do not lock: each of them reserves the region of its record with a CAS on the shared write position, then
+ * copies the record into the mapping independently of the others. Every record is length prefixed and checksummed,
+ * see {@link RingFileFormat}, so the intact records can be recovered from the file even if a write was torn by a crash.
+ * Use {@link MappedRingFileReader} to read the file. Opening an existing ring file continues after its newest record.
+ * <p>
+ * Streaming serializers write into a per thread buffer, which is copied into the ring as a whole. The buffer accepts
+ * at most the largest payload that fits into the ring, the serializer is stopped as soon as the snapshot outgrows it.
+ * A buffer grown beyond {@link #MAX_RETAINED_RECORD_BUFFER_SIZE} is released after the record is appended. Binary
+ * records, either streamed or passed as bytes, are stored as they are. The String based triggers are stored UTF-8
+ * encoded. Triggers larger than the ring are dropped.
+ */
+final public class MappedRingFileHandler implements StreamingTriggerHandler, BinaryTriggerHandler, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedRingFileHandler.class);
+
+    public static final int DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+
+    public static final int MIN_FILE_SIZE = 4096;
+
+    /**
+     * Record buffers grown beyond this size are released after the append, so a single huge snapshot does not pin
+     * memory for the lifetime of the thread.
+     */
+    static final int MAX_RETAINED_RECORD_BUFFER_SIZE = 1024 * 1024;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final MappedByteBuffer mapping;
+
+    private final ByteBuffer data;
+
+    private final int capacity;
+
+    /**
+     * Largest payload whose record fits into the ring.
+     */
+    private final int maxPayloadSize;
+
+    /**
+     * Logical position of the next record, its offset in the ring is position % capacity.
+     */
+    private final AtomicLong writePosition;
+
+    private final StripedCounter writtenTriggers = new StripedCounter();
+
+    private final StripedCounter droppedTriggers = new StripedCounter();
+
+    /**
+     * Writers position the buffer while copying the payload, so every thread uses its own view of the mapping.
+     */
+    private final ThreadLocal<ByteBuffer> dataViews = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return data.duplicate();
+        }
+    };
+
+    private final ThreadLocal<RingFileFormat.Checksum> checksums = new ThreadLocal<RingFileFormat.Checksum>() {
+        @Override
+        protected RingFileFormat.Checksum initialValue() {
+            return new RingFileFormat.Checksum();
+        }
+    };
+
+    private final ThreadLocal<RecordBuffer> recordBuffers = new ThreadLocal<RecordBuffer>() {
+        @Override
+        protected RecordBuffer initialValue() {
+            return new RecordBuffer(maxPayloadSize);
+        }
+    };
+
+    public MappedRingFileHandler(File file) throws IOException {
+        this(file, DEFAULT_FILE_SIZE);
+    }
+
+    /**
+     * @param file     ring file, created if it does not exist, an existing file of different size is reinitialized
+     * @param fileSize size of the ring file in bytes, including the file header
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedRingFileHandler(File file, int fileSize) throws IOException {
+        this.file = Objects.requireNonNull(file, "Must provide a valid ring file!");
+        if (fileSize < MIN_FILE_SIZE) {
+            throw new IllegalArgumentException("Ring file size must be at least " + MIN_FILE_SIZE + " bytes, got: " + fileSize);
+        }
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            final boolean isExisting = randomAccessFile.length() == fileSize;
+            if (!isExisting) {
+                // drop the content of a ring with different geometry, stale records could pass as valid ones
+                randomAccessFile.setLength(0);
+                randomAccessFile.setLength(fileSize);
+            }
+            mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            capacity = RingFileFormat.capacity(fileSize);
+            maxPayloadSize = capacity - RingFileFormat.RECORD_HEADER_SIZE;
+            data = slice(mapping, capacity);
+            writePosition = new AtomicLong(isExisting ? recover() : initialize());
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onError(ErrorTrigger errorTrigger, StreamingTriggerSerializer serializer) {
+        final RecordBuffer recordBuffer = recordBuffers.get();
+        recordBuffer.reset();
+        try {
+            serializer.serializeTrigger(errorTrigger, recordBuffer);
+            append(RingFileFormat.TYPE_ERROR, recordBuffer.buffer(), recordBuffer.size());
+        } catch (RecordTooLargeException e) {
+            droppedTriggers.increment();
+        } catch (IOException e) {
+            LOG.error("Failed to serialize error trigger", e);
+        } finally {
+            releaseOversized(recordBuffer);
+        }
+    }
+
+    @Override
+    public void onTimeout(TimeoutTrigger timeoutTrigger, StreamingTriggerSerializer serializer) {
+        final RecordBuffer recordBuffer = recordBuffers.get();
+        recordBuffer.reset();
+        try {
+            serializer.serializeTrigger(timeoutTrigger, recordBuffer);
+            append(RingFileFormat.TYPE_TIMEOUT, recordBuffer.buffer(), recordBuffer.size());
+        } catch (RecordTooLargeException e) {
+            droppedTriggers.increment();
+        } catch (IOException e) {
+            LOG.error("Failed to serialize timeout trigger", e);
+        } finally {
+            releaseOversized(recordBuffer);
+        }
+    }
+
+    @Override
+    public void onError(String serializedError) {
+        append(RingFileFormat.TYPE_ERROR, serializedError);
+    }
+
+    @Override
+    public void onTimeout(String serializedTimeout) {
+        append(RingFileFormat.TYPE_TIMEOUT, serializedTimeout);
+    }
+
+    @Override
+    public void onError(byte[] serializedError) {
+        append(RingFileFormat.TYPE_ERROR, serializedError, serializedError.length);
+    }
+
+    @Override
+    public void onTimeout(byte[] serializedTimeout) {
+        append(RingFileFormat.TYPE_TIMEOUT, serializedTimeout, serializedTimeout.length);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getWrittenTriggerCount() {
+        return writtenTriggers.sum();
+    }
+
+    /**
+     * @return number of triggers that did not fit into the ring
+     */
+    public long getDroppedTriggerCount() {
+        return droppedTriggers.sum();
+    }
+
+    /**
+     * Forces the content of the ring to the storage device and closes the file. Writes after closing are undefined,
+     * callers have to make sure that no triggers are raised concurrently.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mapping.force();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void append(int type, String serializedTrigger) {
+        final byte[] payload = serializedTrigger.getBytes(StandardCharsets.UTF_8);
+        append(type, payload, payload.length);
+    }
+
+    private void append(int type, byte[] payload, int length) {
+        final int recordSize = RingFileFormat.recordSize(length);
+        if (recordSize > capacity) {
+            droppedTriggers.increment();
+            return;
+        }
+
+        long position;
+        long sequence;
+        do {
+            position = writePosition.get();
+            final int remaining = capacity - (int) (position % capacity);
+            // records are never split, if it does not fit the rest of the lap is left unused
+            sequence = remaining < recordSize ? position + remaining : position;
+        } while (!writePosition.compareAndSet(position, sequence + recordSize));
+
+        RingFileFormat.writeRecord(dataViews.get(), (int) (sequence % capacity), sequence, type, payload, length,
+                checksums.get());
+        writtenTriggers.increment();
+    }
+
+    private void releaseOversized(RecordBuffer recordBuffer) {
+        if (recordBuffer.capacity() > MAX_RETAINED_RECORD_BUFFER_SIZE) {
+            recordBuffers.remove();
+        }
+    }
+
+    /**
+     * @return capacity of the record buffer the current thread keeps between snapshots
+     */
+    int retainedRecordBufferSize() {
+        return recordBuffers.get().capacity();
+    }
+
+    private long initialize() {
+        RingFileFormat.writeFileHeader(mapping, capacity);
+        return 0L;
+    }
+
+    /**
+     * @return write position after the newest intact record of the ring
+     */
+    private long recover() throws IOException {
+        if (RingFileFormat.readFileHeader(mapping) != capacity) {
+            throw new IOException("Ring file capacity does not match its size: " + file);
+        }
+
+        final List<MappedRingFileReader.Record> records = RingFileFormat.scan(data.duplicate(), capacity);
+        if (records.isEmpty()) {
+            return 0L;
+        }
+
+        final MappedRingFileReader.Record newest = records.get(records.size() - 1);
+        LOG.info("Recovered " + records.size() + " snapshot(s) from ring file " + file);
+        return newest.getSequence() + RingFileFormat.recordSize(newest.getPayload().length);
+    }
+
+    static ByteBuffer slice(ByteBuffer file, int capacity) {
+        final ByteBuffer view = file.duplicate();
+        view.position(RingFileFormat.FILE_HEADER_SIZE);
+        view.limit(RingFileFormat.FILE_HEADER_SIZE + capacity);
+        return view.slice();
+    }
+
+    /**
+     * Growable buffer of the streaming serializers, exposes its array to avoid copying it. Writes beyond the largest
+     * payload of the ring fail, so a snapshot that cannot be stored is not rendered any further.
+     */
+    private static final class RecordBuffer extends OutputStream {
+
+        private static final int INITIAL_SIZE = 256;
+
+        private final int maxSize;
+
+        private byte[] buffer;
+
+        private int size = 0;
+
+        RecordBuffer(int maxSize) {
+            this.maxSize = maxSize;
+            this.buffer = new byte[Math.min(INITIAL_SIZE, maxSize)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        private void ensureCapacity(int length) throws RecordTooLargeException {
+            if (length > maxSize - size) {
+                throw new RecordTooLargeException(maxSize);
+            }
+            if (size + length > buffer.length) {
+                final int grownSize = (int) Math.min(Math.max(2L * buffer.length, size + length), maxSize);
+                buffer = Arrays.copyOf(buffer, grownSize);
+            }
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return buffer.length;
+        }
+
+    }
+
+    /**
+     * Stops the serializer of a snapshot that does not fit into the ring.
+     */
+    private static final class RecordTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RecordTooLargeException(int maxSize) {
+            super("Snapshot does not fit into the ring, the largest record payload is " + maxSize + " bytes");
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Recovers the intact records of a ring file written by {@link MappedRingFileHandler}. The file is mapped read-only,
+ * so it can be read while the application is still writing it, or after the application crashed.
+ * <p>
+ * It can also be used as a command line tool, it dumps the snapshots of the ring, oldest first. With the
+ * {@code --follow} flag it keeps polling the ring and prints the new snapshots as they are written:
+ * <pre>
+ * java -cp ghostwriter-rt-snaperr.jar io.ghostwriter.rt.snaperr.core.MappedRingFileReader [--follow] snapshots.ring
+ * </pre>
+ * Snapshots of the {@link BinarySerializer} are decoded to the text format.
+ */
+final public class MappedRingFileReader implements Closeable {
+
+    private static final long FOLLOW_POLL_INTERVAL_MS = 1000L;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final ByteBuffer data;
+
+    private final int capacity;
+
+    public MappedRingFileReader(File file) throws IOException {
+        Objects.requireNonNull(file, "Must provide a valid ring file!");
+        randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            capacity = RingFileFormat.readFileHeader(mapping);
+            data = MappedRingFileHandler.slice(mapping, capacity);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return every intact record of the ring, oldest first
+     */
+    public List<Record> readRecords() {
+        return RingFileFormat.scan(data.duplicate(), capacity);
+    }
+
+    /**
+     * @param sequence sequence of the last record already seen
+     * @return the intact records written after the given one, oldest first
+     */
+    public List<Record> readRecordsAfter(long sequence) {
+        final List<Record> records = readRecords();
+        int i = 0;
+        while (i < records.size() && records.get(i).getSequence() <= sequence) {
+            i++;
+        }
+        return records.subList(i, records.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final boolean isFollowing = args.length == 2 && "--follow".equals(args[0]);
+        if (args.length != 1 && !isFollowing) {
+            System.err.println("Usage: " + MappedRingFileReader.class.getName() + " [--follow] <ring file>");
+            System.exit(1);
+        }
+
+        try (MappedRingFileReader reader = new MappedRingFileReader(new File(args[args.length - 1]))) {
+            long lastSequence = -1L;
+            do {
+                for (Record record : reader.readRecordsAfter(lastSequence)) {
+                    System.out.println(record.render());
+                    lastSequence = record.getSequence();
+                }
+                if (isFollowing) {
+                    Thread.sleep(FOLLOW_POLL_INTERVAL_MS);
+                }
+            } while (isFollowing);
+        }
+    }
+
+    /**
+     * A recovered trigger.
+     */
+    public static final class Record {
+
+        private final long sequence;
+
+        private final SerializedTrigger.Type type;
+
+        private final byte[] payload;
+
+        Record(long sequence, SerializedTrigger.Type type, byte[] payload) {
+            this.sequence = sequence;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * @return logical write position of the record, records written later have higher sequences
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public SerializedTrigger.Type getType() {
+            return type;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return the snapshot in the text format if it was written by the {@link BinarySerializer}, otherwise the
+         * UTF-8 decoded payload
+         */
+        public String render() {
+            final byte[] magic = BinarySerializer.MAGIC;
+            if (payload.length >= magic.length && Arrays.equals(magic, Arrays.copyOf(payload, magic.length))) {
+                try {
+                    return BinaryTriggerDecoder.decode(payload);
+                } catch (IOException e) {
+                    // not a binary snapshot after all, render it as text
+                }
+            }
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Writes every trigger to the given stream, followed by a line separator, and flushes it.
+ * Streaming serializers write the snapshot into a buffer of the raising thread, which is reused for the next snapshot,
+ * so rendering does not allocate once the buffer fits the snapshot. A buffer grown beyond
+ * {@link #MAX_RETAINED_RECORD_BUFFER_SIZE} by a large snapshot is released after the write, so every thread keeps at
+ * most that much.
+ * <p>
+ * The snapshot is rendered before the stream is locked, the lock is only held while the rendered bytes are copied into
+ * the stream. Writes are serialized on the stream, triggers raised by different threads are not interleaved.
+ * A failing stream does not propagate to the application, the error is logged and the trigger is lost. The line
+ * separator is written even after a failed write, so the next trigger does not continue a torn one.
+ */
+final public class OutputStreamTriggerHandler implements StreamingTriggerHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutputStreamTriggerHandler.class);
+
+    /**
+     * Record buffers grown beyond this size are released after the write, so a single huge snapshot does not pin memory
+     * for the lifetime of the thread.
+     */
+    static final int MAX_RETAINED_RECORD_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final OutputStream output;
+
+    private final ThreadLocal<RecordBuffer> recordBuffers = new ThreadLocal<RecordBuffer>() {
+        @Override
+        protected RecordBuffer initialValue() {
+            return new RecordBuffer();
+        }
+    };
+
+    public OutputStreamTriggerHandler(OutputStream output) {
+        this.output = Objects.requireNonNull(output, "Must provide a valid output stream!");
+    }
+
+    @Override
+    public void onError(ErrorTrigger errorTrigger, StreamingTriggerSerializer serializer) {
+        final RecordBuffer recordBuffer = recordBuffers.get();
+        recordBuffer.reset();
+        try {
+            serializer.serializeTrigger(errorTrigger, recordBuffer);
+            write(recordBuffer.buffer(), recordBuffer.size());
+        } catch (IOException e) {
+            LOG.error("Failed to serialize error trigger", e);
+        } finally {
+            releaseOversized(recordBuffer);
+        }
+    }
+
+    @Override
+    public void onTimeout(TimeoutTrigger timeoutTrigger, StreamingTriggerSerializer serializer) {
+        final RecordBuffer recordBuffer = recordBuffers.get();
+        recordBuffer.reset();
+        try {
+            serializer.serializeTrigger(timeoutTrigger, recordBuffer);
+            write(recordBuffer.buffer(), recordBuffer.size());
+        } catch (IOException e) {
+            LOG.error("Failed to serialize timeout trigger", e);
+        } finally {
+            releaseOversized(recordBuffer);
+        }
+    }
+
+    @Override
+    public void onError(String serializedError) {
+        write(serializedError);
+    }
+
+    @Override
+    public void onTimeout(String serializedTimeout) {
+        write(serializedTimeout);
+    }
+
+    private void write(String serializedTrigger) {
+        final byte[] payload = serializedTrigger.getBytes(StandardCharsets.UTF_8);
+        write(payload, payload.length);
+    }
+
+    private void write(byte[] payload, int length) {
+        synchronized (output) {
+            try {
+                output.write(payload, 0, length);
+            } catch (IOException e) {
+                LOG.error("Failed to write trigger", e);
+            } finally {
+                endTrigger();
+            }
+        }
+    }
+
+    private void releaseOversized(RecordBuffer recordBuffer) {
+        if (recordBuffer.capacity() > MAX_RETAINED_RECORD_BUFFER_SIZE) {
+            recordBuffers.remove();
+        }
+    }
+
+    /**
+     * @return capacity of the record buffer the current thread keeps between snapshots
+     */
+    int retainedRecordBufferSize() {
+        return recordBuffers.get().capacity();
+    }
+
+    private void endTrigger() {
+        try {
+            output.write(LINE_SEPARATOR);
+            output.flush();
+        } catch (IOException e) {
+            LOG.error("Failed to end trigger", e);
+        }
+    }
+
+    /**
+     * Growable buffer of the streaming serializers, exposes its array to avoid copying it.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+    }
+
+}
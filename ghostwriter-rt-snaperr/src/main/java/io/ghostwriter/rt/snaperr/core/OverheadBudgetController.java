@@ -0,0 +1,298 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the CPU time spent by the tracer within a share of the CPU time of the process.
+ * <p>
+ * The tracer reports the time of a sampled subset of its entering, valueChange and exiting events, about 1 in
+ * {@link #sampleInterval} of them, and the time of every trigger it handles. At the end of each window the estimated
+ * time of the tracer is compared against the CPU time the process used in the window. When it is over the budget, the
+ * tracking is degraded by one {@link Level}, when it stays below half of the budget for {@link #RECOVERY_WINDOWS}
+ * windows, it is restored by one level. The window is evaluated by the first thread that reports a time after its end.
+ * <p>
+ * The events are counted per thread stripe with plain writes: the counters only decide which events are timed, a lost
+ * update just shifts the sample. The sampling and the forced off states are applied through the sampling of a
+ * {@link StackBasedReferenceTracker}, decided at the start of each invocation tree, so the scopes stay balanced.
+ * With another tracker only the value tracking is degraded.
+ */
+public class OverheadBudgetController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OverheadBudgetController.class);
+
+    public static final long DEFAULT_WINDOW_LENGTH_MS = 1000L;
+
+    /**
+     * Power of two, so the sampling check is a mask.
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 1024;
+
+    /**
+     * 1 in this many invocation trees is tracked at {@link Level#SAMPLED}, unless the tracker samples less already.
+     */
+    public static final int DEGRADED_SAMPLING_INTERVAL = 100;
+
+    /**
+     * Consecutive windows below half of the budget needed to restore one level.
+     */
+    static final int RECOVERY_WINDOWS = 3;
+
+    /**
+     * Degradation steps, from the full tracking to none.
+     */
+    public enum Level {
+        /**
+         * Everything is tracked.
+         */
+        FULL,
+        /**
+         * Scopes are tracked, the values of the variables and parameters are not.
+         */
+        NO_VALUES,
+        /**
+         * Only 1 in {@link #DEGRADED_SAMPLING_INTERVAL} invocation trees is tracked, without values.
+         */
+        SAMPLED,
+        /**
+         * New invocation trees are not tracked at all, their events only maintain a depth counter.
+         */
+        OFF
+    }
+
+    private static final int NUMBER_OF_STRIPES = stripeCount();
+
+    /**
+     * Distance between two used cells of {@link #eventCounts}, 8 longs fill a typical 64 byte cache line.
+     */
+    private static final int CELL_PADDING = 8;
+
+    private final double budgetShare;
+
+    private final long windowLengthMs;
+
+    private final int sampleMask;
+
+    private final StackBasedReferenceTracker referenceTracker;
+
+    private final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+
+    private final long[] eventCounts = new long[NUMBER_OF_STRIPES * CELL_PADDING];
+
+    private final StripedCounter sampledEventNanos = new StripedCounter();
+
+    private final StripedCounter triggerNanos = new StripedCounter();
+
+    private final AtomicLong windowEndMs;
+
+    private volatile Level level = Level.FULL;
+
+    /*
+     * Guarded by this, only the evaluating thread reads and writes them.
+     */
+
+    private long windowStartCpuNanos;
+
+    private int windowsBelowRecoveryThreshold = 0;
+
+    /**
+     * Sampling interval of the tracker before it was degraded, 0 while it is not degraded.
+     */
+    private int configuredSamplingInterval = 0;
+
+    private volatile double lastOverheadShare = 0d;
+
+    /**
+     * @param budgetPercent    share of the CPU time of the process the tracer may use, in percent
+     * @param windowLengthMs   length of the measurement window
+     * @param sampleInterval   1 in this many events is timed, rounded up to a power of two
+     * @param referenceTracker the tracker of the tracer, sampling is only degraded if it is a
+     *                         {@link StackBasedReferenceTracker}
+     */
+    public OverheadBudgetController(double budgetPercent, long windowLengthMs, int sampleInterval,
+                                    ReferenceTracker referenceTracker) {
+        if (!(budgetPercent > 0d && budgetPercent <= 100d) || windowLengthMs < 1L || sampleInterval < 1) {
+            throw new IllegalArgumentException("Invalid overhead budget: " + budgetPercent + "%, window: "
+                    + windowLengthMs + "ms, sample interval: " + sampleInterval);
+        }
+        this.budgetShare = budgetPercent / 100d;
+        this.windowLengthMs = windowLengthMs;
+        this.sampleMask = Integer.highestOneBit(Math.max(1, sampleInterval * 2 - 1)) - 1;
+        this.referenceTracker = referenceTracker instanceof StackBasedReferenceTracker
+                ? (StackBasedReferenceTracker) referenceTracker
+                : null;
+
+        final long nowMs = currentTimeMillis();
+        windowStartCpuNanos = processCpuTimeNanos(nowMs);
+        windowEndMs = new AtomicLong(nowMs + windowLengthMs);
+    }
+
+    public OverheadBudgetController(double budgetPercent, ReferenceTracker referenceTracker) {
+        this(budgetPercent, DEFAULT_WINDOW_LENGTH_MS, DEFAULT_SAMPLE_INTERVAL, referenceTracker);
+    }
+
+    /**
+     * Called before every event, on the thread of the event.
+     *
+     * @return true if the event should be timed and reported with {@link #recordSampledEvent(long)}
+     */
+    public boolean isSampledEvent() {
+        final int cell = cellIndex();
+        return (++eventCounts[cell] & sampleMask) == 0L;
+    }
+
+    /**
+     * @param nanos time of a sampled event, it stands for {@link #sampleInterval()} events
+     */
+    public void recordSampledEvent(long nanos) {
+        sampledEventNanos.add(Math.max(0L, nanos));
+        evaluateIfWindowEnded();
+    }
+
+    /**
+     * @param nanos time of handling a trigger, every trigger is reported
+     */
+    public void recordTrigger(long nanos) {
+        triggerNanos.add(Math.max(0L, nanos));
+        evaluateIfWindowEnded();
+    }
+
+    /**
+     * @return false if the values of the variables should not be tracked
+     */
+    public boolean isValueTrackingEnabled() {
+        return level == Level.FULL;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return 1 in this many events is timed
+     */
+    public int sampleInterval() {
+        return sampleMask + 1;
+    }
+
+    /**
+     * @return estimated share of the CPU time of the process used by the tracer in the last evaluated window
+     */
+    public double getLastOverheadShare() {
+        return lastOverheadShare;
+    }
+
+    public double getBudgetShare() {
+        return budgetShare;
+    }
+
+    private void evaluateIfWindowEnded() {
+        final long nowMs = currentTimeMillis();
+        final long windowEnd = windowEndMs.get();
+        if (nowMs < windowEnd || !windowEndMs.compareAndSet(windowEnd, nowMs + windowLengthMs)) {
+            return;
+        }
+        evaluate(nowMs);
+    }
+
+    private synchronized void evaluate(long nowMs) {
+        final long cpuNanos = processCpuTimeNanos(nowMs);
+        final long windowCpuNanos = cpuNanos - windowStartCpuNanos;
+        windowStartCpuNanos = cpuNanos;
+
+        final long tracerNanos = sampledEventNanos.sum() * sampleInterval() + triggerNanos.sum();
+        sampledEventNanos.reset();
+        triggerNanos.reset();
+        if (windowCpuNanos <= 0L) {
+            return;
+        }
+
+        final double overheadShare = (double) tracerNanos / windowCpuNanos;
+        lastOverheadShare = overheadShare;
+        if (overheadShare > budgetShare) {
+            windowsBelowRecoveryThreshold = 0;
+            if (level != Level.OFF) {
+                changeLevel(Level.values()[level.ordinal() + 1], overheadShare);
+            }
+        } else if (overheadShare < budgetShare / 2d && level != Level.FULL) {
+            if (++windowsBelowRecoveryThreshold >= RECOVERY_WINDOWS) {
+                windowsBelowRecoveryThreshold = 0;
+                changeLevel(Level.values()[level.ordinal() - 1], overheadShare);
+            }
+        } else {
+            windowsBelowRecoveryThreshold = 0;
+        }
+    }
+
+    private void changeLevel(Level newLevel, double overheadShare) {
+        LOG.info("Snaperr tracking changes to " + newLevel + ", overhead: "
+                + String.format("%.2f%%", overheadShare * 100d) + ", budget: "
+                + String.format("%.2f%%", budgetShare * 100d));
+        if (referenceTracker != null) {
+            if (newLevel.compareTo(Level.SAMPLED) >= 0 && configuredSamplingInterval == 0) {
+                configuredSamplingInterval = referenceTracker.samplingInterval();
+            }
+            switch (newLevel) {
+                case OFF:
+                    referenceTracker.setSamplingInterval(Integer.MAX_VALUE);
+                    break;
+                case SAMPLED:
+                    referenceTracker.setSamplingInterval(Math.max(configuredSamplingInterval, DEGRADED_SAMPLING_INTERVAL));
+                    break;
+                default:
+                    if (configuredSamplingInterval != 0) {
+                        referenceTracker.setSamplingInterval(configuredSamplingInterval);
+                        configuredSamplingInterval = 0;
+                    }
+                    break;
+            }
+        }
+        level = newLevel;
+    }
+
+    /**
+     * @param nowMs current time, used if the JVM does not report the CPU time of the process
+     * @return CPU time used by the process so far, or the elapsed time multiplied by the number of processors if it is
+     * not available, the most CPU time the process could have used
+     */
+    protected long processCpuTimeNanos(long nowMs) {
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            final long cpuNanos = ((com.sun.management.OperatingSystemMXBean) operatingSystem).getProcessCpuTime();
+            if (cpuNanos >= 0L) {
+                return cpuNanos;
+            }
+        }
+        return nowMs * 1000L * 1000L * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static int cellIndex() {
+        final long threadId = Thread.currentThread().getId();
+        // spread sequential thread ids over the stripes, the same way as StripedCounter
+        final int hash = (int) (threadId * 0x9E3779B9L);
+        final int stripe = (hash ^ (hash >>> 16)) & (NUMBER_OF_STRIPES - 1);
+        return stripe * CELL_PADDING;
+    }
+
+    private static int stripeCount() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+}
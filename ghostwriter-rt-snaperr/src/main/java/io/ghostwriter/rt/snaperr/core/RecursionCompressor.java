@@ -0,0 +1,124 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+
+import java.util.Iterator;
+
+/**
+ * Run-length compression of recursive calls in a snapshot. Consecutive scopes of the same method of the same class
+ * form a run. Of a run longer than twice {@link #keptFrames}, only the first and the last {@link #keptFrames} scopes
+ * are passed on in full, the ones in between are reported as a single repetition with their count.
+ * <p>
+ * The scopes are read once, in the order of the iterator. Only the scopes at the end of the current run are held
+ * back, so the memory cost is bounded by {@link #keptFrames} regardless of the depth of the recursion.
+ */
+public final class RecursionCompressor {
+
+    public static final int DEFAULT_KEPT_FRAMES = 3;
+
+    public static final RecursionCompressor DEFAULT = new RecursionCompressor(DEFAULT_KEPT_FRAMES);
+
+    /**
+     * Receives the scopes of a snapshot after the compression.
+     *
+     * @param <E> exception thrown by the visitor, serializers writing into a stream fail with an IOException
+     */
+    public interface ScopeVisitor<E extends Exception> {
+
+        void scope(TrackedScope scope) throws E;
+
+        /**
+         * @param sourceType  name of the class the repeated method belongs to
+         * @param methodName  the repeated method
+         * @param repetitions number of scopes that were left out
+         */
+        void repeatedScope(String sourceType, String methodName, int repetitions) throws E;
+
+    }
+
+    private final int keptFrames;
+
+    /**
+     * @param keptFrames number of scopes kept in full at both ends of a run of recursive calls
+     */
+    public RecursionCompressor(int keptFrames) {
+        if (keptFrames < 1) {
+            throw new IllegalArgumentException("Number of kept frames must be positive, got: " + keptFrames);
+        }
+        this.keptFrames = keptFrames;
+    }
+
+    public <E extends Exception> void walk(Iterator<TrackedScope> scopes, ScopeVisitor<E> visitor) throws E {
+        // ring buffer of the last scopes of the current run, only allocated for long runs
+        TrackedScope[] tail = null;
+        int tailStart = 0;
+        int tailSize = 0;
+        int skipped = 0;
+
+        Class<?> runType = null;
+        String runMethod = null;
+        int runLength = 0;
+
+        while (scopes.hasNext()) {
+            final TrackedScope scope = scopes.next();
+            final Class<?> sourceType = sourceType(scope.getSource());
+            final String methodName = scope.getMethodName();
+
+            if (runLength > 0 && sourceType == runType && equals(methodName, runMethod)) {
+                runLength++;
+                if (runLength <= keptFrames) {
+                    visitor.scope(scope);
+                } else if (tailSize < keptFrames) {
+                    if (tail == null) {
+                        tail = new TrackedScope[keptFrames];
+                    }
+                    tail[(tailStart + tailSize) % keptFrames] = scope;
+                    tailSize++;
+                } else {
+                    // the oldest scope of the tail moves to the middle of the run
+                    tail[tailStart] = scope;
+                    tailStart = (tailStart + 1) % keptFrames;
+                    skipped++;
+                }
+                continue;
+            }
+
+            flushRun(runType, runMethod, tail, tailStart, tailSize, skipped, visitor);
+            tailStart = 0;
+            tailSize = 0;
+            skipped = 0;
+
+            runType = sourceType;
+            runMethod = methodName;
+            runLength = 1;
+            visitor.scope(scope);
+        }
+
+        flushRun(runType, runMethod, tail, tailStart, tailSize, skipped, visitor);
+    }
+
+    private <E extends Exception> void flushRun(Class<?> runType, String runMethod, TrackedScope[] tail, int tailStart,
+                                                int tailSize, int skipped, ScopeVisitor<E> visitor) throws E {
+        if (skipped > 0) {
+            visitor.repeatedScope(runType == null ? "null" : runType.getName(), runMethod, skipped);
+        }
+        for (int i = 0; i < tailSize; i++) {
+            visitor.scope(tail[(tailStart + i) % keptFrames]);
+        }
+    }
+
+    /**
+     * @return class of the source, static methods pass their class as the source
+     */
+    private static Class<?> sourceType(Object source) {
+        if (source == null) {
+            return null;
+        }
+        return source instanceof Class ? (Class<?>) source : source.getClass();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
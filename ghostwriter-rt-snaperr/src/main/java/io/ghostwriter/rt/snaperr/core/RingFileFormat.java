@@ -0,0 +1,191 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the ring file shared by {@link MappedRingFileHandler} and {@link MappedRingFileReader}.
+ * <p>
+ * The file starts with a {@value #FILE_HEADER_SIZE} byte header: magic, version and the capacity of the data region
+ * that follows it. The data region is a ring of records, each aligned to {@value #ALIGNMENT} bytes:
+ * <pre>
+ * int length | int crc32 | long sequence | int type | int reserved | payload (length bytes) | padding
+ * </pre>
+ * The sequence is the logical, ever increasing write position of the record, so the offset of a record in the ring is
+ * always {@code sequence % capacity}. The checksum covers the sequence, the type and the payload.
+ * <p>
+ * There is no index, the records are recovered by scanning the ring: a record is intact if its sequence matches its
+ * offset and its checksum matches its content. Torn writes, records partially overwritten by a later lap and the
+ * unused tail of the ring are skipped.
+ */
+final class RingFileFormat {
+
+    static final int MAGIC = 0x47575246; // GWRF
+
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 64;
+
+    static final int RECORD_HEADER_SIZE = 24;
+
+    static final int ALIGNMENT = 8;
+
+    static final int TYPE_ERROR = 1;
+
+    static final int TYPE_TIMEOUT = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int LENGTH_OFFSET = 0;
+    private static final int CRC_OFFSET = 4;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int TYPE_OFFSET = 16;
+    private static final int RESERVED_OFFSET = 20;
+
+    private RingFileFormat() {
+        throw new UnsupportedOperationException("class is not designed for instantiation");
+    }
+
+    static int recordSize(int payloadLength) {
+        final int size = RECORD_HEADER_SIZE + payloadLength;
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    static int capacity(int fileSize) {
+        return (fileSize - FILE_HEADER_SIZE) & -ALIGNMENT;
+    }
+
+    static void writeFileHeader(ByteBuffer file, int capacity) {
+        file.putInt(MAGIC_OFFSET, MAGIC);
+        file.putInt(VERSION_OFFSET, VERSION);
+        file.putInt(CAPACITY_OFFSET, capacity);
+    }
+
+    /**
+     * @return capacity of the data region
+     * @throws IOException if the header is not a valid ring file header
+     */
+    static int readFileHeader(ByteBuffer file) throws IOException {
+        if (file.capacity() < FILE_HEADER_SIZE || file.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("Not a Snaperr ring file");
+        }
+        final int version = file.getInt(VERSION_OFFSET);
+        if (version != VERSION) {
+            throw new IOException("Unsupported ring file version: " + version);
+        }
+        final int capacity = file.getInt(CAPACITY_OFFSET);
+        if (capacity <= 0 || capacity % ALIGNMENT != 0 || capacity > file.capacity() - FILE_HEADER_SIZE) {
+            throw new IOException("Invalid ring file capacity: " + capacity);
+        }
+        return capacity;
+    }
+
+    /**
+     * Writes the record into the region reserved for it. The length is written last, an interrupted write leaves a
+     * record behind that fails the checksum verification.
+     *
+     * @param data   data region of the ring, positioned by this method
+     * @param offset offset of the record, sequence % capacity
+     */
+    static void writeRecord(ByteBuffer data, int offset, long sequence, int type, byte[] payload, int length,
+                            Checksum checksum) {
+        data.position(offset + RECORD_HEADER_SIZE);
+        data.put(payload, 0, length);
+        data.putLong(offset + SEQUENCE_OFFSET, sequence);
+        data.putInt(offset + TYPE_OFFSET, type);
+        data.putInt(offset + RESERVED_OFFSET, 0);
+        data.putInt(offset + CRC_OFFSET, checksum.compute(sequence, type, payload, length));
+        data.putInt(offset + LENGTH_OFFSET, length);
+    }
+
+    /**
+     * @param data     data region of the ring, positioned by this method
+     * @param capacity capacity of the data region
+     * @return every intact record of the ring, ordered by sequence
+     */
+    static List<MappedRingFileReader.Record> scan(ByteBuffer data, int capacity) {
+        final List<MappedRingFileReader.Record> records = new ArrayList<>();
+        final Checksum checksum = new Checksum();
+
+        int offset = 0;
+        while (offset <= capacity - RECORD_HEADER_SIZE) {
+            final MappedRingFileReader.Record record = readRecord(data, offset, capacity, checksum);
+            if (record == null) {
+                offset += ALIGNMENT;
+            } else {
+                records.add(record);
+                offset += recordSize(record.getPayload().length);
+            }
+        }
+
+        Collections.sort(records, new Comparator<MappedRingFileReader.Record>() {
+            @Override
+            public int compare(MappedRingFileReader.Record a, MappedRingFileReader.Record b) {
+                return Long.compare(a.getSequence(), b.getSequence());
+            }
+        });
+        return records;
+    }
+
+    /**
+     * @return the record at the offset or null if there is no intact record
+     */
+    private static MappedRingFileReader.Record readRecord(ByteBuffer data, int offset, int capacity, Checksum checksum) {
+        final int length = data.getInt(offset + LENGTH_OFFSET);
+        if (length < 0 || length > capacity - offset - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final long sequence = data.getLong(offset + SEQUENCE_OFFSET);
+        if (sequence < 0 || sequence % capacity != offset) {
+            return null;
+        }
+        final int type = data.getInt(offset + TYPE_OFFSET);
+        if (type != TYPE_ERROR && type != TYPE_TIMEOUT) {
+            return null;
+        }
+
+        final byte[] payload = new byte[length];
+        data.position(offset + RECORD_HEADER_SIZE);
+        data.get(payload);
+        if (checksum.compute(sequence, type, payload, length) != data.getInt(offset + CRC_OFFSET)) {
+            return null;
+        }
+
+        final SerializedTrigger.Type triggerType = type == TYPE_ERROR ? SerializedTrigger.Type.ERROR : SerializedTrigger.Type.TIMEOUT;
+        return new MappedRingFileReader.Record(sequence, triggerType, payload);
+    }
+
+    /**
+     * CRC32 of a record, not thread-safe.
+     */
+    static final class Checksum {
+
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] header = new byte[12];
+
+        int compute(long sequence, int type, byte[] payload, int length) {
+            for (int i = 0; i < 8; i++) {
+                header[i] = (byte) (sequence >>> (56 - 8 * i));
+            }
+            for (int i = 0; i < 4; i++) {
+                header[8 + i] = (byte) (type >>> (24 - 8 * i));
+            }
+            crc.reset();
+            crc.update(header, 0, header.length);
+            crc.update(payload, 0, length);
+            return (int) crc.getValue();
+        }
+
+    }
+
+}
@@ -0,0 +1,437 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.BatchTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.BinaryTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Appends the serialized triggers to files of a directory, one trigger per line, UTF-8 encoded. A new file is started
+ * when the current one reaches the maximum size or age, the files are named after their creation time:
+ * {@code <prefix>-yyyyMMdd-HHmmss-<index>.log}
+ * <p>
+ * Binary records are written as they are, without a line separator, they are self delimiting. Read such files with the
+ * {@link BinaryTriggerDecoder}. A handler is meant to receive one kind of payload, mixing them makes the files
+ * unreadable for both.
+ * <p>
+ * Meant to be the sink of the {@link AsyncTriggerHandler}: a whole batch is encoded into reusable direct buffers and
+ * passed to the file with a single gathering write. Whether the written data is also forced to the storage device is
+ * decided by the {@link FsyncPolicy}.
+ * <p>
+ * Calls are serialized, a failing file system does not propagate to the application: the error is logged and the
+ * triggers are lost.
+ */
+public final class RollingFileHandler implements BatchTriggerHandler, BinaryTriggerHandler, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RollingFileHandler.class);
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_FILE_AGE_MS = 24L * 60 * 60 * 1000;
+
+    public static final String FILE_EXTENSION = ".log";
+
+    /**
+     * Initial size of the record buffers, they grow to fit the largest record.
+     */
+    private static final int INITIAL_RECORD_BUFFER_SIZE = 4096;
+
+    /**
+     * Record buffers grown beyond this size are released after the write, so a single huge snapshot does not pin
+     * native memory for the lifetime of the handler.
+     */
+    private static final int MAX_RETAINED_RECORD_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Decides when the written records are forced to the storage device with {@link FileChannel#force(boolean)}.
+     * Data that is not forced is still written to the file, but it can be lost if the machine crashes.
+     */
+    public static final class FsyncPolicy {
+
+        private enum Mode {
+            NEVER, RECORDS, INTERVAL
+        }
+
+        private final Mode mode;
+
+        private final long threshold;
+
+        private FsyncPolicy(Mode mode, long threshold) {
+            this.mode = mode;
+            this.threshold = threshold;
+        }
+
+        /**
+         * The operating system decides when the data is written to the device. Files are still forced when rolled
+         * and when the handler is closed.
+         */
+        public static FsyncPolicy never() {
+            return new FsyncPolicy(Mode.NEVER, 0L);
+        }
+
+        /**
+         * Force the file after every {@code recordCount} written records.
+         */
+        public static FsyncPolicy everyRecords(long recordCount) {
+            if (recordCount < 1) {
+                throw new IllegalArgumentException("Record count must be positive, got: " + recordCount);
+            }
+            return new FsyncPolicy(Mode.RECORDS, recordCount);
+        }
+
+        /**
+         * Force the file on the first write after {@code intervalMs} elapsed since the last force.
+         */
+        public static FsyncPolicy everyMillis(long intervalMs) {
+            if (intervalMs < 0) {
+                throw new IllegalArgumentException("Interval must not be negative, got: " + intervalMs);
+            }
+            return new FsyncPolicy(Mode.INTERVAL, intervalMs);
+        }
+
+        /**
+         * @param policy one of {@code never}, {@code records:<count>} or {@code millis:<interval>}
+         */
+        public static FsyncPolicy parse(String policy) {
+            final String normalized = Objects.requireNonNull(policy).trim().toLowerCase();
+            final int separator = normalized.indexOf(':');
+            final String mode = separator < 0 ? normalized : normalized.substring(0, separator);
+            if ("never".equals(mode) && separator < 0) {
+                return never();
+            }
+            if (separator > 0 && "records".equals(mode)) {
+                return everyRecords(Long.parseLong(normalized.substring(separator + 1)));
+            }
+            if (separator > 0 && "millis".equals(mode)) {
+                return everyMillis(Long.parseLong(normalized.substring(separator + 1)));
+            }
+            throw new IllegalArgumentException("Invalid fsync policy: " + policy);
+        }
+
+        boolean isDue(long recordsSinceForce, long millisSinceForce) {
+            switch (mode) {
+                case RECORDS:
+                    return recordsSinceForce >= threshold;
+                case INTERVAL:
+                    return recordsSinceForce > 0 && millisSinceForce >= threshold;
+                case NEVER:
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            switch (mode) {
+                case RECORDS:
+                    return "records:" + threshold;
+                case INTERVAL:
+                    return "millis:" + threshold;
+                case NEVER:
+                default:
+                    return "never";
+            }
+        }
+
+    }
+
+    private final File directory;
+
+    private final String prefix;
+
+    private final long maxFileSize;
+
+    private final long maxFileAgeMs;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final SimpleDateFormat fileNameDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+
+    /**
+     * Reused direct buffers, one per record of the batch being written.
+     */
+    private ByteBuffer[] recordBuffers = new ByteBuffer[0];
+
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(INITIAL_RECORD_BUFFER_SIZE);
+
+    private char[] charBuffer = new char[INITIAL_RECORD_BUFFER_SIZE];
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    private File currentFile;
+
+    private long currentFileSize;
+
+    private long currentFileCreatedMs;
+
+    private int fileIndex = 0;
+
+    private long recordsSinceForce = 0L;
+
+    private long lastForceMs;
+
+    private long writtenTriggers = 0L;
+
+    private long forceCount = 0L;
+
+    private boolean isClosed = false;
+
+    /**
+     * @param directory    target directory, created if it does not exist
+     * @param prefix       prefix of the file names
+     * @param maxFileSize  a new file is started when the current one reaches this size in bytes
+     * @param maxFileAgeMs a new file is started when the current one is older than this
+     * @param fsyncPolicy  when to force the written data to the storage device
+     */
+    public RollingFileHandler(File directory, String prefix, long maxFileSize, long maxFileAgeMs, FsyncPolicy fsyncPolicy) {
+        this.directory = Objects.requireNonNull(directory, "Must provide a valid directory!");
+        this.prefix = Objects.requireNonNull(prefix, "Must provide a valid file name prefix!");
+        this.fsyncPolicy = Objects.requireNonNull(fsyncPolicy);
+        if (maxFileSize < 1) {
+            throw new IllegalArgumentException("Maximum file size must be positive, got: " + maxFileSize);
+        }
+        if (maxFileAgeMs < 1) {
+            throw new IllegalArgumentException("Maximum file age must be positive, got: " + maxFileAgeMs);
+        }
+        this.maxFileSize = maxFileSize;
+        this.maxFileAgeMs = maxFileAgeMs;
+    }
+
+    public RollingFileHandler(File directory) {
+        this(directory, "snaperr", DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILE_AGE_MS, FsyncPolicy.never());
+    }
+
+    @Override
+    public void onError(String serializedError) {
+        onBatch(Collections.singletonList(new SerializedTrigger(SerializedTrigger.Type.ERROR, serializedError)));
+    }
+
+    @Override
+    public void onTimeout(String serializedTimeout) {
+        onBatch(Collections.singletonList(new SerializedTrigger(SerializedTrigger.Type.TIMEOUT, serializedTimeout)));
+    }
+
+    @Override
+    public void onError(byte[] serializedError) {
+        onBatch(Collections.singletonList(new SerializedTrigger(SerializedTrigger.Type.ERROR, serializedError)));
+    }
+
+    @Override
+    public void onTimeout(byte[] serializedTimeout) {
+        onBatch(Collections.singletonList(new SerializedTrigger(SerializedTrigger.Type.TIMEOUT, serializedTimeout)));
+    }
+
+    @Override
+    public synchronized void onBatch(List<SerializedTrigger> batch) {
+        if (isClosed || batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            final long now = System.currentTimeMillis();
+            if (channel == null || currentFileSize >= maxFileSize || now - currentFileCreatedMs >= maxFileAgeMs) {
+                roll(now);
+            }
+
+            final int recordCount = batch.size();
+            long batchSize = 0L;
+            for (int i = 0; i < recordCount; i++) {
+                batchSize += encode(i, batch.get(i));
+            }
+            writeFully(recordCount, batchSize);
+
+            currentFileSize += batchSize;
+            writtenTriggers += recordCount;
+            recordsSinceForce += recordCount;
+            if (fsyncPolicy.isDue(recordsSinceForce, now - lastForceMs)) {
+                force(now);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to write " + batch.size() + " trigger(s) to " + currentFile, e);
+        } finally {
+            releaseOversizedBuffers(batch.size());
+        }
+    }
+
+    public synchronized File getCurrentFile() {
+        return currentFile;
+    }
+
+    public synchronized long getWrittenTriggerCount() {
+        return writtenTriggers;
+    }
+
+    /**
+     * @return how many times the written data was forced to the storage device
+     */
+    public synchronized long getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * Forces the current file to the storage device and closes it, further triggers are discarded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        closeCurrentFile();
+    }
+
+    private void roll(long now) throws IOException {
+        closeCurrentFile();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + directory);
+        }
+
+        final String timestamp = fileNameDateFormat.format(new Date(now));
+        File nextFile;
+        do {
+            nextFile = new File(directory, prefix + "-" + timestamp + "-" + fileIndex++ + FILE_EXTENSION);
+        } while (nextFile.exists());
+
+        file = new RandomAccessFile(nextFile, "rw");
+        channel = file.getChannel();
+        currentFile = nextFile;
+        currentFileSize = 0L;
+        currentFileCreatedMs = now;
+        lastForceMs = now;
+    }
+
+    private void closeCurrentFile() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            if (recordsSinceForce > 0) {
+                force(System.currentTimeMillis());
+            }
+        } finally {
+            channel = null;
+            file.close();
+        }
+    }
+
+    private void force(long now) throws IOException {
+        channel.force(false);
+        recordsSinceForce = 0L;
+        lastForceMs = now;
+        forceCount++;
+    }
+
+    /**
+     * Encodes the payload followed by a line separator into the direct buffer of the given record, ready to be read.
+     * The encoder only has a fast path for array backed buffers, so the payload is copied into a reused char array,
+     * encoded into a reused heap buffer and copied into the direct buffer with a bulk put. Binary payloads are copied
+     * as they are.
+     *
+     * @return encoded size in bytes
+     */
+    private int encode(int record, SerializedTrigger trigger) {
+        final ByteBuffer encoded = trigger.isBinary()
+                ? ByteBuffer.wrap(trigger.getBinaryPayload())
+                : encodeToHeap(trigger.getPayload() == null ? "null" : trigger.getPayload());
+
+        if (record >= recordBuffers.length) {
+            recordBuffers = Arrays.copyOf(recordBuffers, Math.max(record + 1, recordBuffers.length * 2));
+        }
+        ByteBuffer buffer = recordBuffers[record];
+        if (buffer == null || buffer.capacity() < encoded.remaining()) {
+            buffer = ByteBuffer.allocateDirect(Math.max(INITIAL_RECORD_BUFFER_SIZE, Integer.highestOneBit(encoded.remaining()) * 2));
+            recordBuffers[record] = buffer;
+        }
+        buffer.clear();
+        buffer.put(encoded);
+        buffer.flip();
+
+        return buffer.remaining();
+    }
+
+    private ByteBuffer encodeToHeap(String payload) {
+        final int length = payload.length();
+        if (charBuffer.length < length) {
+            charBuffer = new char[Math.max(length, charBuffer.length * 2)];
+        }
+        payload.getChars(0, length, charBuffer, 0);
+        final CharBuffer chars = CharBuffer.wrap(charBuffer, 0, length);
+        ByteBuffer buffer = encodeBuffer;
+        buffer.clear();
+        encoder.reset();
+
+        // malformed input is replaced, overflow is the only result besides underflow
+        CoderResult result = encoder.encode(chars, buffer, true);
+        while (result.isOverflow()) {
+            buffer = grow(buffer, chars.remaining() * 3);
+            result = encoder.encode(chars, buffer, true);
+        }
+        if (buffer.remaining() < LINE_SEPARATOR.length) {
+            buffer = grow(buffer, LINE_SEPARATOR.length);
+        }
+        buffer.put(LINE_SEPARATOR);
+        buffer.flip();
+
+        encodeBuffer = buffer;
+        return buffer;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int additionalBytes) {
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + additionalBytes));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private void writeFully(int recordCount, long batchSize) throws IOException {
+        long written = 0L;
+        while (written < batchSize) {
+            written += channel.write(recordBuffers, 0, recordCount);
+        }
+    }
+
+    private void releaseOversizedBuffers(int recordCount) {
+        for (int i = 0; i < recordCount && i < recordBuffers.length; i++) {
+            final ByteBuffer buffer = recordBuffers[i];
+            if (buffer != null && buffer.capacity() > MAX_RETAINED_RECORD_BUFFER_SIZE) {
+                recordBuffers[i] = null;
+            }
+        }
+        if (encodeBuffer.capacity() > MAX_RETAINED_RECORD_BUFFER_SIZE) {
+            encodeBuffer = ByteBuffer.allocate(INITIAL_RECORD_BUFFER_SIZE);
+        }
+        if (charBuffer.length > MAX_RETAINED_RECORD_BUFFER_SIZE) {
+            charBuffer = new char[INITIAL_RECORD_BUFFER_SIZE];
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.ScopeChain;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the tracked scopes of the submitting thread over to the thread that executes the submitted work, so a
+ * snapshot taken while the work runs also contains the scopes that led to its submission.
+ * <p>
+ * The scopes are captured when a task is wrapped, or when it is handed to a wrapped executor, with
+ * {@link ReferenceTracker#captureScopes()}, which copies only the scopes that changed since the previous capture of
+ * the thread. Tasks submitted outside of tracked scopes are passed on unwrapped. CompletableFuture stages pick up the scopes if they run on a wrapped executor, pass it to the
+ * *Async methods.
+ */
+public final class ScopePropagator {
+
+    private final ReferenceTracker referenceTracker;
+
+    public ScopePropagator(ReferenceTracker referenceTracker) {
+        this.referenceTracker = Objects.requireNonNull(referenceTracker);
+    }
+
+    public Runnable wrap(final Runnable task) {
+        Objects.requireNonNull(task);
+        final ScopeChain scopes = referenceTracker.captureScopes();
+        if (scopes == null) {
+            return task;
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                final ScopeChain previousScopes = referenceTracker.attachScopes(scopes);
+                try {
+                    task.run();
+                } finally {
+                    referenceTracker.attachScopes(previousScopes);
+                }
+            }
+        };
+    }
+
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        Objects.requireNonNull(task);
+        final ScopeChain scopes = referenceTracker.captureScopes();
+        if (scopes == null) {
+            return task;
+        }
+
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                final ScopeChain previousScopes = referenceTracker.attachScopes(scopes);
+                try {
+                    return task.call();
+                } finally {
+                    referenceTracker.attachScopes(previousScopes);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return executor that wraps every task when it is submitted
+     */
+    public Executor wrap(final Executor executor) {
+        Objects.requireNonNull(executor);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executor.execute(wrap(command));
+            }
+        };
+    }
+
+    /**
+     * @return executor service that wraps every task when it is submitted, the lifecycle methods are delegated
+     */
+    public ExecutorService wrap(ExecutorService executorService) {
+        return new PropagatingExecutorService(Objects.requireNonNull(executorService));
+    }
+
+    /**
+     * All the submit and invoke methods of AbstractExecutorService end up in {@link #execute(Runnable)}, called on the
+     * submitting thread, so wrapping there covers them.
+     */
+    private final class PropagatingExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+
+        private PropagatingExecutorService(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(wrap(command));
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+}
@@ -0,0 +1,479 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.ThreadDepth;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Counters and latencies of a tracer, published as an MXBean with {@link #register()} or read with
+ * {@link #snapshot()}.
+ * <p>
+ * The events of the hot path are counted in {@link StripedCounter}s, an uncontended atomic add per event. The latencies
+ * of the trigger processing are recorded in {@link LatencyHistogram}s. The scope stack depths of the threads are only
+ * available with a {@link StackBasedReferenceTracker}, the metrics enable its depth monitoring.
+ */
+public final class SnaperrMetrics implements SnaperrMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnaperrMetrics.class);
+
+    public static final String DEFAULT_OBJECT_NAME = "io.ghostwriter.rt.snaperr:type=SnaperrMetrics";
+
+    private final StripedCounter enterings = new StripedCounter();
+
+    private final StripedCounter valueChanges = new StripedCounter();
+
+    private final StripedCounter exitings = new StripedCounter();
+
+    private final StripedCounter errors = new StripedCounter();
+
+    private final StripedCounter timeouts = new StripedCounter();
+
+    private final StripedCounter deduplicatedTriggers = new StripedCounter();
+
+    private final StripedCounter throttledTriggers = new StripedCounter();
+
+    private final StripedCounter handledTriggers = new StripedCounter();
+
+    private final StripedCounter emittedBytes = new StripedCounter();
+
+    private final LatencyHistogram serializationLatency = new LatencyHistogram();
+
+    private final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+    /**
+     * Source of the thread depths, null if the tracker does not report them.
+     */
+    private final StackBasedReferenceTracker referenceTracker;
+
+    /**
+     * @param referenceTracker the tracker of the tracer, the thread depths are only reported if it is a
+     *                         {@link StackBasedReferenceTracker}
+     */
+    public SnaperrMetrics(ReferenceTracker referenceTracker) {
+        if (referenceTracker instanceof StackBasedReferenceTracker) {
+            this.referenceTracker = (StackBasedReferenceTracker) referenceTracker;
+            this.referenceTracker.enableDepthMonitoring();
+        } else {
+            this.referenceTracker = null;
+        }
+    }
+
+    public void entering() {
+        enterings.increment();
+    }
+
+    public void valueChange() {
+        valueChanges.increment();
+    }
+
+    public void exiting() {
+        exitings.increment();
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    public void triggerDeduplicated() {
+        deduplicatedTriggers.increment();
+    }
+
+    public void triggerThrottled() {
+        throttledTriggers.increment();
+    }
+
+    public void triggerHandled() {
+        handledTriggers.increment();
+    }
+
+    /**
+     * @param serialized a trigger serialized as text, counted by its UTF-8 size
+     */
+    public void emitted(String serialized) {
+        if (serialized != null) {
+            emittedBytes.add(utf8Length(serialized));
+        }
+    }
+
+    public void emitted(long bytes) {
+        emittedBytes.add(bytes);
+    }
+
+    public void recordSerialization(long nanos) {
+        serializationLatency.record(nanos);
+    }
+
+    /**
+     * @param nanos time spent in the trigger handler, including the serialization for streaming handlers
+     */
+    public void recordHandler(long nanos) {
+        handlerLatency.record(nanos);
+    }
+
+    /**
+     * Wraps a streaming serializer, so the time it spends writing into the sink of the handler and the bytes it writes
+     * are measured as well.
+     */
+    public StreamingTriggerSerializer measure(StreamingTriggerSerializer serializer) {
+        return new MeasuredStreamingSerializer(serializer);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server under {@link #DEFAULT_OBJECT_NAME}, a failure is logged.
+     *
+     * @return false if the metrics could not be registered
+     */
+    public boolean register() {
+        return register(DEFAULT_OBJECT_NAME);
+    }
+
+    public boolean register(String objectName) {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            if (mBeanServer.isRegistered(name)) {
+                // a tracer created again, for example in a new class loader of the same process
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(this, name);
+            return true;
+        } catch (JMException e) {
+            LOG.warn("Failed to register the Snaperr metrics as " + objectName, e);
+            return false;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public long getEnteringCount() {
+        return enterings.sum();
+    }
+
+    @Override
+    public long getValueChangeCount() {
+        return valueChanges.sum();
+    }
+
+    @Override
+    public long getExitingCount() {
+        return exitings.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDeduplicatedTriggerCount() {
+        return deduplicatedTriggers.sum();
+    }
+
+    @Override
+    public long getThrottledTriggerCount() {
+        return throttledTriggers.sum();
+    }
+
+    @Override
+    public long getHandledTriggerCount() {
+        return handledTriggers.sum();
+    }
+
+    @Override
+    public long getEmittedBytes() {
+        return emittedBytes.sum();
+    }
+
+    @Override
+    public long getSerializationCount() {
+        return serializationLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getSerializationMeanNanos() {
+        return serializationLatency.snapshot().getMeanNanos();
+    }
+
+    @Override
+    public long getSerializationP99Nanos() {
+        return serializationLatency.snapshot().percentileNanos(99d);
+    }
+
+    @Override
+    public long getSerializationMaxNanos() {
+        return serializationLatency.snapshot().getMaxNanos();
+    }
+
+    @Override
+    public long getHandlerCount() {
+        return handlerLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getHandlerMeanNanos() {
+        return handlerLatency.snapshot().getMeanNanos();
+    }
+
+    @Override
+    public long getHandlerP99Nanos() {
+        return handlerLatency.snapshot().percentileNanos(99d);
+    }
+
+    @Override
+    public long getHandlerMaxNanos() {
+        return handlerLatency.snapshot().getMaxNanos();
+    }
+
+    @Override
+    public int getMaxScopeDepth() {
+        int maxDepth = 0;
+        for (ThreadDepth threadDepth : getThreadDepths()) {
+            maxDepth = Math.max(maxDepth, threadDepth.getDeepestDepth());
+        }
+        return maxDepth;
+    }
+
+    @Override
+    public List<ThreadDepth> getThreadDepths() {
+        return referenceTracker == null ? Collections.<ThreadDepth>emptyList() : referenceTracker.threadDepths();
+    }
+
+    static long utf8Length(String text) {
+        long length = 0L;
+        final int textLength = text.length();
+        for (int i = 0; i < textLength; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < textLength && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Values of the metrics at the time of the snapshot, each of them is read once. The snapshot is not atomic, events
+     * recorded concurrently might be reflected in some of the values only.
+     */
+    public static final class Snapshot {
+
+        private final long enteringCount;
+
+        private final long valueChangeCount;
+
+        private final long exitingCount;
+
+        private final long errorCount;
+
+        private final long timeoutCount;
+
+        private final long deduplicatedTriggerCount;
+
+        private final long throttledTriggerCount;
+
+        private final long handledTriggerCount;
+
+        private final long emittedBytes;
+
+        private final LatencyHistogram.Snapshot serializationLatency;
+
+        private final LatencyHistogram.Snapshot handlerLatency;
+
+        private final List<ThreadDepth> threadDepths;
+
+        private Snapshot(SnaperrMetrics metrics) {
+            enteringCount = metrics.getEnteringCount();
+            valueChangeCount = metrics.getValueChangeCount();
+            exitingCount = metrics.getExitingCount();
+            errorCount = metrics.getErrorCount();
+            timeoutCount = metrics.getTimeoutCount();
+            deduplicatedTriggerCount = metrics.getDeduplicatedTriggerCount();
+            throttledTriggerCount = metrics.getThrottledTriggerCount();
+            handledTriggerCount = metrics.getHandledTriggerCount();
+            emittedBytes = metrics.getEmittedBytes();
+            serializationLatency = metrics.serializationLatency.snapshot();
+            handlerLatency = metrics.handlerLatency.snapshot();
+            threadDepths = Collections.unmodifiableList(metrics.getThreadDepths());
+        }
+
+        public long getEnteringCount() {
+            return enteringCount;
+        }
+
+        public long getValueChangeCount() {
+            return valueChangeCount;
+        }
+
+        public long getExitingCount() {
+            return exitingCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        public long getDeduplicatedTriggerCount() {
+            return deduplicatedTriggerCount;
+        }
+
+        public long getThrottledTriggerCount() {
+            return throttledTriggerCount;
+        }
+
+        public long getHandledTriggerCount() {
+            return handledTriggerCount;
+        }
+
+        public long getEmittedBytes() {
+            return emittedBytes;
+        }
+
+        public LatencyHistogram.Snapshot getSerializationLatency() {
+            return serializationLatency;
+        }
+
+        public LatencyHistogram.Snapshot getHandlerLatency() {
+            return handlerLatency;
+        }
+
+        public List<ThreadDepth> getThreadDepths() {
+            return threadDepths;
+        }
+
+        public int getMaxScopeDepth() {
+            int maxDepth = 0;
+            for (ThreadDepth threadDepth : threadDepths) {
+                maxDepth = Math.max(maxDepth, threadDepth.getDeepestDepth());
+            }
+            return maxDepth;
+        }
+
+        @Override
+        public String toString() {
+            return "entering: " + enteringCount + ", valueChange: " + valueChangeCount + ", exiting: " + exitingCount
+                    + ", errors: " + errorCount + ", timeouts: " + timeoutCount + ", deduplicated: "
+                    + deduplicatedTriggerCount + ", throttled: " + throttledTriggerCount + ", handled: " + handledTriggerCount + ", emitted: " + emittedBytes
+                    + " bytes, serialization: [" + serializationLatency + "], handler: [" + handlerLatency
+                    + "], max scope depth: " + getMaxScopeDepth();
+        }
+
+    }
+
+    /**
+     * Times the serialization into the sink of a streaming handler and counts the bytes written.
+     */
+    private final class MeasuredStreamingSerializer implements StreamingTriggerSerializer {
+
+        private final StreamingTriggerSerializer serializer;
+
+        MeasuredStreamingSerializer(StreamingTriggerSerializer serializer) {
+            this.serializer = Objects.requireNonNull(serializer);
+        }
+
+        @Override
+        public void serializeTrigger(ErrorTrigger errorTrigger, OutputStream output) throws IOException {
+            final CountingOutputStream countingOutput = new CountingOutputStream(output);
+            final long startNanos = System.nanoTime();
+            try {
+                serializer.serializeTrigger(errorTrigger, countingOutput);
+            } finally {
+                recordSerialization(System.nanoTime() - startNanos);
+                emitted(countingOutput.count);
+            }
+        }
+
+        @Override
+        public void serializeTrigger(TimeoutTrigger timeoutTrigger, OutputStream output) throws IOException {
+            final CountingOutputStream countingOutput = new CountingOutputStream(output);
+            final long startNanos = System.nanoTime();
+            try {
+                serializer.serializeTrigger(timeoutTrigger, countingOutput);
+            } finally {
+                recordSerialization(System.nanoTime() - startNanos);
+                emitted(countingOutput.count);
+            }
+        }
+
+        @Override
+        public String serializeTrigger(ErrorTrigger errorTrigger) {
+            return serializer.serializeTrigger(errorTrigger);
+        }
+
+        @Override
+        public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
+            return serializer.serializeTrigger(timeoutTrigger);
+        }
+
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0L;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            // the stream belongs to the handler, the serializer must not close it
+        }
+
+    }
+
+}
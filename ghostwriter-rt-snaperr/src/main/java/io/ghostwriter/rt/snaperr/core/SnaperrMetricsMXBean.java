@@ -0,0 +1,66 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.tracker.ThreadDepth;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link SnaperrMetrics}. The counters are totals since the metrics were created, the latencies
+ * are in nanoseconds and the percentiles are approximated, see {@link LatencyHistogram}.
+ */
+public interface SnaperrMetricsMXBean {
+
+    long getEnteringCount();
+
+    long getValueChangeCount();
+
+    long getExitingCount();
+
+    long getErrorCount();
+
+    long getTimeoutCount();
+
+    /**
+     * @return errors dropped by the deduplication because the same error was captured recently
+     */
+    long getDeduplicatedTriggerCount();
+
+    /**
+     * @return triggers dropped by the throttling
+     */
+    long getThrottledTriggerCount();
+
+    /**
+     * @return triggers passed to the trigger handler
+     */
+    long getHandledTriggerCount();
+
+    /**
+     * @return size of the serialized triggers, in UTF-8 for the serializers producing text
+     */
+    long getEmittedBytes();
+
+    long getSerializationCount();
+
+    long getSerializationMeanNanos();
+
+    long getSerializationP99Nanos();
+
+    long getSerializationMaxNanos();
+
+    long getHandlerCount();
+
+    long getHandlerMeanNanos();
+
+    long getHandlerP99Nanos();
+
+    long getHandlerMaxNanos();
+
+    /**
+     * @return deepest scope stack depth of the live monitored threads
+     */
+    int getMaxScopeDepth();
+
+    List<ThreadDepth> getThreadDepths();
+
+}
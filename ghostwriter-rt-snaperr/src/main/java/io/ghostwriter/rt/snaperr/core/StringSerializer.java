@@ -1,52 +1,152 @@
 package io.ghostwriter.rt.snaperr.core;
 
 import io.ghostwriter.rt.snaperr.api.*;
+import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 final public class StringSerializer implements TriggerSerializer {
 
+    private final ValueRenderer valueRenderer;
+
+    private final RecursionCompressor recursionCompressor;
+
+    public StringSerializer(ValueRenderer valueRenderer, RecursionCompressor recursionCompressor) {
+        this.valueRenderer = Objects.requireNonNull(valueRenderer);
+        this.recursionCompressor = Objects.requireNonNull(recursionCompressor);
+    }
+
+    public StringSerializer(ValueRenderer valueRenderer) {
+        this(valueRenderer, RecursionCompressor.DEFAULT);
+    }
+
+    public StringSerializer() {
+        this(ValueRenderer.DEFAULT);
+    }
+
     @Override
     public String serializeTrigger(ErrorTrigger errorTrigger) {
         final int INITIAL_CAPACITY = 256;
         final StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
-        sb.append("Snaperr - state snapshot of error '").append(errorTrigger.getThrowable().toString()).append("': [\n");
-
-        final Iterator<TrackedScope> scopes = errorTrigger.scopes();
-        while (scopes.hasNext()) {
-            final TrackedScope currentScope = scopes.next();
-            serializeScope(currentScope, sb);
-            sb.append("\n");
-        }
+        appendErrorHeader(errorTrigger.getThrowable().toString(), sb);
 
-        sb.append("]");
+        serializeScopes(errorTrigger.samplingInterval(), errorTrigger.isSampled(), errorTrigger.untrackedDepth(),
+                errorTrigger.scopes(), sb);
+        appendFooter(sb);
 
         return sb.toString();
     }
 
     @Override
     public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
-        // FIXME: add implementation for this as well
-        throw new UnsupportedOperationException("Implementation missing!");
+        final int INITIAL_CAPACITY = 256;
+        final StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+        appendTimeoutHeader(timeoutTrigger.getTimeoutThreshold(), timeoutTrigger.getTimeout(), sb);
+        final ReferenceTracker referenceTracker = timeoutTrigger.getReferenceTracker();
+        serializeScopes(referenceTracker.samplingInterval(), referenceTracker.isSampled(),
+                referenceTracker.untrackedDepth(), referenceTracker.scopes(), sb);
+        appendFooter(sb);
+
+        return sb.toString();
+    }
+
+    private void serializeScopes(int samplingInterval, boolean isSampled, int untrackedDepth,
+                                 Iterator<TrackedScope> scopes, final StringBuilder sb) {
+        if (samplingInterval > 1 || !isSampled) {
+            appendSampling(samplingInterval, isSampled, sb);
+        }
+        if (untrackedDepth > 0) {
+            appendUntrackedScopes(untrackedDepth, sb);
+        }
+
+        final ValueRenderer.Snapshot values = valueRenderer.newSnapshot();
+        recursionCompressor.walk(scopes, new RecursionCompressor.ScopeVisitor<RuntimeException>() {
+            @Override
+            public void scope(TrackedScope scope) {
+                serializeScope(scope, values, sb);
+            }
+
+            @Override
+            public void repeatedScope(String sourceType, String methodName, int repetitions) {
+                appendRepeatedScope(sourceType, methodName, repetitions, sb);
+            }
+        });
     }
 
-    private StringBuilder serializeScope(TrackedScope currentScope, StringBuilder sb) {
+    private StringBuilder serializeScope(TrackedScope currentScope, ValueRenderer.Snapshot values, StringBuilder sb) {
         final String source = String.valueOf(currentScope.getSource());
         final String methodName = currentScope.getMethodName();
 
-        sb.append("\t").append(source).append(".").append(methodName).append(" {\n");
+        appendScopeHeader(source, methodName, sb);
         final Set<Map.Entry<String, TrackedValue>> entries = currentScope.getReferences().entrySet();
         for (Map.Entry<String, TrackedValue> entry : entries) {
             final String variableName = entry.getKey();
-            final String variableValue = String.valueOf(entry.getValue().getValue());
-            sb.append("\t\t").append(variableName).append("=").append(variableValue);
-            sb.append("\n");
+            // the value is rendered in place, without an intermediate String
+            appendVariableName(variableName, sb);
+            values.render(entry.getValue().getValue(), sb);
+            appendVariableEnd(sb);
         }
-        sb.append("\t}");
+        appendScopeFooter(sb);
 
         return sb;
     }
 
+    /*
+     * The building blocks of the text format are shared with BinaryTriggerDecoder, so decoded binary snapshots look
+     * exactly the same as the ones serialized by this class.
+     */
+
+    static void appendErrorHeader(String throwableDescription, StringBuilder sb) {
+        sb.append("Snaperr - state snapshot of error '").append(throwableDescription).append("': [\n");
+    }
+
+    static void appendTimeoutHeader(long timeoutThreshold, long timeout, StringBuilder sb) {
+        sb.append("Snaperr - state snapshot of timeout, threshold: ").append(timeoutThreshold)
+                .append("ms, measured: ").append(timeout).append("ms: [\n");
+    }
+
+    static void appendSampling(long samplingInterval, boolean isSampled, StringBuilder sb) {
+        sb.append("\t... state of 1 in ").append(samplingInterval).append(" invocation trees is tracked, this one ")
+                .append(isSampled ? "is sampled\n" : "is not sampled\n");
+    }
+
+    static void appendUntrackedScopes(long untrackedDepth, StringBuilder sb) {
+        sb.append("\t... ").append(untrackedDepth).append(" deeper scope(s) not tracked, depth limit reached\n");
+    }
+
+    static void appendRepeatedScope(String sourceType, String methodName, long repetitions, StringBuilder sb) {
+        sb.append("\t... ").append(sourceType).append(".").append(methodName).append(" repeated ").append(repetitions)
+                .append(" more time(s)\n");
+    }
+
+    static void appendScopeHeader(String source, String methodName, StringBuilder sb) {
+        sb.append("\t").append(source).append(".").append(methodName).append(" {\n");
+    }
+
+    static void appendVariable(String variableName, String variableValue, StringBuilder sb) {
+        appendVariableName(variableName, sb);
+        sb.append(variableValue);
+        appendVariableEnd(sb);
+    }
+
+    static void appendVariableName(String variableName, StringBuilder sb) {
+        sb.append("\t\t").append(variableName).append("=");
+    }
+
+    static void appendVariableEnd(StringBuilder sb) {
+        sb.append("\n");
+    }
+
+    static void appendScopeFooter(StringBuilder sb) {
+        sb.append("\t}");
+        sb.append("\n");
+    }
+
+    static void appendFooter(StringBuilder sb) {
+        sb.append("]");
+    }
+
 }
@@ -0,0 +1,62 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads its updates over multiple cells, so that threads incrementing it
+ * concurrently do not fight over the same cache line. Reading the value sums up all the cells.
+ * <p>
+ * Comparable to {@code java.util.concurrent.atomic.LongAdder}, which is not available on Java 7.
+ * The sum is not an atomic snapshot, concurrent updates might or might not be reflected in it.
+ */
+public final class StripedCounter {
+
+    private static final int NUMBER_OF_STRIPES = stripeCount();
+
+    /**
+     * Distance between two used cells in the backing array, 8 longs fill a typical 64 byte cache line.
+     */
+    private static final int CELL_PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(NUMBER_OF_STRIPES * CELL_PADDING);
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(cellIndex(), value);
+    }
+
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+            sum += cells.get(i * CELL_PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+            cells.set(i * CELL_PADDING, 0L);
+        }
+    }
+
+    private static int cellIndex() {
+        final long threadId = Thread.currentThread().getId();
+        // spread sequential thread ids over the stripes
+        final int hash = (int) (threadId * 0x9E3779B9L);
+        final int stripe = (hash ^ (hash >>> 16)) & (NUMBER_OF_STRIPES - 1);
+        return stripe * CELL_PADDING;
+    }
+
+    private static int stripeCount() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+}
@@ -1,8 +1,11 @@
 package io.ghostwriter.rt.snaperr.core;
 
-import io.ghostwriter.rt.snaperr.api.TriggerHandler;
+import io.ghostwriter.rt.snaperr.api.BatchTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
 
-final public class SystemOutWriter implements TriggerHandler {
+import java.util.List;
+
+final public class SystemOutWriter implements BatchTriggerHandler {
 
     @Override
     public void onError(String serializedError) {
@@ -14,4 +17,19 @@ final public class SystemOutWriter implements TriggerHandler {
         System.out.println(serializedTimeout);
     }
 
+    /**
+     * Writes the whole batch with a single call, so the lock of {@link System#out} is only acquired once.
+     */
+    @Override
+    public void onBatch(List<SerializedTrigger> batch) {
+        final int INITIAL_CAPACITY = 256;
+        final StringBuilder sb = new StringBuilder(INITIAL_CAPACITY * batch.size());
+        final String lineSeparator = System.lineSeparator();
+        for (SerializedTrigger trigger : batch) {
+            sb.append(trigger.getPayload()).append(lineSeparator);
+        }
+        System.out.print(sb);
+        System.out.flush();
+    }
+
 }
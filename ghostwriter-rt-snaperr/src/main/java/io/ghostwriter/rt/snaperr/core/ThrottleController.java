@@ -4,6 +4,12 @@ import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
 import io.ghostwriter.rt.snaperr.api.Throttler;
 import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
 
+/**
+ * Fixed window throttling, at most {@link #maxErrorsInWindow} triggers are handled in each window.
+ * <p>
+ * The implementation is lock-free, see {@link FixedWindowCounter}. All the triggers share the same window, use
+ * {@link KeyedThrottleController} to give each kind of error its own budget.
+ */
 public class ThrottleController implements Throttler {
 
     private static long DEFAULT_ERROR_WINDOW_LENGTH = 1000L;
@@ -21,9 +27,9 @@ public class ThrottleController implements Throttler {
      */
     private final int maxErrorsInWindow;
 
-    private int errorsInBucket = 0;
+    private final FixedWindowCounter windowCounter;
 
-    private long bucketPurgedLastTimeMs = currentTimeMillis();
+    private final StripedCounter throttledTriggers = new StripedCounter();
 
     /**
      * @param errorWindowLengthMs Window size in millisec
@@ -32,6 +38,7 @@ public class ThrottleController implements Throttler {
     public ThrottleController(long errorWindowLengthMs, int maxErrorsInWindow) {
         this.errorWindowSizeMs = errorWindowLengthMs;
         this.maxErrorsInWindow = maxErrorsInWindow;
+        this.windowCounter = new FixedWindowCounter(errorWindowLengthMs, currentTimeMillis());
     }
 
     public ThrottleController() {
@@ -48,6 +55,13 @@ public class ThrottleController implements Throttler {
         return !throttleControl();
     }
 
+    /**
+     * @return number of triggers that were not allowed to be handled since the creation of the instance
+     */
+    public long getThrottledTriggerCount() {
+        return throttledTriggers.sum();
+    }
+
     /**
      * Only the specified number of errors are handled within the given window.
      * <p>
@@ -63,21 +77,12 @@ public class ThrottleController implements Throttler {
             return false;
         }
 
-        final long errorWindowSizeMs = getErrorWindowSizeMs();
-        final int maxErrorCountInWindow = getMaxErrorCountInWindow();
-
-        final long nowMs = currentTimeMillis();
-        final long elapsedSinceLastPurgeMs = nowMs - bucketPurgedLastTimeMs;
-
-        if (elapsedSinceLastPurgeMs >= errorWindowSizeMs) {
-            // Empty the bucket
-            errorsInBucket = 0;
-            bucketPurgedLastTimeMs = nowMs;
+        final boolean isAdmitted = windowCounter.tryAdmit(currentTimeMillis(), getMaxErrorCountInWindow());
+        if (!isAdmitted) {
+            throttledTriggers.increment();
         }
 
-        errorsInBucket++;
-
-        return errorsInBucket > maxErrorCountInWindow;
+        return !isAdmitted;
     }
 
     private boolean isThrottlingDisabled() {
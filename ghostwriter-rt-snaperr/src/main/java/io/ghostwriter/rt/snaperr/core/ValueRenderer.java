@@ -0,0 +1,324 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders tracked values into text with bounded cost, so serializing a snapshot cannot stall the failing thread on a
+ * huge collection or an expensive {@code toString}.
+ * <p>
+ * Arrays, collections, maps and character sequences are rendered natively, in the same format as their JDK
+ * {@code toString}, without calling it. Other objects are rendered with {@link String#valueOf(Object)}. The limits:
+ * <ul>
+ * <li>{@link #maxValueChars} - characters of a single rendered value, including its elements</li>
+ * <li>{@link #maxElements} - elements of an array, collection or map</li>
+ * <li>{@link #maxDepth} - nesting of arrays, collections and maps</li>
+ * <li>{@link #maxSnapshotChars} - characters of all the values of a snapshot together</li>
+ * <li>{@link #deadlineMs} - time spent on rendering the values of a snapshot</li>
+ * </ul>
+ * Whatever is cut is marked in the output, for example {@code [1, 2, ...(+998 more)]}. The snapshot wide limits apply
+ * to a {@link Snapshot}, serializers create one for each trigger.
+ * <p>
+ * Every limit is off by default, see {@link #NO_LIMIT} and {@link #NO_DEADLINE}. Without any limit the values are
+ * rendered with {@link String#valueOf(Object)}, the snapshots look the same as without a renderer.
+ */
+public final class ValueRenderer {
+
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Renders every value without limits.
+     */
+    public static final ValueRenderer DEFAULT = new ValueRenderer();
+
+    /**
+     * The clock is only read once per this many elements, reading it is not free either.
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+    private final int maxValueChars;
+
+    private final int maxElements;
+
+    private final int maxDepth;
+
+    private final int maxSnapshotChars;
+
+    private final long deadlineMs;
+
+    /**
+     * False if every limit is off, the values are rendered with {@link String#valueOf(Object)}.
+     */
+    private final boolean isLimited;
+
+    public ValueRenderer(int maxValueChars, int maxElements, int maxDepth, int maxSnapshotChars, long deadlineMs) {
+        if (maxValueChars < 1 || maxElements < 0 || maxDepth < 0 || maxSnapshotChars < 1 || deadlineMs < 1L) {
+            throw new IllegalArgumentException("Invalid rendering limits, value chars: " + maxValueChars
+                    + ", elements: " + maxElements + ", depth: " + maxDepth + ", snapshot chars: " + maxSnapshotChars
+                    + ", deadline: " + deadlineMs + "ms");
+        }
+        this.maxValueChars = maxValueChars;
+        this.maxElements = maxElements;
+        this.maxDepth = maxDepth;
+        this.maxSnapshotChars = maxSnapshotChars;
+        this.deadlineMs = deadlineMs;
+        this.isLimited = maxValueChars != NO_LIMIT || maxElements != NO_LIMIT || maxDepth != NO_LIMIT
+                || maxSnapshotChars != NO_LIMIT || deadlineMs != NO_DEADLINE;
+    }
+
+    /**
+     * Renderer without limits.
+     */
+    public ValueRenderer() {
+        this(NO_LIMIT, NO_LIMIT, NO_LIMIT, NO_LIMIT, NO_DEADLINE);
+    }
+
+    /**
+     * @return false if every limit is off
+     */
+    public boolean isLimited() {
+        return isLimited;
+    }
+
+    /**
+     * @return rendering state of a single snapshot, the deadline starts now
+     */
+    public Snapshot newSnapshot() {
+        // far enough to never pass, close enough to not overflow
+        final long deadlineNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(deadlineMs), Long.MAX_VALUE / 2);
+        return new Snapshot(System.nanoTime() + deadlineNanos);
+    }
+
+    /**
+     * Renders the values of one snapshot, keeps track of the snapshot wide limits. Not thread-safe.
+     */
+    public final class Snapshot {
+
+        private final long deadlineNanos;
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        private int renderedChars = 0;
+
+        private boolean isDeadlineExceeded = false;
+
+        private int elementsSinceDeadlineCheck = 0;
+
+        /**
+         * End of the current value in the output, nothing is appended beyond it.
+         */
+        private int valueLimit;
+
+        private Snapshot(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return the rendered value, with the limits applied
+         */
+        public String render(Object value) {
+            buffer.setLength(0);
+            render(value, buffer);
+            return buffer.toString();
+        }
+
+        /**
+         * Appends the rendered value to the given builder, with the limits applied.
+         */
+        public void render(Object value, StringBuilder sb) {
+            if (!isLimited) {
+                renderUnlimited(value, sb);
+                return;
+            }
+
+            final int start = sb.length();
+            if (renderedChars >= maxSnapshotChars) {
+                sb.append("...(snapshot size limit)");
+                return;
+            }
+            if (isDeadlineExceeded()) {
+                sb.append("...(deadline exceeded)");
+                return;
+            }
+
+            valueLimit = (int) Math.min(Integer.MAX_VALUE,
+                    (long) start + Math.min(maxValueChars, maxSnapshotChars - renderedChars));
+            try {
+                renderValue(value, 0, sb);
+            } catch (RuntimeException e) {
+                // a concurrently modified collection or a failing toString must not fail the snapshot
+                sb.setLength(Math.min(sb.length(), valueLimit));
+                sb.append("...(rendering failed: ").append(e.getClass().getName()).append(')');
+            }
+            renderedChars += sb.length() - start;
+        }
+
+        private void renderUnlimited(Object value, StringBuilder sb) {
+            final int start = sb.length();
+            try {
+                sb.append(String.valueOf(value));
+            } catch (RuntimeException e) {
+                // a failing toString must not fail the snapshot
+                sb.setLength(start);
+                sb.append("...(rendering failed: ").append(e.getClass().getName()).append(')');
+            }
+        }
+
+        /**
+         * @return true if one of the snapshot wide limits was reached, the following values are not rendered
+         */
+        public boolean isExhausted() {
+            return renderedChars >= maxSnapshotChars || isDeadlineExceeded;
+        }
+
+        private void renderValue(Object value, int depth, StringBuilder sb) {
+            if (value == null) {
+                appendBounded("null", sb);
+            } else if (value instanceof CharSequence) {
+                appendBounded((CharSequence) value, sb);
+            } else if (value.getClass().isArray()) {
+                renderArray(value, depth, sb);
+            } else if (value instanceof Collection) {
+                renderCollection((Collection<?>) value, depth, sb);
+            } else if (value instanceof Map) {
+                renderMap((Map<?, ?>) value, depth, sb);
+            } else {
+                appendBounded(String.valueOf(value), sb);
+            }
+        }
+
+        private void renderArray(Object array, int depth, StringBuilder sb) {
+            final int length = Array.getLength(array);
+            if (!enterContainer(array, length, depth, sb)) {
+                return;
+            }
+
+            sb.append('[');
+            for (int i = 0; i < length; i++) {
+                if (!beginElement(i, length, sb, "]")) {
+                    return;
+                }
+                renderValue(Array.get(array, i), depth + 1, sb);
+            }
+            sb.append(']');
+        }
+
+        private void renderCollection(Collection<?> collection, int depth, StringBuilder sb) {
+            final int size = collection.size();
+            if (!enterContainer(collection, size, depth, sb)) {
+                return;
+            }
+
+            sb.append('[');
+            final Iterator<?> elements = collection.iterator();
+            for (int i = 0; elements.hasNext(); i++) {
+                if (!beginElement(i, size, sb, "]")) {
+                    return;
+                }
+                final Object element = elements.next();
+                if (element == collection) {
+                    appendBounded("(this Collection)", sb);
+                } else {
+                    renderValue(element, depth + 1, sb);
+                }
+            }
+            sb.append(']');
+        }
+
+        private void renderMap(Map<?, ?> map, int depth, StringBuilder sb) {
+            final int size = map.size();
+            if (!enterContainer(map, size, depth, sb)) {
+                return;
+            }
+
+            sb.append('{');
+            final Iterator<? extends Map.Entry<?, ?>> entries = map.entrySet().iterator();
+            for (int i = 0; entries.hasNext(); i++) {
+                if (!beginElement(i, size, sb, "}")) {
+                    return;
+                }
+                final Map.Entry<?, ?> entry = entries.next();
+                final Object key = entry.getKey();
+                final Object value = entry.getValue();
+                if (key == map) {
+                    appendBounded("(this Map)", sb);
+                } else {
+                    renderValue(key, depth + 1, sb);
+                }
+                appendBounded("=", sb);
+                if (value == map) {
+                    appendBounded("(this Map)", sb);
+                } else {
+                    renderValue(value, depth + 1, sb);
+                }
+            }
+            sb.append('}');
+        }
+
+        /**
+         * @return false if the container is not rendered because of the depth limit, a marker is written instead
+         */
+        private boolean enterContainer(Object container, int size, int depth, StringBuilder sb) {
+            if (depth < maxDepth) {
+                return true;
+            }
+            sb.append("...(depth limit, ").append(container.getClass().getName()).append(" of ").append(size)
+                    .append(')');
+            return false;
+        }
+
+        /**
+         * Writes the separator of the element, or the truncation marker and the closing bracket if no more elements
+         * fit into the limits.
+         *
+         * @return true if the element should be rendered
+         */
+        private boolean beginElement(int index, int size, StringBuilder sb, String closing) {
+            if (index > 0) {
+                sb.append(", ");
+            }
+            if (index >= maxElements || sb.length() >= valueLimit || isDeadlineExceededAtElement()) {
+                final int remaining = size - index;
+                sb.append("...(+").append(remaining > 0 ? String.valueOf(remaining) : "?").append(" more)");
+                sb.append(closing);
+                return false;
+            }
+            return true;
+        }
+
+        private void appendBounded(CharSequence text, StringBuilder sb) {
+            final int available = valueLimit - sb.length();
+            final int length = text.length();
+            if (length <= available) {
+                sb.append(text);
+                return;
+            }
+            if (available > 0) {
+                sb.append(text, 0, available);
+            }
+            sb.append("...(truncated, ").append(length).append(" chars)");
+        }
+
+        private boolean isDeadlineExceededAtElement() {
+            if (++elementsSinceDeadlineCheck < DEADLINE_CHECK_INTERVAL) {
+                return isDeadlineExceeded;
+            }
+            elementsSinceDeadlineCheck = 0;
+            return isDeadlineExceeded();
+        }
+
+        private boolean isDeadlineExceeded() {
+            if (!isDeadlineExceeded && System.nanoTime() - deadlineNanos > 0L) {
+                isDeadlineExceeded = true;
+            }
+            return isDeadlineExceeded;
+        }
+
+    }
+
+}
@@ -1,40 +1,233 @@
 package io.ghostwriter.rt.snaperr.tracker;
 
 import io.ghostwriter.rt.snaperr.api.TrackedScope;
-import io.ghostwriter.rt.snaperr.api.TrackedValue;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Stack implementation holding {@link TrackedScope} instances. Upon
  * {@link #pop()} the stack does not remove the TrackedScope instance from the
  * underlying list to reduce GC overhead, only it's values are set null.
+ * Every slot owns a {@link TrackedReferences} instance that is cleared on pop
+ * and reused by the next scope pushed into the same slot.
  * <p>
  * <p>
  * Based on {@link ArrayList} with an initial capacity of
- * {@link #INITIAL_CAPACITY}. While addition and deletion to the end of a list
- * is faster in LinkedList because there is no automatic reallocation of the
- * list, our implementation needs fast indexing for retrieving and inserting
- * elements in the middle of the list.
+ * {@link #INITIAL_CAPACITY} by default, allocated on the first push, so threads that never
+ * enter an instrumented method do not pay for it. While addition and deletion
+ * to the end of a list is faster in LinkedList because there is no automatic
+ * reallocation of the list, our implementation needs fast indexing for
+ * retrieving and inserting elements in the middle of the list.
+ * <p>
+ * At most {@link #maxDepth} scopes are tracked, every scope by default. With a
+ * limit, deeper scopes are only counted, so a deep recursion costs a counter
+ * increment per call once the limit is reached. Their variables go to a scratch storage that is never part of a
+ * snapshot, and the deepest tracked scope stays the current one.
+ * <p>
+ * Slots are kept for reuse, so a single deep call would retain its slots for
+ * the lifetime of the thread. The depth reached is recorded as a high-water
+ * mark, and every {@link #TRIM_INTERVAL} returns to depth 0 the slots above
+ * both {@link #retainedDepth} and the high-water mark of the interval are
+ * released, see {@link #cleanup()}. A thread that regularly goes deep keeps its
+ * slots, a one-off spike is released after the next interval.
+ * <p>
+ * A capture for another thread copies the scopes into a {@link ScopeChain}, the
+ * chain never refers to the slots. The scopes below {@link #frozenDepth} did not
+ * change since the {@link #latestCapture} copied them, the next capture shares
+ * those copies and only copies the scopes above them. Scopes propagated from
+ * another thread are attached as {@link #attachedChain}, they are iterated after
+ * the scopes of this stack.
+ * <p>
+ * With a sampling interval of N, only 1 in N invocation trees of the thread is
+ * tracked. The decision is made when a scope is pushed onto the empty stack,
+ * the scopes of an unsampled tree are only counted in {@link #unsampledDepth}
+ * and their variables are dropped. Work propagated from another thread is
+ * always tracked, its tree was sampled on the submitting thread.
+ * <p>
+ * Methods demoted by the {@link HotMethodDetector} are not tracked either. A
+ * demoted method and the scopes it pushes are only counted in
+ * {@link #demotedDepth}, the scope of its caller stays the current one. Pops
+ * follow the counters, so the stack stays balanced even if a method is demoted
+ * while it is running.
  *
  */
 class CallStackScope implements Iterable<TrackedScope> {
 
-    static final int INITIAL_CAPACITY = 256;
+    static final int INITIAL_CAPACITY = 32;
+
+    /**
+     * The depth is not limited by default, a limit drops the deepest scopes from the snapshots
+     */
+    static final int DEFAULT_MAX_DEPTH = Integer.MAX_VALUE;
+
+    static final int DEFAULT_RETAINED_DEPTH = 64;
+
+    /**
+     * Number of returns to depth 0 between two trims
+     */
+    static final int TRIM_INTERVAL = 64;
 
     /**
      * It's important to use ArrayList because it has O(1) cost for indexing
-     * elements in the middle of the list
+     * elements in the middle of the list. Null until the first push.
      */
-    private final List<TrackedScope> stack = new ArrayList<>(INITIAL_CAPACITY);
+    private ArrayList<TrackedScope> stack = null;
 
     /**
      * Index of last inserted element within <i>stack</i>
      */
     private int lastInsertedIndex = -1;
 
-    void push(Object source, String methodName, Map<String, TrackedValue> references) {
-        cleanup();
+    private final int maxDepth;
+
+    /**
+     * Number of scopes pushed beyond {@link #maxDepth} that were not popped yet
+     */
+    private int untrackedDepth = 0;
+
+    /**
+     * Receives the variables of the untracked scopes, created when the depth limit is first reached
+     */
+    private TrackedReferences untrackedReferences = null;
+
+    /**
+     * Number of slots kept by {@link #cleanup()} regardless of the high-water mark
+     */
+    private final int retainedDepth;
+
+    /**
+     * Capacity of the stack when it is allocated on the first push
+     */
+    private final int initialCapacity;
+
+    /**
+     * Deepest tracked depth since the last trim
+     */
+    private int highWaterMark = 0;
+
+    /**
+     * Deepest depth of the scope stack since the thread started, including the scopes beyond the depth limit. Written
+     * by the owner thread only, monitoring threads read it without synchronization.
+     */
+    private int deepestDepth = 0;
+
+    /**
+     * Returns to depth 0 since the last trim
+     */
+    private int returnsToBottom = 0;
+
+    /**
+     * The most recent capture of this stack, null if none of its copies is up to date
+     */
+    private ScopeChain latestCapture = null;
+
+    /**
+     * Number of slots from the bottom whose scopes did not change since the latest capture copied them. The current
+     * scope is never counted, its variables can change at any time.
+     */
+    private int frozenDepth = 0;
+
+    /**
+     * Scopes propagated from another thread, the parent of the scopes of this stack
+     */
+    private ScopeChain attachedChain = null;
+
+    /**
+     * Depth of the current invocation tree if it was not sampled, 0 while the tree is tracked
+     */
+    private int unsampledDepth = 0;
+
+    /**
+     * Invocation trees left until the next sampled one, 0 before the first sampling decision of the thread
+     */
+    private int samplingCountdown = 0;
+
+    /**
+     * Depth of the scopes pushed since entering a demoted method, 0 outside of demoted methods
+     */
+    private int demotedDepth = 0;
+
+    /**
+     * Pushes left until the next one that is counted by the hot method detection
+     */
+    private int hotMethodCountdown = 0;
+
+    /*
+     * The last demotion check of the thread, hot methods are usually called repeatedly in a row
+     */
+
+    private Class<?> checkedType = null;
+
+    private String checkedMethodName = null;
+
+    private int checkedDemotions = 0;
+
+    private boolean isCheckedMethodDemoted = false;
+
+    CallStackScope(int maxDepth, int retainedDepth, int initialCapacity) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Maximum depth must be positive, got: " + maxDepth);
+        }
+        if (retainedDepth < 0) {
+            throw new IllegalArgumentException("Retained depth must not be negative, got: " + retainedDepth);
+        }
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("Initial capacity must be positive, got: " + initialCapacity);
+        }
+        this.maxDepth = maxDepth;
+        this.retainedDepth = retainedDepth;
+        this.initialCapacity = initialCapacity;
+    }
+
+    CallStackScope(int maxDepth, int retainedDepth) {
+        this(maxDepth, retainedDepth, INITIAL_CAPACITY);
+    }
+
+    CallStackScope(int maxDepth) {
+        this(maxDepth, DEFAULT_RETAINED_DEPTH);
+    }
+
+    CallStackScope() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    void push(Object source, String methodName) {
+        push(source, methodName, 1);
+    }
+
+    /**
+     * @param samplingInterval 1 in this many invocation trees is tracked, only read when a new tree starts
+     */
+    void push(Object source, String methodName, int samplingInterval) {
+        if (demotedDepth > 0) {
+            demotedDepth++;
+            return;
+        }
+        if (unsampledDepth > 0) {
+            unsampledDepth++;
+            return;
+        }
+        if (lastInsertedIndex < 0 && samplingInterval > 1 && attachedChain == null && !isSampled(samplingInterval)) {
+            unsampledDepth = 1;
+            return;
+        }
+
+        if (untrackedDepth > 0 || lastInsertedIndex + 1 >= maxDepth) {
+            untrackedDepth++;
+            untrackedReferences().clear();
+            if (lastInsertedIndex + 1 + untrackedDepth > deepestDepth) {
+                deepestDepth = lastInsertedIndex + 1 + untrackedDepth;
+            }
+            return;
+        }
+
+        if (stack == null) {
+            stack = new ArrayList<>(initialCapacity);
+        }
 
         int stackLastElementIndex = stack.size() - 1;
         if (stackLastElementIndex == lastInsertedIndex) {
@@ -42,7 +235,7 @@ class CallStackScope implements Iterable<TrackedScope> {
              * We reached the end of the list, so we create and append a new
              * TrackedScope element to
              */
-            stack.add(new TrackedScope(source, methodName, references));
+            stack.add(new TrackedScope(source, methodName, new TrackedReferences()));
             lastInsertedIndex++;
         } else if (stackLastElementIndex > lastInsertedIndex) {
             /*
@@ -52,22 +245,225 @@ class CallStackScope implements Iterable<TrackedScope> {
             TrackedScope last = stack.get(++lastInsertedIndex);
             last.setSource(source);
             last.setMethodName(methodName);
-            last.setReferences(references);
         } else {
             throw new IllegalStateException("lastIndex '" + lastInsertedIndex
                     + "' must not be greater than stack size '" + stack.size());
         }
+
+        if (lastInsertedIndex >= highWaterMark) {
+            highWaterMark = lastInsertedIndex + 1;
+            // the high-water mark is never above the deepest depth, so it is only checked when the mark grows
+            if (highWaterMark > deepestDepth) {
+                deepestDepth = highWaterMark;
+            }
+        }
+    }
+
+    /**
+     * @return true if the method is demoted by the detector, the result of the previous check is reused if it was the
+     * same method and there were no demotions since
+     */
+    boolean isDemoted(HotMethodDetector detector, Object source, String methodName) {
+        final int demotions = detector.demotions();
+        if (demotions == 0) {
+            return false;
+        }
+        final Class<?> type = HotMethodDetector.sourceType(source);
+        if (type != checkedType || methodName != checkedMethodName || demotions != checkedDemotions) {
+            isCheckedMethodDemoted = detector.isDemoted(source, methodName);
+            checkedType = type;
+            checkedMethodName = methodName;
+            checkedDemotions = demotions;
+        }
+        return isCheckedMethodDemoted;
+    }
+
+    /**
+     * Enters a method demoted by the hot method detection, its scope is only counted.
+     */
+    void pushDemoted() {
+        demotedDepth++;
+    }
+
+    /**
+     * @return true while the thread is in a demoted method, or in one of the methods it calls
+     */
+    boolean isInDemotedMethod() {
+        return demotedDepth > 0;
+    }
+
+    /**
+     * @param sampleInterval about 1 in this many pushes is counted
+     * @return true if the push should be counted by the hot method detection
+     */
+    boolean isHotMethodSample(int sampleInterval) {
+        if (--hotMethodCountdown > 0) {
+            return false;
+        }
+        // randomized distances with the mean of the interval, so regular call patterns are not aliased
+        hotMethodCountdown = sampleInterval < 2 ? 1 : ThreadLocalRandom.current().nextInt(2 * sampleInterval - 1) + 1;
+        return true;
+    }
+
+    /**
+     * @return true if the invocation tree that starts now is tracked
+     */
+    private boolean isSampled(int samplingInterval) {
+        if (samplingCountdown <= 0 || samplingCountdown > samplingInterval) {
+            // first tree of the thread or the interval was lowered: a random phase, so threads do not sample in
+            // lockstep and threads that only run a few trees are sampled at the same rate
+            samplingCountdown = ThreadLocalRandom.current().nextInt(samplingInterval) + 1;
+        }
+        if (--samplingCountdown > 0) {
+            return false;
+        }
+        samplingCountdown = samplingInterval;
+        return true;
     }
 
     /**
      * Removes the last element from the list.
      */
     void pop() {
+        if (demotedDepth > 0) {
+            demotedDepth--;
+            return;
+        }
+        if (unsampledDepth > 0) {
+            unsampledDepth--;
+            return;
+        }
+        if (untrackedDepth > 0) {
+            untrackedDepth--;
+            untrackedReferences().clear();
+            return;
+        }
+
         TrackedScope peek = peek();
         peek.setMethodName(null);
-        peek.setReferences(null);
+        references(peek).clear();
         peek.setSource(null);
         lastInsertedIndex--;
+
+        if (lastInsertedIndex < frozenDepth) {
+            // the scope below is the current one again, its variables can change
+            frozenDepth = Math.max(lastInsertedIndex, 0);
+            if (frozenDepth == 0) {
+                latestCapture = null;
+            }
+        }
+
+        if (lastInsertedIndex < 0) {
+            cleanup();
+        }
+    }
+
+    /**
+     * Copies the scopes above {@link #frozenDepth}, the ones below it are shared with the previous capture.
+     *
+     * @return the tracked scopes of this stack and the ones attached to it, null if there are none
+     */
+    ScopeChain capture() {
+        final int depth = lastInsertedIndex + 1;
+        if (depth == 0) {
+            return attachedChain;
+        }
+
+        ScopeChain parent;
+        final int parentTop;
+        if (frozenDepth == 0) {
+            parent = attachedChain;
+            parentTop = attachedChain == null ? 0 : attachedChain.top();
+        } else {
+            // the chains of the previous captures above the frozen scopes hold copies that are out of date
+            parent = latestCapture;
+            while (parent.base() >= frozenDepth) {
+                parent = parent.parent();
+            }
+            parentTop = frozenDepth;
+        }
+
+        final TrackedScope[] scopes = new TrackedScope[depth - frozenDepth];
+        for (int i = frozenDepth; i < depth; i++) {
+            final TrackedScope scope = stack.get(i);
+            scopes[i - frozenDepth] = new TrackedScope(scope.getSource(), scope.getMethodName(),
+                    references(scope).copy());
+        }
+
+        latestCapture = new ScopeChain(this, scopes, frozenDepth, parent, parentTop);
+        frozenDepth = depth - 1;
+        return latestCapture;
+    }
+
+    /**
+     * @param chain scopes captured by another thread, null to remove the attached ones
+     * @return the previously attached scopes
+     */
+    ScopeChain attach(ScopeChain chain) {
+        final ScopeChain previous = attachedChain;
+        // work captured and executed by the same thread, the captured scopes are on this stack already
+        if (chain == null || chain.owner() != this) {
+            attachedChain = chain;
+            // the copies of the previous captures link to the scopes attached before
+            latestCapture = null;
+            frozenDepth = 0;
+        }
+        return previous;
+    }
+
+    /**
+     * @return the reference storage of the last inserted element, null if the invocation tree is not sampled or the
+     * current method is demoted
+     */
+    TrackedReferences peekReferences() {
+        if (demotedDepth > 0 || unsampledDepth > 0) {
+            return null;
+        }
+        if (untrackedDepth > 0) {
+            return untrackedReferences();
+        }
+        return references(peek());
+    }
+
+    private TrackedReferences untrackedReferences() {
+        if (untrackedReferences == null) {
+            untrackedReferences = new TrackedReferences();
+        }
+        return untrackedReferences;
+    }
+
+    /**
+     * @return number of scopes above the deepest tracked one, that were not tracked because of the depth limit
+     */
+    int untrackedDepth() {
+        return untrackedDepth;
+    }
+
+    /**
+     * @return current depth of the scope stack, including the scopes beyond the depth limit, but not the ones of
+     * unsampled invocation trees and demoted methods
+     */
+    int depth() {
+        return lastInsertedIndex + 1 + untrackedDepth;
+    }
+
+    /**
+     * @return deepest {@link #depth()} since the thread started
+     */
+    int deepestDepth() {
+        return deepestDepth;
+    }
+
+    /**
+     * @return false while the thread is in an invocation tree that was not sampled
+     */
+    boolean isSampled() {
+        return unsampledDepth == 0;
+    }
+
+    private static TrackedReferences references(TrackedScope trackedScope) {
+        // every TrackedScope of the stack is created by push(), so the storage is always a TrackedReferences
+        return (TrackedReferences) trackedScope.getReferences();
     }
 
     /**
@@ -78,6 +474,9 @@ class CallStackScope implements Iterable<TrackedScope> {
      * @return Last inserted element
      */
     TrackedScope peek() {
+        if (lastInsertedIndex < 0) {
+            throw new IndexOutOfBoundsException("The call stack is empty");
+        }
         TrackedScope trackedScope = stack.get(lastInsertedIndex);
         return trackedScope;
     }
@@ -91,46 +490,83 @@ class CallStackScope implements Iterable<TrackedScope> {
     }
 
     /**
-     * Cleans up unused {@link #stack} elements
+     * @return number of slots currently held, used or not
+     */
+    int retainedSlots() {
+        return stack == null ? 0 : stack.size();
+    }
+
+    /**
+     * Cleans up unused {@link #stack} elements. Called when the thread returns
+     * to depth 0, every {@link #TRIM_INTERVAL}th time it releases the slots
+     * above the larger of {@link #retainedDepth} and the high-water mark of the
+     * interval.
      */
     private void cleanup() {
-        // TODO: check what to do here
+        if (++returnsToBottom < TRIM_INTERVAL) {
+            return;
+        }
+        final int keptSlots = Math.max(retainedDepth, highWaterMark);
+        returnsToBottom = 0;
+        highWaterMark = 0;
+
+        final int size = stack.size();
+        if (size <= keptSlots) {
+            return;
+        }
+        stack.subList(keptSlots, size).clear();
+        stack.trimToSize();
     }
 
     /**
-     * Reverse order iterator
+     * Iterates the scopes from the innermost one, directly over the slots of the stack, nothing is copied. The scopes
+     * of the attached chain follow the ones of the stack.
+     * <p>
+     * Consistency: the stack is confined to its thread, so the iterator must be used by the owning thread, while the
+     * stack is not modified. This is the case when a snapshot is taken, the thread is stopped at the trigger. Scopes
+     * pushed after the creation of the iterator are not visible to it, popping scopes that were not iterated yet
+     * fails fast with a {@link ConcurrentModificationException}.
      */
     @Override
     public Iterator<TrackedScope> iterator() {
-        final int toIndexExclusive = lastInsertedIndex + 1;
-        List<TrackedScope> notNullElements = stack.subList(0, toIndexExclusive);
-        return new ScopeStackReverseIterator(notNullElements);
+        return new ScopeStackReverseIterator(lastInsertedIndex, attachedChain);
     }
 
-    public static class ScopeStackReverseIterator implements Iterator<TrackedScope> {
+    private final class ScopeStackReverseIterator implements Iterator<TrackedScope> {
 
-        final Iterator<TrackedScope> listIterator;
+        /**
+         * Index of the next scope to return, -1 once the bottom of the stack is passed.
+         */
+        private int cursor;
 
-        private ScopeStackReverseIterator(List<TrackedScope> stack) {
-            /*
-             * Create a new list, we take a snapshot to avoid concurrent
-             * modification
-             */
-            List<TrackedScope> stackCopy = new LinkedList<>(stack);
+        /**
+         * Scopes of the attached chain, iterated after the ones of the stack, null if there is no attached chain.
+         */
+        private final Iterator<TrackedScope> attachedScopes;
 
-            // Revert it, ListIterator#hasPrevious did not seem to work
-            Collections.reverse(stackCopy);
-            listIterator = stackCopy.iterator();
+        private ScopeStackReverseIterator(int topIndex, ScopeChain attachedChain) {
+            this.cursor = topIndex;
+            this.attachedScopes = attachedChain == null ? null : attachedChain.scopes();
         }
 
         @Override
         public boolean hasNext() {
-            return listIterator.hasNext();
+            return cursor >= 0 || (attachedScopes != null && attachedScopes.hasNext());
         }
 
         @Override
         public TrackedScope next() {
-            return listIterator.next();
+            if (cursor < 0) {
+                if (attachedScopes != null) {
+                    return attachedScopes.next();
+                }
+                throw new NoSuchElementException();
+            }
+            if (cursor > lastInsertedIndex) {
+                throw new ConcurrentModificationException("Scope at index " + cursor
+                        + " was popped during the iteration, current depth: " + (lastInsertedIndex + 1));
+            }
+            return stack.get(cursor--);
         }
 
         @Override
@@ -0,0 +1,384 @@
+package io.ghostwriter.rt.snaperr.tracker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects instrumented methods that are called so often that tracking them dominates the overhead of the tracer, and
+ * demotes them: their scopes are no longer tracked.
+ * <p>
+ * Counting is sampled, the {@link StackBasedReferenceTracker} reports about 1 in {@link #sampleInterval} scope pushes
+ * of each thread, at randomized distances, so regular call patterns are not aliased. The samples of a window are
+ * counted per method. At the end of the window the methods whose estimated call rate reached
+ * {@link #maxCallsPerSecond} are demoted. The first thread that notices the end of the window evaluates it.
+ * <p>
+ * The counters are plain atomic longs: sampling already thins out the updates, so striping them per method would cost
+ * more memory than the contention it saves. The counters of a window are dropped once it is evaluated, they do not
+ * keep classes reachable.
+ * <p>
+ * Demotion is permanent for the lifetime of the detector and takes effect immediately. Logging it and exporting the
+ * demoted methods happen on a background thread, the application thread that evaluates the window does not wait for
+ * the file system.
+ * <p>
+ * The probes only pass the instance a method is called on, so the detector sees the runtime class of the source, not the
+ * class declaring the method: an inherited method is demoted separately for every subclass it is called on. The
+ * instrumenter excludes methods by the class declaring them, so the export resolves the declaring class by the method
+ * name, walking up from the runtime class, see {@link #demotedMethods()}.
+ */
+public final class HotMethodDetector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HotMethodDetector.class);
+
+    public static final long DEFAULT_MAX_CALLS_PER_SECOND = 1000L * 1000L;
+
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+    public static final long DEFAULT_WINDOW_LENGTH_MS = 1000L;
+
+    private static final String[] NO_METHODS = new String[0];
+
+    private static final long REPORTER_KEEP_ALIVE_SECONDS = 10L;
+
+    private final long maxCallsPerSecond;
+
+    private final int sampleInterval;
+
+    private final long windowLengthMs;
+
+    /**
+     * Receives the list of demoted methods whenever it changes, null if it is not exported.
+     */
+    private final File exportFile;
+
+    /**
+     * Logs the demotions and exports the demoted methods, off the application threads.
+     */
+    private final Executor reporter;
+
+    private volatile ConcurrentMap<MethodKey, AtomicLong> windowSamples = new ConcurrentHashMap<>();
+
+    private final AtomicLong windowEndMs;
+
+    /**
+     * Incremented on every demotion, so callers caching the result of {@link #isDemoted(Object, String)} know when to
+     * check again. 0 while nothing is demoted.
+     */
+    private volatile int demotions = 0;
+
+    /**
+     * Demoted method names by the runtime class of the source, attached to the class so they are released together
+     * with it.
+     */
+    private final ClassValue<DemotedMethods> demotedMethodsByType = new ClassValue<DemotedMethods>() {
+        @Override
+        protected DemotedMethods computeValue(Class<?> type) {
+            return new DemotedMethods();
+        }
+    };
+
+    /**
+     * Qualified names of the demoted methods in the order of their demotion, guarded by this.
+     */
+    private final List<String> demotedMethods = new ArrayList<>();
+
+    /**
+     * @param maxCallsPerSecond methods called more often than this are demoted
+     * @param sampleInterval    about 1 in this many scope pushes of a thread is counted
+     * @param windowLengthMs    length of the measurement window
+     * @param exportFile        file that receives the list of the demoted methods whenever it changes, null to not
+     *                          export them
+     */
+    public HotMethodDetector(long maxCallsPerSecond, int sampleInterval, long windowLengthMs, File exportFile) {
+        this(maxCallsPerSecond, sampleInterval, windowLengthMs, exportFile, newReporter());
+    }
+
+    HotMethodDetector(long maxCallsPerSecond, int sampleInterval, long windowLengthMs, File exportFile,
+                      Executor reporter) {
+        if (maxCallsPerSecond < 1L || sampleInterval < 1 || windowLengthMs < 1L) {
+            throw new IllegalArgumentException("Invalid hot method detection, calls per second: " + maxCallsPerSecond
+                    + ", sample interval: " + sampleInterval + ", window: " + windowLengthMs + "ms");
+        }
+        this.maxCallsPerSecond = maxCallsPerSecond;
+        this.sampleInterval = sampleInterval;
+        this.windowLengthMs = windowLengthMs;
+        this.exportFile = exportFile;
+        this.reporter = reporter;
+        this.windowEndMs = new AtomicLong(System.currentTimeMillis() + windowLengthMs);
+    }
+
+    /**
+     * @param maxCallsPerSecond methods called more often than this are demoted
+     */
+    public HotMethodDetector(long maxCallsPerSecond) {
+        this(maxCallsPerSecond, DEFAULT_SAMPLE_INTERVAL, DEFAULT_WINDOW_LENGTH_MS, null);
+    }
+
+    public HotMethodDetector() {
+        this(DEFAULT_MAX_CALLS_PER_SECOND);
+    }
+
+    /**
+     * @return about 1 in this many scope pushes of a thread is reported to {@link #sample(Object, String)}
+     */
+    public int sampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * @param source     the instance or, for static methods, the class the method is called on
+     * @param methodName the called method
+     * @return true if the method is demoted, its scope should not be tracked
+     */
+    public boolean isDemoted(Object source, String methodName) {
+        if (demotions == 0) {
+            return false;
+        }
+
+        final String[] methodNames = demotedMethodsByType.get(sourceType(source)).methodNames;
+        for (String demotedMethodName : methodNames) {
+            if (demotedMethodName.equals(methodName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of demotions so far, results of {@link #isDemoted(Object, String)} are valid until it changes
+     */
+    public int demotions() {
+        return demotions;
+    }
+
+    /**
+     * Counts a sampled call, the window is evaluated if it is over.
+     */
+    public void sample(Object source, String methodName) {
+        final ConcurrentMap<MethodKey, AtomicLong> samples = windowSamples;
+        final MethodKey methodKey = new MethodKey(sourceType(source), methodName);
+        AtomicLong methodSamples = samples.get(methodKey);
+        if (methodSamples == null) {
+            final AtomicLong newMethodSamples = new AtomicLong();
+            methodSamples = samples.putIfAbsent(methodKey, newMethodSamples);
+            if (methodSamples == null) {
+                methodSamples = newMethodSamples;
+            }
+        }
+        methodSamples.incrementAndGet();
+
+        final long currentTimeMs = System.currentTimeMillis();
+        final long windowEnd = windowEndMs.get();
+        if (currentTimeMs >= windowEnd && windowEndMs.compareAndSet(windowEnd, currentTimeMs + windowLengthMs)) {
+            windowSamples = new ConcurrentHashMap<>();
+            // samples added by other threads while the window is swapped might be lost, the estimate is sampled anyway
+            evaluate(samples, currentTimeMs - (windowEnd - windowLengthMs));
+        }
+    }
+
+    private void evaluate(Map<MethodKey, AtomicLong> samples, long elapsedMs) {
+        final double maxSamples = (double) maxCallsPerSecond * elapsedMs / 1000d / sampleInterval;
+        for (Map.Entry<MethodKey, AtomicLong> entry : samples.entrySet()) {
+            final long methodSamples = entry.getValue().get();
+            if (methodSamples >= maxSamples) {
+                final MethodKey methodKey = entry.getKey();
+                if (demote(methodKey.type, methodKey.methodName)) {
+                    reportDemotion(methodKey, methodSamples * sampleInterval * 1000L / Math.max(elapsedMs, 1L));
+                }
+            }
+        }
+    }
+
+    private void reportDemotion(final MethodKey methodKey, final long callsPerSecond) {
+        reporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                LOG.info("Snaperr stops tracking the hot method " + qualifiedName(methodKey.type, methodKey.methodName)
+                        + ", called about " + callsPerSecond + " times per second");
+            }
+        });
+    }
+
+    /**
+     * Demotes a method regardless of its call rate.
+     *
+     * @param type the runtime class of the sources the method is called on, static methods pass their class
+     * @return false if the method was demoted already
+     */
+    public synchronized boolean demote(final Class<?> type, final String methodName) {
+        final DemotedMethods methods = demotedMethodsByType.get(type);
+        final String[] methodNames = methods.methodNames;
+        if (Arrays.asList(methodNames).contains(methodName)) {
+            return false;
+        }
+
+        final String[] newMethodNames = Arrays.copyOf(methodNames, methodNames.length + 1);
+        newMethodNames[methodNames.length] = methodName;
+        methods.methodNames = newMethodNames;
+        demotions++;
+
+        reporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                addDemotedMethod(qualifiedName(declaringType(type, methodName), methodName));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Runs on the reporter, resolving the declaring class walks the class hierarchy.
+     */
+    private void addDemotedMethod(String qualifiedName) {
+        synchronized (this) {
+            demotedMethods.add(qualifiedName);
+        }
+        if (exportFile != null) {
+            export(exportFile);
+        }
+    }
+
+    /**
+     * @return qualified names of the demoted methods, for example {@code com.acme.Point.getX}, in the order of their
+     * demotion. The class is the nearest one declaring a method of that name, starting from the runtime class, or the
+     * runtime class if none is found. Methods are listed once the reporter has processed their demotion. Joined with commas they can be passed to the {@code GHOSTWRITER_EXCLUDE_METHODS}
+     * compiler option, which replaces the default exclusions, so those have to be listed as well.
+     */
+    public synchronized List<String> demotedMethods() {
+        return Collections.unmodifiableList(new ArrayList<>(demotedMethods));
+    }
+
+    /**
+     * Writes the demoted methods, one per line, the file is replaced as a whole. Runs on the reporter, one export at a
+     * time, the latest one contains every demoted method.
+     */
+    private void export(File file) {
+        final List<String> demotedMethods = demotedMethods();
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temporaryFile.toPath()),
+                    Charset.forName("UTF-8")))) {
+                for (String demotedMethod : demotedMethods) {
+                    writer.write(demotedMethod);
+                    writer.write('\n');
+                }
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("Failed to export the demoted hot methods to " + file, e);
+        }
+    }
+
+    /**
+     * @return the name of the method as the instrumenter sees it, nested classes are separated by dots
+     */
+    private static String qualifiedName(Class<?> type, String methodName) {
+        final String canonicalName = type.getCanonicalName();
+        return (canonicalName == null ? type.getName() : canonicalName) + "." + methodName;
+    }
+
+    /**
+     * @return the class declaring a method of the given name, the nearest one starting from the given class, or the given
+     * class if none is found. Overloads are not distinguished, the probes only pass the name.
+     */
+    static Class<?> declaringType(Class<?> type, String methodName) {
+        try {
+            for (Class<?> candidate = type; candidate != null; candidate = candidate.getSuperclass()) {
+                for (Method method : candidate.getDeclaredMethods()) {
+                    if (method.getName().equals(methodName)) {
+                        return candidate;
+                    }
+                }
+            }
+        } catch (SecurityException | LinkageError e) {
+            LOG.debug("Failed to resolve the class declaring " + type.getName() + "." + methodName, e);
+        }
+        return type;
+    }
+
+    private static Executor newReporter() {
+        // the thread is only started when there is something to report and it exits when it is idle
+        final ThreadPoolExecutor reporter = new ThreadPoolExecutor(0, 1, REPORTER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ghostwriter-snaperr-hot-method-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return reporter;
+    }
+
+    /**
+     * @return class of the source, static methods pass their class as the source
+     */
+    static Class<?> sourceType(Object source) {
+        if (source == null) {
+            return Void.class;
+        }
+        return source instanceof Class ? (Class<?>) source : source.getClass();
+    }
+
+    private static final class DemotedMethods {
+
+        /**
+         * Replaced as a whole on demotion, so readers never see a partially updated array.
+         */
+        volatile String[] methodNames = NO_METHODS;
+
+    }
+
+    private static final class MethodKey {
+
+        private final Class<?> type;
+
+        private final String methodName;
+
+        MethodKey(Class<?> type, String methodName) {
+            this.type = type;
+            this.methodName = methodName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+            final MethodKey other = (MethodKey) o;
+            return type == other.type && methodName.equals(other.methodName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + methodName.hashCode();
+        }
+
+    }
+
+}
@@ -14,8 +14,45 @@ public interface ReferenceTracker {
 
     boolean isEmpty();
 
+    /**
+     * @return the innermost tracked scope, null if there is none, for example in an invocation tree that was not
+     * sampled
+     */
     TrackedScope currentScope();
 
     Iterator<TrackedScope> scopes();
 
+    /**
+     * @return number of scopes above the innermost tracked one that are not tracked, because of a depth limit
+     */
+    int untrackedDepth();
+
+    /**
+     * @return 1 in this many invocation trees is tracked per thread, 1 if every tree is tracked
+     */
+    int samplingInterval();
+
+    /**
+     * @return false if the current thread is in an invocation tree whose state is not tracked because of sampling
+     */
+    boolean isSampled();
+
+    /**
+     * Captures the tracked scopes of the current thread, including the ones attached to it, so they can be attached
+     * to the thread that executes work submitted by the current one. The names and values of the scopes are copied,
+     * scopes that did not change since the previous capture of the thread are shared with it.
+     *
+     * @return handle of the captured scopes, null if there are none
+     */
+    ScopeChain captureScopes();
+
+    /**
+     * Attaches scopes captured on another thread to the current one, they are iterated after the scopes of the current
+     * thread until they are replaced.
+     *
+     * @param scopes the captured scopes, null to remove the attached ones
+     * @return the previously attached scopes, to be restored once the propagated work is done
+     */
+    ScopeChain attachScopes(ScopeChain scopes);
+
 }
@@ -0,0 +1,113 @@
+package io.ghostwriter.rt.snaperr.tracker;
+
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable copy of the tracked scopes of a thread, as they were when {@link ReferenceTracker#captureScopes()} was
+ * called. Used to carry the scopes of a thread that submits work over to the thread that executes it.
+ * <p>
+ * The capturing thread copies the names and values of the captured scopes, the chain never refers to the storage of
+ * its call stack. The thread that executes the work only reads the frozen copies, while the capturing thread goes on
+ * changing and reusing its scopes. The tracked objects themselves are not copied, a snapshot reads them the same way
+ * as any other object shared between threads.
+ * <p>
+ * A chain covers a range of slots and links to the chain below it: consecutive captures of the same thread share
+ * the scopes that did not change in between, only the scopes above them are copied. A capture on a thread that
+ * executes propagated work links to the propagated chain.
+ */
+public final class ScopeChain {
+
+    private final CallStackScope owner;
+
+    /**
+     * Frozen copies of the captured slots, from the outermost one.
+     */
+    private final TrackedScope[] scopes;
+
+    private final int base;
+
+    private final ScopeChain parent;
+
+    /**
+     * Number of slots of the parent that belong to this chain, the parent may cover more.
+     */
+    private final int parentTop;
+
+    ScopeChain(CallStackScope owner, TrackedScope[] scopes, int base, ScopeChain parent, int parentTop) {
+        this.owner = owner;
+        this.scopes = scopes;
+        this.base = base;
+        this.parent = parent;
+        this.parentTop = parentTop;
+    }
+
+    CallStackScope owner() {
+        return owner;
+    }
+
+    int base() {
+        return base;
+    }
+
+    int top() {
+        return base + scopes.length;
+    }
+
+    ScopeChain parent() {
+        return parent;
+    }
+
+    /**
+     * @return iterator from the innermost captured scope
+     */
+    Iterator<TrackedScope> scopes() {
+        return new ChainIterator(this, top());
+    }
+
+    private static final class ChainIterator implements Iterator<TrackedScope> {
+
+        private ScopeChain chain;
+
+        /**
+         * Index of the next scope to return within the current chain.
+         */
+        private int cursor;
+
+        private ChainIterator(ScopeChain chain, int top) {
+            this.chain = chain;
+            this.cursor = top - 1;
+            skipExhaustedChains();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return chain != null;
+        }
+
+        @Override
+        public TrackedScope next() {
+            if (chain == null) {
+                throw new NoSuchElementException();
+            }
+            final TrackedScope scope = chain.scopes[cursor-- - chain.base];
+            skipExhaustedChains();
+            return scope;
+        }
+
+        private void skipExhaustedChains() {
+            while (chain != null && cursor < chain.base) {
+                cursor = chain.parentTop - 1;
+                chain = chain.parent;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Captured scopes cannot be removed");
+        }
+    }
+
+}
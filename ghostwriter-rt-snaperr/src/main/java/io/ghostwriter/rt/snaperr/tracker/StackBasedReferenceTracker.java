@@ -8,34 +8,214 @@ import java.util.*;
 
 public class StackBasedReferenceTracker implements ReferenceTracker {
 
+    public static final int DEFAULT_MAX_DEPTH = CallStackScope.DEFAULT_MAX_DEPTH;
+
+    public static final int DEFAULT_RETAINED_DEPTH = CallStackScope.DEFAULT_RETAINED_DEPTH;
+
+    public static final int DEFAULT_INITIAL_CAPACITY = CallStackScope.INITIAL_CAPACITY;
+
+    private final int maxDepth;
+
+    private final int retainedDepth;
+
+    /**
+     * 1 in this many invocation trees is tracked per thread, read whenever a thread starts a new tree
+     */
+    private volatile int samplingInterval = 1;
+
+    /**
+     * Demotes the hot methods, null if they are tracked as any other method
+     */
+    private volatile HotMethodDetector hotMethodDetector = null;
+
+    /**
+     * Call stacks of the threads by thread, null unless depth monitoring is enabled. The threads are weakly referenced,
+     * their stacks are dropped together with them.
+     */
+    private volatile Map<Thread, CallStackScope> monitoredThreadStacks = null;
+
     private ThreadLocal<CallStackScope> trackedThreadStack = new ThreadLocal<CallStackScope>() {
         @Override
         protected CallStackScope initialValue() {
-            CallStackScope trackedCallStackScope = new CallStackScope();
+            CallStackScope trackedCallStackScope = new CallStackScope(maxDepth, retainedDepth(retainedDepth),
+                    initialCapacity(DEFAULT_INITIAL_CAPACITY));
+            final Map<Thread, CallStackScope> threadStacks = monitoredThreadStacks;
+            if (threadStacks != null) {
+                threadStacks.put(Thread.currentThread(), trackedCallStackScope);
+            }
             return trackedCallStackScope;
         }
     };
 
+    /**
+     * @param maxDepth      maximum number of scopes tracked per thread, deeper scopes are only counted
+     * @param retainedDepth number of scope slots a thread keeps for reuse when it is idle, the ones above it are
+     *                      released unless the thread regularly needs them
+     */
+    public StackBasedReferenceTracker(int maxDepth, int retainedDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Maximum depth must be positive, got: " + maxDepth);
+        }
+        if (retainedDepth < 0) {
+            throw new IllegalArgumentException("Retained depth must not be negative, got: " + retainedDepth);
+        }
+        this.maxDepth = maxDepth;
+        this.retainedDepth = retainedDepth;
+    }
+
+    /**
+     * @param maxDepth maximum number of scopes tracked per thread, deeper scopes are only counted
+     */
+    public StackBasedReferenceTracker(int maxDepth) {
+        this(maxDepth, DEFAULT_RETAINED_DEPTH);
+    }
+
+    public StackBasedReferenceTracker() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Sizing of the call stack of the current thread, called once per thread, on its first tracked event. Subclasses
+     * can size the stack by the kind of the thread, the call stack itself is not visible to them.
+     *
+     * @param configuredRetainedDepth the retained depth given to the constructor
+     * @return number of scope slots the current thread keeps for reuse when it is idle
+     */
+    protected int retainedDepth(int configuredRetainedDepth) {
+        return configuredRetainedDepth;
+    }
+
+    /**
+     * @param defaultInitialCapacity {@link #DEFAULT_INITIAL_CAPACITY}
+     * @return number of scope slots allocated for the current thread on its first push, the stack grows as needed
+     * @see #retainedDepth(int)
+     */
+    protected int initialCapacity(int defaultInitialCapacity) {
+        return defaultInitialCapacity;
+    }
+
+    /**
+     * Sets the sampling rate, it can be changed at any time. Every thread decides at the start of each invocation
+     * tree, at the entry of an instrumented method called with an empty call stack, whether the tree is tracked. The
+     * scopes of an unsampled tree are only counted, their variables are not stored. Work propagated from a sampled
+     * tree to another thread is always tracked.
+     *
+     * @param samplingInterval 1 in this many invocation trees is tracked per thread, 1 tracks every tree
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException("Sampling interval must be positive, got: " + samplingInterval);
+        }
+        this.samplingInterval = samplingInterval;
+    }
+
+    /**
+     * Enables the demotion of hot methods: the methods the detector finds too hot are not tracked from then on. Their
+     * entering, value changes and exiting only maintain a counter, the scope of the caller stays the current one.
+     *
+     * @param hotMethodDetector the detector, null to track every method
+     */
+    public void setHotMethodDetector(HotMethodDetector hotMethodDetector) {
+        this.hotMethodDetector = hotMethodDetector;
+    }
+
+    public HotMethodDetector getHotMethodDetector() {
+        return hotMethodDetector;
+    }
+
+    /**
+     * Enables {@link #threadDepths()}. Every thread is registered on its first tracked event, threads that used the
+     * tracker before are not monitored. Registration takes a lock once per thread, with many short-lived threads, such
+     * as virtual threads, it is better left disabled.
+     */
+    public synchronized void enableDepthMonitoring() {
+        if (monitoredThreadStacks == null) {
+            monitoredThreadStacks = Collections.synchronizedMap(new WeakHashMap<Thread, CallStackScope>());
+        }
+    }
+
+    /**
+     * The depths are read without synchronization, they are recent but not necessarily current.
+     *
+     * @return current and deepest scope stack depth of the live monitored threads, empty if depth monitoring is not
+     * enabled
+     * @see #enableDepthMonitoring()
+     */
+    public List<ThreadDepth> threadDepths() {
+        final Map<Thread, CallStackScope> threadStacks = monitoredThreadStacks;
+        if (threadStacks == null) {
+            return Collections.emptyList();
+        }
+
+        final List<ThreadDepth> threadDepths = new ArrayList<>();
+        synchronized (threadStacks) {
+            for (Map.Entry<Thread, CallStackScope> entry : threadStacks.entrySet()) {
+                final Thread thread = entry.getKey();
+                final CallStackScope threadStack = entry.getValue();
+                if (thread != null && thread.isAlive()) {
+                    threadDepths.add(new ThreadDepth(thread.getName(), thread.getId(), threadStack.depth(),
+                            threadStack.deepestDepth()));
+                }
+            }
+        }
+        return threadDepths;
+    }
+
     @Override
-    public <T> void track(String variableName, T variableReference) {
-        final CallStackScope trackedScopes = trackedThreadStack.get();
-        final TrackedScope currentScope = trackedScopes.peek();
-        final Map<String, TrackedValue> references = currentScope.getReferences();
-        TrackedValue savedTrackedValue = references.get(variableName);
+    public int samplingInterval() {
+        return samplingInterval;
+    }
 
-        if (savedTrackedValue == null) {
-            TrackedValue trackedValue = new TrackedValue(Objects.requireNonNull(variableName), variableReference);
-            references.put(variableName, trackedValue);
-        } else {
-            savedTrackedValue.setValue(variableReference);
+    @Override
+    public boolean isSampled() {
+        return trackedThreadStack.get().isSampled();
+    }
+
+    @Override
+    public <T> void track(String variableName, T variableReference) {
+        final TrackedReferences references = trackedReferences();
+        if (references != null) {
+            references.track(variableName, variableReference);
         }
+    }
 
+    /**
+     * @return storage of the current scope, null if the current invocation tree is not sampled
+     */
+    private TrackedReferences trackedReferences() {
+        final CallStackScope trackedScopes = trackedThreadStack.get();
+        return trackedScopes.peekReferences();
     }
 
     @Override
     public void pushScope(Object source, String methodName) {
         final CallStackScope trackedScopes = trackedThreadStack.get();
-        trackedScopes.push(source, methodName, new HashMap<String, TrackedValue>());
+        final HotMethodDetector detector = hotMethodDetector;
+        if (detector != null && pushDemoted(trackedScopes, detector, source, methodName)) {
+            return;
+        }
+        trackedScopes.push(source, methodName, samplingInterval);
+    }
+
+    /**
+     * Kept out of {@link #pushScope(Object, String)}, so that it stays small enough to be inlined into the callers.
+     *
+     * @return true if the method is demoted, its scope was pushed as a demoted one
+     */
+    private static boolean pushDemoted(CallStackScope trackedScopes, HotMethodDetector detector, Object source,
+                                       String methodName) {
+        if (trackedScopes.isInDemotedMethod()) {
+            // the scopes of a demoted method are not tracked either, the push is counted as a demoted one
+            return false;
+        }
+        if (trackedScopes.isDemoted(detector, source, methodName)) {
+            trackedScopes.pushDemoted();
+            return true;
+        }
+        if (trackedScopes.isHotMethodSample(detector.sampleInterval())) {
+            detector.sample(source, methodName);
+        }
+        return false;
     }
 
     @Override
@@ -47,8 +227,17 @@ public class StackBasedReferenceTracker implements ReferenceTracker {
     @Override
     public TrackedScope currentScope() {
         final CallStackScope trackedScopes = trackedThreadStack.get();
+        if (trackedScopes.isEmpty()) {
+            return null;
+        }
         final TrackedScope currentScope = trackedScopes.peek();
-        Map<String, TrackedValue> lockedReferences = Collections.unmodifiableMap(currentScope.getReferences());
+        // the storage of the scope is reused after it is popped, so the caller gets a detached copy
+        final Map<String, TrackedValue> references = currentScope.getReferences();
+        final Map<String, TrackedValue> referencesCopy = new LinkedHashMap<>(references.size() * 2);
+        for (TrackedValue trackedValue : references.values()) {
+            referencesCopy.put(trackedValue.getName(), new TrackedValue(trackedValue.getName(), trackedValue.getValue()));
+        }
+        Map<String, TrackedValue> lockedReferences = Collections.unmodifiableMap(referencesCopy);
         return new TrackedScope(currentScope.getSource(), currentScope.getMethodName(), lockedReferences);
     }
 
@@ -58,9 +247,25 @@ public class StackBasedReferenceTracker implements ReferenceTracker {
         return trackedScopes.isEmpty();
     }
 
+    @Override
+    public int untrackedDepth() {
+        return trackedThreadStack.get().untrackedDepth();
+    }
+
+    @Override
+    public ScopeChain captureScopes() {
+        return trackedThreadStack.get().capture();
+    }
+
+    @Override
+    public ScopeChain attachScopes(ScopeChain scopes) {
+        return trackedThreadStack.get().attach(scopes);
+    }
+
     /**
-     * Will return a reverse order iterator of a copy list
-     * therefore remove() operation is unsupported
+     * Will return a reverse order iterator over the live call stack of the
+     * current thread, nothing is copied, followed by the scopes attached from
+     * another thread. The remove() operation is unsupported.
      */
     @Override
     public Iterator<TrackedScope> scopes() {
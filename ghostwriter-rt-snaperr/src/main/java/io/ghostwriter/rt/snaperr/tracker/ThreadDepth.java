@@ -0,0 +1,55 @@
+package io.ghostwriter.rt.snaperr.tracker;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Scope stack depth of a thread, as seen by {@link StackBasedReferenceTracker#threadDepths()}.
+ * <p>
+ * The constructor parameters are named, so the class can be returned by MXBean attributes.
+ */
+public final class ThreadDepth {
+
+    private final String threadName;
+
+    private final long threadId;
+
+    private final int depth;
+
+    private final int deepestDepth;
+
+    @ConstructorProperties({"threadName", "threadId", "depth", "deepestDepth"})
+    public ThreadDepth(String threadName, long threadId, int depth, int deepestDepth) {
+        this.threadName = threadName;
+        this.threadId = threadId;
+        this.depth = depth;
+        this.deepestDepth = deepestDepth;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * @return current number of scopes on the stack of the thread, including the ones beyond the depth limit
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return deepest depth of the stack since the thread started
+     */
+    public int getDeepestDepth() {
+        return deepestDepth;
+    }
+
+    @Override
+    public String toString() {
+        return threadName + " (" + threadId + "): depth " + depth + ", deepest " + deepestDepth;
+    }
+
+}
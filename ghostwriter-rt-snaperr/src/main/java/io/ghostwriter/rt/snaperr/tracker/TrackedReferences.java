@@ -0,0 +1,233 @@
+package io.ghostwriter.rt.snaperr.tracker;
+
+import io.ghostwriter.rt.snaperr.api.TrackedValue;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Reusable storage of the tracked variables of a single {@link CallStackScope} slot, kept in parallel arrays and
+ * looked up by variable name.
+ * <p>
+ * Every variable of the frame gets the next free index of the arrays the first time it is tracked: its name in a
+ * String[], its value in an Object[]. The arrays are kept when the frame is cleared, the next frame pushed into the
+ * same slot reuses them, so tracking does not allocate once they are large enough.
+ * <p>
+ * Tracking still looks the variable up by name: the valueChange probe of the GhostWriter API only passes the name, the
+ * instrumenter cannot hand over an index without a new probe. What is saved compared to a hash map is hashing the
+ * name and allocating entries, not the lookup. Methods typically have a handful of variables, the search is linear.
+ * Before scanning, the index of the previously tracked variable and the one after it are checked: the same variable
+ * is tracked repeatedly by loops and parameters are tracked one after the other on method entry. Variable names passed
+ * by the instrumented code are string literals, so the names are compared by identity first.
+ * <p>
+ * The {@link Map} view, used when a snapshot is serialized, materializes {@link TrackedValue} instances on demand.
+ * They are also reused between frames. The map is not thread-safe, it is confined to the thread that owns the
+ * call stack. Modification is only possible through the track methods and {@link #clear()}.
+ */
+final class TrackedReferences extends AbstractMap<String, TrackedValue> {
+
+    static final int INITIAL_CAPACITY = 8;
+
+    private static final String[] NO_NAMES = {};
+    private static final Object[] NO_REFERENCES = {};
+    private static final TrackedValue[] NO_VIEWS = {};
+
+    /*
+     * The arrays are allocated with INITIAL_CAPACITY when the first variable is tracked, scopes of methods without
+     * tracked variables and the scratch storage of the call stack do not need them.
+     */
+
+    private String[] names = NO_NAMES;
+
+    private Object[] references = NO_REFERENCES;
+
+    /**
+     * Lazily created views of the slots, see {@link #view(int)}.
+     */
+    private TrackedValue[] views = NO_VIEWS;
+
+    /**
+     * Number of slots in use.
+     */
+    private int size = 0;
+
+    /**
+     * Slot of the last tracked variable, used as a hint for the lookup of the next one.
+     */
+    private int lastSlot = -1;
+
+    private final Set<Map.Entry<String, TrackedValue>> entrySet = new EntrySet();
+
+    void track(String variableName, Object value) {
+        final int slot = slot(variableName);
+        references[slot] = value;
+    }
+
+    /**
+     * Removes every value, the storage arrays and the views are kept for reuse.
+     */
+    @Override
+    public void clear() {
+        // do not keep the application objects reachable after the frame exited
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(references, 0, size, null);
+        for (int i = 0; i < size; i++) {
+            final TrackedValue view = views[i];
+            if (view != null) {
+                view.setName(null);
+                view.setValue(null);
+            }
+        }
+        size = 0;
+        lastSlot = -1;
+    }
+
+    /**
+     * @return unmodifiable copy of the tracked variables, it does not share any state with this storage
+     */
+    Map<String, TrackedValue> copy() {
+        if (size == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<String, TrackedValue> copy = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            copy.put(names[i], new TrackedValue(names[i], references[i]));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    @Override
+    public TrackedValue get(Object key) {
+        final int slot = indexOf(key);
+        return slot < 0 ? null : view(slot);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, TrackedValue>> entrySet() {
+        return entrySet;
+    }
+
+    /**
+     * @return slot of the variable, a new slot is assigned if the variable was not tracked before
+     */
+    private int slot(String variableName) {
+        Objects.requireNonNull(variableName);
+
+        int slot = indexOf(variableName);
+        if (slot < 0) {
+            if (size == names.length) {
+                resize(Math.max(INITIAL_CAPACITY, size * 2));
+            }
+            slot = size++;
+            names[slot] = variableName;
+        }
+        lastSlot = slot;
+
+        return slot;
+    }
+
+    private int indexOf(Object name) {
+        // the same variable again (loop counters, accumulators) or the next one (parameters on method entry)
+        final int nextSlot = lastSlot + 1;
+        if (lastSlot >= 0 && names[lastSlot] == name) {
+            return lastSlot;
+        }
+        if (nextSlot < size && names[nextSlot] == name) {
+            return nextSlot;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+
+        if (name == null) {
+            return -1;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        names = Arrays.copyOf(names, capacity);
+        references = Arrays.copyOf(references, capacity);
+        views = Arrays.copyOf(views, capacity);
+    }
+
+    /**
+     * @return a {@link TrackedValue} holding the current value of the slot
+     */
+    private TrackedValue view(int slot) {
+        TrackedValue view = views[slot];
+        if (view == null) {
+            view = new TrackedValue(null, null);
+            views[slot] = view;
+        }
+        view.setName(names[slot]);
+        view.setValue(references[slot]);
+
+        return view;
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, TrackedValue>> {
+
+        @Override
+        public Iterator<Map.Entry<String, TrackedValue>> iterator() {
+            return new Iterator<Map.Entry<String, TrackedValue>>() {
+
+                private int slot = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return slot < size;
+                }
+
+                @Override
+                public Map.Entry<String, TrackedValue> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    final TrackedValue trackedValue = view(slot++);
+                    return new SimpleImmutableEntry<>(trackedValue.getName(), trackedValue);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
+}
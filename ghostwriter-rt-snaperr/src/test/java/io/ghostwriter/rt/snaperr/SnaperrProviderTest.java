@@ -0,0 +1,55 @@
+package io.ghostwriter.rt.snaperr;
+
+import io.ghostwriter.rt.snaperr.core.AsyncTriggerHandler;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SnaperrProviderTest {
+
+    private static final String OPTION = "ghostwriter.snaperr.test.option";
+
+    @After
+    public void clearOption() {
+        System.clearProperty(OPTION);
+    }
+
+    @Test
+    public void testNumericOptionsAreParsed() {
+        System.setProperty(OPTION, " 42 ");
+        assertEquals(42, SnaperrProvider.getIntOption(OPTION, 1));
+        assertEquals(42L, SnaperrProvider.getLongOption(OPTION, 1L));
+        assertEquals(42d, SnaperrProvider.getDoubleOption(OPTION, 1d), 0d);
+    }
+
+    @Test
+    public void testMissingOptionsUseTheDefault() {
+        assertEquals(1, SnaperrProvider.getIntOption(OPTION, 1));
+        assertEquals(1L, SnaperrProvider.getLongOption(OPTION, 1L));
+        assertEquals(1d, SnaperrProvider.getDoubleOption(OPTION, 1d), 0d);
+        assertEquals(AsyncTriggerHandler.OverflowPolicy.BLOCK_WITH_DEADLINE,
+                SnaperrProvider.getEnumOption(OPTION, AsyncTriggerHandler.OverflowPolicy.BLOCK_WITH_DEADLINE));
+    }
+
+    @Test
+    public void testMalformedOptionsFallBackToTheDefault() {
+        System.setProperty(OPTION, "10ms");
+        assertEquals(1, SnaperrProvider.getIntOption(OPTION, 1));
+        assertEquals(1L, SnaperrProvider.getLongOption(OPTION, 1L));
+        assertEquals(1d, SnaperrProvider.getDoubleOption(OPTION, 1d), 0d);
+        assertEquals(AsyncTriggerHandler.OverflowPolicy.BLOCK_WITH_DEADLINE,
+                SnaperrProvider.getEnumOption(OPTION, AsyncTriggerHandler.OverflowPolicy.BLOCK_WITH_DEADLINE));
+
+        System.setProperty(OPTION, String.valueOf(Integer.MAX_VALUE + 1L));
+        assertEquals(1, SnaperrProvider.getIntOption(OPTION, 1));
+    }
+
+    @Test
+    public void testEnumOptionsIgnoreCase() {
+        System.setProperty(OPTION, "drop_oldest");
+        assertEquals(AsyncTriggerHandler.OverflowPolicy.DROP_OLDEST,
+                SnaperrProvider.getEnumOption(OPTION, AsyncTriggerHandler.OverflowPolicy.BLOCK_WITH_DEADLINE));
+    }
+
+}
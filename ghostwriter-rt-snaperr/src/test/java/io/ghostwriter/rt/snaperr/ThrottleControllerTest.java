@@ -4,11 +4,15 @@ import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
 import io.ghostwriter.rt.snaperr.api.TrackedScope;
 import io.ghostwriter.rt.snaperr.core.ThrottleController;
 import io.ghostwriter.rt.snaperr.tracker.ReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.ScopeChain;
 import org.junit.Test;
 
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -53,6 +57,58 @@ public class ThrottleControllerTest {
         assertTrue("Throttle control should allow handling error at time " + currentTimeMillis[0], handleError);
     }
 
+    /**
+     * Triggers raised by multiple threads at the same time must not exceed the limit of the window,
+     * without the caller synchronizing on the throttler.
+     */
+    @Test
+    public void testConcurrentThrottleControl() throws Exception {
+        final int maxErrorsInWindow = 10;
+        final ThrottleController throttleControl = new ThrottleController(1000, maxErrorsInWindow) {
+
+            @Override
+            protected long currentTimeMillis() {
+                return 0L;
+            }
+
+        };
+
+        final ErrorTrigger dummyErrorTrigger = new ErrorTrigger(new MockReferenceTracker(), new NullPointerException());
+        final int NUMBER_OF_THREADS = 8;
+        final int ERRORS_PER_THREAD = 1000;
+        final CyclicBarrier gate = new CyclicBarrier(NUMBER_OF_THREADS);
+        final AtomicInteger handledErrors = new AtomicInteger();
+
+        Thread[] threads = new Thread[NUMBER_OF_THREADS];
+        for (int i = 0; i < NUMBER_OF_THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+
+                    for (int j = 0; j < ERRORS_PER_THREAD; j++) {
+                        if (throttleControl.doHandleError(dummyErrorTrigger)) {
+                            handledErrors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Number of handled errors does not match the window limit", maxErrorsInWindow, handledErrors.get());
+        assertEquals("Number of throttled errors is off", NUMBER_OF_THREADS * ERRORS_PER_THREAD - maxErrorsInWindow,
+                throttleControl.getThrottledTriggerCount());
+    }
+
     private static class MockReferenceTracker implements ReferenceTracker {
 
         @Override
@@ -84,6 +140,31 @@ public class ThrottleControllerTest {
         public Iterator<TrackedScope> scopes() {
             return Collections.emptyIterator();
         }
+
+        @Override
+        public int untrackedDepth() {
+            return 0;
+        }
+
+        @Override
+        public int samplingInterval() {
+            return 1;
+        }
+
+        @Override
+        public boolean isSampled() {
+            return true;
+        }
+
+        @Override
+        public ScopeChain captureScopes() {
+            return null;
+        }
+
+        @Override
+        public ScopeChain attachScopes(ScopeChain scopes) {
+            return null;
+        }
     }
 
 }
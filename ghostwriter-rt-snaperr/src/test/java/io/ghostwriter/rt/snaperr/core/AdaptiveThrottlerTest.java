@@ -0,0 +1,196 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.NoopTriggerHandler;
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.api.CostAwareThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveThrottlerTest {
+
+    private static final long MS = 1000L * 1000;
+
+    private final ErrorTrigger errorTrigger = new ErrorTrigger(new StackBasedReferenceTracker(), new IllegalStateException());
+
+    @Test
+    public void testInitialRateBeforeAnyCostIsKnown() {
+        final AdaptiveThrottler throttler = throttler(new long[]{0L});
+
+        assertEquals(5, throttler.getAdmissionRate());
+        assertEquals(5, admitted(throttler, 100));
+        assertEquals(95L, throttler.getThrottledTriggerCount());
+    }
+
+    @Test
+    public void testCheapTriggersAreAdmittedMoreOften() {
+        final long[] currentTimeMillis = {0L};
+        final AdaptiveThrottler throttler = throttler(currentTimeMillis);
+
+        admitted(throttler, 5);
+        for (int i = 0; i < 5; i++) {
+            throttler.recordCost(MS / 2);
+        }
+        currentTimeMillis[0] = 1000L;
+
+        assertEquals(20, admitted(throttler, 100));
+        assertEquals(20, throttler.getAdmissionRate());
+        assertEquals(MS / 2, throttler.getAverageCostNanos());
+    }
+
+    @Test
+    public void testExpensiveTriggersAreAdmittedLessOften() {
+        final long[] currentTimeMillis = {0L};
+        final AdaptiveThrottler throttler = throttler(currentTimeMillis);
+
+        admitted(throttler, 1);
+        throttler.recordCost(20 * MS);
+        currentTimeMillis[0] = 1000L;
+
+        assertEquals(1, admitted(throttler, 100));
+        assertEquals(1, throttler.getAdmissionRate());
+    }
+
+    @Test
+    public void testCostIsSmoothedAcrossWindows() {
+        final long[] currentTimeMillis = {0L};
+        final AdaptiveThrottler throttler = throttler(currentTimeMillis);
+
+        throttler.recordCost(MS);
+        currentTimeMillis[0] = 1000L;
+        admitted(throttler, 1);
+        assertEquals(10, throttler.getAdmissionRate());
+
+        throttler.recordCost(9 * MS);
+        currentTimeMillis[0] = 2000L;
+        admitted(throttler, 1);
+        assertEquals(5 * MS, throttler.getAverageCostNanos());
+        assertEquals(2, throttler.getAdmissionRate());
+    }
+
+    @Test
+    public void testRateIsKeptWithoutMeasurements() {
+        final long[] currentTimeMillis = {0L};
+        final AdaptiveThrottler throttler = throttler(currentTimeMillis);
+
+        throttler.recordCost(MS);
+        currentTimeMillis[0] = 1000L;
+        admitted(throttler, 1);
+        currentTimeMillis[0] = 2000L;
+
+        assertEquals(10, admitted(throttler, 100));
+    }
+
+    @Test
+    public void testTracerMeasuresTheAdmittedTriggers() {
+        final AdaptiveThrottler throttler = new AdaptiveThrottler(AdaptiveThrottler.CostClock.CPU_TIME, MS);
+        final CountingThrottler countingThrottler = new CountingThrottler(throttler);
+        final SnaperrTracer tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new StringSerializer(),
+                new NoopTriggerHandler(), countingThrottler);
+
+        tracer.entering(this, "failing");
+        tracer.onError(this, "failing", new IllegalStateException());
+        tracer.exiting(this, "failing");
+        tracer.timeout(this, "slow", 10L, 20L);
+
+        assertEquals(2, countingThrottler.measuredTriggers);
+    }
+
+    @Test
+    public void testTracerMeasuresTheTriggersOfAFailingHandler() {
+        final CountingThrottler countingThrottler = new CountingThrottler(new AdaptiveThrottler(AdaptiveThrottler.CostClock.CPU_TIME, MS));
+        final SnaperrTracer tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new StringSerializer(),
+                new NoopTriggerHandler() {
+                    @Override
+                    public void onError(String serializedError) {
+                        throw new IllegalStateException("handler failure");
+                    }
+
+                    @Override
+                    public void onTimeout(String serializedTimeout) {
+                        throw new IllegalStateException("handler failure");
+                    }
+                }, countingThrottler);
+
+        tracer.entering(this, "failing");
+        try {
+            tracer.onError(this, "failing", new IllegalStateException());
+        } catch (IllegalStateException expected) {
+            // the cost is measured anyway
+        }
+        tracer.exiting(this, "failing");
+        try {
+            tracer.timeout(this, "slow", 10L, 20L);
+        } catch (IllegalStateException expected) {
+            // the cost is measured anyway
+        }
+
+        assertEquals(2, countingThrottler.measuredTriggers);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        new AdaptiveThrottler(AdaptiveThrottler.CostClock.WALL_TIME, 1000L, MS, 10, 5);
+    }
+
+    /**
+     * 10ms budget per second, between 1 and 20 triggers per window.
+     */
+    private static AdaptiveThrottler throttler(final long[] currentTimeMillis) {
+        return new AdaptiveThrottler(AdaptiveThrottler.CostClock.WALL_TIME, 1000L, 10 * MS, 1, 20) {
+
+            @Override
+            protected long currentTimeMillis() {
+                return currentTimeMillis[0];
+            }
+
+        };
+    }
+
+    private int admitted(AdaptiveThrottler throttler, int triggers) {
+        int admitted = 0;
+        for (int i = 0; i < triggers; i++) {
+            if (throttler.doHandleError(errorTrigger)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    private static class CountingThrottler implements CostAwareThrottler {
+
+        private final AdaptiveThrottler throttler;
+
+        private int measuredTriggers = 0;
+
+        CountingThrottler(AdaptiveThrottler throttler) {
+            this.throttler = throttler;
+        }
+
+        @Override
+        public long startCostMeasurement() {
+            return throttler.startCostMeasurement();
+        }
+
+        @Override
+        public void stopCostMeasurement(long startMark) {
+            measuredTriggers++;
+            throttler.stopCostMeasurement(startMark);
+        }
+
+        @Override
+        public boolean doHandleTimeout(TimeoutTrigger timeoutTrigger) {
+            return throttler.doHandleTimeout(timeoutTrigger);
+        }
+
+        @Override
+        public boolean doHandleError(ErrorTrigger errorTrigger) {
+            return throttler.doHandleError(errorTrigger);
+        }
+
+    }
+
+}
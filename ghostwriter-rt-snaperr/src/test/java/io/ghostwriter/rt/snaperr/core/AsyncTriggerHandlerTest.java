@@ -0,0 +1,218 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.NoopTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.BatchTriggerHandler;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncTriggerHandlerTest {
+
+    @Test
+    public void testTriggersDeliveredInOrder() {
+        final RecordingTriggerHandler sink = new RecordingTriggerHandler(null);
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(sink);
+
+        asyncHandler.onError("error1");
+        asyncHandler.onTimeout("timeout1");
+        asyncHandler.onError("error2");
+        asyncHandler.close();
+
+        assertEquals(Arrays.asList("ERROR:error1", "TIMEOUT:timeout1", "ERROR:error2"), sink.getReceived());
+        assertEquals(3L, asyncHandler.getHandledTriggerCount());
+        assertEquals(0L, asyncHandler.getDroppedTriggerCount());
+    }
+
+    @Test
+    public void testDropNewestPolicy() throws InterruptedException {
+        final List<String> received = handleWithStalledSink(AsyncTriggerHandler.OverflowPolicy.DROP_NEWEST, 1L);
+        assertEquals(Arrays.asList("ERROR:first", "ERROR:a", "ERROR:b"), received);
+    }
+
+    @Test
+    public void testDropOldestPolicy() throws InterruptedException {
+        final List<String> received = handleWithStalledSink(AsyncTriggerHandler.OverflowPolicy.DROP_OLDEST, 1L);
+        assertEquals(Arrays.asList("ERROR:first", "ERROR:b", "ERROR:c"), received);
+    }
+
+    @Test
+    public void testBlockWithDeadlinePolicy() throws InterruptedException {
+        final List<String> received = handleWithStalledSink(AsyncTriggerHandler.OverflowPolicy.BLOCK_WITH_DEADLINE, 1L);
+        assertEquals(Arrays.asList("ERROR:first", "ERROR:a", "ERROR:b"), received);
+    }
+
+    @Test
+    public void testTriggersRaisedWhileClosingAreNotLost() throws InterruptedException {
+        final RecordingTriggerHandler sink = new RecordingTriggerHandler(null);
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(sink, 4096, 16,
+                AsyncTriggerHandler.OverflowPolicy.DROP_NEWEST, 1L);
+        final int producers = 4;
+        final int triggersPerProducer = 2000;
+        final CountDownLatch started = new CountDownLatch(producers);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int j = 0; j < triggersPerProducer; j++) {
+                        asyncHandler.onError("error");
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        started.await();
+        asyncHandler.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every trigger is either handled by the final drain or counted as dropped
+        assertEquals(0, asyncHandler.getQueuedTriggerCount());
+        assertEquals(sink.getReceived().size(), asyncHandler.getHandledTriggerCount());
+        assertEquals(producers * triggersPerProducer,
+                asyncHandler.getHandledTriggerCount() + asyncHandler.getDroppedTriggerCount());
+
+        asyncHandler.onError("late");
+        assertEquals(producers * triggersPerProducer + 1,
+                asyncHandler.getHandledTriggerCount() + asyncHandler.getDroppedTriggerCount());
+    }
+
+    /**
+     * The sink stalls on the first trigger, while 'a', 'b' and 'c' are raised into a buffer that can only hold 2 of them.
+     */
+    private List<String> handleWithStalledSink(AsyncTriggerHandler.OverflowPolicy overflowPolicy, long blockDeadlineMs)
+            throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingTriggerHandler sink = new RecordingTriggerHandler(release);
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(sink, 2, 1, overflowPolicy, blockDeadlineMs);
+
+        asyncHandler.onError("first");
+        assertTrue("consumer did not pick up the first trigger", sink.awaitFirstTrigger());
+
+        asyncHandler.onError("a");
+        asyncHandler.onError("b");
+        assertEquals(2, asyncHandler.getQueuedTriggerCount());
+        asyncHandler.onError("c");
+        assertEquals(1L, asyncHandler.getDroppedTriggerCount());
+
+        release.countDown();
+        asyncHandler.close();
+        return sink.getReceived();
+    }
+
+    @Test
+    public void testBinaryTriggersAreDroppedForTextDelegates() {
+        final RecordingTriggerHandler sink = new RecordingTriggerHandler(null);
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(sink);
+
+        // the delegate could only receive the bytes as a String, which corrupts them
+        asyncHandler.onError(new byte[]{1, 2, 3});
+        asyncHandler.onError("error");
+        asyncHandler.close();
+
+        assertEquals(Collections.singletonList("ERROR:error"), sink.getReceived());
+        assertEquals(1L, asyncHandler.getDroppedTriggerCount());
+    }
+
+    @Test
+    public void testFailedTriggersAreNotCountedAsHandled() {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(new NoopTriggerHandler() {
+            @Override
+            public void onError(String serializedError) {
+                if ("failing".equals(serializedError)) {
+                    throw new IllegalStateException("sink failure");
+                }
+                received.add(serializedError);
+            }
+        });
+
+        asyncHandler.onError("failing");
+        asyncHandler.onError("error");
+        asyncHandler.close();
+
+        // the rest of the batch still reaches the delegate
+        assertEquals(Collections.singletonList("error"), received);
+        assertEquals(1L, asyncHandler.getHandledTriggerCount());
+        assertEquals(1L, asyncHandler.getFailedTriggerCount());
+    }
+
+    @Test
+    public void testFailedBatchesAreNotCountedAsHandled() {
+        final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(new RecordingTriggerHandler(null) {
+            @Override
+            public void onBatch(List<SerializedTrigger> batch) {
+                throw new IllegalStateException("sink failure");
+            }
+        });
+
+        asyncHandler.onError("error1");
+        asyncHandler.onTimeout("timeout1");
+        asyncHandler.close();
+
+        assertEquals(0L, asyncHandler.getHandledTriggerCount());
+        assertEquals(2L, asyncHandler.getFailedTriggerCount());
+        assertEquals(0L, asyncHandler.getDroppedTriggerCount());
+    }
+
+    private static class RecordingTriggerHandler implements BatchTriggerHandler {
+
+        private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        private final CountDownLatch firstTrigger = new CountDownLatch(1);
+
+        private final CountDownLatch release;
+
+        RecordingTriggerHandler(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void onBatch(List<SerializedTrigger> batch) {
+            for (SerializedTrigger trigger : batch) {
+                received.add(trigger.getType() + ":" + trigger.getPayload());
+            }
+            firstTrigger.countDown();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void onError(String serializedError) {
+            throw new UnsupportedOperationException("batches are expected");
+        }
+
+        @Override
+        public void onTimeout(String serializedTimeout) {
+            throw new UnsupportedOperationException("batches are expected");
+        }
+
+        boolean awaitFirstTrigger() throws InterruptedException {
+            return firstTrigger.await(5, TimeUnit.SECONDS);
+        }
+
+        List<String> getReceived() {
+            return new ArrayList<>(received);
+        }
+
+    }
+
+}
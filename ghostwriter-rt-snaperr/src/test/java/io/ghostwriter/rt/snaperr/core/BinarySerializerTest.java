@@ -0,0 +1,154 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinarySerializerTest {
+
+    @Test
+    public void testErrorTriggerRoundTrip() throws IOException {
+        final StackBasedReferenceTracker referenceTracker = trackedCallStack();
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new NullPointerException("A wild exception has appeared!"));
+
+        final byte[] record = new BinarySerializer().serialize(errorTrigger);
+
+        assertEquals(new StringSerializer().serializeTrigger(errorTrigger), BinaryTriggerDecoder.decode(record));
+    }
+
+    @Test
+    public void testTimeoutTriggerRoundTrip() throws IOException {
+        final StackBasedReferenceTracker referenceTracker = trackedCallStack();
+        final TimeoutTrigger timeoutTrigger = new TimeoutTrigger(referenceTracker, 1000L, Long.MAX_VALUE);
+
+        final byte[] record = new BinarySerializer().serialize(timeoutTrigger);
+
+        assertEquals(new StringSerializer().serializeTrigger(timeoutTrigger), BinaryTriggerDecoder.decode(record));
+    }
+
+    @Test
+    public void testStreamingMatchesRecord() throws IOException {
+        final BinarySerializer binarySerializer = new BinarySerializer();
+        final ErrorTrigger errorTrigger = new ErrorTrigger(trackedCallStack(), new IllegalStateException("streamed"));
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        binarySerializer.serializeTrigger(errorTrigger, output);
+
+        assertArrayEquals(binarySerializer.serialize(errorTrigger), output.toByteArray());
+    }
+
+    @Test
+    public void testNamesAreStoredOnce() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final String source = "recursiveSource";
+        for (int i = 0; i < 10; i++) {
+            referenceTracker.pushScope(source, "recursiveMethod");
+            referenceTracker.track("depth", i);
+        }
+
+        final byte[] record = new BinarySerializer().serialize(new ErrorTrigger(referenceTracker, new StackOverflowError()));
+        final String content = new String(record, StandardCharsets.ISO_8859_1);
+
+        assertEquals(content.indexOf("recursiveSource"), content.lastIndexOf("recursiveSource"));
+        assertEquals(content.indexOf("recursiveMethod"), content.lastIndexOf("recursiveMethod"));
+        assertEquals(content.indexOf("depth"), content.lastIndexOf("depth"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testStringSerializationIsNotSupported() {
+        // a String sink would re-encode the record and corrupt it
+        new BinarySerializer().serializeTrigger(new ErrorTrigger(trackedCallStack(), new IllegalStateException("\u00e1rv\u00edzt\u0171r\u0151")));
+    }
+
+    @Test
+    public void testDecodeStreamOfRecords() throws IOException {
+        final BinarySerializer binarySerializer = new BinarySerializer();
+        final StringSerializer stringSerializer = new StringSerializer();
+        final ErrorTrigger errorTrigger = new ErrorTrigger(trackedCallStack(), new IllegalArgumentException());
+        final TimeoutTrigger timeoutTrigger = new TimeoutTrigger(trackedCallStack(), 10L, 20L);
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(binarySerializer.serialize(errorTrigger));
+        stream.write(binarySerializer.serialize(timeoutTrigger));
+
+        final BinaryTriggerDecoder decoder = new BinaryTriggerDecoder(new ByteArrayInputStream(stream.toByteArray()));
+        assertEquals(stringSerializer.serializeTrigger(errorTrigger), decoder.readSnapshot());
+        assertEquals(stringSerializer.serializeTrigger(timeoutTrigger), decoder.readSnapshot());
+        assertNull(decoder.readSnapshot());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsInvalidRecord() throws IOException {
+        BinaryTriggerDecoder.decode("not a snapshot".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTruncatedRecord() {
+        final byte[] record = new BinarySerializer().serialize(new ErrorTrigger(trackedCallStack(), new IllegalStateException()));
+        try {
+            BinaryTriggerDecoder.decode(Arrays.copyOf(record, record.length - 1));
+        } catch (IOException e) {
+            return;
+        }
+        assertTrue("truncated record must not be decoded", false);
+    }
+
+    @Test
+    public void testCompressedRecursionRoundTrip() throws IOException {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker(20);
+        for (int i = 0; i < 25; i++) {
+            referenceTracker.pushScope("recursiveSource", "recursiveMethod");
+            referenceTracker.track("depth", i);
+        }
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new StackOverflowError());
+
+        final String snapshot = new StringSerializer().serializeTrigger(errorTrigger);
+        assertTrue(snapshot, snapshot.contains("\t... 5 deeper scope(s) not tracked, depth limit reached\n"));
+        assertTrue(snapshot, snapshot.contains("\t... java.lang.String.recursiveMethod repeated 14 more time(s)\n"));
+        assertEquals(snapshot, BinaryTriggerDecoder.decode(new BinarySerializer().serialize(errorTrigger)));
+    }
+
+    @Test
+    public void testSamplingRoundTrip() throws IOException {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setSamplingInterval(3);
+        // at most 1 in 3 trees is sampled, so one of the first two is not
+        referenceTracker.pushScope("source", "root");
+        if (referenceTracker.isSampled()) {
+            referenceTracker.popScope();
+            referenceTracker.pushScope("source", "root");
+        }
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new IllegalStateException());
+
+        final String snapshot = new StringSerializer().serializeTrigger(errorTrigger);
+        assertEquals("Snaperr - state snapshot of error 'java.lang.IllegalStateException': [\n" +
+                "\t... state of 1 in 3 invocation trees is tracked, this one is not sampled\n" +
+                "]", snapshot);
+        assertEquals(snapshot, BinaryTriggerDecoder.decode(new BinarySerializer().serialize(errorTrigger)));
+    }
+
+    private static StackBasedReferenceTracker trackedCallStack() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(BinarySerializerTest.class, "outer");
+        referenceTracker.track("text", "\u00e1rv\u00edzt\u0171r\u0151 t\u00fck\u00f6rf\u00far\u00f3g\u00e9p");
+        referenceTracker.track("nothing", null);
+        referenceTracker.track("count", -42L);
+        referenceTracker.pushScope("inner source", "inner");
+        referenceTracker.track("ratio", 0.5d);
+        referenceTracker.track("flag", true);
+        return referenceTracker;
+    }
+
+}
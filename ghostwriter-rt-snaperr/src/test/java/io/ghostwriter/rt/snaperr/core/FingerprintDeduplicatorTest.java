@@ -0,0 +1,188 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.api.TriggerHandler;
+import io.ghostwriter.rt.snaperr.api.TriggerSerializer;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintDeduplicatorTest {
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Test
+    public void testFingerprintIgnoresMessageAndValues() {
+        final StackBasedReferenceTracker referenceTracker = callStack("outer", "inner");
+        referenceTracker.track("id", 1);
+        final long first = FingerprintDeduplicator.fingerprint(new ErrorTrigger(referenceTracker, new IllegalStateException("id 1")));
+        referenceTracker.track("id", 2);
+        final long second = FingerprintDeduplicator.fingerprint(new ErrorTrigger(referenceTracker, new IllegalStateException("id 2")));
+
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testFingerprintDependsOnTypeAndCallStack() {
+        final long reference = FingerprintDeduplicator.fingerprint(
+                new ErrorTrigger(callStack("outer", "inner"), new IllegalStateException()));
+
+        assertNotEquals(reference, FingerprintDeduplicator.fingerprint(
+                new ErrorTrigger(callStack("outer", "inner"), new IllegalArgumentException())));
+        assertNotEquals(reference, FingerprintDeduplicator.fingerprint(
+                new ErrorTrigger(callStack("outer", "other"), new IllegalStateException())));
+        assertNotEquals(reference, FingerprintDeduplicator.fingerprint(
+                new ErrorTrigger(callStack("inner", "outer"), new IllegalStateException())));
+        assertNotEquals(reference, FingerprintDeduplicator.fingerprint(
+                new ErrorTrigger(callStack("caller", "outer", "inner"), new IllegalStateException())));
+    }
+
+    @Test
+    public void testRepetitionsAreSuppressed() {
+        final FingerprintDeduplicator deduplicator = new FingerprintDeduplicator(16, NEVER, NEVER);
+        final ErrorTrigger errorTrigger = new ErrorTrigger(callStack("outer", "inner"), new IllegalStateException());
+
+        assertFalse(deduplicator.isDuplicate(errorTrigger));
+        assertTrue(deduplicator.isDuplicate(errorTrigger));
+        assertTrue(deduplicator.isDuplicate(errorTrigger));
+        assertFalse(deduplicator.isDuplicate(new ErrorTrigger(callStack("outer"), new IllegalStateException())));
+
+        assertEquals(2L, deduplicator.getSuppressedErrorCount());
+        assertEquals(0L, deduplicator.getEmittedSummaryCount());
+    }
+
+    @Test
+    public void testSummaryOfSuppressedRepetitions() {
+        final FingerprintDeduplicator deduplicator = new FingerprintDeduplicator(16, NEVER, 0L);
+        final ErrorTrigger errorTrigger = new ErrorTrigger(callStack("outer", "inner"), new IllegalStateException());
+
+        deduplicator.isDuplicate(errorTrigger);
+        deduplicator.isDuplicate(errorTrigger);
+
+        assertEquals(1L, deduplicator.getEmittedSummaryCount());
+        assertEquals("java.lang.IllegalStateException in java.lang.String.inner", FingerprintDeduplicator.describe(errorTrigger));
+        assertEquals("Snaperr - error 'description' repeated 3 time(s) in the last 10ms, snapshots suppressed",
+                FingerprintDeduplicator.summarize("description", 3L, 10L));
+    }
+
+    @Test
+    public void testExpiredFingerprintIsCapturedAgain() throws InterruptedException {
+        final FingerprintDeduplicator deduplicator = new FingerprintDeduplicator(16, 1L, NEVER);
+        final ErrorTrigger errorTrigger = new ErrorTrigger(callStack("outer", "inner"), new IllegalStateException());
+
+        assertFalse(deduplicator.isDuplicate(errorTrigger));
+        Thread.sleep(5L);
+        assertFalse(deduplicator.isDuplicate(errorTrigger));
+    }
+
+    @Test
+    public void testEvictedFingerprintReportsPendingRepetitions() {
+        final FingerprintDeduplicator deduplicator = new FingerprintDeduplicator(1, NEVER, NEVER);
+        final ErrorTrigger first = new ErrorTrigger(callStack("first"), new IllegalStateException());
+        final ErrorTrigger second = new ErrorTrigger(callStack("second"), new IllegalStateException());
+
+        deduplicator.isDuplicate(first);
+        deduplicator.isDuplicate(first);
+        assertFalse(deduplicator.isDuplicate(second));
+
+        assertEquals(1, deduplicator.size());
+        assertEquals(1L, deduplicator.getEmittedSummaryCount());
+        assertFalse(deduplicator.isDuplicate(first));
+    }
+
+    @Test
+    public void testTracerSkipsSerializationOfRepeatedErrors() {
+        final CountingSerializer serializer = new CountingSerializer();
+        final RecordingTriggerHandler handler = new RecordingTriggerHandler();
+        final SnaperrTracer tracer = new SnaperrTracer(new StackBasedReferenceTracker(), serializer, handler,
+                new UnrestrictedThrottler(), new FingerprintDeduplicator(16, NEVER, NEVER));
+
+        for (int i = 0; i < 10; i++) {
+            tracer.entering(this, "caller");
+            tracer.entering(this, "failing", "attempt", i);
+            final IllegalStateException error = new IllegalStateException("attempt " + i);
+            tracer.onError(this, "failing", error);
+            tracer.exiting(this, "failing");
+            // the suppressed error propagates through the caller, it is not reconsidered there
+            tracer.onError(this, "caller", error);
+            tracer.exiting(this, "caller");
+        }
+
+        assertEquals(1, serializer.serializedErrors);
+        assertEquals(1, handler.errors.size());
+    }
+
+    @Test
+    public void testSummariesDoNotReachTheTriggerHandler() {
+        final RecordingTriggerHandler handler = new RecordingTriggerHandler();
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final SnaperrMetrics metrics = new SnaperrMetrics(referenceTracker);
+        final FingerprintDeduplicator deduplicator = new FingerprintDeduplicator(16, NEVER, 0L);
+        final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new CountingSerializer(), handler,
+                new UnrestrictedThrottler(), deduplicator, null, metrics);
+
+        for (int i = 0; i < 3; i++) {
+            tracer.entering(this, "failing");
+            tracer.onError(this, "failing", new IllegalStateException());
+            tracer.exiting(this, "failing");
+        }
+
+        // the summaries are logged, the handler only receives snapshots in the format of the serializer
+        assertEquals(2L, deduplicator.getEmittedSummaryCount());
+        assertEquals(Collections.singletonList("error"), handler.errors);
+        assertEquals(2L, metrics.getDeduplicatedTriggerCount());
+        assertEquals(0L, metrics.getThrottledTriggerCount());
+    }
+
+    private static StackBasedReferenceTracker callStack(String... methods) {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        for (String method : methods) {
+            referenceTracker.pushScope("source", method);
+        }
+        return referenceTracker;
+    }
+
+    private static class RecordingTriggerHandler implements TriggerHandler {
+
+        private final List<String> errors = new ArrayList<>();
+
+        @Override
+        public void onError(String serializedError) {
+            errors.add(serializedError);
+        }
+
+        @Override
+        public void onTimeout(String serializedTimeout) {
+        }
+
+    }
+
+    private static class CountingSerializer implements TriggerSerializer {
+
+        private int serializedErrors = 0;
+
+        @Override
+        public String serializeTrigger(ErrorTrigger errorTrigger) {
+            serializedErrors++;
+            return "error";
+        }
+
+        @Override
+        public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
+            return "timeout";
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonSerializerTest {
+
+    @Test
+    public void testErrorTriggerSerialization() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope("outerSource", "outer");
+        referenceTracker.track("coffee", "good");
+        referenceTracker.track("meaningOfLife", 42);
+        referenceTracker.pushScope("innerSource", "inner");
+        referenceTracker.track("missing", null);
+
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new NullPointerException("A wild exception has appeared!"));
+
+        final String expected = "{\"type\":\"error\",\"error\":\"java.lang.NullPointerException: A wild exception has appeared!\"," +
+                "\"scopes\":[" +
+                "{\"source\":\"innerSource\",\"method\":\"inner\",\"variables\":{\"missing\":\"null\"}}," +
+                "{\"source\":\"outerSource\",\"method\":\"outer\",\"variables\":{\"coffee\":\"good\",\"meaningOfLife\":\"42\"}}" +
+                "]}";
+        assertEquals(expected, new JsonSerializer().serializeTrigger(errorTrigger));
+    }
+
+    @Test
+    public void testTimeoutTriggerSerialization() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope("source", "slowMethod");
+        referenceTracker.track("retries", 3);
+
+        final TimeoutTrigger timeoutTrigger = new TimeoutTrigger(referenceTracker, 1000L, 2500L);
+
+        final String expected = "{\"type\":\"timeout\",\"threshold\":1000,\"timeout\":2500,\"scopes\":[" +
+                "{\"source\":\"source\",\"method\":\"slowMethod\",\"variables\":{\"retries\":\"3\"}}" +
+                "]}";
+        assertEquals(expected, new JsonSerializer().serializeTrigger(timeoutTrigger));
+    }
+
+    @Test
+    public void testCompressedRecursion() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker(3);
+        for (int i = 0; i < 5; i++) {
+            referenceTracker.pushScope("source", "recursive");
+        }
+
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new StackOverflowError());
+
+        final String expected = "{\"type\":\"error\",\"error\":\"java.lang.StackOverflowError\",\"untrackedScopes\":2," +
+                "\"scopes\":[" +
+                "{\"source\":\"source\",\"method\":\"recursive\",\"variables\":{}}," +
+                "{\"source\":\"java.lang.String\",\"method\":\"recursive\",\"repeated\":1}," +
+                "{\"source\":\"source\",\"method\":\"recursive\",\"variables\":{}}" +
+                "]}";
+        assertEquals(expected, new JsonSerializer(ValueRenderer.DEFAULT, new RecursionCompressor(1)).serializeTrigger(errorTrigger));
+    }
+
+    @Test
+    public void testEscaping() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope("source", "method");
+        referenceTracker.track("quoted", "say \"hi\"\\");
+        referenceTracker.track("control", "a\nb\tc\u0001");
+        referenceTracker.track("unicode", "\u00e1rv\u00edzt\u0171r\u0151 \u20ac \ud83d\ude00");
+        referenceTracker.track("brokenSurrogate", "x\ud83dy");
+
+        final String serialized = new JsonSerializer().serializeTrigger(new ErrorTrigger(referenceTracker, new IllegalStateException()));
+
+        final String expectedVariables = "\"variables\":{" +
+                "\"quoted\":\"say \\\"hi\\\"\\\\\"," +
+                "\"control\":\"a\\nb\\tc\\u0001\"," +
+                "\"unicode\":\"\u00e1rv\u00edzt\u0171r\u0151 \u20ac \ud83d\ude00\"," +
+                "\"brokenSurrogate\":\"x?y\"}";
+        assertEquals(serialized, expectedVariables, serialized.substring(serialized.indexOf("\"variables\""), serialized.length() - 3));
+    }
+
+    @Test
+    public void testSnapshotLargerThanTheBuffer() throws IOException {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        for (int i = 0; i < 100; i++) {
+            referenceTracker.pushScope("source" + i, "recursive");
+            referenceTracker.track("depth", i);
+            referenceTracker.track("text", "\u00e9\ud83d\ude00 value " + i);
+        }
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new StackOverflowError());
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new JsonSerializer(8).serializeTrigger(errorTrigger, output);
+
+        assertEquals(new JsonSerializer().serializeTrigger(errorTrigger), new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSampledTree() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope("source", "root");
+        referenceTracker.setSamplingInterval(100);
+
+        final ErrorTrigger errorTrigger = new ErrorTrigger(referenceTracker, new IllegalStateException());
+
+        final String expected = "{\"type\":\"error\",\"error\":\"java.lang.IllegalStateException\"," +
+                "\"sampling\":{\"interval\":100,\"sampled\":true}," +
+                "\"scopes\":[{\"source\":\"source\",\"method\":\"root\",\"variables\":{}}]}";
+        assertEquals(expected, new JsonSerializer().serializeTrigger(errorTrigger));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmallBuffer() {
+        new JsonSerializer(4);
+    }
+
+    @Test
+    public void testTracerStreamsIntoHandler() {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final SnaperrTracer tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new JsonSerializer(16),
+                new OutputStreamTriggerHandler(output), new UnrestrictedThrottler());
+
+        tracer.entering(this, "failingMethod", "param", "value");
+        tracer.onError(this, "failingMethod", new IllegalStateException("failure"));
+        tracer.exiting(this, "failingMethod");
+
+        final String expected = "{\"type\":\"error\",\"error\":\"java.lang.IllegalStateException: failure\",\"scopes\":[" +
+                "{\"source\":\"" + this + "\",\"method\":\"failingMethod\",\"variables\":{\"param\":\"value\"}}" +
+                "]}" + System.lineSeparator();
+        assertEquals(expected, new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+}
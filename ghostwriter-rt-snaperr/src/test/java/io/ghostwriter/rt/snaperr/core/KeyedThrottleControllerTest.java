@@ -0,0 +1,207 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyedThrottleControllerTest {
+
+    private static final int NO_GLOBAL_LIMIT = 0;
+
+    @Test
+    public void testNoisyExceptionTypeDoesNotStarveOthers() {
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.EXCEPTION_TYPE,
+                2, NO_GLOBAL_LIMIT, 16, new long[]{0L});
+
+        final ErrorTrigger noisy = error("failing", new IllegalStateException());
+        assertTrue(throttler.doHandleError(noisy));
+        assertTrue(throttler.doHandleError(noisy));
+        assertFalse(throttler.doHandleError(noisy));
+        assertFalse(throttler.doHandleError(error("other", new IllegalStateException())));
+
+        assertTrue(throttler.doHandleError(error("failing", new IllegalArgumentException())));
+        assertEquals(2L, throttler.getThrottledTriggerCount());
+    }
+
+    @Test
+    public void testMethodKeys() {
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.METHOD,
+                1, NO_GLOBAL_LIMIT, 16, new long[]{0L});
+
+        assertTrue(throttler.doHandleError(error("failing", new IllegalStateException())));
+        assertFalse(throttler.doHandleError(error("failing", new IllegalArgumentException())));
+        assertTrue(throttler.doHandleError(error("other", new IllegalStateException())));
+        assertFalse(throttler.doHandleTimeout(timeout("other")));
+        assertTrue(throttler.doHandleTimeout(timeout("slow")));
+    }
+
+    @Test
+    public void testExceptionTypeAndMethodKeys() {
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.EXCEPTION_TYPE_AND_METHOD,
+                1, NO_GLOBAL_LIMIT, 16, new long[]{0L});
+
+        assertTrue(throttler.doHandleError(error("failing", new IllegalStateException())));
+        assertFalse(throttler.doHandleError(error("failing", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(error("failing", new IllegalArgumentException())));
+        assertTrue(throttler.doHandleError(error("other", new IllegalStateException())));
+        assertTrue(throttler.doHandleTimeout(timeout("failing")));
+        assertEquals(4, throttler.getBucketCount());
+    }
+
+    @Test
+    public void testGlobalLimit() {
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.METHOD,
+                5, 3, 16, new long[]{0L});
+
+        assertTrue(throttler.doHandleError(error("first", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(error("second", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(error("third", new IllegalStateException())));
+        assertFalse(throttler.doHandleError(error("fourth", new IllegalStateException())));
+    }
+
+    @Test
+    public void testWindowExpiry() {
+        final long[] currentTimeMillis = {0L};
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.METHOD,
+                1, 1, 16, currentTimeMillis);
+
+        assertTrue(throttler.doHandleError(error("failing", new IllegalStateException())));
+        assertFalse(throttler.doHandleError(error("failing", new IllegalStateException())));
+
+        currentTimeMillis[0] = 1000L;
+        assertTrue(throttler.doHandleError(error("failing", new IllegalStateException())));
+    }
+
+    @Test
+    public void testKeysBeyondTheCapacityShareTheOverflowBucket() {
+        final long[] currentTimeMillis = {0L};
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.METHOD,
+                1, NO_GLOBAL_LIMIT, 2, currentTimeMillis);
+
+        assertTrue(throttler.doHandleError(error("first", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(error("second", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(error("third", new IllegalStateException())));
+        assertFalse(throttler.doHandleError(error("fourth", new IllegalStateException())));
+        assertEquals(2, throttler.getBucketCount());
+
+        // the expired buckets are evicted, so the new keys get their own budget again
+        currentTimeMillis[0] = 1000L;
+        assertTrue(throttler.doHandleError(error("third", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(error("fourth", new IllegalStateException())));
+        assertEquals(2, throttler.getBucketCount());
+    }
+
+    @Test
+    public void testConcurrentKeyedThrottleControl() throws Exception {
+        final int maxTriggersPerKey = 10;
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.EXCEPTION_TYPE,
+                maxTriggersPerKey, NO_GLOBAL_LIMIT, 16, new long[]{0L});
+        final ErrorTrigger[] errorTriggers = {
+                error("failing", new IllegalStateException()),
+                error("failing", new IllegalArgumentException())
+        };
+
+        final int NUMBER_OF_THREADS = 8;
+        final int ERRORS_PER_THREAD = 1000;
+        final CyclicBarrier gate = new CyclicBarrier(NUMBER_OF_THREADS);
+        final AtomicInteger handledErrors = new AtomicInteger();
+
+        Thread[] threads = new Thread[NUMBER_OF_THREADS];
+        for (int i = 0; i < NUMBER_OF_THREADS; i++) {
+            final ErrorTrigger errorTrigger = errorTriggers[i % errorTriggers.length];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+
+                    for (int j = 0; j < ERRORS_PER_THREAD; j++) {
+                        if (throttler.doHandleError(errorTrigger)) {
+                            handledErrors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(errorTriggers.length * maxTriggersPerKey, handledErrors.get());
+        assertEquals(2, throttler.getBucketCount());
+    }
+
+    @Test
+    public void testUnsampledTriggersHaveTheirOwnKey() {
+        final KeyedThrottleController throttler = throttler(KeyedThrottleController.KeyStrategy.EXCEPTION_TYPE_AND_METHOD,
+                1, NO_GLOBAL_LIMIT, 16, new long[]{0L});
+
+        assertTrue(throttler.doHandleError(unsampledError(new IllegalStateException())));
+        assertFalse(throttler.doHandleError(unsampledError(new IllegalStateException())));
+        // a tracked method does not share the budget of the untracked ones, and neither does a static method
+        assertTrue(throttler.doHandleError(error("failing", new IllegalStateException())));
+        assertTrue(throttler.doHandleError(unsampledError(new IllegalArgumentException())));
+        assertTrue(throttler.doHandleTimeout(new TimeoutTrigger(unsampledCallStack(), 10L, 20L)));
+        assertFalse(throttler.doHandleTimeout(new TimeoutTrigger(unsampledCallStack(), 10L, 20L)));
+        assertEquals(4, throttler.getBucketCount());
+    }
+
+    private static KeyedThrottleController throttler(KeyedThrottleController.KeyStrategy keyStrategy,
+                                                     int maxTriggersPerKey, int maxTriggersInWindow, int maxKeys,
+                                                     final long[] currentTimeMillis) {
+        return new KeyedThrottleController(keyStrategy, 1000L, maxTriggersPerKey, maxTriggersInWindow, maxKeys) {
+
+            @Override
+            protected long currentTimeMillis() {
+                return currentTimeMillis[0];
+            }
+
+        };
+    }
+
+    private static ErrorTrigger error(String methodName, Throwable throwable) {
+        return new ErrorTrigger(callStack(methodName), throwable);
+    }
+
+    private static TimeoutTrigger timeout(String methodName) {
+        return new TimeoutTrigger(callStack(methodName), 10L, 20L);
+    }
+
+    private static ErrorTrigger unsampledError(Throwable throwable) {
+        return new ErrorTrigger(unsampledCallStack(), throwable);
+    }
+
+    /**
+     * @return a tracker in an invocation tree that is not sampled, it does not track any scope
+     */
+    private static StackBasedReferenceTracker unsampledCallStack() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setSamplingInterval(Integer.MAX_VALUE);
+        referenceTracker.pushScope(KeyedThrottleControllerTest.class, "unsampled");
+        while (referenceTracker.isSampled()) {
+            referenceTracker.popScope();
+            referenceTracker.pushScope(KeyedThrottleControllerTest.class, "unsampled");
+        }
+        return referenceTracker;
+    }
+
+    private static StackBasedReferenceTracker callStack(String methodName) {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(KeyedThrottleControllerTest.class, methodName);
+        return referenceTracker;
+    }
+
+}
@@ -0,0 +1,268 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedRingFileHandlerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreRecovered() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            handler.onError("error \u00e1rv\u00edzt\u0171r\u0151");
+            handler.onTimeout("timeout");
+            assertEquals(2L, handler.getWrittenTriggerCount());
+        }
+
+        final List<MappedRingFileReader.Record> records = readRecords(ringFile);
+        assertEquals(2, records.size());
+        assertEquals(SerializedTrigger.Type.ERROR, records.get(0).getType());
+        assertEquals("error \u00e1rv\u00edzt\u0171r\u0151", records.get(0).render());
+        assertEquals(SerializedTrigger.Type.TIMEOUT, records.get(1).getType());
+        assertEquals("timeout", records.get(1).render());
+    }
+
+    @Test
+    public void testOldestRecordsAreOverwritten() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        final int triggerCount = 200;
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            for (int i = 0; i < triggerCount; i++) {
+                handler.onError(String.format("trigger-%03d", i) + (i % 2 == 0 ? "" : " with a longer payload"));
+            }
+        }
+
+        final List<MappedRingFileReader.Record> records = readRecords(ringFile);
+        assertTrue(records.size() > 10 && records.size() < triggerCount);
+        // the newest records form an unbroken sequence
+        final int firstRecovered = triggerCount - records.size();
+        for (int i = 0; i < records.size(); i++) {
+            assertTrue(records.get(i).render().startsWith(String.format("trigger-%03d", firstRecovered + i)));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsSkipped() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            handler.onError("first");
+            handler.onError("second");
+            handler.onError("third");
+        }
+
+        final long secondPayloadPosition = RingFileFormat.FILE_HEADER_SIZE + RingFileFormat.recordSize("first".length())
+                + RingFileFormat.RECORD_HEADER_SIZE;
+        try (RandomAccessFile file = new RandomAccessFile(ringFile, "rw")) {
+            file.seek(secondPayloadPosition);
+            file.write('S');
+        }
+
+        final List<MappedRingFileReader.Record> records = readRecords(ringFile);
+        assertEquals(2, records.size());
+        assertEquals("first", records.get(0).render());
+        assertEquals("third", records.get(1).render());
+    }
+
+    @Test
+    public void testReopenedRingContinuesAfterNewestRecord() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            handler.onError("before crash");
+        }
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            handler.onError("after restart");
+        }
+
+        final List<MappedRingFileReader.Record> records = readRecords(ringFile);
+        assertEquals(2, records.size());
+        assertEquals("before crash", records.get(0).render());
+        assertEquals("after restart", records.get(1).render());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws IOException, InterruptedException {
+        final File ringFile = temporaryFolder.newFile();
+        final int threadCount = 4;
+        final int triggersPerThread = 250;
+
+        try (final MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, 1024 * 1024)) {
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                final int threadId = t;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < triggersPerThread; i++) {
+                            handler.onError(threadId + ":" + i);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        final Set<String> payloads = new HashSet<>();
+        for (MappedRingFileReader.Record record : readRecords(ringFile)) {
+            payloads.add(record.render());
+        }
+        assertEquals(threadCount * triggersPerThread, payloads.size());
+    }
+
+    @Test
+    public void testBinarySnapshotsAreStreamedIntoTheRing() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final IllegalStateException error = new IllegalStateException("failure");
+
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new BinarySerializer(), handler, new UnrestrictedThrottler());
+            tracer.entering("source", "failingMethod", "param", 42);
+            tracer.onError("source", "failingMethod", error);
+
+            final String expected = new StringSerializer().serializeTrigger(new ErrorTrigger(referenceTracker, error));
+            final List<MappedRingFileReader.Record> records = readRecords(ringFile);
+            assertEquals(1, records.size());
+            assertEquals(expected, records.get(0).render());
+        }
+    }
+
+    @Test
+    public void testBinarySnapshotsAreQueuedIntoTheRingAsBytes() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final IllegalStateException error = new IllegalStateException("\u00e1rv\u00edzt\u0171r\u0151");
+
+        final String expected;
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(handler);
+            final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new BinarySerializer(), asyncHandler, new UnrestrictedThrottler());
+            tracer.entering("source", "failingMethod", "param", "\u0151");
+            tracer.onError("source", "failingMethod", error);
+            expected = new StringSerializer().serializeTrigger(new ErrorTrigger(referenceTracker, error));
+            asyncHandler.close();
+            assertEquals(1L, asyncHandler.getHandledTriggerCount());
+        }
+
+        final List<MappedRingFileReader.Record> records = readRecords(ringFile);
+        assertEquals(1, records.size());
+        assertEquals(expected, BinaryTriggerDecoder.decode(records.get(0).getPayload()));
+    }
+
+    @Test
+    public void testTooLargeTriggerIsDropped() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            handler.onError(new String(new byte[MappedRingFileHandler.MIN_FILE_SIZE], StandardCharsets.ISO_8859_1));
+            assertEquals(0L, handler.getWrittenTriggerCount());
+            assertEquals(1L, handler.getDroppedTriggerCount());
+        }
+        assertTrue(readRecords(ringFile).isEmpty());
+    }
+
+    @Test
+    public void testTooLargeStreamedTriggerIsStoppedEarly() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        final ChunkedSerializer serializer = new ChunkedSerializer(1024, 100);
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, MappedRingFileHandler.MIN_FILE_SIZE)) {
+            handler.onError(new ErrorTrigger(new StackBasedReferenceTracker(), new IllegalStateException()), serializer);
+
+            // the buffer refuses the chunk that does not fit into the ring, the rest is not rendered
+            assertEquals(3, serializer.writtenChunks);
+            assertEquals(0L, handler.getWrittenTriggerCount());
+            assertEquals(1L, handler.getDroppedTriggerCount());
+        }
+        assertTrue(readRecords(ringFile).isEmpty());
+    }
+
+    @Test
+    public void testOversizedRecordBufferIsReleased() throws IOException {
+        final File ringFile = temporaryFolder.newFile();
+        final int chunkCount = 2 * MappedRingFileHandler.MAX_RETAINED_RECORD_BUFFER_SIZE / 1024;
+        try (MappedRingFileHandler handler = new MappedRingFileHandler(ringFile, 4 * 1024 * 1024)) {
+            final ErrorTrigger errorTrigger = new ErrorTrigger(new StackBasedReferenceTracker(), new IllegalStateException());
+            handler.onError(errorTrigger, new ChunkedSerializer(1024, chunkCount));
+
+            assertEquals(1L, handler.getWrittenTriggerCount());
+            assertTrue(handler.retainedRecordBufferSize() <= MappedRingFileHandler.MAX_RETAINED_RECORD_BUFFER_SIZE);
+        }
+        assertEquals(1024 * chunkCount, readRecords(ringFile).get(0).getPayload().length);
+    }
+
+    /**
+     * Writes the snapshot in chunks of the given size, counting the chunks the stream accepted.
+     */
+    private static final class ChunkedSerializer implements StreamingTriggerSerializer {
+
+        private final int chunkSize;
+
+        private final int chunkCount;
+
+        private int writtenChunks = 0;
+
+        ChunkedSerializer(int chunkSize, int chunkCount) {
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+        }
+
+        @Override
+        public void serializeTrigger(ErrorTrigger errorTrigger, OutputStream output) throws IOException {
+            final byte[] chunk = new byte[chunkSize];
+            for (int i = 0; i < chunkCount; i++) {
+                output.write(chunk);
+                ++writtenChunks;
+            }
+        }
+
+        @Override
+        public void serializeTrigger(TimeoutTrigger timeoutTrigger, OutputStream output) throws IOException {
+            throw new UnsupportedOperationException("errors are expected");
+        }
+
+        @Override
+        public String serializeTrigger(ErrorTrigger errorTrigger) {
+            throw new UnsupportedOperationException("streaming is expected");
+        }
+
+        @Override
+        public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
+            throw new UnsupportedOperationException("streaming is expected");
+        }
+
+    }
+
+    private static List<MappedRingFileReader.Record> readRecords(File ringFile) throws IOException {
+        try (MappedRingFileReader reader = new MappedRingFileReader(ringFile)) {
+            return reader.readRecords();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.StreamingTriggerSerializer;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutputStreamTriggerHandlerTest {
+
+    @Test
+    public void testTriggersAreWrittenAsLines() {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final OutputStreamTriggerHandler handler = new OutputStreamTriggerHandler(output);
+
+        handler.onError("error \u00e1rv\u00edzt\u0171r\u0151");
+        handler.onTimeout("timeout");
+
+        assertEquals("error \u00e1rv\u00edzt\u0171r\u0151" + System.lineSeparator() + "timeout" + System.lineSeparator(),
+                new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTornTriggerIsEnded() {
+        final FailingOutputStream output = new FailingOutputStream(5);
+        final OutputStreamTriggerHandler handler = new OutputStreamTriggerHandler(output);
+
+        handler.onError("torn trigger");
+        handler.onError("next");
+
+        assertEquals("torn " + System.lineSeparator() + "next" + System.lineSeparator(),
+                new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamedTriggerIsWrittenAtOnce() {
+        final FailingOutputStream output = new FailingOutputStream(Integer.MAX_VALUE);
+        final SnaperrTracer tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new JsonSerializer(16),
+                new OutputStreamTriggerHandler(output), new UnrestrictedThrottler());
+
+        tracer.entering(this, "failingMethod", "param", "value");
+        tracer.onError(this, "failingMethod", new IllegalStateException("failure"));
+        tracer.exiting(this, "failingMethod");
+
+        // the snapshot is rendered into a buffer, the stream only receives the whole record and the separator
+        assertEquals(2, output.writeCount);
+    }
+
+    @Test
+    public void testOversizedRecordBufferIsReleased() {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final OutputStreamTriggerHandler handler = new OutputStreamTriggerHandler(output);
+        final ErrorTrigger errorTrigger = new ErrorTrigger(new StackBasedReferenceTracker(), new IllegalStateException());
+
+        final int hugeSize = OutputStreamTriggerHandler.MAX_RETAINED_RECORD_BUFFER_SIZE + 1;
+
+        handler.onError(errorTrigger, new FixedSizeSerializer(1024));
+        final int retainedSize = handler.retainedRecordBufferSize();
+        handler.onError(errorTrigger, new FixedSizeSerializer(hugeSize));
+
+        // the small buffer is kept for the next snapshot, the one grown by the huge snapshot is not
+        assertTrue(retainedSize >= 1024);
+        assertTrue(handler.retainedRecordBufferSize() <= OutputStreamTriggerHandler.MAX_RETAINED_RECORD_BUFFER_SIZE);
+        assertEquals(1024 + hugeSize + 2 * System.lineSeparator().length(), output.size());
+    }
+
+    /**
+     * Writes the given number of bytes as the snapshot of every trigger.
+     */
+    private static final class FixedSizeSerializer implements StreamingTriggerSerializer {
+
+        private final int size;
+
+        FixedSizeSerializer(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void serializeTrigger(ErrorTrigger errorTrigger, OutputStream output) throws IOException {
+            output.write(new byte[size]);
+        }
+
+        @Override
+        public void serializeTrigger(TimeoutTrigger timeoutTrigger, OutputStream output) throws IOException {
+            output.write(new byte[size]);
+        }
+
+        @Override
+        public String serializeTrigger(ErrorTrigger errorTrigger) {
+            throw new UnsupportedOperationException("streaming is expected");
+        }
+
+        @Override
+        public String serializeTrigger(TimeoutTrigger timeoutTrigger) {
+            throw new UnsupportedOperationException("streaming is expected");
+        }
+
+    }
+
+    /**
+     * Accepts the given number of bytes, then fails the write that does not fit, after writing the part that does.
+     */
+    private static final class FailingOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        private int remaining;
+
+        private int writeCount = 0;
+
+        FailingOutputStream(int capacity) {
+            this.remaining = capacity;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ++writeCount;
+            final int written = Math.min(remaining, length);
+            content.write(bytes, offset, written);
+            remaining -= written;
+            if (written < length) {
+                // only the first record is torn
+                remaining = Integer.MAX_VALUE;
+                throw new IOException("disk full");
+            }
+        }
+
+        byte[] toByteArray() {
+            return content.toByteArray();
+        }
+
+    }
+
+}
@@ -0,0 +1,152 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.NoopTriggerHandler;
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorDeduplicator;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OverheadBudgetControllerTest {
+
+    private static final long WINDOW_LENGTH_MS = 100L;
+
+    private static final long WINDOW_CPU_NANOS = 1000L * 1000L * 1000L;
+
+    @Test
+    public void testTrackingIsDegradedStepByStep() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setSamplingInterval(10);
+        final ManualClockController controller = new ManualClockController(10d, referenceTracker);
+
+        // 20% of the CPU time of the window is spent in the tracer
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        assertEquals(OverheadBudgetController.Level.NO_VALUES, controller.getLevel());
+        assertFalse(controller.isValueTrackingEnabled());
+        assertEquals(10, referenceTracker.samplingInterval());
+        assertEquals(0.2d, controller.getLastOverheadShare(), 0.001d);
+
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        assertEquals(OverheadBudgetController.Level.SAMPLED, controller.getLevel());
+        assertEquals(OverheadBudgetController.DEGRADED_SAMPLING_INTERVAL, referenceTracker.samplingInterval());
+
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        assertEquals(OverheadBudgetController.Level.OFF, controller.getLevel());
+        assertEquals(Integer.MAX_VALUE, referenceTracker.samplingInterval());
+
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        assertEquals(OverheadBudgetController.Level.OFF, controller.getLevel());
+    }
+
+    @Test
+    public void testTrackingIsRestoredWhenTheLoadDrops() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setSamplingInterval(10);
+        final ManualClockController controller = new ManualClockController(10d, referenceTracker);
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        assertEquals(OverheadBudgetController.Level.SAMPLED, controller.getLevel());
+
+        // below the budget, but above half of it: the level is kept
+        for (int i = 0; i < OverheadBudgetController.RECOVERY_WINDOWS; i++) {
+            controller.endWindow(WINDOW_CPU_NANOS / 15);
+        }
+        assertEquals(OverheadBudgetController.Level.SAMPLED, controller.getLevel());
+
+        for (int i = 0; i < OverheadBudgetController.RECOVERY_WINDOWS - 1; i++) {
+            controller.endWindow(WINDOW_CPU_NANOS / 100);
+        }
+        assertEquals(OverheadBudgetController.Level.SAMPLED, controller.getLevel());
+        controller.endWindow(WINDOW_CPU_NANOS / 100);
+        assertEquals(OverheadBudgetController.Level.NO_VALUES, controller.getLevel());
+        assertEquals(10, referenceTracker.samplingInterval());
+
+        for (int i = 0; i < OverheadBudgetController.RECOVERY_WINDOWS; i++) {
+            controller.endWindow(WINDOW_CPU_NANOS / 100);
+        }
+        assertEquals(OverheadBudgetController.Level.FULL, controller.getLevel());
+        assertTrue(controller.isValueTrackingEnabled());
+    }
+
+    @Test
+    public void testSampledEventsStandForTheSampleInterval() {
+        final ManualClockController controller = new ManualClockController(10d, new StackBasedReferenceTracker());
+        assertEquals(OverheadBudgetController.DEFAULT_SAMPLE_INTERVAL, controller.sampleInterval());
+
+        int sampledEvents = 0;
+        for (int i = 0; i < controller.sampleInterval() * 4; i++) {
+            if (controller.isSampledEvent()) {
+                sampledEvents++;
+            }
+        }
+        assertEquals(4, sampledEvents);
+
+        // a single sampled event of 1/8 of the window is estimated as sampleInterval / 8 windows
+        controller.recordSampledEvent(WINDOW_CPU_NANOS / 8);
+        controller.endWindow(0L);
+        assertEquals(controller.sampleInterval() / 8d, controller.getLastOverheadShare(), 0.001d);
+        assertEquals(OverheadBudgetController.Level.NO_VALUES, controller.getLevel());
+    }
+
+    @Test
+    public void testTracerSkipsValuesWhenDegraded() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final ManualClockController controller = new ManualClockController(10d, referenceTracker);
+        final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new NoopTriggerHandler(), new UnrestrictedThrottler(), ErrorDeduplicator.NONE, controller);
+
+        tracer.entering(this, "full", "a", 1);
+        tracer.valueChange(this, "full", "b", 2);
+        assertEquals(2, referenceTracker.currentScope().getReferences().size());
+        tracer.exiting(this, "full");
+
+        controller.endWindow(WINDOW_CPU_NANOS / 5);
+        tracer.entering(this, "degraded", "a", 1);
+        tracer.valueChange(this, "degraded", "b", 2);
+        assertEquals("degraded", referenceTracker.currentScope().getMethodName());
+        assertTrue(referenceTracker.currentScope().getReferences().isEmpty());
+        tracer.exiting(this, "degraded");
+        assertTrue(referenceTracker.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBudgetMustBePositive() {
+        new OverheadBudgetController(0d, new StackBasedReferenceTracker());
+    }
+
+    /**
+     * Ends its windows on demand, every window uses {@link #WINDOW_CPU_NANOS} of CPU time.
+     */
+    private static final class ManualClockController extends OverheadBudgetController {
+
+        private long nowMs = 0L;
+
+        ManualClockController(double budgetPercent, StackBasedReferenceTracker referenceTracker) {
+            super(budgetPercent, WINDOW_LENGTH_MS, DEFAULT_SAMPLE_INTERVAL, referenceTracker);
+        }
+
+        /**
+         * Reports the given tracer time as a trigger and ends the window.
+         */
+        void endWindow(long tracerNanos) {
+            nowMs += WINDOW_LENGTH_MS;
+            recordTrigger(tracerNanos);
+        }
+
+        @Override
+        protected long processCpuTimeNanos(long nowMs) {
+            return nowMs / WINDOW_LENGTH_MS * WINDOW_CPU_NANOS;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return nowMs;
+        }
+
+    }
+
+}
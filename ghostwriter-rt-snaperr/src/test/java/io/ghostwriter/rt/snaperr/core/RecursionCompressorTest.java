@@ -0,0 +1,80 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecursionCompressorTest {
+
+    private final RecursionCompressor recursionCompressor = new RecursionCompressor(2);
+
+    @Test
+    public void testShortRunIsKept() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        pushScopes(referenceTracker, "recursive", 4);
+
+        assertEquals("[recursive3, recursive2, recursive1, recursive0]", walk(referenceTracker));
+    }
+
+    @Test
+    public void testLongRunIsCompressed() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "outer");
+        pushScopes(referenceTracker, "recursive", 10);
+        referenceTracker.pushScope(this, "inner");
+
+        final String expected = "[inner, recursive9, recursive8, (" + getClass().getName()
+                + ".recursive x6), recursive1, recursive0, outer]";
+        assertEquals(expected, walk(referenceTracker));
+    }
+
+    @Test
+    public void testRunsOfDifferentMethods() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        pushScopes(referenceTracker, "first", 5);
+        pushScopes(referenceTracker, "second", 5);
+
+        final String expected = "[second4, second3, (" + getClass().getName() + ".second x1), second1, second0, first4, first3, ("
+                + getClass().getName() + ".first x1), first1, first0]";
+        assertEquals(expected, walk(referenceTracker));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeptFramesMustBePositive() {
+        new RecursionCompressor(0);
+    }
+
+    /**
+     * Scopes of the same method are told apart by the value of their "index" variable.
+     */
+    private void pushScopes(StackBasedReferenceTracker referenceTracker, String methodName, int count) {
+        for (int i = 0; i < count; i++) {
+            referenceTracker.pushScope(this, methodName);
+            referenceTracker.track("index", i);
+        }
+    }
+
+    private String walk(StackBasedReferenceTracker referenceTracker) {
+        final List<String> visited = new ArrayList<>();
+        recursionCompressor.walk(referenceTracker.scopes(), new RecursionCompressor.ScopeVisitor<RuntimeException>() {
+            @Override
+            public void scope(TrackedScope scope) {
+                final Object index = scope.getReferences().containsKey("index")
+                        ? scope.getReferences().get("index").getValue() : "";
+                visited.add(scope.getMethodName() + index);
+            }
+
+            @Override
+            public void repeatedScope(String sourceType, String methodName, int repetitions) {
+                visited.add("(" + sourceType + "." + methodName + " x" + repetitions + ")");
+            }
+        });
+        return visited.toString();
+    }
+
+}
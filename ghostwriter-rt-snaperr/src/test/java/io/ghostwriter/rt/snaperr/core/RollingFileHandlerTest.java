@@ -0,0 +1,212 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.SerializedTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollingFileHandlerTest {
+
+    private static final long NO_ROLLING = Long.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testTriggersAreWrittenAsLines() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        try (RollingFileHandler handler = new RollingFileHandler(directory, "snaperr", NO_ROLLING, NO_ROLLING,
+                RollingFileHandler.FsyncPolicy.never())) {
+            handler.onError("error");
+            handler.onBatch(Arrays.asList(
+                    new SerializedTrigger(SerializedTrigger.Type.ERROR, "batched \u00e1rv\u00edzt\u0171r\u0151 \ud83d\ude00"),
+                    new SerializedTrigger(SerializedTrigger.Type.TIMEOUT, "multi\nline")));
+            handler.onTimeout("timeout");
+            assertEquals(4L, handler.getWrittenTriggerCount());
+        }
+
+        assertEquals(Arrays.asList("error", "batched \u00e1rv\u00edzt\u0171r\u0151 \ud83d\ude00", "multi", "line", "timeout"),
+                readLines(directory));
+    }
+
+    @Test
+    public void testRecordLargerThanTheBuffer() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append('\u0151');
+        }
+        final String largeTrigger = sb.toString();
+
+        try (RollingFileHandler handler = new RollingFileHandler(directory)) {
+            handler.onError(largeTrigger);
+            handler.onError("small");
+        }
+
+        assertEquals(Arrays.asList(largeTrigger, "small"), readLines(directory));
+    }
+
+    @Test
+    public void testRollsBySize() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        try (RollingFileHandler handler = new RollingFileHandler(directory, "snaperr", 10L, NO_ROLLING,
+                RollingFileHandler.FsyncPolicy.never())) {
+            handler.onError("first trigger");
+            handler.onError("second trigger");
+            handler.onError("third trigger");
+        }
+
+        assertEquals(3, listFiles(directory).size());
+        assertEquals(Arrays.asList("first trigger", "second trigger", "third trigger"), readLines(directory));
+    }
+
+    @Test
+    public void testRollsByAge() throws IOException, InterruptedException {
+        final File directory = temporaryFolder.newFolder();
+        try (RollingFileHandler handler = new RollingFileHandler(directory, "snaperr", NO_ROLLING, 1L,
+                RollingFileHandler.FsyncPolicy.never())) {
+            handler.onError("first trigger");
+            Thread.sleep(5L);
+            handler.onError("second trigger");
+        }
+
+        assertEquals(2, listFiles(directory).size());
+    }
+
+    @Test
+    public void testFsyncEveryRecords() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        try (RollingFileHandler handler = new RollingFileHandler(directory, "snaperr", NO_ROLLING, NO_ROLLING,
+                RollingFileHandler.FsyncPolicy.everyRecords(2))) {
+            handler.onError("1");
+            assertEquals(0L, handler.getForceCount());
+            handler.onError("2");
+            assertEquals(1L, handler.getForceCount());
+            handler.onError("3");
+            handler.onError("4");
+            assertEquals(2L, handler.getForceCount());
+        }
+    }
+
+    @Test
+    public void testFsyncPolicyParsing() {
+        assertEquals("never", RollingFileHandler.FsyncPolicy.parse("never").toString());
+        assertEquals("records:100", RollingFileHandler.FsyncPolicy.parse("records:100").toString());
+        assertEquals("millis:1000", RollingFileHandler.FsyncPolicy.parse(" MILLIS:1000 ").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFsyncPolicy() {
+        RollingFileHandler.FsyncPolicy.parse("always");
+    }
+
+    @Test
+    public void testClosedHandlerDiscardsTriggers() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        final RollingFileHandler handler = new RollingFileHandler(directory);
+        handler.onError("before close");
+        handler.close();
+        handler.onError("after close");
+
+        assertEquals(Arrays.asList("before close"), readLines(directory));
+    }
+
+    @Test
+    public void testBinarySnapshotsAreWrittenAsTheyAre() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final BinarySerializer binarySerializer = new BinarySerializer();
+
+        final List<String> expected = new ArrayList<>();
+        try (RollingFileHandler handler = new RollingFileHandler(directory)) {
+            final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, binarySerializer, handler, new UnrestrictedThrottler());
+            expected.add(raiseError(tracer, referenceTracker, "direct \u00e1rv\u00edzt\u0171r\u0151"));
+            tracer.timeout("source", "slowMethod", 10L, 20L);
+            expected.add(new StringSerializer().serializeTrigger(new TimeoutTrigger(referenceTracker, 10L, 20L)));
+            handler.onBatch(Arrays.asList(new SerializedTrigger(SerializedTrigger.Type.ERROR,
+                    binarySerializer.serialize(new ErrorTrigger(referenceTracker, new IllegalArgumentException("batched"))))));
+            expected.add(new StringSerializer().serializeTrigger(new ErrorTrigger(referenceTracker, new IllegalArgumentException("batched"))));
+        }
+
+        assertEquals(expected, readSnapshots(directory));
+    }
+
+    @Test
+    public void testBinarySnapshotsPassTheAsynchronousStage() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+
+        final List<String> expected = new ArrayList<>();
+        try (RollingFileHandler handler = new RollingFileHandler(directory)) {
+            final AsyncTriggerHandler asyncHandler = new AsyncTriggerHandler(handler);
+            final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new BinarySerializer(), asyncHandler, new UnrestrictedThrottler());
+            for (int i = 0; i < 10; i++) {
+                expected.add(raiseError(tracer, referenceTracker, "async \u0151 " + i));
+            }
+            asyncHandler.close();
+            assertEquals(10L, asyncHandler.getHandledTriggerCount());
+        }
+
+        assertEquals(expected, readSnapshots(directory));
+    }
+
+    /**
+     * @return the expected text rendering of the raised error
+     */
+    private static String raiseError(SnaperrTracer tracer, StackBasedReferenceTracker referenceTracker, String message) {
+        final IllegalStateException error = new IllegalStateException(message);
+        tracer.entering("source", "failingMethod", "param", message);
+        tracer.onError("source", "failingMethod", error);
+        final String rendered = new StringSerializer().serializeTrigger(new ErrorTrigger(referenceTracker, error));
+        tracer.exiting("source", "failingMethod");
+        return rendered;
+    }
+
+    private static List<String> readSnapshots(File directory) throws IOException {
+        final List<String> snapshots = new ArrayList<>();
+        for (File file : listFiles(directory)) {
+            try (InputStream input = new FileInputStream(file)) {
+                final BinaryTriggerDecoder decoder = new BinaryTriggerDecoder(input);
+                String snapshot;
+                while ((snapshot = decoder.readSnapshot()) != null) {
+                    snapshots.add(snapshot);
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    private static List<File> listFiles(File directory) {
+        final File[] files = directory.listFiles();
+        assertTrue(files != null);
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static List<String> readLines(File directory) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        for (File file : listFiles(directory)) {
+            lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+}
@@ -0,0 +1,111 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.NoopTriggerHandler;
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScopePropagatorTest {
+
+    private final List<String> snapshots = new ArrayList<>();
+
+    private final List<String> propagatedScopes = new CopyOnWriteArrayList<>();
+
+    private final SnaperrTracer tracer = new SnaperrTracer(new StackBasedReferenceTracker(), new StringSerializer(),
+            new NoopTriggerHandler() {
+                @Override
+                public void onError(String serializedError) {
+                    synchronized (snapshots) {
+                        snapshots.add(serializedError);
+                    }
+                }
+            }, new UnrestrictedThrottler());
+
+    private final ScopePropagator scopePropagator = new ScopePropagator(tracer.getReferenceTracker());
+
+    @Test
+    public void testSnapshotOfTheWorkerContainsTheSubmitter() throws InterruptedException, ExecutionException {
+        final ExecutorService executorService = scopePropagator.wrap(Executors.newSingleThreadExecutor());
+        try {
+            tracer.entering(this, "submit", "request", 42);
+            final Callable<String> task = new Callable<String>() {
+                @Override
+                public String call() {
+                    tracer.entering(this, "task", "item", "first");
+                    tracer.onError(this, "task", new IllegalStateException("failed task"));
+                    tracer.exiting(this, "task");
+                    return "done";
+                }
+            };
+            assertEquals("done", executorService.submit(task).get());
+            tracer.exiting(this, "submit");
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertEquals(1, snapshots.size());
+        final String snapshot = snapshots.get(0);
+        final int taskScope = snapshot.indexOf(".task {\n\t\titem=first\n");
+        final int submitScope = snapshot.indexOf(".submit {\n\t\trequest=42\n");
+        assertTrue(snapshot, taskScope > 0);
+        assertTrue(snapshot, submitScope > taskScope);
+    }
+
+    @Test
+    public void testExecutorPropagatesTheScopesOfTheSubmission() {
+        final Executor executor = scopePropagator.wrap(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                final Thread worker = new Thread(command);
+                worker.start();
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final Iterator<TrackedScope> scopes = tracer.getReferenceTracker().scopes();
+                propagatedScopes.add(scopes.hasNext() ? scopes.next().getMethodName() : "none");
+            }
+        };
+
+        tracer.entering(this, "submit");
+        executor.execute(task);
+        tracer.exiting(this, "submit");
+        executor.execute(task);
+
+        assertEquals(Arrays.asList("submit", "none"), propagatedScopes);
+    }
+
+    @Test
+    public void testNothingToPropagateOutsideOfTrackedScopes() {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        assertTrue(task == scopePropagator.wrap(task));
+    }
+
+}
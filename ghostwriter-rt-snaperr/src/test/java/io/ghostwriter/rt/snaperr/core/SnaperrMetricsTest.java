@@ -0,0 +1,169 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.NoopTriggerHandler;
+import io.ghostwriter.rt.snaperr.SnaperrTracer;
+import io.ghostwriter.rt.snaperr.UnrestrictedThrottler;
+import io.ghostwriter.rt.snaperr.api.ErrorDeduplicator;
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import io.ghostwriter.rt.snaperr.tracker.ThreadDepth;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnaperrMetricsTest {
+
+    @Test
+    public void testEventsAreCounted() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final SnaperrMetrics metrics = new SnaperrMetrics(referenceTracker);
+        final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new NoopTriggerHandler(), new UnrestrictedThrottler(), ErrorDeduplicator.NONE, null, metrics);
+
+        tracer.entering(this, "method", "a", 1);
+        tracer.valueChange(this, "method", "b", 2);
+        tracer.valueChange(this, "method", "c", "text");
+        tracer.onError(this, "method", new IllegalStateException("\u00e9"));
+        tracer.timeout(this, "method", 10L, 20L);
+        tracer.exiting(this, "method");
+
+        final SnaperrMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1L, snapshot.getEnteringCount());
+        assertEquals(2L, snapshot.getValueChangeCount());
+        assertEquals(1L, snapshot.getExitingCount());
+        assertEquals(1L, snapshot.getErrorCount());
+        assertEquals(1L, snapshot.getTimeoutCount());
+        assertEquals(2L, snapshot.getHandledTriggerCount());
+        assertEquals(0L, snapshot.getThrottledTriggerCount());
+        assertEquals(2L, snapshot.getSerializationLatency().getCount());
+        assertEquals(2L, snapshot.getHandlerLatency().getCount());
+
+        final long expectedBytes = SnaperrMetrics.utf8Length(new StringSerializer().serializeTrigger(
+                new ErrorTrigger(new StackBasedReferenceTracker(), new IllegalStateException("\u00e9"))));
+        assertTrue(snapshot.getEmittedBytes() > expectedBytes);
+    }
+
+    @Test
+    public void testThrottledTriggersAreCounted() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final SnaperrMetrics metrics = new SnaperrMetrics(referenceTracker);
+        final ThrottleController throttler = new ThrottleController(60000L, 1);
+        final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new StringSerializer(),
+                new NoopTriggerHandler(), throttler, ErrorDeduplicator.NONE, null, metrics);
+
+        tracer.entering(this, "method");
+        tracer.onError(this, "method", new IllegalStateException());
+        tracer.onError(this, "method", new IllegalArgumentException());
+        tracer.exiting(this, "method");
+
+        assertEquals(2L, metrics.getErrorCount());
+        assertEquals(1L, metrics.getHandledTriggerCount());
+        assertEquals(1L, metrics.getThrottledTriggerCount());
+    }
+
+    @Test
+    public void testStreamingSerializationIsMeasured() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final SnaperrMetrics metrics = new SnaperrMetrics(referenceTracker);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final SnaperrTracer tracer = new SnaperrTracer(referenceTracker, new BinarySerializer(),
+                new OutputStreamTriggerHandler(output), new UnrestrictedThrottler(), ErrorDeduplicator.NONE, null,
+                metrics);
+
+        tracer.entering(this, "method", "a", 1);
+        tracer.onError(this, "method", new IllegalStateException());
+        tracer.exiting(this, "method");
+
+        assertEquals(1L, metrics.getSerializationCount());
+        assertEquals(1L, metrics.getHandlerCount());
+        assertTrue(metrics.getEmittedBytes() > 0L);
+        assertTrue(metrics.getEmittedBytes() <= output.size());
+    }
+
+    @Test
+    public void testThreadDepths() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker(2);
+        final SnaperrMetrics metrics = new SnaperrMetrics(referenceTracker);
+        final Thread thread = Thread.currentThread();
+
+        for (int i = 0; i < 3; i++) {
+            referenceTracker.pushScope(this, "method" + i);
+        }
+        referenceTracker.popScope();
+
+        final ThreadDepth threadDepth = findThreadDepth(metrics, thread);
+        assertEquals(2, threadDepth.getDepth());
+        assertEquals(3, threadDepth.getDeepestDepth());
+        assertEquals(3, metrics.getMaxScopeDepth());
+
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        assertEquals(0, findThreadDepth(metrics, thread).getDepth());
+        assertEquals(3, metrics.snapshot().getMaxScopeDepth());
+    }
+
+    @Test
+    public void testMXBean() throws Exception {
+        final SnaperrMetrics metrics = new SnaperrMetrics(new StackBasedReferenceTracker());
+        metrics.entering();
+        metrics.recordHandler(1000L);
+        final String objectName = SnaperrMetrics.DEFAULT_OBJECT_NAME + ",name=test";
+        assertTrue(metrics.register(objectName));
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(objectName);
+        try {
+            assertEquals(1L, mBeanServer.getAttribute(name, "EnteringCount"));
+            assertEquals(1000L, mBeanServer.getAttribute(name, "HandlerMaxNanos"));
+            assertTrue(mBeanServer.getAttribute(name, "ThreadDepths") instanceof CompositeData[]);
+
+            // registering again replaces the previous metrics
+            assertTrue(new SnaperrMetrics(new StackBasedReferenceTracker()).register(objectName));
+            assertEquals(0L, mBeanServer.getAttribute(name, "EnteringCount"));
+        } finally {
+            mBeanServer.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10L);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100L, snapshot.getCount());
+        assertEquals(505L, snapshot.getMeanNanos());
+        assertEquals(1000L, snapshot.getMaxNanos());
+        // 500 is in the bucket of [256, 511]
+        assertEquals(511L, snapshot.percentileNanos(50d));
+        assertEquals(1000L, snapshot.percentileNanos(99d));
+        assertEquals(0L, new LatencyHistogram().snapshot().percentileNanos(99d));
+    }
+
+    @Test
+    public void testUtf8Length() throws IOException {
+        final String text = "a\u00e9\u20ac\ud83d\ude00";
+        assertEquals(10L, SnaperrMetrics.utf8Length(text));
+        assertEquals(text.getBytes("UTF-8").length, SnaperrMetrics.utf8Length(text));
+    }
+
+    private static ThreadDepth findThreadDepth(SnaperrMetrics metrics, Thread thread) {
+        for (ThreadDepth threadDepth : metrics.getThreadDepths()) {
+            if (threadDepth.getThreadId() == thread.getId()) {
+                return threadDepth;
+            }
+        }
+        throw new AssertionError("No depth reported for " + thread);
+    }
+
+}
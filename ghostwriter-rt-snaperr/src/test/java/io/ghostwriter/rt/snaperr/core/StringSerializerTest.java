@@ -1,6 +1,7 @@
 package io.ghostwriter.rt.snaperr.core;
 
 import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.api.TimeoutTrigger;
 import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
 import org.junit.Test;
 
@@ -54,6 +55,26 @@ public class StringSerializerTest {
         assertTrue(FORMATTED_RESULT.equals(serializeTrigger));
     }
 
+    @Test
+    public void testTimeoutTriggerSerialization() {
+        final StringSerializer stringSerializer = new StringSerializer();
+
+        final StackBasedReferenceTracker stackBasedReferenceTracker = new StackBasedReferenceTracker();
+        stackBasedReferenceTracker.pushScope(new DummmyClass(), "slowMethod");
+        stackBasedReferenceTracker.track("retries", 3);
+
+        final TimeoutTrigger timeoutTrigger = new TimeoutTrigger(stackBasedReferenceTracker, 1000L, 2500L);
+        final String serializeTrigger = stringSerializer.serializeTrigger(timeoutTrigger);
+
+        final String FORMATTED_RESULT = "Snaperr - state snapshot of timeout, threshold: 1000ms, measured: 2500ms: [\n" +
+                "\tDummmyClass{}.slowMethod {\n" +
+                "\t\tretries=3\n" +
+                "\t}\n" +
+                "]";
+
+        assertTrue(FORMATTED_RESULT.equals(serializeTrigger));
+    }
+
     private static class DummmyClass {
         @Override
         public String toString() {
@@ -0,0 +1,183 @@
+package io.ghostwriter.rt.snaperr.core;
+
+import io.ghostwriter.rt.snaperr.api.ErrorTrigger;
+import io.ghostwriter.rt.snaperr.tracker.StackBasedReferenceTracker;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValueRendererTest {
+
+    private final ValueRenderer renderer = new ValueRenderer(64, 3, 2, 1024, 1000L);
+
+    @Test
+    public void testSmallValuesMatchTheirToString() {
+        final ValueRenderer.Snapshot values = renderer.newSnapshot();
+        final Map<String, Integer> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        map.put("b", null);
+
+        assertEquals("null", values.render(null));
+        assertEquals("text", values.render("text"));
+        assertEquals("42", values.render(42));
+        assertEquals(Arrays.asList(1, 2).toString(), values.render(Arrays.asList(1, 2)));
+        assertEquals(map.toString(), values.render(map));
+        assertEquals("[1, 2, 3]", values.render(new int[]{1, 2, 3}));
+        assertEquals("[a, null]", values.render(new String[]{"a", null}));
+        assertEquals("[]", values.render(Collections.emptyList()));
+    }
+
+    @Test
+    public void testValuesAreRenderedAsBeforeWithoutLimits() {
+        final ValueRenderer.Snapshot values = ValueRenderer.DEFAULT.newSnapshot();
+        final List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(i);
+        }
+        final int[] array = {1, 2, 3};
+
+        assertFalse(ValueRenderer.DEFAULT.isLimited());
+        assertEquals(list.toString(), values.render(list));
+        assertEquals(String.valueOf(array), values.render(array));
+        assertFalse(values.isExhausted());
+    }
+
+    @Test
+    public void testSingleLimitLeavesTheOthersOff() {
+        final ValueRenderer elementLimit = new ValueRenderer(ValueRenderer.NO_LIMIT, 3, ValueRenderer.NO_LIMIT,
+                ValueRenderer.NO_LIMIT, ValueRenderer.NO_DEADLINE);
+        final ValueRenderer.Snapshot values = elementLimit.newSnapshot();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append('x');
+        }
+
+        assertTrue(elementLimit.isLimited());
+        assertEquals("[0, 1, 2, ...(+2 more)]", values.render(Arrays.asList(0, 1, 2, 3, 4)));
+        assertEquals(sb.toString(), values.render(sb));
+    }
+
+    @Test
+    public void testLongValueIsTruncated() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append('x');
+        }
+
+        final String rendered = renderer.newSnapshot().render(sb);
+        assertTrue(rendered, rendered.endsWith("...(truncated, 100 chars)"));
+        assertTrue(rendered, rendered.startsWith("xxxxxxxx"));
+    }
+
+    @Test
+    public void testElementsAreCapped() {
+        final ValueRenderer.Snapshot values = renderer.newSnapshot();
+        final Map<Integer, Integer> map = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            map.put(i, i);
+        }
+
+        assertEquals("[0, 0, 0, ...(+7 more)]", values.render(new long[10]));
+        assertEquals("[0, 1, 2, ...(+2 more)]", values.render(Arrays.asList(0, 1, 2, 3, 4)));
+        assertEquals("{0=0, 1=1, 2=2, ...(+2 more)}", values.render(map));
+    }
+
+    @Test
+    public void testHugeCollectionIsNotIterated() {
+        final List<Integer> list = new ArrayList<>(Collections.nCopies(2000000, 7));
+
+        assertEquals("[7, 7, 7, ...(+1999997 more)]", renderer.newSnapshot().render(list));
+    }
+
+    @Test
+    public void testNestingIsLimited() {
+        final List<Object> nested = Arrays.<Object>asList(1, Arrays.asList(2, Arrays.asList(3)));
+
+        assertEquals("[1, [2, ...(depth limit, java.util.Arrays$ArrayList of 1)]]", renderer.newSnapshot().render(nested));
+    }
+
+    @Test
+    public void testSelfReference() {
+        final List<Object> list = new ArrayList<>();
+        list.add(list);
+
+        assertEquals("[(this Collection)]", renderer.newSnapshot().render(list));
+    }
+
+    @Test
+    public void testCollectionToStringIsNotCalled() {
+        final List<Integer> list = new ArrayList<Integer>(Arrays.asList(1, 2)) {
+            @Override
+            public String toString() {
+                throw new AssertionError("toString must not be called");
+            }
+        };
+
+        assertEquals("[1, 2]", renderer.newSnapshot().render(list));
+    }
+
+    @Test
+    public void testFailingToStringIsMarked() {
+        final Object failing = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException();
+            }
+        };
+
+        assertEquals("[1, ...(rendering failed: java.lang.IllegalStateException)",
+                renderer.newSnapshot().render(Arrays.asList(1, failing)));
+    }
+
+    @Test
+    public void testSnapshotSizeLimit() {
+        final ValueRenderer.Snapshot values = new ValueRenderer(64, 3, 2, 10, 1000L).newSnapshot();
+
+        assertEquals("12345678", values.render("12345678"));
+        assertEquals("12...(truncated, 8 chars)", values.render("12345678"));
+        assertTrue(values.isExhausted());
+        assertEquals("...(snapshot size limit)", values.render("12345678"));
+    }
+
+    @Test
+    public void testDeadline() {
+        final ValueRenderer.Snapshot values = new ValueRenderer(64, 3, 2, 1024, 50L).newSnapshot();
+        final Object slow = new Object() {
+            @Override
+            public String toString() {
+                try {
+                    Thread.sleep(60L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "slow";
+            }
+        };
+
+        assertEquals("slow", values.render(slow));
+        assertFalse(values.isExhausted());
+        assertEquals("...(deadline exceeded)", values.render("fast"));
+        assertTrue(values.isExhausted());
+    }
+
+    @Test
+    public void testSerializerUsesTheLimits() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope("source", "method");
+        referenceTracker.track("list", new ArrayList<>(Collections.nCopies(2000000, 7)));
+
+        final String snapshot = new StringSerializer(renderer)
+                .serializeTrigger(new ErrorTrigger(referenceTracker, new IllegalStateException()));
+        assertTrue(snapshot, snapshot.contains("\t\tlist=[7, 7, 7, ...(+1999997 more)]\n"));
+    }
+
+}
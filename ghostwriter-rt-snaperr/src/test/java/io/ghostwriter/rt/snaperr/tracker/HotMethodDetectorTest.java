@@ -0,0 +1,168 @@
+package io.ghostwriter.rt.snaperr.tracker;
+
+import io.ghostwriter.rt.snaperr.TrackedValueAsserter;
+import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HotMethodDetectorTest {
+
+    /**
+     * Reports the demotions on the demoting thread, so the tests do not have to wait for the reporter.
+     */
+    private static final Executor CALLER_RUNS = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testHotMethodIsDemoted() {
+        final HotMethodDetector detector = new HotMethodDetector(1000L, 1, 20L, null, CALLER_RUNS);
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setHotMethodDetector(detector);
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!detector.isDemoted(this, "hot") && System.currentTimeMillis() < deadline) {
+            referenceTracker.pushScope(this, "hot");
+            referenceTracker.popScope();
+        }
+
+        assertTrue(detector.isDemoted(this, "hot"));
+        assertFalse(detector.isDemoted(this, "caller"));
+        assertEquals(Collections.singletonList(HotMethodDetectorTest.class.getName() + ".hot"), detector.demotedMethods());
+    }
+
+    @Test
+    public void testColdMethodIsNotDemoted() {
+        final HotMethodDetector detector = new HotMethodDetector(Long.MAX_VALUE, 1, 1L, null);
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setHotMethodDetector(detector);
+
+        for (int i = 0; i < 10000; i++) {
+            referenceTracker.pushScope(this, "cold");
+            referenceTracker.popScope();
+        }
+
+        assertFalse(detector.isDemoted(this, "cold"));
+        assertTrue(detector.demotedMethods().isEmpty());
+    }
+
+    @Test
+    public void testDemotedMethodIsNotTracked() {
+        final HotMethodDetector detector = new HotMethodDetector();
+        detector.demote(HotMethodDetectorTest.class, "hot");
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setHotMethodDetector(detector);
+
+        referenceTracker.pushScope(this, "caller");
+        referenceTracker.track("a", 1);
+        referenceTracker.pushScope(this, "hot");
+        referenceTracker.track("b", 2);
+        referenceTracker.pushScope(this, "callee");
+        referenceTracker.track("c", 3);
+
+        // the caller stays the current scope, the values of the demoted method and its callees do not leak into it
+        final TrackedScope currentScope = referenceTracker.currentScope();
+        assertEquals("caller", currentScope.getMethodName());
+        TrackedValueAsserter.assertNumberOfTrackedVariables(currentScope.getReferences(), 1);
+        TrackedValueAsserter.assertTrackedValue(currentScope.getReferences(), "a", 1);
+
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        referenceTracker.track("d", 4);
+        TrackedValueAsserter.assertNumberOfTrackedVariables(referenceTracker.currentScope().getReferences(), 2);
+        referenceTracker.popScope();
+        assertTrue(referenceTracker.isEmpty());
+    }
+
+    @Test
+    public void testDemotionDuringTheCallKeepsTheStackBalanced() {
+        final HotMethodDetector detector = new HotMethodDetector();
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setHotMethodDetector(detector);
+
+        referenceTracker.pushScope(this, "recursive");
+        assertTrue(detector.demote(HotMethodDetectorTest.class, "recursive"));
+        assertFalse(detector.demote(HotMethodDetectorTest.class, "recursive"));
+        referenceTracker.pushScope(this, "recursive");
+        referenceTracker.pushScope(this, "recursive");
+        assertEquals("recursive", referenceTracker.currentScope().getMethodName());
+
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        assertFalse(referenceTracker.isEmpty());
+        referenceTracker.popScope();
+        assertTrue(referenceTracker.isEmpty());
+    }
+
+    @Test
+    public void testDemotedMethodsAreExported() throws IOException {
+        final File exportFile = new File(temporaryFolder.getRoot(), "demoted.txt");
+        final HotMethodDetector detector = new HotMethodDetector(HotMethodDetector.DEFAULT_MAX_CALLS_PER_SECOND,
+                HotMethodDetector.DEFAULT_SAMPLE_INTERVAL, HotMethodDetector.DEFAULT_WINDOW_LENGTH_MS, exportFile,
+                CALLER_RUNS);
+
+        detector.demote(HotMethodDetectorTest.class, "first");
+        detector.demote(Nested.class, "second");
+
+        assertEquals(Arrays.asList(HotMethodDetectorTest.class.getName() + ".first",
+                HotMethodDetectorTest.class.getName() + ".Nested.second"),
+                Files.readAllLines(exportFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInheritedMethodsAreExportedByTheirDeclaringClass() {
+        final HotMethodDetector detector = new HotMethodDetector(HotMethodDetector.DEFAULT_MAX_CALLS_PER_SECOND,
+                HotMethodDetector.DEFAULT_SAMPLE_INTERVAL, HotMethodDetector.DEFAULT_WINDOW_LENGTH_MS, null,
+                CALLER_RUNS);
+
+        detector.demote(Derived.class, "inherited");
+        detector.demote(Derived.class, "overridden");
+
+        // the demotion itself applies to the runtime class the probes see
+        assertTrue(detector.isDemoted(new Derived(), "inherited"));
+        assertFalse(detector.isDemoted(new Base(), "inherited"));
+        assertEquals(Arrays.asList(HotMethodDetectorTest.class.getName() + ".Base.inherited",
+                HotMethodDetectorTest.class.getName() + ".Derived.overridden"), detector.demotedMethods());
+    }
+
+    private static final class Nested {
+    }
+
+    private static class Base {
+
+        void inherited() {
+        }
+
+        void overridden() {
+        }
+
+    }
+
+    private static final class Derived extends Base {
+
+        @Override
+        void overridden() {
+        }
+
+    }
+
+}
@@ -3,9 +3,22 @@ package io.ghostwriter.rt.snaperr.tracker;
 
 import io.ghostwriter.rt.snaperr.TrackedValueAsserter;
 import io.ghostwriter.rt.snaperr.api.TrackedScope;
+import io.ghostwriter.rt.snaperr.api.TrackedValue;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class StackBasedReferenceTrackerTest {
@@ -59,4 +72,443 @@ public class StackBasedReferenceTrackerTest {
         assertFalse("traverser does not modify the state of the reference tracker", newTraverser.hasNext());
     }
 
+    @Test
+    public void testScopeStorageIsReusedAfterPop() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "method1");
+        referenceTracker.track("a", 1);
+        referenceTracker.track("b", 2);
+        referenceTracker.popScope();
+
+        referenceTracker.pushScope(this, "method2");
+        referenceTracker.track("c", 3);
+
+        TrackedScope currentScope = referenceTracker.currentScope();
+        assertTrue("method2".equals(currentScope.getMethodName()));
+        TrackedValueAsserter.assertNumberOfTrackedVariables(currentScope.getReferences(), 1);
+        TrackedValueAsserter.assertTrackedValue(currentScope.getReferences(), "c", 3);
+        TrackedValueAsserter.assertTrackedValueNotCaptured(currentScope.getReferences(), "a", 1);
+    }
+
+    @Test
+    public void testCurrentScopeIsDetachedFromStack() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "method1");
+        referenceTracker.track("a", 1);
+
+        final TrackedScope currentScope = referenceTracker.currentScope();
+        referenceTracker.popScope();
+        referenceTracker.pushScope(this, "method2");
+        referenceTracker.track("a", 2);
+
+        assertTrue("method1".equals(currentScope.getMethodName()));
+        TrackedValueAsserter.assertNumberOfTrackedVariables(currentScope.getReferences(), 1);
+        TrackedValueAsserter.assertTrackedValue(currentScope.getReferences(), "a", 1);
+    }
+
+    @Test
+    public void testVariablesKeepTheirSlots() {
+        final int NUMBER_OF_VARIABLES = 20;
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "testVariablesKeepTheirSlots");
+        for (int i = 0; i < NUMBER_OF_VARIABLES; i++) {
+            referenceTracker.track("variable" + i, i);
+        }
+        // names that are equal but not the same instance must end up in the same slot
+        for (int i = NUMBER_OF_VARIABLES - 1; i >= 0; i--) {
+            referenceTracker.track(new String("variable" + i), "value" + i);
+        }
+
+        final TrackedScope currentScope = referenceTracker.currentScope();
+        TrackedValueAsserter.assertNumberOfTrackedVariables(currentScope.getReferences(), NUMBER_OF_VARIABLES);
+        int expectedSlot = 0;
+        for (String variableName : currentScope.getReferences().keySet()) {
+            assertTrue("variable" + expectedSlot + " is expected, got: " + variableName, ("variable" + expectedSlot).equals(variableName));
+            TrackedValueAsserter.assertTrackedValue(currentScope.getReferences(), variableName, "value" + expectedSlot);
+            ++expectedSlot;
+        }
+    }
+
+    @Test
+    public void testScopesIterateFromTheInnermost() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "method1");
+        referenceTracker.pushScope(this, "method2");
+        referenceTracker.pushScope(this, "method3");
+        referenceTracker.popScope();
+
+        final Iterator<TrackedScope> scopes = referenceTracker.scopes();
+        assertEquals("method2", scopes.next().getMethodName());
+        assertEquals("method1", scopes.next().getMethodName());
+        assertFalse(scopes.hasNext());
+
+        // pushed after the creation of the iterator, not visible to it
+        final Iterator<TrackedScope> earlierScopes = referenceTracker.scopes();
+        referenceTracker.pushScope(this, "method3");
+        assertEquals("method2", earlierScopes.next().getMethodName());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testPopDuringIterationFailsFast() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "method1");
+        referenceTracker.pushScope(this, "method2");
+
+        final Iterator<TrackedScope> scopes = referenceTracker.scopes();
+        referenceTracker.popScope();
+        scopes.next();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testIterationPastTheBottom() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "method1");
+
+        final Iterator<TrackedScope> scopes = referenceTracker.scopes();
+        scopes.next();
+        scopes.next();
+    }
+
+    @Test
+    public void testScopesBeyondTheDepthLimitAreOnlyCounted() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker(2);
+        referenceTracker.pushScope(this, "method1");
+        referenceTracker.pushScope(this, "method2");
+        referenceTracker.track("a", 1);
+        referenceTracker.pushScope(this, "method3");
+        referenceTracker.track("b", 2);
+        referenceTracker.pushScope(this, "method4");
+        assertEquals(2, referenceTracker.untrackedDepth());
+
+        // the deepest tracked scope stays the current one, values of the untracked scopes do not leak into it
+        final TrackedScope currentScope = referenceTracker.currentScope();
+        assertEquals("method2", currentScope.getMethodName());
+        TrackedValueAsserter.assertNumberOfTrackedVariables(currentScope.getReferences(), 1);
+        TrackedValueAsserter.assertTrackedValue(currentScope.getReferences(), "a", 1);
+
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        assertEquals(0, referenceTracker.untrackedDepth());
+        referenceTracker.pushScope(this, "method3");
+        assertEquals(1, referenceTracker.untrackedDepth());
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        assertTrue(referenceTracker.isEmpty());
+    }
+
+    @Test
+    public void testDepthIsNotLimitedByDefault() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        final int depth = 4096;
+        for (int i = 0; i < depth; i++) {
+            referenceTracker.pushScope(this, "method" + i);
+        }
+        referenceTracker.track("deepest", depth);
+
+        assertEquals(0, referenceTracker.untrackedDepth());
+        assertEquals("method" + (depth - 1), referenceTracker.currentScope().getMethodName());
+        TrackedValueAsserter.assertTrackedValue(referenceTracker.currentScope().getReferences(), "deepest", depth);
+        for (int i = 0; i < depth; i++) {
+            referenceTracker.popScope();
+        }
+        assertTrue(referenceTracker.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDepthLimitMustBePositive() {
+        new StackBasedReferenceTracker(0);
+    }
+
+    @Test
+    public void testStorageIsAllocatedOnFirstPush() {
+        final CallStackScope callStackScope = new CallStackScope();
+        assertEquals(0, callStackScope.retainedSlots());
+        assertFalse(callStackScope.iterator().hasNext());
+
+        callStackScope.push(this, "method1");
+        assertEquals(1, callStackScope.retainedSlots());
+    }
+
+    @Test
+    public void testSlotsOfADepthSpikeAreReleased() {
+        final CallStackScope callStackScope = new CallStackScope(1024, 4);
+        call(callStackScope, 100);
+        assertEquals(100, callStackScope.retainedSlots());
+
+        // the interval of the spike keeps its slots, the next one releases them
+        for (int i = 0; i < 2 * CallStackScope.TRIM_INTERVAL; i++) {
+            call(callStackScope, 2);
+        }
+        assertEquals(4, callStackScope.retainedSlots());
+
+        call(callStackScope, 3);
+        assertEquals(4, callStackScope.retainedSlots());
+    }
+
+    @Test
+    public void testRegularlyUsedSlotsAreKept() {
+        final CallStackScope callStackScope = new CallStackScope(1024, 4);
+        for (int i = 0; i < 3 * CallStackScope.TRIM_INTERVAL; i++) {
+            call(callStackScope, i % 8 == 0 ? 50 : 2);
+        }
+        assertEquals(50, callStackScope.retainedSlots());
+    }
+
+    @Test
+    public void testOnlyTheUsedDepthIsKeptWithoutRetainedSlots() {
+        final CallStackScope callStackScope = new CallStackScope(1024, 0);
+        call(callStackScope, 10);
+        for (int i = 0; i < 2 * CallStackScope.TRIM_INTERVAL; i++) {
+            call(callStackScope, 1);
+        }
+        assertEquals(1, callStackScope.retainedSlots());
+
+        callStackScope.push(this, "method1");
+        callStackScope.peekReferences().track("a", 1);
+        assertEquals("method1", callStackScope.peek().getMethodName());
+    }
+
+    /**
+     * Simulates a call from depth 0 that goes the given depth deep and returns.
+     */
+    private void call(CallStackScope callStackScope, int depth) {
+        for (int i = 0; i < depth; i++) {
+            callStackScope.push(this, "method" + i);
+        }
+        for (int i = 0; i < depth; i++) {
+            callStackScope.pop();
+        }
+        assertTrue(callStackScope.isEmpty());
+    }
+
+    @Test
+    public void testCapturedScopesOutliveTheirFrames() throws InterruptedException {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "submit1");
+        referenceTracker.track("a", 1);
+        referenceTracker.pushScope(this, "submit2");
+        referenceTracker.track("b", 2);
+        final ScopeChain scopes = referenceTracker.captureScopes();
+
+        // the slots of the captured scopes are reused by the submitting thread
+        referenceTracker.popScope();
+        referenceTracker.popScope();
+        referenceTracker.pushScope(this, "other");
+        referenceTracker.track("c", 3);
+
+        final List<String> workerScopes = new ArrayList<>();
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                referenceTracker.attachScopes(scopes);
+                referenceTracker.pushScope(this, "task");
+                referenceTracker.track("d", 4);
+                workerScopes.addAll(describe(referenceTracker.scopes()));
+            }
+        });
+        worker.start();
+        worker.join();
+
+        assertEquals(Arrays.asList("task{d=4}", "submit2{b=2}", "submit1{a=1}"), workerScopes);
+        assertEquals(Arrays.asList("other{c=3}"), describe(referenceTracker.scopes()));
+    }
+
+    @Test
+    public void testCapturedScopesAreFrozen() throws InterruptedException {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "submit1");
+        referenceTracker.track("i", 0);
+        final ScopeChain first = referenceTracker.captureScopes();
+
+        // every capture sees the values of its own time, like tasks submitted in a loop
+        referenceTracker.track("i", 1);
+        final ScopeChain second = referenceTracker.captureScopes();
+        referenceTracker.pushScope(this, "submit2");
+        final ScopeChain third = referenceTracker.captureScopes();
+        referenceTracker.track("j", 2);
+        referenceTracker.popScope();
+        referenceTracker.track("i", 3);
+
+        assertEquals(Arrays.asList("submit1{i=0}"), scopesOnAnotherThread(referenceTracker, first));
+        assertEquals(Arrays.asList("submit1{i=1}"), scopesOnAnotherThread(referenceTracker, second));
+        assertEquals(Arrays.asList("submit2{}", "submit1{i=1}"), scopesOnAnotherThread(referenceTracker, third));
+        assertEquals(Arrays.asList("submit1{i=3}"), describe(referenceTracker.scopes()));
+    }
+
+    @Test
+    public void testCapturedScopesAreIsolatedFromTheRunningOwner() throws InterruptedException {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "submit1");
+        referenceTracker.track("a", 1);
+        referenceTracker.pushScope(this, "submit2");
+        referenceTracker.track("b", 2);
+        final ScopeChain scopes = referenceTracker.captureScopes();
+        final List<String> expected = Arrays.asList("submit2{b=2}", "submit1{a=1}");
+
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+        final AtomicReference<List<String>> mismatch = new AtomicReference<>();
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isDone.get()) {
+                    final List<String> workerScopes = describe(scopes.scopes());
+                    if (!expected.equals(workerScopes)) {
+                        mismatch.compareAndSet(null, workerScopes);
+                    }
+                }
+            }
+        });
+        worker.start();
+
+        // the owner reuses, grows and releases the slots of the captured scopes while the worker reads the chain
+        for (int i = 0; i < 20000 && worker.isAlive(); i++) {
+            referenceTracker.popScope();
+            referenceTracker.track("a", -i);
+            final int depth = 1 + i % 100;
+            for (int d = 0; d < depth; d++) {
+                referenceTracker.pushScope(this, "other" + d);
+                referenceTracker.track("b", i);
+                referenceTracker.track("c" + d % 10, d);
+            }
+            if (i % 10 == 0) {
+                referenceTracker.captureScopes();
+            }
+            for (int d = 0; d < depth; d++) {
+                referenceTracker.popScope();
+            }
+            referenceTracker.pushScope(this, "submit2");
+        }
+        isDone.set(true);
+        worker.join();
+
+        assertNull(mismatch.get());
+        assertEquals(expected, describe(scopes.scopes()));
+    }
+
+    @Test
+    public void testScopesPropagateOverMultipleThreads() throws InterruptedException {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "first");
+        final ScopeChain firstScopes = referenceTracker.captureScopes();
+
+        final ScopeChain[] secondScopes = new ScopeChain[1];
+        final Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                referenceTracker.attachScopes(firstScopes);
+                referenceTracker.pushScope(this, "second");
+                secondScopes[0] = referenceTracker.captureScopes();
+                referenceTracker.popScope();
+            }
+        });
+        second.start();
+        second.join();
+        referenceTracker.popScope();
+
+        assertEquals(Arrays.asList("second{}", "first{}"), scopesOnAnotherThread(referenceTracker, secondScopes[0]));
+    }
+
+    @Test
+    public void testOwnScopesAreNotAttached() {
+        final ReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "submit");
+        final ScopeChain scopes = referenceTracker.captureScopes();
+
+        // the work runs on the submitting thread
+        final ScopeChain previousScopes = referenceTracker.attachScopes(scopes);
+        referenceTracker.pushScope(this, "task");
+        assertEquals(Arrays.asList("task{}", "submit{}"), describe(referenceTracker.scopes()));
+        referenceTracker.popScope();
+        referenceTracker.attachScopes(previousScopes);
+    }
+
+    @Test
+    public void testOneInNInvocationTreesIsSampled() {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.setSamplingInterval(4);
+
+        int sampledTrees = 0;
+        for (int i = 0; i < 40; i++) {
+            referenceTracker.pushScope(this, "root");
+            referenceTracker.track("i", i);
+            referenceTracker.pushScope(this, "nested");
+            if (referenceTracker.isSampled()) {
+                sampledTrees++;
+                assertEquals(Arrays.asList("nested{}", "root{i=" + i + "}"), describe(referenceTracker.scopes()));
+            } else {
+                // the scopes of an unsampled tree are only counted
+                assertTrue(referenceTracker.isEmpty());
+                assertNull(referenceTracker.currentScope());
+                assertFalse(referenceTracker.scopes().hasNext());
+            }
+            referenceTracker.popScope();
+            referenceTracker.popScope();
+            assertTrue(referenceTracker.isEmpty());
+            assertTrue(referenceTracker.isSampled());
+        }
+        assertEquals(10, sampledTrees);
+
+        referenceTracker.setSamplingInterval(1);
+        referenceTracker.pushScope(this, "root");
+        assertTrue(referenceTracker.isSampled());
+        assertFalse(referenceTracker.isEmpty());
+    }
+
+    @Test
+    public void testPropagatedWorkIsAlwaysSampled() throws InterruptedException {
+        final StackBasedReferenceTracker referenceTracker = new StackBasedReferenceTracker();
+        referenceTracker.pushScope(this, "submitter");
+        final ScopeChain scopes = referenceTracker.captureScopes();
+        referenceTracker.setSamplingInterval(Integer.MAX_VALUE);
+
+        final List<String> workerScopes = new ArrayList<>();
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                referenceTracker.attachScopes(scopes);
+                referenceTracker.pushScope(this, "task");
+                referenceTracker.track("x", 1);
+                workerScopes.addAll(describe(referenceTracker.scopes()));
+            }
+        });
+        worker.start();
+        worker.join();
+
+        assertEquals(Arrays.asList("task{x=1}", "submitter{}"), workerScopes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSamplingIntervalMustBePositive() {
+        new StackBasedReferenceTracker().setSamplingInterval(0);
+    }
+
+    private static List<String> scopesOnAnotherThread(final ReferenceTracker referenceTracker, final ScopeChain scopes)
+            throws InterruptedException {
+        final List<String> workerScopes = new ArrayList<>();
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                referenceTracker.attachScopes(scopes);
+                workerScopes.addAll(describe(referenceTracker.scopes()));
+            }
+        });
+        worker.start();
+        worker.join();
+        return workerScopes;
+    }
+
+    private static List<String> describe(Iterator<TrackedScope> scopes) {
+        final List<String> descriptions = new ArrayList<>();
+        while (scopes.hasNext()) {
+            final TrackedScope scope = scopes.next();
+            final StringBuilder description = new StringBuilder(scope.getMethodName()).append('{');
+            for (Map.Entry<String, TrackedValue> entry : scope.getReferences().entrySet()) {
+                description.append(entry.getKey()).append('=').append(entry.getValue().getValue());
+            }
+            descriptions.add(description.append('}').toString());
+        }
+        return descriptions;
+    }
+
 }